@@ -28,7 +28,28 @@ import com.yahoo.memory.WritableMemory;
  *
  * @author Alexander Saydakov
  */
-public class ArrayOfDoublesSerDe extends ArrayOfItemsSerDe<Double> {
+public class ArrayOfDoublesSerDe extends ArrayOfFixedWidthItemsSerDe<Double> {
+
+  @Override
+  public int getItemSizeBytes() {
+    return Double.BYTES;
+  }
+
+  @Override
+  public void putItem(final WritableMemory mem, final long offsetBytes, final Double item) {
+    mem.putDouble(offsetBytes, item);
+  }
+
+  @Override
+  public Double getItem(final Memory mem, final long offsetBytes) {
+    return mem.getDouble(offsetBytes);
+  }
+
+  @Override
+  public int compare(final Memory memA, final long offsetBytesA, final Memory memB,
+      final long offsetBytesB) {
+    return Double.compare(memA.getDouble(offsetBytesA), memB.getDouble(offsetBytesB));
+  }
 
   @Override
   public byte[] serializeToByteArray(final Double[] items) {
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches;
+
+import java.util.Comparator;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.UnsafeUtil;
+import com.yahoo.memory.WritableMemory;
+
+/**
+ * Methods of serializing and deserializing arrays of byte[] keys that all have the same length.
+ * Keys are ordered by unsigned lexicographic comparison, see {@link #COMPARATOR}.
+ */
+public class ArrayOfFixedWidthBytesSerDe extends ArrayOfFixedWidthItemsSerDe<byte[]> {
+
+  /**
+   * The unsigned lexicographic order of byte[] keys used by this SerDe. On-heap sketches of the
+   * same keys should use this comparator so that their order agrees with the in-memory order.
+   */
+  public static final Comparator<byte[]> COMPARATOR = new Comparator<byte[]>() {
+    @Override
+    public int compare(final byte[] a, final byte[] b) {
+      final int len = Math.min(a.length, b.length);
+      for (int i = 0; i < len; i++) {
+        final int diff = (a[i] & 0XFF) - (b[i] & 0XFF);
+        if (diff != 0) { return diff; }
+      }
+      return a.length - b.length;
+    }
+  };
+
+  private final int width_;
+
+  /**
+   * Creates a SerDe for keys of the given length.
+   * @param width the length of every key in bytes
+   */
+  public ArrayOfFixedWidthBytesSerDe(final int width) {
+    if (width < 1) {
+      throw new SketchesArgumentException("Width must be positive: " + width);
+    }
+    width_ = width;
+  }
+
+  @Override
+  public byte[] serializeToByteArray(final byte[][] items) {
+    final byte[] bytes = new byte[width_ * items.length];
+    final WritableMemory mem = WritableMemory.wrap(bytes);
+    long offsetBytes = 0;
+    for (int i = 0; i < items.length; i++) {
+      putItem(mem, offsetBytes, items[i]);
+      offsetBytes += width_;
+    }
+    return bytes;
+  }
+
+  @Override
+  public byte[][] deserializeFromMemory(final Memory mem, final int numItems) {
+    UnsafeUtil.checkBounds(0, (long) numItems * width_, mem.getCapacity());
+    final byte[][] array = new byte[numItems][];
+    long offsetBytes = 0;
+    for (int i = 0; i < numItems; i++) {
+      array[i] = getItem(mem, offsetBytes);
+      offsetBytes += width_;
+    }
+    return array;
+  }
+
+  @Override
+  public int getItemSizeBytes() {
+    return width_;
+  }
+
+  @Override
+  public void putItem(final WritableMemory mem, final long offsetBytes, final byte[] item) {
+    if (item.length != width_) {
+      throw new SketchesArgumentException("Key length " + item.length + " != " + width_);
+    }
+    mem.putByteArray(offsetBytes, item, 0, width_);
+  }
+
+  @Override
+  public byte[] getItem(final Memory mem, final long offsetBytes) {
+    final byte[] item = new byte[width_];
+    mem.getByteArray(offsetBytes, item, 0, width_);
+    return item;
+  }
+
+  @Override
+  public int compare(final Memory memA, final long offsetBytesA, final Memory memB,
+      final long offsetBytesB) {
+    for (int i = 0; i < width_; i++) {
+      final int diff = (memA.getByte(offsetBytesA + i) & 0XFF)
+          - (memB.getByte(offsetBytesB + i) & 0XFF);
+      if (diff != 0) { return diff; }
+    }
+    return 0;
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+
+/**
+ * Base class for serializing and deserializing custom types that always occupy the same number
+ * of bytes. Such items can be stored in and compared directly in Memory, which allows sketches
+ * of these items to live off the Java heap.
+ *
+ * <p>The serialized array form must be the concatenation of the single items as written by
+ * {@link #putItem(WritableMemory, long, Object)}.</p>
+ *
+ * @param <T> Type of item
+ */
+public abstract class ArrayOfFixedWidthItemsSerDe<T> extends ArrayOfItemsSerDe<T> {
+
+  /**
+   * Returns the number of bytes occupied by every item.
+   * @return the number of bytes occupied by every item
+   */
+  public abstract int getItemSizeBytes();
+
+  /**
+   * Writes a single item at the given offset.
+   * @param mem the destination Memory
+   * @param offsetBytes the offset in bytes
+   * @param item the item to write
+   */
+  public abstract void putItem(WritableMemory mem, long offsetBytes, T item);
+
+  /**
+   * Reads a single item at the given offset.
+   * @param mem the source Memory
+   * @param offsetBytes the offset in bytes
+   * @return the item
+   */
+  public abstract T getItem(Memory mem, long offsetBytes);
+
+  /**
+   * Compares two serialized items in place. The order must be consistent with the order of the
+   * deserialized items used by the corresponding on-heap sketches.
+   * @param memA the Memory of the first item
+   * @param offsetBytesA the offset in bytes of the first item
+   * @param memB the Memory of the second item
+   * @param offsetBytesB the offset in bytes of the second item
+   * @return a negative integer, zero, or a positive integer as the first item is less than,
+   * equal to, or greater than the second.
+   */
+  public abstract int compare(Memory memA, long offsetBytesA, Memory memB, long offsetBytesB);
+
+}
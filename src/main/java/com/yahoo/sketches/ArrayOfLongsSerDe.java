@@ -28,7 +28,28 @@ import com.yahoo.memory.WritableMemory;
  *
  * @author Alexander Saydakov
  */
-public class ArrayOfLongsSerDe extends ArrayOfItemsSerDe<Long> {
+public class ArrayOfLongsSerDe extends ArrayOfFixedWidthItemsSerDe<Long> {
+
+  @Override
+  public int getItemSizeBytes() {
+    return Long.BYTES;
+  }
+
+  @Override
+  public void putItem(final WritableMemory mem, final long offsetBytes, final Long item) {
+    mem.putLong(offsetBytes, item);
+  }
+
+  @Override
+  public Long getItem(final Memory mem, final long offsetBytes) {
+    return mem.getLong(offsetBytes);
+  }
+
+  @Override
+  public int compare(final Memory memA, final long offsetBytesA, final Memory memB,
+      final long offsetBytesB) {
+    return Long.compare(memA.getLong(offsetBytesA), memB.getLong(offsetBytesB));
+  }
 
   @Override
   public byte[] serializeToByteArray(final Long[] items) {
@@ -358,6 +358,19 @@ public final class Util {
     return (((v & 0X7L) == 0L) && (v > 0L));
   }
 
+  /**
+   * Checks that the given offset and length describe a range within an array of the given length.
+   * @param arrLength the length of the array
+   * @param offset the offset of the range
+   * @param length the length of the range
+   */
+  public static void checkArrayRange(final int arrLength, final int offset, final int length) {
+    if ((offset < 0) || (length < 0) || (offset > (arrLength - length))) {
+      throw new SketchesArgumentException("Offset and length must be within the array: offset="
+          + offset + ", length=" + length + ", array length=" + arrLength);
+    }
+  }
+
   //Powers of 2 related
 
   /**
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.frequencies;
+
+import static com.yahoo.sketches.Util.LS;
+import static com.yahoo.sketches.Util.toLog2;
+import static com.yahoo.sketches.frequencies.Util.LG_MIN_MAP_SIZE;
+import static com.yahoo.sketches.frequencies.Util.hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.yahoo.sketches.frequencies.LongsSketch.Row;
+
+/**
+ * A frequent items sketch of <i>long</i> items that can be updated by many threads at the same
+ * time.
+ *
+ * <p>The items are partitioned by their hash into a power of 2 number of shards, each of which
+ * is an ordinary {@link LongsSketch} that is locked only for the duration of a single update or
+ * query. Threads updating different shards never contend.</p>
+ *
+ * <p>Every item lives in exactly one shard, so the bounds of an item are those of its shard.
+ * By default the <i>maxMapSize</i> is split evenly, each shard getting <i>maxMapSize/numShards</i>
+ * (but at least 8), so the sketch as a whole uses about the memory of a single sketch of
+ * <i>maxMapSize</i>. The error of a shard with stream weight <i>W<sub>i</sub></i> is then at most
+ * {@link LongsSketch#getAprioriError(int, long)
+ * getAprioriError(maxMapSize/numShards, W<sub>i</sub>)}.
+ * When the hash spreads the stream weight evenly, <i>W<sub>i</sub></i> is about
+ * <i>W/numShards</i> and this matches the a priori error of a single sketch of <i>maxMapSize</i>
+ * given the total stream weight <i>W</i>. A shard that receives much more than its share of the
+ * weight, for instance because of a few very heavy items, has a proportionally larger error, up
+ * to <i>numShards</i> times that of a single sketch.</p>
+ *
+ * <p>Alternatively every shard can be given the full <i>maxMapSize</i>, see
+ * {@link #ConcurrentLongsSketch(int, int, boolean)}. Then the error of any item never exceeds the a
+ * priori error of a single sketch of <i>maxMapSize</i> given the total stream weight, at the
+ * price of up to <i>numShards</i> times the memory.</p>
+ *
+ * <p>Queries over all shards, such as {@link #getFrequentItems(ErrorType)} and
+ * {@link #getResult()}, lock one shard at a time and do not observe a consistent point in time
+ * across shards while updates are in progress.</p>
+ */
+public final class ConcurrentLongsSketch {
+
+  private final int maxMapSize_;
+  private final int shardMask_;
+  private final LongsSketch[] shards_; // each guarded by itself
+
+  /**
+   * Construct this sketch with the given maxMapSize split evenly between the given number of
+   * shards.
+   *
+   * @param maxMapSize Determines the physical size of the internal hash maps of all shards
+   * together and must be a power of 2. See {@link LongsSketch#LongsSketch(int)}.
+   * @param numShards the number of independently locked shards, which must be a power of 2.
+   * A good choice is the number of updating threads rounded up to a power of 2.
+   */
+  public ConcurrentLongsSketch(final int maxMapSize, final int numShards) {
+    this(maxMapSize, numShards, false);
+  }
+
+  /**
+   * Construct this sketch with the given maxMapSize and number of shards.
+   *
+   * @param maxMapSize Determines the physical size of the internal hash maps and must be a power
+   * of 2. See {@link LongsSketch#LongsSketch(int)}.
+   * @param numShards the number of independently locked shards, which must be a power of 2.
+   * A good choice is the number of updating threads rounded up to a power of 2.
+   * @param fullSizeShards if true, every shard gets the full maxMapSize, which bounds the error
+   * of every item by that of a single sketch of maxMapSize but takes up to numShards times the
+   * memory. If false, every shard gets maxMapSize/numShards.
+   */
+  public ConcurrentLongsSketch(final int maxMapSize, final int numShards,
+      final boolean fullSizeShards) {
+    toLog2(maxMapSize, "maxMapSize");
+    toLog2(numShards, "numShards");
+    maxMapSize_ = maxMapSize;
+    shardMask_ = numShards - 1;
+    final int shardMapSize = fullSizeShards
+        ? maxMapSize : Math.max(maxMapSize / numShards, 1 << LG_MIN_MAP_SIZE);
+    shards_ = new LongsSketch[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards_[i] = new LongsSketch(shardMapSize);
+    }
+  }
+
+  /**
+   * Update this sketch with an item and a frequency count of one.
+   * @param item for which the frequency should be increased.
+   */
+  public void update(final long item) {
+    update(item, 1);
+  }
+
+  /**
+   * Update this sketch with a item and a positive frequency count (or weight).
+   * See {@link LongsSketch#update(long, long)}.
+   * @param item for which the frequency should be increased.
+   * @param count the amount by which the frequency of the item should be increased.
+   */
+  public void update(final long item, final long count) {
+    final LongsSketch shard = getShard(item);
+    synchronized (shard) {
+      shard.update(item, count);
+    }
+  }
+
+  /**
+   * Gets the estimate of the frequency of the given item.
+   * @param item the given item
+   * @return the estimate of the frequency of the given item
+   */
+  public long getEstimate(final long item) {
+    final LongsSketch shard = getShard(item);
+    synchronized (shard) {
+      return shard.getEstimate(item);
+    }
+  }
+
+  /**
+   * Gets the guaranteed lower bound frequency of the given item.
+   * @param item the given item
+   * @return the guaranteed lower bound frequency of the given item
+   */
+  public long getLowerBound(final long item) {
+    final LongsSketch shard = getShard(item);
+    synchronized (shard) {
+      return shard.getLowerBound(item);
+    }
+  }
+
+  /**
+   * Gets the guaranteed upper bound frequency of the given item.
+   * @param item the given item
+   * @return the guaranteed upper bound frequency of the given item
+   */
+  public long getUpperBound(final long item) {
+    final LongsSketch shard = getShard(item);
+    synchronized (shard) {
+      return shard.getUpperBound(item);
+    }
+  }
+
+  /**
+   * Returns an array of Rows that include frequent items, estimates, upper and lower bounds
+   * given a threshold and an ErrorCondition. If the threshold is lower than getMaximumError(),
+   * then getMaximumError() will be used instead.
+   * See {@link LongsSketch#getFrequentItems(long, ErrorType)}.
+   *
+   * @param threshold to include items in the result list
+   * @param errorType determines whether no false positives or no false negatives are
+   * desired.
+   * @return an array of frequent items in descending order of their estimates
+   */
+  public Row[] getFrequentItems(final long threshold, final ErrorType errorType) {
+    final long thresh = Math.max(threshold, getMaximumError());
+    final List<Row> rowList = new ArrayList<>();
+    for (final LongsSketch shard : shards_) {
+      synchronized (shard) {
+        Collections.addAll(rowList, shard.getFrequentItems(thresh, errorType));
+      }
+    }
+    rowList.sort(new Comparator<Row>() {
+      @Override
+      public int compare(final Row r1, final Row r2) {
+        return r2.compareTo(r1);
+      }
+    });
+    return rowList.toArray(new Row[rowList.size()]);
+  }
+
+  /**
+   * Returns an array of Rows that include frequent items, estimates, upper and lower bounds
+   * given an ErrorCondition and the default threshold.
+   * This is the same as getFrequentItems(getMaximumError(), errorType)
+   *
+   * @param errorType determines whether no false positives or no false negatives are
+   * desired.
+   * @return an array of frequent items in descending order of their estimates
+   */
+  public Row[] getFrequentItems(final ErrorType errorType) {
+    return getFrequentItems(0, errorType);
+  }
+
+  /**
+   * @return An upper bound on the maximum error of getEstimate(item) for any item, which is the
+   * largest error of any shard.
+   */
+  public long getMaximumError() {
+    long maxError = 0;
+    for (final LongsSketch shard : shards_) {
+      synchronized (shard) {
+        maxError = Math.max(maxError, shard.getMaximumError());
+      }
+    }
+    return maxError;
+  }
+
+  /**
+   * @return the number of active items in all shards.
+   */
+  public int getNumActiveItems() {
+    int numActive = 0;
+    for (final LongsSketch shard : shards_) {
+      synchronized (shard) {
+        numActive += shard.getNumActiveItems();
+      }
+    }
+    return numActive;
+  }
+
+  /**
+   * @return the number of shards
+   */
+  public int getNumShards() {
+    return shards_.length;
+  }
+
+  /**
+   * @return the sum of the frequencies in the stream seen so far by all shards
+   */
+  public long getStreamLength() {
+    long streamLength = 0;
+    for (final LongsSketch shard : shards_) {
+      synchronized (shard) {
+        streamLength += shard.getStreamLength();
+      }
+    }
+    return streamLength;
+  }
+
+  /**
+   * @return true if no shard has any active items
+   */
+  public boolean isEmpty() {
+    return getNumActiveItems() == 0;
+  }
+
+  /**
+   * Merges all shards into a new single-threaded sketch of the configured maxMapSize.
+   * @return a new sketch that is the merge of all shards
+   */
+  public LongsSketch getResult() {
+    final LongsSketch result = new LongsSketch(maxMapSize_);
+    for (final LongsSketch shard : shards_) {
+      synchronized (shard) {
+        result.merge(shard);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resets all shards to a virgin state.
+   */
+  public void reset() {
+    for (final LongsSketch shard : shards_) {
+      synchronized (shard) {
+        shard.reset();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("ConcurrentFrequentLongsSketch:").append(LS);
+    sb.append("  Shards           : " + getNumShards()).append(LS);
+    sb.append("  Stream Length    : " + getStreamLength()).append(LS);
+    sb.append("  Max Error Offset : " + getMaximumError()).append(LS);
+    sb.append("  Active Items     : " + getNumActiveItems()).append(LS);
+    return sb.toString();
+  }
+
+  private LongsSketch getShard(final long item) {
+    // the high bits of the hash are independent of the low bits used for probing the shard
+    return shards_[(int) (hash(item) >>> 32) & shardMask_];
+  }
+
+}
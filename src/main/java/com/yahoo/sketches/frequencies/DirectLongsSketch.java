@@ -0,0 +1,554 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.frequencies;
+
+import static com.yahoo.sketches.Util.LS;
+import static com.yahoo.sketches.Util.toLog2;
+import static com.yahoo.sketches.frequencies.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.frequencies.PreambleUtil.OFFSET_LONG;
+import static com.yahoo.sketches.frequencies.PreambleUtil.SER_VER;
+import static com.yahoo.sketches.frequencies.PreambleUtil.STREAMLENGTH_LONG;
+import static com.yahoo.sketches.frequencies.PreambleUtil.UPDATABLE_FLAG_MASK;
+import static com.yahoo.sketches.frequencies.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.frequencies.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.frequencies.PreambleUtil.extractLgCurMapSize;
+import static com.yahoo.sketches.frequencies.PreambleUtil.extractLgMaxMapSize;
+import static com.yahoo.sketches.frequencies.PreambleUtil.extractPreLongs;
+import static com.yahoo.sketches.frequencies.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.frequencies.PreambleUtil.insertActiveItems;
+import static com.yahoo.sketches.frequencies.PreambleUtil.insertFamilyID;
+import static com.yahoo.sketches.frequencies.PreambleUtil.insertFlags;
+import static com.yahoo.sketches.frequencies.PreambleUtil.insertLgCurMapSize;
+import static com.yahoo.sketches.frequencies.PreambleUtil.insertLgMaxMapSize;
+import static com.yahoo.sketches.frequencies.PreambleUtil.insertPreLongs;
+import static com.yahoo.sketches.frequencies.PreambleUtil.insertSerVer;
+import static com.yahoo.sketches.frequencies.Util.LG_MIN_MAP_SIZE;
+import static com.yahoo.sketches.frequencies.Util.SAMPLE_SIZE;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+import com.yahoo.memory.DefaultMemoryRequestServer;
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesReadOnlyException;
+import com.yahoo.sketches.SketchesStateException;
+import com.yahoo.sketches.frequencies.LongsSketch.Row;
+
+/**
+ * A {@link LongsSketch} whose hash map lives in Memory, so that it can be updated, merged and
+ * queried in place without being deserialized to the heap and serialized back.
+ *
+ * <p>Given the same sequence of updates, this sketch holds exactly the same counters as a heap
+ * LongsSketch, and {@link #toByteArray()} produces the same compact image, which can be read
+ * with {@link LongsSketch#getInstance(Memory)}.</p>
+ *
+ * <p>The updatable Memory layout starts with the full 4-long preamble of the compact image,
+ * with the UPDATABLE flag set (the EMPTY flag is not used; emptiness is given by the
+ * ActiveItems field), followed by the keys, values and states arrays of the hash map:</p>
+ *
+ * <pre>
+ * Long || Start Byte Adr:
+ * Adr:
+ *      ||    7     |    6   |    5   |    4   |    3   |    2   |    1   |     0          |
+ *  0   ||-------SerDeId-----|-Flags--|-LgCur--| LgMax  | FamID  | SerVer | PreambleLongs  |
+ *      ||    15    |   14   |   13   |   12   |   11   |   10   |    9   |     8          |
+ *  1   ||------------(unused)-----------------|--------ActiveItems------------------------|
+ *  2   ||-----------------------------------streamLength----------------------------------|
+ *  3   ||---------------------------------offset------------------------------------------|
+ *  4   || keys[curMapSize] (longs), values[curMapSize] (longs), states[curMapSize] (shorts) |
+ * </pre>
+ *
+ * <p>The size of the Memory is therefore 32 + 18 * curMapSize bytes. When the hash map needs
+ * to grow and the Memory is not large enough, a larger Memory is requested from the
+ * MemoryRequestServer of the current Memory. Providing
+ * {@link #getUpdatableStorageBytes(int) getUpdatableStorageBytes(maxMapSize)} bytes up front
+ * avoids any such requests.</p>
+ */
+public final class DirectLongsSketch {
+
+  private final int lgMaxMapSize;
+  private final int sampleSize;
+  private Memory mem_;
+  private WritableMemory wmem_; //null if read-only
+  private DirectReversePurgeLongHashMap hashMap;
+  private MemoryRequestServer memReqSvr = null;
+
+  private DirectLongsSketch(final Memory mem, final WritableMemory wmem) {
+    mem_ = mem;
+    wmem_ = wmem;
+    lgMaxMapSize = extractLgMaxMapSize(mem.getLong(0));
+    final int maxMapCap =
+        (int) ((1 << lgMaxMapSize) * ReversePurgeLongHashMap.getLoadFactor());
+    sampleSize = Math.min(SAMPLE_SIZE, maxMapCap);
+    hashMap = new DirectReversePurgeLongHashMap(mem, wmem);
+  }
+
+  /**
+   * Obtains a new, empty instance of this sketch in the given Memory.
+   *
+   * @param maxMapSize Determines the physical size of the internal hash map managed by this
+   * sketch and must be a power of 2. See {@link LongsSketch#LongsSketch(int)}.
+   * @param dstMem the destination Memory, which must have at least
+   * {@link #getUpdatableStorageBytes(int) getUpdatableStorageBytes(8)} bytes.
+   * @return a new instance of this sketch
+   */
+  public static DirectLongsSketch newInstance(final int maxMapSize, final WritableMemory dstMem) {
+    final int lgMaxMapSize = Math.max(toLog2(maxMapSize, "maxMapSize"), LG_MIN_MAP_SIZE);
+    final int mapSize = 1 << LG_MIN_MAP_SIZE;
+    checkMemCapacity(mapSize, dstMem.getCapacity());
+    final int preLongs = Family.FREQUENCY.getMaxPreLongs();
+    long pre0 = 0L;
+    pre0 = insertPreLongs(preLongs, pre0);                  //Byte 0
+    pre0 = insertSerVer(SER_VER, pre0);                     //Byte 1
+    pre0 = insertFamilyID(Family.FREQUENCY.getID(), pre0);  //Byte 2
+    pre0 = insertLgMaxMapSize(lgMaxMapSize, pre0);          //Byte 3
+    pre0 = insertLgCurMapSize(LG_MIN_MAP_SIZE, pre0);       //Byte 4
+    pre0 = insertFlags(UPDATABLE_FLAG_MASK, pre0);          //Byte 5
+    dstMem.putLong(0, pre0);
+    dstMem.putLong(8, insertActiveItems(0, 0L));
+    dstMem.putLong(STREAMLENGTH_LONG, 0L);
+    dstMem.putLong(OFFSET_LONG, 0L);
+    DirectReversePurgeLongHashMap.initialize(dstMem, mapSize);
+    return new DirectLongsSketch(dstMem, dstMem);
+  }
+
+  /**
+   * Wraps an updatable sketch around the given Memory image, which must have been created by
+   * {@link #newInstance(int, WritableMemory)}. Updates are written into the given Memory.
+   *
+   * @param srcMem the given Memory image of a sketch in the updatable layout
+   * @return an updatable sketch that wraps the given srcMem
+   */
+  public static DirectLongsSketch writableWrap(final WritableMemory srcMem) {
+    checkUpdatableImage(srcMem);
+    return new DirectLongsSketch(srcMem, srcMem);
+  }
+
+  /**
+   * Wraps a read-only sketch around the given Memory image in the updatable layout for
+   * queries. Any attempt to update the sketch throws a {@link SketchesReadOnlyException}.
+   *
+   * @param srcMem the given Memory image of a sketch in the updatable layout
+   * @return a read-only sketch that wraps the given srcMem
+   */
+  public static DirectLongsSketch wrap(final Memory srcMem) {
+    checkUpdatableImage(srcMem);
+    return new DirectLongsSketch(srcMem, null);
+  }
+
+  /**
+   * Returns the number of bytes of the updatable layout with a hash map of the given size.
+   * Given the maxMapSize of the sketch, this is the size at which the Memory will never need to
+   * grow.
+   *
+   * @param mapSize the physical size of the hash map, a power of 2.
+   * @return the number of bytes of the updatable layout with a hash map of the given size.
+   */
+  public static long getUpdatableStorageBytes(final int mapSize) {
+    toLog2(mapSize, "mapSize");
+    return DirectReversePurgeLongHashMap.getRequiredBytes(mapSize);
+  }
+
+  /**
+   * Returns the current number of counters the sketch is configured to support.
+   *
+   * @return the current number of counters the sketch is configured to support.
+   */
+  public int getCurrentMapCapacity() {
+    return hashMap.getCapacity();
+  }
+
+  /**
+   * Gets the estimate of the frequency of the given item.
+   * See {@link LongsSketch#getEstimate(long)}.
+   *
+   * @param item the given item
+   * @return the estimate of the frequency of the given item
+   */
+  public long getEstimate(final long item) {
+    final long itemCount = hashMap.get(item);
+    return (itemCount > 0) ? itemCount + getMaximumError() : 0;
+  }
+
+  /**
+   * Gets the guaranteed lower bound frequency of the given item, which can never be
+   * negative.
+   *
+   * @param item the given item.
+   * @return the guaranteed lower bound frequency of the given item.
+   */
+  public long getLowerBound(final long item) {
+    return hashMap.get(item);
+  }
+
+  /**
+   * Gets the guaranteed upper bound frequency of the given item.
+   *
+   * @param item the given item
+   * @return the guaranteed upper bound frequency of the given item.
+   */
+  public long getUpperBound(final long item) {
+    return hashMap.get(item) + getMaximumError();
+  }
+
+  /**
+   * Returns an array of Rows that include frequent items, estimates, upper and lower bounds
+   * given a threshold and an ErrorCondition.
+   * See {@link LongsSketch#getFrequentItems(long, ErrorType)}.
+   *
+   * @param threshold to include items in the result list
+   * @param errorType determines whether no false positives or no false negatives are
+   * desired.
+   * @return an array of frequent items
+   */
+  public Row[] getFrequentItems(final long threshold, final ErrorType errorType) {
+    return sortItems(Math.max(threshold, getMaximumError()), errorType);
+  }
+
+  /**
+   * Returns an array of Rows that include frequent items, estimates, upper and lower bounds
+   * given an ErrorCondition and the default threshold.
+   * This is the same as getFrequentItems(getMaximumError(), errorType)
+   *
+   * @param errorType determines whether no false positives or no false negatives are
+   * desired.
+   * @return an array of frequent items
+   */
+  public Row[] getFrequentItems(final ErrorType errorType) {
+    return sortItems(getMaximumError(), errorType);
+  }
+
+  /**
+   * @return An upper bound on the maximum error of getEstimate(item) for any item.
+   */
+  public long getMaximumError() {
+    return mem_.getLong(OFFSET_LONG);
+  }
+
+  /**
+   * Returns the maximum number of counters the sketch is configured to support.
+   *
+   * @return the maximum number of counters the sketch is configured to support.
+   */
+  public int getMaximumMapCapacity() {
+    return (int) ((1 << lgMaxMapSize) * ReversePurgeLongHashMap.getLoadFactor());
+  }
+
+  /**
+   * @return the number of active items in the sketch.
+   */
+  public int getNumActiveItems() {
+    return hashMap.getNumActive();
+  }
+
+  /**
+   * Returns the number of bytes required to store this sketch as a compact array of bytes.
+   *
+   * @return the number of bytes of {@link #toByteArray()}.
+   */
+  public int getStorageBytes() {
+    if (isEmpty()) { return 8; }
+    return (4 * 8) + (16 * getNumActiveItems());
+  }
+
+  /**
+   * Returns the sum of the frequencies (weights or counts) in the stream seen so far by the sketch
+   *
+   * @return the sum of the frequencies in the stream seen so far by the sketch
+   */
+  public long getStreamLength() {
+    return mem_.getLong(STREAMLENGTH_LONG);
+  }
+
+  /**
+   * Returns true if this sketch is empty
+   *
+   * @return true if this sketch is empty
+   */
+  public boolean isEmpty() {
+    return getNumActiveItems() == 0;
+  }
+
+  /**
+   * @return true if this sketch was obtained by {@link #wrap(Memory)} and cannot be updated.
+   */
+  public boolean isReadOnly() {
+    return wmem_ == null;
+  }
+
+  /**
+   * Returns the Memory that currently backs this sketch. It changes when the sketch grows.
+   * @return the Memory that currently backs this sketch
+   */
+  public Memory getMemory() {
+    return mem_;
+  }
+
+  /**
+   * Returns true if the backing resource of this sketch is identical with the backing resource
+   * of that.
+   * @param that the given Memory
+   * @return true if the backing resource of this sketch is identical with the backing resource
+   * of that.
+   */
+  public boolean isSameResource(final Memory that) {
+    return mem_.isSameResource(that);
+  }
+
+  /**
+   * This function merges the other sketch into this one.
+   * See {@link LongsSketch#merge(LongsSketch)}.
+   *
+   * @param other a heap sketch
+   * @return this sketch
+   */
+  public DirectLongsSketch merge(final LongsSketch other) {
+    if ((other == null) || (other.getStreamLength() == 0)) { return this; }
+    final long streamWt = getStreamLength() + other.getStreamLength(); //capture before merge
+    final ReversePurgeLongHashMap.Iterator iter = other.getHashMap().iterator();
+    while (iter.next()) { //this may add to offset during rebuilds
+      update(iter.getKey(), iter.getValue());
+    }
+    finishMerge(other.getMaximumError(), streamWt);
+    return this;
+  }
+
+  /**
+   * This function merges the other sketch into this one.
+   * See {@link LongsSketch#merge(LongsSketch)}.
+   *
+   * @param other a direct sketch
+   * @return this sketch
+   */
+  public DirectLongsSketch merge(final DirectLongsSketch other) {
+    if ((other == null) || (other.getStreamLength() == 0)) { return this; }
+    final long streamWt = getStreamLength() + other.getStreamLength(); //capture before merge
+    final DirectReversePurgeLongHashMap.Iterator iter = other.hashMap.iterator();
+    while (iter.next()) { //this may add to offset during rebuilds
+      update(iter.getKey(), iter.getValue());
+    }
+    finishMerge(other.getMaximumError(), streamWt);
+    return this;
+  }
+
+  /**
+   * Resets this sketch to a virgin state. The current Memory is retained.
+   */
+  public void reset() {
+    checkWritable("reset");
+    wmem_.putLong(STREAMLENGTH_LONG, 0L);
+    wmem_.putLong(OFFSET_LONG, 0L);
+    DirectReversePurgeLongHashMap.initialize(wmem_, 1 << LG_MIN_MAP_SIZE);
+    hashMap = new DirectReversePurgeLongHashMap(wmem_, wmem_);
+  }
+
+  /**
+   * Returns the compact byte array representation of this sketch, which is identical to that
+   * of a {@link LongsSketch} with the same counters.
+   * @return a byte array representation of this sketch
+   */
+  public byte[] toByteArray() {
+    final int preLongs, outBytes;
+    final boolean empty = isEmpty();
+    final int activeItems = getNumActiveItems();
+    if (empty) {
+      preLongs = 1;
+      outBytes = 8;
+    } else {
+      preLongs = Family.FREQUENCY.getMaxPreLongs(); //4
+      outBytes = (preLongs + (2 * activeItems)) << 3; //2 because both keys and values are longs
+    }
+    final byte[] outArr = new byte[outBytes];
+    final WritableMemory mem = WritableMemory.wrap(outArr);
+
+    long pre0 = 0L;
+    pre0 = insertPreLongs(preLongs, pre0);                  //Byte 0
+    pre0 = insertSerVer(SER_VER, pre0);                     //Byte 1
+    pre0 = insertFamilyID(Family.FREQUENCY.getID(), pre0);  //Byte 2
+    pre0 = insertLgMaxMapSize(lgMaxMapSize, pre0);          //Byte 3
+    pre0 = insertLgCurMapSize(hashMap.getLgLength(), pre0); //Byte 4
+    pre0 = (empty) ? insertFlags(EMPTY_FLAG_MASK, pre0) : insertFlags(0, pre0); //Byte 5
+
+    if (empty) {
+      mem.putLong(0, pre0);
+    } else {
+      final long[] preArr = new long[preLongs];
+      preArr[0] = pre0;
+      preArr[1] = insertActiveItems(activeItems, 0L);
+      preArr[2] = getStreamLength();
+      preArr[3] = getMaximumError();
+      mem.putLongArray(0, preArr, 0, preLongs);
+      final int preBytes = preLongs << 3;
+      mem.putLongArray(preBytes, hashMap.getActiveValues(), 0, activeItems);
+      mem.putLongArray(preBytes + (activeItems << 3), hashMap.getActiveKeys(), 0,
+          activeItems);
+    }
+    return outArr;
+  }
+
+  /**
+   * Returns a human readable summary of this sketch.
+   * @return a human readable summary of this sketch.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("DirectFrequentLongsSketch:").append(LS);
+    sb.append("  Read Only        : " + isReadOnly()).append(LS);
+    sb.append("  Stream Length    : " + getStreamLength()).append(LS);
+    sb.append("  Max Error Offset : " + getMaximumError()).append(LS);
+    sb.append(hashMap.toString());
+    return sb.toString();
+  }
+
+  /**
+   * Update this sketch with an item and a frequency count of one.
+   * @param item for which the frequency should be increased.
+   */
+  public void update(final long item) {
+    update(item, 1);
+  }
+
+  /**
+   * Update this sketch with a item and a positive frequency count (or weight).
+   * See {@link LongsSketch#update(long, long)}.
+   * @param item for which the frequency should be increased.
+   * @param count the amount by which the frequency of the item should be increased.
+   * An count of zero is a no-op, and a negative count will throw an exception.
+   */
+  public void update(final long item, final long count) {
+    checkWritable("update");
+    if (count == 0) { return; }
+    if (count < 0) {
+      throw new SketchesArgumentException("Count may not be negative");
+    }
+    wmem_.putLong(STREAMLENGTH_LONG, wmem_.getLong(STREAMLENGTH_LONG) + count);
+    hashMap.adjustOrPutValue(item, count);
+
+    if (getNumActiveItems() > hashMap.getCapacity()) { //over the threshold
+      if (hashMap.getLgLength() < lgMaxMapSize) { //below tgt size, we can grow
+        growHashMap();
+      } else { //At tgt size, must purge
+        final long purged = hashMap.purge(sampleSize);
+        wmem_.putLong(OFFSET_LONG, wmem_.getLong(OFFSET_LONG) + purged);
+        if (getNumActiveItems() > getMaximumMapCapacity()) {
+          throw new SketchesStateException("Purge did not reduce active items.");
+        }
+      }
+    }
+  }
+
+  private void finishMerge(final long otherOffset, final long streamWt) {
+    wmem_.putLong(OFFSET_LONG, wmem_.getLong(OFFSET_LONG) + otherOffset);
+    wmem_.putLong(STREAMLENGTH_LONG, streamWt); //corrected streamWeight
+  }
+
+  private void growHashMap() {
+    final int newSize = 2 * hashMap.getLength();
+    final long needBytes = DirectReversePurgeLongHashMap.getRequiredBytes(newSize);
+    if (wmem_.getCapacity() >= needBytes) {
+      hashMap.resize(wmem_, newSize);
+      return;
+    }
+    if (memReqSvr == null) {
+      memReqSvr = wmem_.getMemoryRequestServer();
+      if (memReqSvr == null) { // heap memory may not have a server
+        memReqSvr = new DefaultMemoryRequestServer();
+      }
+    }
+    final WritableMemory newMem = memReqSvr.request(needBytes);
+    wmem_.copyTo(0, newMem, 0, DirectReversePurgeLongHashMap.KEYS_START);
+    hashMap.resize(newMem, newSize);
+    memReqSvr.requestClose(wmem_, newMem);
+    mem_ = newMem;
+    wmem_ = newMem;
+  }
+
+  private Row[] sortItems(final long threshold, final ErrorType errorType) {
+    final ArrayList<Row> rowList = new ArrayList<>();
+    final long offset = getMaximumError();
+    final DirectReversePurgeLongHashMap.Iterator iter = hashMap.iterator();
+    while (iter.next()) {
+      final long lb = iter.getValue();
+      final long ub = lb + offset;
+      final long est = (lb > 0) ? ub : 0;
+      final long bound = (errorType == ErrorType.NO_FALSE_NEGATIVES) ? ub : lb;
+      if (bound >= threshold) {
+        rowList.add(new Row(iter.getKey(), est, ub, lb));
+      }
+    }
+
+    // descending order
+    rowList.sort(new Comparator<Row>() {
+      @Override
+      public int compare(final Row r1, final Row r2) {
+        return r2.compareTo(r1);
+      }
+    });
+    return rowList.toArray(new Row[rowList.size()]);
+  }
+
+  private void checkWritable(final String method) {
+    if (wmem_ == null) {
+      throw new SketchesReadOnlyException("Call to " + method + " on read-only sketch");
+    }
+  }
+
+  private static void checkUpdatableImage(final Memory srcMem) {
+    final long pre0 = PreambleUtil.checkPreambleSize(srcMem);
+    final int maxPreLongs = Family.FREQUENCY.getMaxPreLongs();
+    final int preLongs = extractPreLongs(pre0);
+    final int serVer = extractSerVer(pre0);
+    final int familyID = extractFamilyID(pre0);
+    final int flags = extractFlags(pre0);
+    if ((flags & UPDATABLE_FLAG_MASK) == 0) {
+      throw new SketchesArgumentException(
+          "Compact Memory images cannot be wrapped. Use LongsSketch.getInstance(Memory).");
+    }
+    if (preLongs != maxPreLongs) {
+      throw new SketchesArgumentException(
+          "Possible Corruption: PreLongs must be " + maxPreLongs + ": " + preLongs);
+    }
+    if (serVer != SER_VER) {
+      throw new SketchesArgumentException(
+          "Possible Corruption: Ser Ver must be " + SER_VER + ": " + serVer);
+    }
+    Family.FREQUENCY.checkFamilyID(familyID);
+    final int lgCurMapSize = extractLgCurMapSize(pre0);
+    if ((lgCurMapSize < LG_MIN_MAP_SIZE) || (lgCurMapSize > extractLgMaxMapSize(pre0))) {
+      throw new SketchesArgumentException(
+          "Possible Corruption: LgCurMapSize out of range: " + lgCurMapSize);
+    }
+    checkMemCapacity(1 << lgCurMapSize, srcMem.getCapacity());
+  }
+
+  private static void checkMemCapacity(final int mapSize, final long memCap) {
+    final long required = DirectReversePurgeLongHashMap.getRequiredBytes(mapSize);
+    if (memCap < required) {
+      throw new SketchesArgumentException(
+          "Memory capacity is too small: " + memCap + " < " + required);
+    }
+  }
+
+}
@@ -0,0 +1,413 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.frequencies;
+
+import static com.yahoo.sketches.Util.LS;
+import static com.yahoo.sketches.frequencies.PreambleUtil.ACTIVE_ITEMS_INT;
+import static com.yahoo.sketches.frequencies.PreambleUtil.LG_CUR_MAP_SIZE_BYTE;
+import static com.yahoo.sketches.frequencies.Util.hash;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.QuickSelect;
+
+/**
+ * The same linear-probing, reverse-purging hash map as {@link ReversePurgeLongHashMap}, but with
+ * the keys, values and states arrays living in Memory directly after the 4 preamble longs of
+ * the updatable {@link DirectLongsSketch} layout. The current length of the arrays is kept in
+ * the LgCurMapSize byte and the number of active keys in the ActiveItems field of the preamble.
+ *
+ * <p>All operations visit the cells in the same order as the heap map, so that both maps hold
+ * identical contents given the same sequence of calls.</p>
+ */
+class DirectReversePurgeLongHashMap {
+  static final int KEYS_START = 32;
+  private static final double LOAD_FACTOR = ReversePurgeLongHashMap.getLoadFactor();
+  private static final int DRIFT_LIMIT = 1024; //used only in stress testing
+  private Memory mem_;
+  private WritableMemory wmem_; //null if read-only
+  private int lgLength;
+  private int loadThreshold;
+
+  /**
+   * Wraps the hash map arrays of the given Memory, whose length is given by the LgCurMapSize
+   * byte of the preamble.
+   * @param mem the given Memory
+   * @param wmem the same Memory if writable, otherwise null
+   */
+  DirectReversePurgeLongHashMap(final Memory mem, final WritableMemory wmem) {
+    mem_ = mem;
+    wmem_ = wmem;
+    setLgLength(mem.getByte(LG_CUR_MAP_SIZE_BYTE) & 0XFF);
+  }
+
+  /**
+   * Clears the arrays of a map of the given size in the given Memory and records the size and
+   * an active count of zero in the preamble.
+   * @param wmem the given Memory, which must have at least getRequiredBytes(mapSize) bytes.
+   * @param mapSize the length of the arrays, a power of 2.
+   */
+  static void initialize(final WritableMemory wmem, final int mapSize) {
+    wmem.clear(KEYS_START, getRequiredBytes(mapSize) - KEYS_START);
+    wmem.putByte(LG_CUR_MAP_SIZE_BYTE, (byte) Integer.numberOfTrailingZeros(mapSize));
+    wmem.putInt(ACTIVE_ITEMS_INT, 0);
+  }
+
+  /**
+   * @param mapSize the length of the arrays
+   * @return the number of bytes of the preamble plus the arrays of a map of the given size
+   */
+  static long getRequiredBytes(final int mapSize) {
+    return KEYS_START + (18L * mapSize);
+  }
+
+  /**
+   * @param probe location in the hash table array
+   * @return true if the cell in the array contains an active key
+   */
+  boolean isActive(final int probe) {
+    return getState(probe) > 0;
+  }
+
+  /**
+   * Gets the current value with the given key
+   * @param key the given key
+   * @return the positive value the key corresponds to or zero if the key is not found in the
+   * hash map.
+   */
+  long get(final long key) {
+    final int probe = hashProbe(key);
+    if (getState(probe) > 0) {
+      assert (getKey(probe) == key);
+      return getValue(probe);
+    }
+    return 0;
+  }
+
+  /**
+   * Increments the value mapped to the key if the key is present in the map. Otherwise,
+   * the key is inserted with the putAmount.
+   *
+   * @param key the key of the value to increment
+   * @param adjustAmount the amount by which to increment the value
+   */
+  void adjustOrPutValue(final long key, final long adjustAmount) {
+    final int arrayMask = getLength() - 1;
+    int probe = (int) hash(key) & arrayMask;
+    int drift = 1;
+    short state;
+    while (((state = getState(probe)) != 0) && (getKey(probe) != key)) {
+      probe = (probe + 1) & arrayMask;
+      drift++;
+      //only used for theoretical analysis
+      assert (drift < DRIFT_LIMIT) : "drift: " + drift + " >= DRIFT_LIMIT";
+    }
+    //found either an empty slot or the key
+    if (state == 0) { //found empty slot
+      final int numActive = getNumActive();
+      assert (numActive <= loadThreshold)
+        : "numActive: " + numActive + " > loadThreshold : " + loadThreshold;
+      wmem_.putLong(keyOffset(probe), key);
+      wmem_.putLong(valueOffset(probe), adjustAmount);
+      wmem_.putShort(stateOffset(probe), (short) drift); //how far off we are
+      wmem_.putInt(ACTIVE_ITEMS_INT, numActive + 1);
+    } else { //found the key, adjust the value
+      final long valueOffset = valueOffset(probe);
+      wmem_.putLong(valueOffset, wmem_.getLong(valueOffset) + adjustAmount);
+    }
+  }
+
+  /**
+   * Processes the map arrays and retains only keys with positive counts.
+   */
+  void keepOnlyPositiveCounts() {
+    final int length = getLength();
+    int numActive = getNumActive();
+    // Starting from the back, find the first empty cell, which marks a boundary between clusters.
+    int firstProbe = length - 1;
+    while (getState(firstProbe) > 0) {
+      firstProbe--;
+    }
+
+    //Work towards the front; delete any non-positive entries.
+    for (int probe = firstProbe; probe-- > 0; ) {
+      if ((getState(probe) > 0) && (getValue(probe) <= 0)) {
+        hashDelete(probe);
+        numActive--;
+      }
+    }
+    //now work on the first cluster that was skipped.
+    for (int probe = length; probe-- > firstProbe;) {
+      if ((getState(probe) > 0) && (getValue(probe) <= 0)) {
+        hashDelete(probe);
+        numActive--;
+      }
+    }
+    wmem_.putInt(ACTIVE_ITEMS_INT, numActive);
+  }
+
+  /**
+   * @param adjustAmount value by which to shift all values. Only keys corresponding to positive
+   * values are retained.
+   */
+  void adjustAllValuesBy(final long adjustAmount) {
+    for (int i = getLength(); i-- > 0; ) {
+      final long valueOffset = valueOffset(i);
+      wmem_.putLong(valueOffset, wmem_.getLong(valueOffset) + adjustAmount);
+    }
+  }
+
+  /**
+   * @return an array containing the active keys in the hash map.
+   */
+  long[] getActiveKeys() {
+    return getActive(KEYS_START);
+  }
+
+  /**
+   * @return an array containing the values corresponding. to the active keys in the hash
+   */
+  long[] getActiveValues() {
+    return getActive(valueOffset(0));
+  }
+
+  /**
+   * Rehashes the active keys into arrays of the new size held by the given Memory. If the
+   * given Memory is not the current one, its preamble must already have been copied over.
+   * @param dstMem the Memory to hold the resized arrays
+   * @param newSize the new length of the arrays, a power of 2
+   */
+  void resize(final WritableMemory dstMem, final int newSize) {
+    final int oldLength = getLength();
+    final long[] oldKeys = new long[oldLength];
+    final long[] oldValues = new long[oldLength];
+    final short[] oldStates = new short[oldLength];
+    mem_.getLongArray(KEYS_START, oldKeys, 0, oldLength);
+    mem_.getLongArray(valueOffset(0), oldValues, 0, oldLength);
+    mem_.getShortArray(stateOffset(0), oldStates, 0, oldLength);
+    initialize(dstMem, newSize);
+    mem_ = dstMem;
+    wmem_ = dstMem;
+    setLgLength(Integer.numberOfTrailingZeros(newSize));
+    for (int i = 0; i < oldLength; i++) {
+      if (oldStates[i] > 0) {
+        adjustOrPutValue(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  /**
+   * @return length of hash table internal arrays
+   */
+  int getLength() {
+    return 1 << lgLength;
+  }
+
+  int getLgLength() {
+    return lgLength;
+  }
+
+  /**
+   * @return capacity of hash table internal arrays (i.e., max number of keys that can be stored)
+   */
+  int getCapacity() {
+    return loadThreshold;
+  }
+
+  /**
+   * @return number of populated keys
+   */
+  int getNumActive() {
+    return mem_.getInt(ACTIVE_ITEMS_INT);
+  }
+
+  /**
+   * Returns the hash table as a human readable string.
+   */
+  @Override
+  public String toString() {
+    final String fmt  = "  %12d:%11d%20d %d";
+    final String hfmt = "  %12s:%11s%20s %s";
+    final StringBuilder sb = new StringBuilder();
+    sb.append("DirectReversePurgeLongHashMap:").append(LS);
+    sb.append(String.format(hfmt, "Index","States","Values","Keys")).append(LS);
+
+    for (int i = 0; i < getLength(); i++) {
+      final short state = getState(i);
+      if (state <= 0) { continue; }
+      sb.append(String.format(fmt, i, state, getValue(i), getKey(i))).append(LS);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * This function estimates the median of the counters in the map via sampling, decrements all
+   * counts by this estimate and throws out all counters that are no longer positive.
+   * See {@link ReversePurgeLongHashMap#purge(int)}.
+   * @param sampleSize number of samples
+   * @return the median value
+   */
+  long purge(final int sampleSize) {
+    final int limit = Math.min(sampleSize, getNumActive());
+
+    int numSamples = 0;
+    int i = 0;
+    final long[] samples = new long[limit];
+
+    while (numSamples < limit) {
+      if (isActive(i)) {
+        samples[numSamples] = getValue(i);
+        numSamples++;
+      }
+      i++;
+    }
+
+    final long val = QuickSelect.select(samples, 0, numSamples - 1, limit / 2);
+    adjustAllValuesBy(-1 * val);
+    keepOnlyPositiveCounts();
+    return val;
+  }
+
+  private void hashDelete(int deleteProbe) {
+    // Looks ahead in the table to search for another item to move to this location.
+    // If none are found, the status is changed
+    wmem_.putShort(stateOffset(deleteProbe), (short) 0); //mark as empty
+    int drift = 1;
+    final int arrayMask = getLength() - 1;
+    int probe = (deleteProbe + drift) & arrayMask; //map length must be a power of 2
+    // advance until you find a free location replacing locations as needed
+    short state;
+    while ((state = getState(probe)) != 0) {
+      if (state > drift) {
+        // move current element
+        wmem_.putLong(keyOffset(deleteProbe), getKey(probe));
+        wmem_.putLong(valueOffset(deleteProbe), getValue(probe));
+        wmem_.putShort(stateOffset(deleteProbe), (short) (state - drift));
+        // marking the current probe location as deleted
+        wmem_.putShort(stateOffset(probe), (short) 0);
+        drift = 0;
+        deleteProbe = probe;
+      }
+      probe = (probe + 1) & arrayMask;
+      drift++;
+      //only used for theoretical analysis
+      assert (drift < DRIFT_LIMIT) : "drift: " + drift + " >= DRIFT_LIMIT";
+    }
+  }
+
+  private int hashProbe(final long key) {
+    final int arrayMask = getLength() - 1;
+    int probe = (int) hash(key) & arrayMask;
+    while ((getState(probe) > 0) && (getKey(probe) != key)) {
+      probe = (probe + 1) & arrayMask;
+    }
+    return probe;
+  }
+
+  private long[] getActive(final long arrayOffset) {
+    final int numActive = getNumActive();
+    if (numActive == 0) { return null; }
+    final long[] returned = new long[numActive];
+    int j = 0;
+    for (int i = 0; i < getLength(); i++) {
+      if (isActive(i)) {
+        returned[j] = mem_.getLong(arrayOffset + ((long) i << 3));
+        j++;
+      }
+    }
+    assert (j == numActive) : "j: " + j + " != numActive: " + numActive;
+    return returned;
+  }
+
+  private void setLgLength(final int lgLength) {
+    this.lgLength = lgLength;
+    loadThreshold = (int) ((1 << lgLength) * LOAD_FACTOR);
+  }
+
+  private long getKey(final int probe) {
+    return mem_.getLong(keyOffset(probe));
+  }
+
+  private long getValue(final int probe) {
+    return mem_.getLong(valueOffset(probe));
+  }
+
+  private short getState(final int probe) {
+    return mem_.getShort(stateOffset(probe));
+  }
+
+  private static long keyOffset(final int probe) {
+    return KEYS_START + ((long) probe << 3);
+  }
+
+  private long valueOffset(final int probe) {
+    return KEYS_START + ((long) getLength() << 3) + ((long) probe << 3);
+  }
+
+  private long stateOffset(final int probe) {
+    return KEYS_START + ((long) getLength() << 4) + ((long) probe << 1);
+  }
+
+  Iterator iterator() {
+    return new Iterator(this);
+  }
+
+  // Same golden ratio strides as ReversePurgeLongHashMap.Iterator
+  static class Iterator {
+    private static final double GOLDEN_RATIO_RECIPROCAL = (Math.sqrt(5) - 1) / 2; //.618...
+
+    private final DirectReversePurgeLongHashMap map_;
+    private final int numActive_;
+    private final int stride_;
+    private final int mask_;
+    private int i_;
+    private int count_;
+
+    Iterator(final DirectReversePurgeLongHashMap map) {
+      map_ = map;
+      numActive_ = map.getNumActive();
+      stride_ = (int) (map.getLength() * GOLDEN_RATIO_RECIPROCAL) | 1;
+      mask_ = map.getLength() - 1;
+      i_ = -stride_;
+      count_ = 0;
+    }
+
+    boolean next() {
+      i_ = (i_ + stride_) & mask_;
+      while (count_ < numActive_) {
+        if (map_.isActive(i_)) {
+          count_++;
+          return true;
+        }
+        i_ = (i_ + stride_) & mask_;
+      }
+      return false;
+    }
+
+    long getKey() {
+      return map_.getKey(i_);
+    }
+
+    long getValue() {
+      return map_.getValue(i_);
+    }
+  }
+
+}
@@ -179,6 +179,11 @@ public class ItemsSketch<T> {
    */
   private ReversePurgeItemHashMap<T> hashMap;
 
+  /**
+   * If true, purges are spread over the following updates.
+   */
+  private boolean incrementalPurge = false;
+
   /**
    * Construct this sketch with the parameter maxMapSize and the default initialMapSize (8).
    *
@@ -191,6 +196,27 @@ public class ItemsSketch<T> {
     this(toLog2(maxMapSize, "maxMapSize"), LG_MIN_MAP_SIZE);
   }
 
+  /**
+   * Construct this sketch with the parameter maxMapSize and the default initialMapSize (8),
+   * optionally with incremental purges.
+   *
+   * <p>When the map is full, a regular purge decrements all counters and removes the ones that
+   * are no longer positive within a single update. An incremental purge instead computes the
+   * decrement up front and moves the remaining counters into a fresh map a few at a time during
+   * the following updates, which bounds the work of every update at the cost of a second map of
+   * maxMapSize entries. Point queries are answered during the purge; queries over all counters,
+   * as well as serialization and merging, complete it first. The estimates and bounds are the
+   * same as with regular purges. This mode is not serialized.</p>
+   *
+   * @param maxMapSize Determines the physical size of the internal hash map managed by this
+   * sketch and must be a power of 2.
+   * @param incrementalPurge if true, purges are spread over the following updates.
+   */
+  public ItemsSketch(final int maxMapSize, final boolean incrementalPurge) {
+    this(maxMapSize);
+    this.incrementalPurge = incrementalPurge;
+  }
+
   /**
    * Construct this sketch with parameter lgMapMapSize and lgCurMapSize. This internal
    * constructor is used when deserializing the sketch.
@@ -452,7 +478,8 @@ public class ItemsSketch<T> {
    */
   public ItemsSketch<T> merge(final ItemsSketch<T> other) {
     if (other == null) { return this; }
-    if (other.isEmpty()) { return this; }
+    //a sketch emptied by purges still carries its stream weight and offset
+    if (other.getStreamLength() == 0) { return this; }
 
     final long streamLen = this.streamWeight + other.streamWeight; //capture before merge
 
@@ -582,11 +609,14 @@ public class ItemsSketch<T> {
     }
     this.streamWeight += count;
     hashMap.adjustOrPutValue(item, count);
+    if (hashMap.isPurging()) { return; } //an incremental purge is still in progress
 
     if (getNumActiveItems() > curMapCap) { //over the threshold, we need to do something
       if (hashMap.getLgLength() < lgMaxMapSize) { //below tgt size, we can grow
         hashMap.resize(2 * hashMap.getLength());
         curMapCap = hashMap.getCapacity();
+      } else if (incrementalPurge) { //At tgt size, start to purge
+        offset += hashMap.purgeIncrementally(sampleSize);
       } else { //At tgt size, must purge
         offset += hashMap.purge(sampleSize);
         if (getNumActiveItems() > getMaximumMapCapacity()) {
@@ -695,6 +725,10 @@ public class ItemsSketch<T> {
 
   } //End of class Row<T>
 
+  ReversePurgeItemHashMap<T> getHashMap() {
+    return hashMap;
+  }
+
   Row<T>[] sortItems(final long threshold, final ErrorType errorType) {
     final ArrayList<Row<T>> rowList = new ArrayList<>();
     final ReversePurgeItemHashMap.Iterator<T> iter = hashMap.iterator();
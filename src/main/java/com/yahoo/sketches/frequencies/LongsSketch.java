@@ -20,10 +20,13 @@
 package com.yahoo.sketches.frequencies;
 
 import static com.yahoo.sketches.Util.LS;
+import static com.yahoo.sketches.Util.ceilingPowerOf2;
+import static com.yahoo.sketches.Util.checkArrayRange;
 import static com.yahoo.sketches.Util.isPowerOf2;
 import static com.yahoo.sketches.Util.toLog2;
 import static com.yahoo.sketches.frequencies.PreambleUtil.EMPTY_FLAG_MASK;
 import static com.yahoo.sketches.frequencies.PreambleUtil.SER_VER;
+import static com.yahoo.sketches.frequencies.PreambleUtil.UPDATABLE_FLAG_MASK;
 import static com.yahoo.sketches.frequencies.PreambleUtil.extractActiveItems;
 import static com.yahoo.sketches.frequencies.PreambleUtil.extractFamilyID;
 import static com.yahoo.sketches.frequencies.PreambleUtil.extractFlags;
@@ -40,8 +43,10 @@ import static com.yahoo.sketches.frequencies.PreambleUtil.insertPreLongs;
 import static com.yahoo.sketches.frequencies.PreambleUtil.insertSerVer;
 import static com.yahoo.sketches.frequencies.Util.LG_MIN_MAP_SIZE;
 import static com.yahoo.sketches.frequencies.Util.SAMPLE_SIZE;
+import static com.yahoo.sketches.frequencies.Util.hash;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 
 import com.yahoo.memory.Memory;
@@ -143,6 +148,7 @@ import com.yahoo.sketches.SketchesStateException;
 public class LongsSketch {
 
   private static final int STR_PREAMBLE_TOKENS = 6;
+  private static final int AGGREGATION_CHUNK = 1 << 14;
 
   /**
    * Log2 Maximum length of the arrays internal to the hash map supported by the data
@@ -176,6 +182,11 @@ public class LongsSketch {
    */
   private ReversePurgeLongHashMap hashMap;
 
+  /**
+   * If true, purges are spread over the following updates.
+   */
+  private boolean incrementalPurge = false;
+
   /**
    * Construct this sketch with the parameter maxMapSize and the default initialMapSize (8).
    *
@@ -188,6 +199,27 @@ public class LongsSketch {
     this(toLog2(maxMapSize, "maxMapSize"), LG_MIN_MAP_SIZE);
   }
 
+  /**
+   * Construct this sketch with the parameter maxMapSize and the default initialMapSize (8),
+   * optionally with incremental purges.
+   *
+   * <p>When the map is full, a regular purge decrements all counters and removes the ones that
+   * are no longer positive within a single update. An incremental purge instead computes the
+   * decrement up front and moves the remaining counters into a fresh map a few at a time during
+   * the following updates, which bounds the work of every update at the cost of a second map of
+   * maxMapSize entries. Point queries are answered during the purge; queries over all counters,
+   * as well as serialization and merging, complete it first. The estimates and bounds are the
+   * same as with regular purges. This mode is not serialized.</p>
+   *
+   * @param maxMapSize Determines the physical size of the internal hash map managed by this
+   * sketch and must be a power of 2.
+   * @param incrementalPurge if true, purges are spread over the following updates.
+   */
+  public LongsSketch(final int maxMapSize, final boolean incrementalPurge) {
+    this(maxMapSize);
+    this.incrementalPurge = incrementalPurge;
+  }
+
   /**
    * Construct this sketch with parameter lgMapMapSize and lgCurMapSize. This internal
    * constructor is used when deserializing the sketch.
@@ -213,7 +245,8 @@ public class LongsSketch {
 
   /**
    * Returns a sketch instance of this class from the given srcMem,
-   * which must be a Memory representation of this sketch class.
+   * which must be a Memory representation of this sketch class or the updatable Memory image
+   * of a {@link DirectLongsSketch}.
    *
    * @param srcMem a Memory representation of a sketch of this class.
    * <a href="{@docRoot}/resources/dictionary.html#mem">See Memory</a>
@@ -221,6 +254,9 @@ public class LongsSketch {
    */
   public static LongsSketch getInstance(final Memory srcMem) {
     final long pre0 = PreambleUtil.checkPreambleSize(srcMem); //make sure preamble will fit
+    if ((extractFlags(pre0) & UPDATABLE_FLAG_MASK) != 0) { //image of a DirectLongsSketch
+      return getInstance(Memory.wrap(DirectLongsSketch.wrap(srcMem).toByteArray()));
+    }
     final int maxPreLongs = Family.FREQUENCY.getMaxPreLongs();
 
     final int preLongs = extractPreLongs(pre0);         //Byte 0
@@ -503,7 +539,8 @@ public class LongsSketch {
    */
   public LongsSketch merge(final LongsSketch other) {
     if (other == null) { return this; }
-    if (other.isEmpty()) { return this; }
+    //a sketch emptied by purges still carries its stream weight and offset
+    if (other.getStreamLength() == 0) { return this; }
 
     final long streamWt = streamWeight + other.streamWeight; //capture before merge
 
@@ -650,11 +687,14 @@ public class LongsSketch {
     }
     streamWeight += count;
     hashMap.adjustOrPutValue(item, count);
+    if (hashMap.isPurging()) { return; } //an incremental purge is still in progress
 
     if (getNumActiveItems() > curMapCap) { //over the threshold, we need to do something
       if (hashMap.getLgLength() < lgMaxMapSize) { //below tgt size, we can grow
         hashMap.resize(2 * hashMap.getLength());
         curMapCap = hashMap.getCapacity();
+      } else if (incrementalPurge) { //At tgt size, start to purge
+        offset += hashMap.purgeIncrementally(sampleSize);
       } else { //At tgt size, must purge
         offset += hashMap.purge(sampleSize);
         if (getNumActiveItems() > getMaximumMapCapacity()) {
@@ -664,6 +704,45 @@ public class LongsSketch {
     }
   }
 
+  /**
+   * Update this sketch with the given range of items, each with a frequency count of one.
+   *
+   * <p>Duplicates within the range are first collapsed in a small scratch hash table, and each
+   * distinct item is then applied to the sketch once with its total count. With skewed input
+   * this saves most of the probes of the internal hash map and may trigger fewer purges.
+   * The resulting counters can differ from those of item-by-item updates, but the same error
+   * guarantees apply.</p>
+   *
+   * @param items array of items from the stream
+   * @param offset the index of the first item to use
+   * @param length the number of items to use
+   */
+  public void update(final long[] items, final int offset, final int length) {
+    checkArrayRange(items.length, offset, length);
+    aggregateAndUpdate(items, null, offset, length);
+  }
+
+  /**
+   * Update this sketch with the given items and their positive frequency counts (or weights),
+   * collapsing duplicate items first as described in {@link #update(long[], int, int)}.
+   *
+   * @param items array of items from the stream
+   * @param counts array of the counts of the corresponding items. A count of zero is a no-op,
+   * and a negative count will throw an exception before any item is applied.
+   */
+  public void update(final long[] items, final long[] counts) {
+    if (items.length != counts.length) {
+      throw new SketchesArgumentException("Items and counts must have the same length: "
+          + items.length + " != " + counts.length);
+    }
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] < 0) {
+        throw new SketchesArgumentException("Count may not be negative");
+      }
+    }
+    aggregateAndUpdate(items, counts, 0, items.length);
+  }
+
   /**
    * Row class that defines the return values from a getFrequentItems query.
    */
@@ -761,6 +840,55 @@ public class LongsSketch {
 
   } // End of class Row
 
+  /**
+   * Collapses duplicates in chunks of at most AGGREGATION_CHUNK items using a linear-probing
+   * table of slots that index into arrays of the distinct items and their total counts, in
+   * order of first appearance.
+   * @param items the items
+   * @param counts the counts of the items, or null for counts of one
+   * @param offset the index of the first item
+   * @param length the number of items
+   */
+  private void aggregateAndUpdate(final long[] items, final long[] counts, final int offset,
+      final int length) {
+    if (length == 0) { return; }
+    final int chunk = Math.min(length, AGGREGATION_CHUNK);
+    final int mask = ceilingPowerOf2(2 * chunk) - 1; //load factor of at most 1/2
+    final int[] slots = new int[mask + 1]; //1 + index of the distinct item, 0 if empty
+    final long[] distinctItems = new long[chunk];
+    final long[] distinctCounts = new long[chunk];
+    final int end = offset + length;
+    for (int start = offset; start < end; start += chunk) {
+      final int stop = Math.min(start + chunk, end);
+      int numDistinct = 0;
+      for (int i = start; i < stop; i++) {
+        final long count = (counts == null) ? 1 : counts[i];
+        if (count == 0) { continue; }
+        final long item = items[i];
+        int probe = (int) hash(item) & mask;
+        int slot;
+        while (((slot = slots[probe]) != 0) && (distinctItems[slot - 1] != item)) {
+          probe = (probe + 1) & mask;
+        }
+        if (slot == 0) {
+          distinctItems[numDistinct] = item;
+          distinctCounts[numDistinct] = count;
+          slots[probe] = ++numDistinct;
+        } else {
+          distinctCounts[slot - 1] += count;
+        }
+      }
+      for (int i = 0; i < numDistinct; i++) {
+        update(distinctItems[i], distinctCounts[i]);
+      }
+      Arrays.fill(slots, 0);
+    }
+  }
+
+  ReversePurgeLongHashMap getHashMap() {
+    return hashMap;
+  }
+
   Row[] sortItems(final long threshold, final ErrorType errorType) {
     final ArrayList<Row> rowList = new ArrayList<>();
     final ReversePurgeLongHashMap.Iterator iter = hashMap.iterator();
@@ -84,6 +84,7 @@ final class PreambleUtil {
 
   // flag bit masks
   static final int EMPTY_FLAG_MASK      = 4;
+  static final int UPDATABLE_FLAG_MASK  = 8; //hash map arrays follow the preamble
 
   // Specific values for this implementation
   static final int SER_VER = 1;
@@ -109,6 +110,7 @@ final class PreambleUtil {
 
     final String flagsStr = zeroPad(Integer.toBinaryString(flags), 8) + ", " + (flags);
     final boolean empty = (flags & EMPTY_FLAG_MASK) > 0;
+    final boolean updatable = (flags & UPDATABLE_FLAG_MASK) > 0;
     final int maxMapSize = 1 << lgMaxMapSize;
     final int curMapSize = 1 << lgCurMapSize;
     final int maxPreLongs = Family.FREQUENCY.getMaxPreLongs();
@@ -139,6 +141,7 @@ final class PreambleUtil {
       .append("Byte  4: CurMapSize           : ").append(curMapSize).append(LS)
       .append("Byte  5: Flags Field          : ").append(flagsStr).append(LS)
       .append("  EMPTY                       : ").append(empty).append(LS)
+      .append("  UPDATABLE                   : ").append(updatable).append(LS)
       .append("Byte  6: Freq Sketch Type     : ").append(type).append(LS);
 
     if (preLongs == 1) {
@@ -150,8 +153,10 @@ final class PreambleUtil {
     }
 
     sb.append(  "Preamble Bytes                : ").append(preLongs * 8).append(LS);
-    sb.append(  "TOTAL Sketch Bytes            : ").append((preLongs + (activeItems * 2)) << 3)
-      .append(LS)
+    final long totalBytes = updatable
+        ? DirectReversePurgeLongHashMap.getRequiredBytes(curMapSize)
+        : (preLongs + (activeItems * 2)) << 3;
+    sb.append(  "TOTAL Sketch Bytes            : ").append(totalBytes).append(LS)
       .append("### END FREQUENCY SKETCH PREAMBLE SUMMARY").append(LS);
     return sb.toString();
   }
@@ -24,6 +24,7 @@ import static com.yahoo.sketches.Util.toLog2;
 import static com.yahoo.sketches.frequencies.Util.hash;
 
 import java.lang.reflect.Array;
+import java.util.Arrays;
 
 import com.yahoo.sketches.QuickSelect;
 
@@ -32,6 +33,8 @@ import com.yahoo.sketches.QuickSelect;
  * "reverse" purge operation that removes all keys in the map whose associated values are &le; 0
  * and is performed in reverse, starting at the "back" of the array and moving toward the front.
  *
+ * <p>The purge can also be performed incrementally, see {@link #purgeIncrementally(int)}.</p>
+ *
  * @param <T> The type of item to be tracked by this sketch
  *
  * @author Edo Liberty
@@ -41,6 +44,8 @@ import com.yahoo.sketches.QuickSelect;
 class ReversePurgeItemHashMap<T> {
   private static final double LOAD_FACTOR = 0.75;
   private static final int DRIFT_LIMIT = 1024; //used only in stress testing
+  private static final int MIGRATION_STEP = 16; //old cells migrated per update
+  private static final double MIGRATION_LOAD_FACTOR = 0.875; //limit while migrating
   private int lgLength;
   protected int loadThreshold;
   protected Object[] keys;
@@ -48,6 +53,20 @@ class ReversePurgeItemHashMap<T> {
   protected short[] states;
   protected int numActive = 0;
 
+  //State of an incremental purge: the arrays being drained, whose values are all reduced by the
+  //pending offset on read, the next cell to migrate and the number of occupied cells left.
+  //Migrated cells keep their state for probing, but their keys are released.
+  private Object[] oldKeys;
+  private long[] oldValues;
+  private short[] oldStates;
+  private long pendingOffset;
+  private int migrationCursor;
+  private int oldRemaining;
+  //arrays of the last drained table, reused by the next incremental purge
+  private Object[] spareKeys;
+  private long[] spareValues;
+  private short[] spareStates;
+
   /**
    * Constructor will create arrays of length mapSize, which must be a power of two.
    * This restriction was made to ensure fast hashing.
@@ -87,6 +106,12 @@ class ReversePurgeItemHashMap<T> {
       assert (keys[probe]).equals(key);
       return values[probe];
     }
+    if (isPurging()) {
+      final int oldProbe = oldHashProbe(key);
+      if (oldStates[oldProbe] > 0) {
+        return Math.max(oldValues[oldProbe] - pendingOffset, 0);
+      }
+    }
     return 0;
   }
 
@@ -98,6 +123,19 @@ class ReversePurgeItemHashMap<T> {
    * @param adjustAmount the amount by which to increment the value
    */
   void adjustOrPutValue(final T key, final long adjustAmount) {
+    if (isPurging()) {
+      migrateKey(key);
+      if ((numActive + oldRemaining) >= (int) (keys.length * MIGRATION_LOAD_FACTOR)) {
+        finishPurge();
+      }
+    }
+    put(key, adjustAmount);
+    if (isPurging()) {
+      migrate(MIGRATION_STEP);
+    }
+  }
+
+  private void put(final T key, final long adjustAmount) {
     final int arrayMask = keys.length - 1;
     int probe = (int) hash(key.hashCode()) & arrayMask;
     int drift = 1;
@@ -110,7 +148,7 @@ class ReversePurgeItemHashMap<T> {
 
     if (states[probe] == 0) {
       // adding the key to the table the value
-      assert (numActive <= loadThreshold)
+      assert (numActive <= loadThreshold) || isPurging()
         : "numActive: " + numActive + " > loadThreshold: " + loadThreshold;
       keys[probe] = key;
       values[probe] = adjustAmount;
@@ -127,6 +165,7 @@ class ReversePurgeItemHashMap<T> {
    * Processes the map arrays and retains only keys with positive counts.
    */
   void keepOnlyPositiveCounts() {
+    finishPurge();
     // Starting from the back, find the first empty cell,
     //  which establishes the high end of a cluster.
     int firstProbe = states.length - 1;
@@ -156,6 +195,7 @@ class ReversePurgeItemHashMap<T> {
    * values are retained.
    */
   void adjustAllValuesBy(final long adjustAmount) {
+    finishPurge();
     for (int i = values.length; i-- > 0;) {
       values[i] += adjustAmount;
     }
@@ -166,6 +206,7 @@ class ReversePurgeItemHashMap<T> {
    */
   @SuppressWarnings("unchecked")
   T[] getActiveKeys() {
+    finishPurge();
     if (numActive == 0) { return null; }
     T[] returnedKeys = null;
     int j = 0;
@@ -186,6 +227,7 @@ class ReversePurgeItemHashMap<T> {
    * @return an array containing the values corresponding to the active keys in the hash
    */
   long[] getActiveValues() {
+    finishPurge();
     if (numActive == 0) { return null; }
     final long[] returnedValues = new long[numActive];
     int j = 0;
@@ -202,6 +244,10 @@ class ReversePurgeItemHashMap<T> {
   // assume newSize is power of 2
   @SuppressWarnings("unchecked")
   void resize(final int newSize) {
+    finishPurge();
+    spareKeys = null;
+    spareValues = null;
+    spareStates = null;
     final Object[] oldKeys = keys;
     final long[] oldValues = values;
     final short[] oldStates = states;
@@ -237,9 +283,10 @@ class ReversePurgeItemHashMap<T> {
   }
 
   /**
-   * @return number of populated keys
+   * @return number of populated keys. This completes an incremental purge in progress.
    */
   int getNumActive() {
+    finishPurge();
     return numActive;
   }
 
@@ -248,6 +295,7 @@ class ReversePurgeItemHashMap<T> {
    */
   @Override
   public String toString() {
+    finishPurge();
     final String fmt  = "  %12d:%11d%12d %s";
     final String hfmt = "  %12s:%11s%12s %s";
     final StringBuilder sb = new StringBuilder();
@@ -279,6 +327,64 @@ class ReversePurgeItemHashMap<T> {
    * @return the median value
    */
   long purge(final int sampleSize) {
+    final long val = sampleMedian(sampleSize);
+    adjustAllValuesBy(-1 * val);
+    keepOnlyPositiveCounts();
+    return val;
+  }
+
+  /**
+   * Starts a purge with the same result as {@link #purge(int)}, but moves the counters into a
+   * fresh table a few cells at a time during the following updates.
+   * See {@link ReversePurgeLongHashMap#purgeIncrementally(int)}.
+   *
+   * @param sampleSize number of samples
+   * @return the median value
+   */
+  long purgeIncrementally(final int sampleSize) {
+    final long val = sampleMedian(sampleSize);
+    final int length = keys.length;
+    oldKeys = keys;
+    oldValues = values;
+    oldStates = states;
+    if (spareStates == null) {
+      keys = new Object[length];
+      values = new long[length];
+      states = new short[length];
+    } else {
+      keys = spareKeys;
+      values = spareValues;
+      states = spareStates;
+      Arrays.fill(states, (short) 0);
+      spareKeys = null;
+      spareValues = null;
+      spareStates = null;
+    }
+    pendingOffset = val;
+    migrationCursor = 0;
+    oldRemaining = numActive;
+    numActive = 0;
+    return val;
+  }
+
+  /**
+   * @return true if an incremental purge is in progress
+   */
+  boolean isPurging() {
+    return oldStates != null;
+  }
+
+  /**
+   * Completes an incremental purge in progress.
+   */
+  void finishPurge() {
+    if (isPurging()) {
+      migrate(oldStates.length);
+    }
+  }
+
+  private long sampleMedian(final int sampleSize) {
+    finishPurge();
     final int limit = Math.min(sampleSize, getNumActive());
 
     int numSamples = 0;
@@ -293,10 +399,59 @@ class ReversePurgeItemHashMap<T> {
       i++;
     }
 
-    final long val = QuickSelect.select(samples, 0, numSamples - 1, limit / 2);
-    adjustAllValuesBy(-1 * val);
-    keepOnlyPositiveCounts();
-    return val;
+    return QuickSelect.select(samples, 0, numSamples - 1, limit / 2);
+  }
+
+  /**
+   * Moves the given key from the old table into the current one if it has not been migrated
+   * yet and its value is still positive after applying the pending offset.
+   */
+  private void migrateKey(final T key) {
+    final int oldProbe = oldHashProbe(key);
+    if ((oldProbe >= migrationCursor) && (oldStates[oldProbe] > 0)) {
+      final long value = oldValues[oldProbe] - pendingOffset;
+      if (value > 0) {
+        put(key, value);
+        oldValues[oldProbe] = pendingOffset; //now reads as zero
+      }
+    }
+  }
+
+  /**
+   * Migrates up to the given number of cells of the old table, in index order.
+   */
+  @SuppressWarnings("unchecked")
+  private void migrate(final int numCells) {
+    final int end = Math.min(migrationCursor + numCells, oldStates.length);
+    for (int i = migrationCursor; i < end; i++) {
+      if (oldStates[i] > 0) {
+        oldRemaining--;
+        final long value = oldValues[i] - pendingOffset;
+        if (value > 0) {
+          put((T) oldKeys[i], value);
+        }
+        oldKeys[i] = null;
+      }
+    }
+    migrationCursor = end;
+    if (end == oldStates.length) {
+      assert oldRemaining == 0;
+      spareKeys = oldKeys;
+      spareValues = oldValues;
+      spareStates = oldStates;
+      oldKeys = null;
+      oldValues = null;
+      oldStates = null;
+    }
+  }
+
+  private int oldHashProbe(final T key) {
+    final int arrayMask = oldKeys.length - 1;
+    int probe = (int) hash(key.hashCode()) & arrayMask;
+    while ((oldStates[probe] > 0) && !key.equals(oldKeys[probe])) {
+      probe = (probe + 1) & arrayMask;
+    }
+    return probe;
   }
 
   private void hashDelete(int deleteProbe) {
@@ -336,6 +491,7 @@ class ReversePurgeItemHashMap<T> {
   }
 
   Iterator<T> iterator() {
+    finishPurge();
     return new Iterator<T>(keys, values, states, numActive);
   }
 
@@ -23,6 +23,8 @@ import static com.yahoo.sketches.Util.LS;
 import static com.yahoo.sketches.Util.toLog2;
 import static com.yahoo.sketches.frequencies.Util.hash;
 
+import java.util.Arrays;
+
 import com.yahoo.sketches.QuickSelect;
 import com.yahoo.sketches.SketchesArgumentException;
 
@@ -31,6 +33,8 @@ import com.yahoo.sketches.SketchesArgumentException;
  * "reverse" purge operation that removes all keys in the map whose associated values are &le; 0
  * and is performed in reverse, starting at the "back" of the array and moving toward the front.
  *
+ * <p>The purge can also be performed incrementally, see {@link #purgeIncrementally(int)}.</p>
+ *
  * @author Edo Liberty
  * @author Justin Thaler
  * @author Lee Rhodes
@@ -38,6 +42,8 @@ import com.yahoo.sketches.SketchesArgumentException;
 class ReversePurgeLongHashMap {
   private static final double LOAD_FACTOR = 0.75;
   private static final int DRIFT_LIMIT = 1024; //used only in stress testing
+  private static final int MIGRATION_STEP = 16; //old cells migrated per update
+  private static final double MIGRATION_LOAD_FACTOR = 0.875; //limit while migrating
   private int lgLength;
   private int loadThreshold;
   private long[] keys;
@@ -45,6 +51,19 @@ class ReversePurgeLongHashMap {
   private short[] states;
   private int numActive = 0;
 
+  //State of an incremental purge: the arrays being drained, whose values are all reduced by the
+  //pending offset on read, the next cell to migrate and the number of occupied cells left.
+  private long[] oldKeys;
+  private long[] oldValues;
+  private short[] oldStates;
+  private long pendingOffset;
+  private int migrationCursor;
+  private int oldRemaining;
+  //arrays of the last drained table, reused by the next incremental purge
+  private long[] spareKeys;
+  private long[] spareValues;
+  private short[] spareStates;
+
   /**
    * Constructor will create arrays of length mapSize, which must be a power of two.
    * This restriction was made to ensure fast hashing.
@@ -96,6 +115,7 @@ class ReversePurgeLongHashMap {
    * @return a String representation of this hash map.
    */
   String serializeToString() {
+    finishPurge();
     final StringBuilder sb = new StringBuilder();
     sb.append(String.format("%d,%d,", numActive, keys.length));
 
@@ -127,6 +147,12 @@ class ReversePurgeLongHashMap {
       assert (keys[probe] == key);
       return values[probe];
     }
+    if (isPurging()) {
+      final int oldProbe = oldHashProbe(key);
+      if (oldStates[oldProbe] > 0) {
+        return Math.max(oldValues[oldProbe] - pendingOffset, 0);
+      }
+    }
     return 0;
   }
 
@@ -138,6 +164,19 @@ class ReversePurgeLongHashMap {
    * @param adjustAmount the amount by which to increment the value
    */
   void adjustOrPutValue(final long key, final long adjustAmount) {
+    if (isPurging()) {
+      migrateKey(key);
+      if ((numActive + oldRemaining) >= (int) (keys.length * MIGRATION_LOAD_FACTOR)) {
+        finishPurge();
+      }
+    }
+    put(key, adjustAmount);
+    if (isPurging()) {
+      migrate(MIGRATION_STEP);
+    }
+  }
+
+  private void put(final long key, final long adjustAmount) {
     final int arrayMask = keys.length - 1;
     int probe = (int) hash(key) & arrayMask;
     int drift = 1;
@@ -150,7 +189,7 @@ class ReversePurgeLongHashMap {
     //found either an empty slot or the key
     if (states[probe] == 0) { //found empty slot
       // adding the key and value to the table
-      assert (numActive <= loadThreshold)
+      assert (numActive <= loadThreshold) || isPurging()
         : "numActive: " + numActive + " > loadThreshold : " + loadThreshold;
       keys[probe] = key;
       values[probe] = adjustAmount;
@@ -166,6 +205,7 @@ class ReversePurgeLongHashMap {
    * Processes the map arrays and retains only keys with positive counts.
    */
   void keepOnlyPositiveCounts() {
+    finishPurge();
     // Starting from the back, find the first empty cell, which marks a boundary between clusters.
     int firstProbe = keys.length - 1;
     while (states[firstProbe] > 0) {
@@ -195,6 +235,7 @@ class ReversePurgeLongHashMap {
    * values are retained.
    */
   void adjustAllValuesBy(final long adjustAmount) {
+    finishPurge();
     for (int i = keys.length; i-- > 0; ) {
       values[i] += adjustAmount;
     }
@@ -204,6 +245,7 @@ class ReversePurgeLongHashMap {
    * @return an array containing the active keys in the hash map.
    */
   long[] getActiveKeys() {
+    finishPurge();
     if (numActive == 0) { return null; }
     final long[] returnedKeys = new long[numActive];
     int j = 0;
@@ -221,6 +263,7 @@ class ReversePurgeLongHashMap {
    * @return an array containing the values corresponding. to the active keys in the hash
    */
   long[] getActiveValues() {
+    finishPurge();
     if (numActive == 0) { return null; }
     final long[] returnedValues = new long[numActive];
     int j = 0;
@@ -236,6 +279,10 @@ class ReversePurgeLongHashMap {
 
   // assume newSize is power of 2
   void resize(final int newSize) {
+    finishPurge();
+    spareKeys = null;
+    spareValues = null;
+    spareStates = null;
     final long[] oldKeys = keys;
     final long[] oldValues = values;
     final short[] oldStates = states;
@@ -271,9 +318,10 @@ class ReversePurgeLongHashMap {
   }
 
   /**
-   * @return number of populated keys
+   * @return number of populated keys. This completes an incremental purge in progress.
    */
   int getNumActive() {
+    finishPurge();
     return numActive;
   }
 
@@ -282,6 +330,7 @@ class ReversePurgeLongHashMap {
    */
   @Override
   public String toString() {
+    finishPurge();
     final String fmt  = "  %12d:%11d%20d %d";
     final String hfmt = "  %12s:%11s%20s %s";
     final StringBuilder sb = new StringBuilder();
@@ -312,6 +361,70 @@ class ReversePurgeLongHashMap {
    * @return the median value
    */
   long purge(final int sampleSize) {
+    final long val = sampleMedian(sampleSize);
+    adjustAllValuesBy(-1 * val);
+    keepOnlyPositiveCounts();
+    return val;
+  }
+
+  /**
+   * Starts a purge with the same result as {@link #purge(int)}, but instead of decrementing and
+   * deleting all counters at once, the counters are moved into a fresh table a few cells at a
+   * time by the following calls to {@link #adjustOrPutValue(long, long)}. Until then the
+   * estimated median is a pending offset that is subtracted when reading the remaining cells of
+   * the old table. Operations that need the whole table complete the purge first.
+   *
+   * <p>The old table is kept as a spare for the next purge, so that this mode needs twice the
+   * memory of {@link #purge(int)}. While the purge is in progress the fresh table may hold up to
+   * 7/8 of its length; if it gets close to that, the purge is completed at once.</p>
+   *
+   * @param sampleSize number of samples
+   * @return the median value
+   */
+  long purgeIncrementally(final int sampleSize) {
+    final long val = sampleMedian(sampleSize);
+    final int length = keys.length;
+    oldKeys = keys;
+    oldValues = values;
+    oldStates = states;
+    if (spareStates == null) {
+      keys = new long[length];
+      values = new long[length];
+      states = new short[length];
+    } else {
+      keys = spareKeys;
+      values = spareValues;
+      states = spareStates;
+      Arrays.fill(states, (short) 0);
+      spareKeys = null;
+      spareValues = null;
+      spareStates = null;
+    }
+    pendingOffset = val;
+    migrationCursor = 0;
+    oldRemaining = numActive;
+    numActive = 0;
+    return val;
+  }
+
+  /**
+   * @return true if an incremental purge is in progress
+   */
+  boolean isPurging() {
+    return oldStates != null;
+  }
+
+  /**
+   * Completes an incremental purge in progress.
+   */
+  void finishPurge() {
+    if (isPurging()) {
+      migrate(oldStates.length);
+    }
+  }
+
+  private long sampleMedian(final int sampleSize) {
+    finishPurge();
     final int limit = Math.min(sampleSize, getNumActive());
 
     int numSamples = 0;
@@ -326,10 +439,57 @@ class ReversePurgeLongHashMap {
       i++;
     }
 
-    final long val = QuickSelect.select(samples, 0, numSamples - 1, limit / 2);
-    adjustAllValuesBy(-1 * val);
-    keepOnlyPositiveCounts();
-    return val;
+    return QuickSelect.select(samples, 0, numSamples - 1, limit / 2);
+  }
+
+  /**
+   * Moves the given key from the old table into the current one if it has not been migrated
+   * yet and its value is still positive after applying the pending offset.
+   */
+  private void migrateKey(final long key) {
+    final int oldProbe = oldHashProbe(key);
+    if ((oldProbe >= migrationCursor) && (oldStates[oldProbe] > 0)) {
+      final long value = oldValues[oldProbe] - pendingOffset;
+      if (value > 0) {
+        put(key, value);
+        oldValues[oldProbe] = pendingOffset; //now reads as zero
+      }
+    }
+  }
+
+  /**
+   * Migrates up to the given number of cells of the old table, in index order.
+   */
+  private void migrate(final int numCells) {
+    final int end = Math.min(migrationCursor + numCells, oldStates.length);
+    for (int i = migrationCursor; i < end; i++) {
+      if (oldStates[i] > 0) {
+        oldRemaining--;
+        final long value = oldValues[i] - pendingOffset;
+        if (value > 0) {
+          put(oldKeys[i], value);
+        }
+      }
+    }
+    migrationCursor = end;
+    if (end == oldStates.length) {
+      assert oldRemaining == 0;
+      spareKeys = oldKeys;
+      spareValues = oldValues;
+      spareStates = oldStates;
+      oldKeys = null;
+      oldValues = null;
+      oldStates = null;
+    }
+  }
+
+  private int oldHashProbe(final long key) {
+    final int arrayMask = oldKeys.length - 1;
+    int probe = (int) hash(key) & arrayMask;
+    while ((oldStates[probe] > 0) && (oldKeys[probe] != key)) {
+      probe = (probe + 1) & arrayMask;
+    }
+    return probe;
   }
 
   private void hashDelete(int deleteProbe) {
@@ -368,6 +528,7 @@ class ReversePurgeLongHashMap {
   }
 
   Iterator iterator() {
+    finishPurge();
     return new Iterator(keys, values, states, numActive);
   }
 
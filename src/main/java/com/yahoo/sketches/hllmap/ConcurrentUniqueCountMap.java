@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.hllmap;
+
+import static com.yahoo.sketches.Util.toLog2;
+
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.sketches.hash.MurmurHash3;
+import com.yahoo.sketches.hash.MurmurHash3v2;
+
+/**
+ * A {@link UniqueCountMap} that can be updated by many threads at the same time.
+ *
+ * <p>The keys are partitioned by their hash into a power of 2 number of shards, each of which is
+ * an ordinary UniqueCountMap that is locked only for the duration of a single update or query.
+ * Threads updating keys of different shards never contend.</p>
+ *
+ * <p>Every key lives in exactly one shard, where it is promoted through the same levels
+ * (single coupon, coupon traverse maps, coupon hash maps and HLL) as in a single map, so the
+ * estimates and the memory per key are those of a single map. The only overhead is the fixed
+ * cost of the internal tables of each shard, which start small and grow as needed.</p>
+ *
+ * <p>Queries over all shards, such as {@link #getActiveEntries()}, lock one shard at a time and
+ * do not observe a consistent point in time across shards while updates are in progress.</p>
+ *
+ * <p>The long key methods {@link #update(long, long)} and {@link #getEstimate(long)} avoid
+ * allocating arrays by hashing into scratch arrays that belong to each UniqueCountMap instance
+ * and to each of its internal maps. That scratch state is per instance, not per thread, so even
+ * {@link #getEstimate(long)} writes to shared state and is called under the lock of the shard.
+ * </p>
+ */
+public final class ConcurrentUniqueCountMap {
+  private static final String LS = System.getProperty("line.separator");
+  private static final int MIN_INITIAL_NUM_ENTRIES = 157;
+  // differs from Map.SEED so that shard selection is independent of the probing in the shards
+  private static final long SHARD_SEED = 9001L;
+
+  private final int keySizeBytes_;
+  private final int shardMask_;
+  private final UniqueCountMap[] shards_; // each guarded by itself
+
+  /**
+   * Constructs a map with the given initial number of entries, split evenly across the shards.
+   *
+   * @param initialNumEntries The initial number of entries of all shards together. See
+   * {@link UniqueCountMap#UniqueCountMap(int, int)}.
+   * @param keySizeBytes must be at least 4 bytes to have sufficient entropy
+   * @param numShards the number of independently locked shards, which must be a power of 2.
+   * A good choice is a small multiple of the number of updating threads rounded up to a power
+   * of 2.
+   */
+  public ConcurrentUniqueCountMap(final int initialNumEntries, final int keySizeBytes,
+      final int numShards) {
+    this(initialNumEntries, keySizeBytes, numShards, Map.DEFAULT_MEM_REQ_SVR);
+  }
+
+  /**
+   * Constructs a map with the given initial number of entries, split evenly across the shards,
+   * whose shards hold their internal maps in memory obtained from the given server.
+   *
+   * @param initialNumEntries The initial number of entries of all shards together. See
+   * {@link UniqueCountMap#UniqueCountMap(int, int)}.
+   * @param keySizeBytes must be at least 4 bytes to have sufficient entropy
+   * @param numShards the number of independently locked shards, which must be a power of 2.
+   * @param memReqSvr the server of the memory of all shards, which is called concurrently by
+   * threads updating different shards and must be thread-safe.
+   * See {@link UniqueCountMap#UniqueCountMap(int, int, MemoryRequestServer)}.
+   */
+  public ConcurrentUniqueCountMap(final int initialNumEntries, final int keySizeBytes,
+      final int numShards, final MemoryRequestServer memReqSvr) {
+    toLog2(numShards, "numShards");
+    keySizeBytes_ = keySizeBytes;
+    shardMask_ = numShards - 1;
+    shards_ = new UniqueCountMap[numShards];
+    final int shardEntries = Math.max(initialNumEntries / numShards, MIN_INITIAL_NUM_ENTRIES);
+    for (int i = 0; i < numShards; i++) {
+      shards_[i] = new UniqueCountMap(shardEntries, keySizeBytes, memReqSvr);
+    }
+  }
+
+  /**
+   * Updates the map with a given key and identifier and returns the estimate of the number of
+   * unique identifiers encountered so far for the given key.
+   * See {@link UniqueCountMap#update(byte[], byte[])}.
+   * @param key the given key
+   * @param identifier the given identifier for unique counting associated with the key
+   * @return the estimate of the number of unique identifiers encountered so far for the given key.
+   */
+  public double update(final byte[] key, final byte[] identifier) {
+    if (key == null) { return Double.NaN; }
+    final UniqueCountMap shard = getShard(key);
+    synchronized (shard) {
+      return shard.update(key, identifier);
+    }
+  }
+
+  /**
+   * Retrieves the current estimate of unique count for a given key.
+   * @param key given key
+   * @return estimate of unique count so far
+   */
+  public double getEstimate(final byte[] key) {
+    if (key == null) { return Double.NaN; }
+    final UniqueCountMap shard = getShard(key);
+    synchronized (shard) {
+      return shard.getEstimate(key);
+    }
+  }
+
+  /**
+   * Updates the map with a given long key and long identifier and returns the estimate of the
+   * number of unique identifiers encountered so far for the given key. This requires a key size
+   * of 8 bytes, and the key lives in the same shard as its 8 little-endian bytes would.
+   * See {@link UniqueCountMap#update(long, long)}, whose per-instance scratch arrays are guarded
+   * by the lock of the shard.
+   * @param key the given key
+   * @param identifier the given identifier for unique counting associated with the key
+   * @return the estimate of the number of unique identifiers encountered so far for the given key.
+   */
+  public double update(final long key, final long identifier) {
+    final UniqueCountMap shard = getShard(key);
+    synchronized (shard) {
+      return shard.update(key, identifier);
+    }
+  }
+
+  /**
+   * Retrieves the current estimate of unique count for a given long key. This requires a key size
+   * of 8 bytes. See {@link UniqueCountMap#getEstimate(long)}, whose per-instance scratch arrays
+   * are guarded by the lock of the shard.
+   * @param key given key
+   * @return estimate of unique count so far
+   */
+  public double getEstimate(final long key) {
+    final UniqueCountMap shard = getShard(key);
+    synchronized (shard) {
+      return shard.getEstimate(key);
+    }
+  }
+
+  /**
+   * Returns the upper bound cardinality with respect to {@link #getEstimate(byte[])} associated
+   * with the given key.
+   * @param key the given key
+   * @return the upper bound cardinality with respect to {@link #getEstimate(byte[])} associated
+   * with the given key.
+   */
+  public double getUpperBound(final byte[] key) {
+    if (key == null) { return Double.NaN; }
+    final UniqueCountMap shard = getShard(key);
+    synchronized (shard) {
+      return shard.getUpperBound(key);
+    }
+  }
+
+  /**
+   * Returns the lower bound cardinality with respect to {@link #getEstimate(byte[])} associated
+   * with the given key.
+   * @param key the given key
+   * @return the lower bound cardinality with respect to {@link #getEstimate(byte[])} associated
+   * with the given key.
+   */
+  public double getLowerBound(final byte[] key) {
+    if (key == null) { return Double.NaN; }
+    final UniqueCountMap shard = getShard(key);
+    synchronized (shard) {
+      return shard.getLowerBound(key);
+    }
+  }
+
+  /**
+   * Returns the number of active, unique keys across all shards
+   * @return the number of active, unique keys across all shards
+   */
+  public int getActiveEntries() {
+    int total = 0;
+    for (final UniqueCountMap shard : shards_) {
+      synchronized (shard) {
+        total += shard.getActiveEntries();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns total bytes used by all internal maps of all shards
+   * @return total bytes used by all internal maps of all shards
+   */
+  public long getMemoryUsageBytes() {
+    long total = 0;
+    for (final UniqueCountMap shard : shards_) {
+      synchronized (shard) {
+        total += shard.getMemoryUsageBytes();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns total bytes used for key storage in all shards
+   * @return total bytes used for key storage in all shards
+   */
+  public long getKeyMemoryUsageBytes() {
+    long total = 0;
+    for (final UniqueCountMap shard : shards_) {
+      synchronized (shard) {
+        total += shard.getKeyMemoryUsageBytes();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns the average memory storage per key that is dedicated to sketching the unique counts.
+   * @return the average memory storage per key that is dedicated to sketching the unique counts.
+   */
+  public double getAverageSketchMemoryPerKey() {
+    long memory = 0;
+    long keyMemory = 0;
+    int entries = 0;
+    for (final UniqueCountMap shard : shards_) {
+      synchronized (shard) {
+        memory += shard.getMemoryUsageBytes();
+        keyMemory += shard.getKeyMemoryUsageBytes();
+        entries += shard.getActiveEntries();
+      }
+    }
+    return (double) (memory - keyMemory) / entries;
+  }
+
+  /**
+   * Returns the memory of all shards to the memory request server. This is required to release
+   * off-heap memory, and the map must not be used afterwards.
+   */
+  public void close() {
+    for (final UniqueCountMap shard : shards_) {
+      synchronized (shard) {
+        shard.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of shards
+   * @return the number of shards
+   */
+  public int getNumShards() {
+    return shards_.length;
+  }
+
+  /**
+   * Returns a string with a human-readable summary of the map, without the summaries of the
+   * internal maps of the shards.
+   * @return human-readable summary
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    final String thisSimpleName = this.getClass().getSimpleName();
+    sb.append("## ").append(thisSimpleName).append(" SUMMARY: ").append(LS);
+    sb.append("   Key Size Bytes             : ").append(Map.fmtLong(keySizeBytes_)).append(LS);
+    sb.append("   Shards                     : ").append(Map.fmtLong(getNumShards())).append(LS);
+    sb.append("   Total keys                 : ").append(Map.fmtLong(getActiveEntries()))
+      .append(LS);
+    sb.append("   Total Memory Bytes         : ").append(Map.fmtLong(getMemoryUsageBytes()))
+      .append(LS);
+    sb.append("   Total Key Memory Bytes     : ").append(Map.fmtLong(getKeyMemoryUsageBytes()))
+      .append(LS);
+    sb.append("   Avg Sketch Memory Bytes/Key: ")
+      .append(Map.fmtDouble(getAverageSketchMemoryPerKey())).append(LS);
+    sb.append("## ").append("END CONCURRENT UNIQUE COUNT MAP SUMMARY");
+    sb.append(LS);
+    return sb.toString();
+  }
+
+  /**
+   * Returns the shard at the given index, for testing
+   * @param index the index of the shard
+   * @return the shard
+   */
+  UniqueCountMap getShard(final int index) {
+    return shards_[index];
+  }
+
+  // the key size is checked by the shard
+  private UniqueCountMap getShard(final byte[] key) {
+    return shards_[(int) (MurmurHash3.hash(key, SHARD_SEED)[0] >>> 32) & shardMask_];
+  }
+
+  // same shard as the 8 little-endian bytes of the key. The hash is computed outside of the lock,
+  // so it cannot use the scratch arrays of the shard.
+  private UniqueCountMap getShard(final long key) {
+    final long[] hash = MurmurHash3v2.hash(key, SHARD_SEED, new long[2]);
+    return shards_[(int) (hash[0] >>> 32) & shardMask_];
+  }
+
+}
@@ -22,8 +22,9 @@ package com.yahoo.sketches.hllmap;
 import static com.yahoo.sketches.Util.checkIfPowerOf2;
 import static com.yahoo.sketches.Util.invPow2;
 
-import java.util.Arrays;
-
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.SketchesArgumentException;
 import com.yahoo.sketches.hash.MurmurHash3;
 
@@ -56,35 +57,83 @@ final class CouponHashMap extends Map {
   private int numActiveKeys_;
   private int numDeletedKeys_;
 
-  //Arrays
-  private byte[] keysArr_;
-  private short[] couponsArr_;
-  private byte[] curCountsArr_; //also acts as a stateArr: 0 empty, 255 deleted
-  private float[] invPow2SumArr_;
-  private float[] hipEstAccumArr_;
-
-  private CouponHashMap(final int keySizeBytes, final int maxCouponsPerKey) {
-    super(keySizeBytes);
+  // Arrays, held in mem_ in the order: keys, coupons, current counts, inverse power of 2 sums,
+  // HIP estimates. The current counts also act as a state array: 0 empty, 255 deleted.
+  private WritableMemory mem_;
+  private long couponsOffset_;
+  private long curCountsOffset_;
+  private long invPow2SumOffset_;
+  private long hipEstAccumOffset_;
+
+  private CouponHashMap(final int keySizeBytes, final int maxCouponsPerKey,
+      final MemoryRequestServer memReqSvr) {
+    super(keySizeBytes, memReqSvr);
     maxCouponsPerKey_ = maxCouponsPerKey;
     capacityCouponsPerKey_ = (int)(maxCouponsPerKey * INNER_LOAD_FACTOR);
     entrySizeBytes_ = keySizeBytes + (maxCouponsPerKey * Short.BYTES) + 1 + 4 + 4;
   }
 
   static CouponHashMap getInstance(final int keySizeBytes, final int maxCouponsPerKey) {
-    checkMaxCouponsPerKey(maxCouponsPerKey);
-    final int tableEntries = COUPON_MAP_MIN_NUM_ENTRIES;
+    return getInstance(keySizeBytes, maxCouponsPerKey, DEFAULT_MEM_REQ_SVR);
+  }
 
-    final CouponHashMap map = new CouponHashMap(keySizeBytes, maxCouponsPerKey);
-    map.tableEntries_ = tableEntries;
-    map.capacityEntries_ = (int)(tableEntries * COUPON_MAP_GROW_TRIGGER_FACTOR);
+  static CouponHashMap getInstance(final int keySizeBytes, final int maxCouponsPerKey,
+      final MemoryRequestServer memReqSvr) {
+    checkMaxCouponsPerKey(maxCouponsPerKey);
+    final CouponHashMap map = new CouponHashMap(keySizeBytes, maxCouponsPerKey, memReqSvr);
+    map.allocateTable(COUPON_MAP_MIN_NUM_ENTRIES);
     map.numActiveKeys_ = 0;
     map.numDeletedKeys_ = 0;
+    return map;
+  }
+
+  /**
+   * Returns a map instance from a section written by {@link #writeTo(WritableMemory, long)}.
+   * The arrays follow the section preamble in the order: keys, coupons, current counts,
+   * inverse power of 2 sums, HIP estimates.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @param memReqSvr the server of the memory of the arrays of the returned map
+   * @return a map instance
+   */
+  static CouponHashMap heapify(final Memory mem, final long offset, final int keySizeBytes,
+      final MemoryRequestServer memReqSvr) {
+    final CouponHashMap map = readSectionPreamble(mem, offset, keySizeBytes, memReqSvr);
+    final long arraysBytes =
+        getArraysBytes(map.tableEntries_, keySizeBytes, map.maxCouponsPerKey_);
+    map.mem_ = map.requestMemory(arraysBytes);
+    mem.copyTo(offset + SECTION_PREAMBLE_BYTES, map.mem_, 0, arraysBytes);
+    return map;
+  }
 
-    map.keysArr_ = new byte[tableEntries * keySizeBytes];
-    map.couponsArr_ = new short[tableEntries * maxCouponsPerKey];
-    map.curCountsArr_ = new byte[tableEntries];
-    map.invPow2SumArr_ = new float[tableEntries];
-    map.hipEstAccumArr_ = new float[tableEntries];
+  /**
+   * Returns a read-only map instance whose arrays are those of a section written by
+   * {@link #writeTo(WritableMemory, long)}, without copying them.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @return a map instance
+   */
+  static CouponHashMap wrap(final Memory mem, final long offset, final int keySizeBytes) {
+    final CouponHashMap map = readSectionPreamble(mem, offset, keySizeBytes, null);
+    map.mem_ = wrapSection(mem, offset,
+        getArraysBytes(map.tableEntries_, keySizeBytes, map.maxCouponsPerKey_));
+    return map;
+  }
+
+  // a map with the table size and counts of the section, but without memory for its arrays
+  private static CouponHashMap readSectionPreamble(final Memory mem, final long offset,
+      final int keySizeBytes, final MemoryRequestServer memReqSvr) {
+    final int tableEntries = mem.getInt(offset + TABLE_ENTRIES_INT);
+    final int maxCouponsPerKey = mem.getInt(offset + MAX_COUPONS_INT);
+    checkMaxCouponsPerKey(maxCouponsPerKey);
+    final long arraysBytes = getArraysBytes(tableEntries, keySizeBytes, maxCouponsPerKey);
+    checkSectionBytes(mem, offset, SECTION_PREAMBLE_BYTES + arraysBytes);
+    final CouponHashMap map = new CouponHashMap(keySizeBytes, maxCouponsPerKey, memReqSvr);
+    map.setTableLayout(tableEntries);
+    map.numActiveKeys_ = mem.getInt(offset + ACTIVE_ENTRIES_INT);
+    map.numDeletedKeys_ = mem.getInt(offset + DELETED_ENTRIES_INT);
     return map;
   }
 
@@ -96,34 +145,39 @@ final class CouponHashMap extends Map {
 
   @Override
   double update(final int entryIndex, final short coupon) {
-    final int couponMapArrEntryIndex = entryIndex * maxCouponsPerKey_;
+    final long couponAreaOffset = getCouponAreaOffset(entryIndex);
 
     int innerCouponIndex = (coupon & 0xFFFF) % maxCouponsPerKey_;
 
-    while (couponsArr_[couponMapArrEntryIndex + innerCouponIndex] != 0) {
-      if (couponsArr_[couponMapArrEntryIndex + innerCouponIndex] == coupon) {
-        return hipEstAccumArr_[entryIndex]; //duplicate, returns the estimate
+    short innerCoupon = mem_.getShort(couponAreaOffset + (innerCouponIndex * Short.BYTES));
+    while (innerCoupon != 0) {
+      if (innerCoupon == coupon) {
+        return getHipEstAccum(entryIndex); //duplicate, returns the estimate
       }
       innerCouponIndex = (innerCouponIndex + 1) % maxCouponsPerKey_; //linear search
+      innerCoupon = mem_.getShort(couponAreaOffset + (innerCouponIndex * Short.BYTES));
     }
-    if (((curCountsArr_[entryIndex] + 1) & BYTE_MASK) > capacityCouponsPerKey_) {
+    final int curCount = getCurCount(entryIndex);
+    if (((curCount + 1) & BYTE_MASK) > capacityCouponsPerKey_) {
       //returns the negative estimate, as signal to promote
-      return -hipEstAccumArr_[entryIndex];
+      return -getHipEstAccum(entryIndex);
     }
 
-    couponsArr_[couponMapArrEntryIndex + innerCouponIndex] = coupon; //insert
-    curCountsArr_[entryIndex]++;
+    mem_.putShort(couponAreaOffset + (innerCouponIndex * Short.BYTES), coupon); //insert
+    putCurCount(entryIndex, (byte) (curCount + 1));
     //hip +=  k/qt; qt -= 1/2^(val);
-    hipEstAccumArr_[entryIndex] += COUPON_K / invPow2SumArr_[entryIndex];
-    invPow2SumArr_[entryIndex] -= invPow2(coupon16Value(coupon));
-    return hipEstAccumArr_[entryIndex]; //returns the estimate
+    final float invPow2Sum = getInvPow2Sum(entryIndex);
+    final float hipEstAccum = getHipEstAccum(entryIndex) + (COUPON_K / invPow2Sum);
+    putHipEstAccum(entryIndex, hipEstAccum);
+    putInvPow2Sum(entryIndex, (float) (invPow2Sum - invPow2(coupon16Value(coupon))));
+    return hipEstAccum; //returns the estimate
   }
 
   @Override
   double getEstimate(final byte[] key) {
     final int index = findKey(key);
     if (index < 0) { return 0; }
-    return hipEstAccumArr_[index];
+    return getHipEstAccum(index);
   }
 
   @Override
@@ -141,7 +195,7 @@ final class CouponHashMap extends Map {
     if (entryIndex < 0) {
       throw new SketchesArgumentException("Key not found.");
     }
-    hipEstAccumArr_[entryIndex] = (float) estimate;
+    putHipEstAccum(entryIndex, (float) estimate);
   }
 
   /**
@@ -157,14 +211,15 @@ final class CouponHashMap extends Map {
     int firstDeletedIndex = -1;
     final int loopIndex = entryIndex;
     do {
-      if (curCountsArr_[entryIndex] == 0) {
+      final byte curCount = mem_.getByte(curCountsOffset_ + entryIndex);
+      if (curCount == 0) {
         return firstDeletedIndex == -1 ? ~entryIndex : ~firstDeletedIndex; // found empty or deleted
       }
-      if (curCountsArr_[entryIndex] == DELETED_KEY_MARKER) {
+      if (curCount == DELETED_KEY_MARKER) {
         if (firstDeletedIndex == -1) {
           firstDeletedIndex = entryIndex;
         }
-      } else if (Map.arraysEqual(keysArr_, entryIndex * keySizeBytes_, key, 0, keySizeBytes_)) {
+      } else if (keyEquals(mem_, (long) entryIndex * keySizeBytes_, key)) {
         return entryIndex; // found key
       }
       entryIndex = (entryIndex + getStride(hash[1], tableEntries_)) % tableEntries_;
@@ -177,10 +232,59 @@ final class CouponHashMap extends Map {
     int entryIndex = findKey(key);
     if (entryIndex < 0) { //key not found
       entryIndex = ~entryIndex;
-      if (curCountsArr_[entryIndex] == DELETED_KEY_MARKER) { // reusing slot from a deleted key
-        Arrays.fill(couponsArr_, entryIndex * maxCouponsPerKey_,
-            (entryIndex + 1) *  maxCouponsPerKey_, (short) 0);
-        curCountsArr_[entryIndex] = 0;
+      if (mem_.getByte(curCountsOffset_ + entryIndex) == DELETED_KEY_MARKER) {
+        // reusing slot from a deleted key
+        mem_.clear(getCouponAreaOffset(entryIndex), (long) maxCouponsPerKey_ * Short.BYTES);
+        putCurCount(entryIndex, (byte) 0);
+        numDeletedKeys_--;
+      }
+      if ((numActiveKeys_ + numDeletedKeys_) >= capacityEntries_) {
+        resize();
+        entryIndex = ~findKey(key);
+        assert entryIndex >= 0;
+      }
+      //insert new key
+      mem_.putByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+      //initialize HIP:  qt <- k; hip <- 0;
+      putInvPow2Sum(entryIndex, COUPON_K);
+      putHipEstAccum(entryIndex, 0);
+      numActiveKeys_++;
+    }
+    return entryIndex;
+  }
+
+  @Override
+  int findKey(final long key) {
+    final long[] hash = hash(key);
+    int entryIndex = getIndex(hash[0], tableEntries_);
+    int firstDeletedIndex = -1;
+    final int loopIndex = entryIndex;
+    do {
+      final byte curCount = mem_.getByte(curCountsOffset_ + entryIndex);
+      if (curCount == 0) {
+        return firstDeletedIndex == -1 ? ~entryIndex : ~firstDeletedIndex; // found empty or deleted
+      }
+      if (curCount == DELETED_KEY_MARKER) {
+        if (firstDeletedIndex == -1) {
+          firstDeletedIndex = entryIndex;
+        }
+      } else if (mem_.getLong((long) entryIndex * Long.BYTES) == key) {
+        return entryIndex; // found key
+      }
+      entryIndex = (entryIndex + getStride(hash[1], tableEntries_)) % tableEntries_;
+    } while (entryIndex != loopIndex);
+    throw new SketchesArgumentException("Key not found and no empty slots!");
+  }
+
+  @Override
+  int findOrInsertKey(final long key) {
+    int entryIndex = findKey(key);
+    if (entryIndex < 0) { //key not found
+      entryIndex = ~entryIndex;
+      if (mem_.getByte(curCountsOffset_ + entryIndex) == DELETED_KEY_MARKER) {
+        // reusing slot from a deleted key
+        mem_.clear(getCouponAreaOffset(entryIndex), (long) maxCouponsPerKey_ * Short.BYTES);
+        putCurCount(entryIndex, (byte) 0);
         numDeletedKeys_--;
       }
       if ((numActiveKeys_ + numDeletedKeys_) >= capacityEntries_) {
@@ -189,10 +293,10 @@ final class CouponHashMap extends Map {
         assert entryIndex >= 0;
       }
       //insert new key
-      System.arraycopy(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_);
+      mem_.putLong((long) entryIndex * Long.BYTES, key);
       //initialize HIP:  qt <- k; hip <- 0;
-      invPow2SumArr_[entryIndex] = COUPON_K;
-      hipEstAccumArr_[entryIndex] = 0;
+      putInvPow2Sum(entryIndex, COUPON_K);
+      putHipEstAccum(entryIndex, 0);
       numActiveKeys_++;
     }
     return entryIndex;
@@ -200,7 +304,7 @@ final class CouponHashMap extends Map {
 
   @Override
   void deleteKey(final int entryIndex) {
-    curCountsArr_[entryIndex] = DELETED_KEY_MARKER;
+    putCurCount(entryIndex, DELETED_KEY_MARKER);
     numActiveKeys_--;
     numDeletedKeys_++;
     if ((numActiveKeys_ > COUPON_MAP_MIN_NUM_ENTRIES)
@@ -209,9 +313,35 @@ final class CouponHashMap extends Map {
     }
   }
 
+  @Override
+  boolean isActive(final int entryIndex) {
+    final byte curCount = mem_.getByte(curCountsOffset_ + entryIndex);
+    return (curCount != 0) && (curCount != DELETED_KEY_MARKER);
+  }
+
+  @Override
+  void getKey(final int entryIndex, final byte[] key) {
+    mem_.getByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+  }
+
+  @Override
+  double getEntryEstimate(final int entryIndex) {
+    return getHipEstAccum(entryIndex);
+  }
+
+  // Each coupon reduces the inverse power of 2 sum by at most 1/2, so the HIP increment of the
+  // i-th coupon is at most k / (k - i / 2). Promotions carry the estimate over, so this bounds
+  // the estimate of a key with at most capacityCouponsPerKey_ coupons, with a margin for the
+  // rounding of the float registers.
+  @Override
+  double getMaxEntryEstimate() {
+    final double maxCoupons = capacityCouponsPerKey_;
+    return 1.001 * maxCoupons * COUPON_K / (COUPON_K - (maxCoupons / 2));
+  }
+
   @Override
   CouponsIterator getCouponsIterator(final int entryIndex) {
-    return new CouponsIterator(couponsArr_, entryIndex * maxCouponsPerKey_, maxCouponsPerKey_);
+    return new CouponsIterator(mem_, getCouponAreaOffset(entryIndex), maxCouponsPerKey_);
   }
 
   @Override
@@ -236,11 +366,7 @@ final class CouponHashMap extends Map {
 
   @Override
   long getMemoryUsageBytes() {
-    final long arrays = keysArr_.length
-        + ((long) couponsArr_.length * Short.BYTES)
-        + curCountsArr_.length
-        + ((long) invPow2SumArr_.length * Float.BYTES)
-        + ((long) hipEstAccumArr_.length * Float.BYTES);
+    final long arrays = getArraysBytes(tableEntries_, keySizeBytes_, maxCouponsPerKey_);
     final long other = 4 * 5;
     return arrays + other;
   }
@@ -265,6 +391,25 @@ final class CouponHashMap extends Map {
     return capacityCouponsPerKey_;
   }
 
+  @Override
+  long getSerializedSizeBytes() {
+    return SECTION_PREAMBLE_BYTES + getArraysBytes(tableEntries_, keySizeBytes_, maxCouponsPerKey_);
+  }
+
+  @Override
+  void writeTo(final WritableMemory mem, final long offset) {
+    writeSectionPreamble(mem, offset, COUPON_HASH_MAP_ID, tableEntries_, maxCouponsPerKey_,
+        numActiveKeys_, numDeletedKeys_);
+    final long arraysBytes = getArraysBytes(tableEntries_, keySizeBytes_, maxCouponsPerKey_);
+    mem_.copyTo(0, mem, offset + SECTION_PREAMBLE_BYTES, arraysBytes);
+  }
+
+  @Override
+  void close() {
+    closeMemory(mem_, null);
+    mem_ = null;
+  }
+
   private static final void checkMaxCouponsPerKey(final int maxCouponsPerKey) {
     checkIfPowerOf2(maxCouponsPerKey, "maxCouponsPerKey");
     final int cpk = maxCouponsPerKey;
@@ -275,41 +420,38 @@ final class CouponHashMap extends Map {
   }
 
   private void resize() {
-    final byte[] oldKeysArr = keysArr_;
-    final short[] oldCouponMapArr = couponsArr_;
-    final byte[] oldCurCountsArr = curCountsArr_;
-    final float[] oldInvPow2SumArr = invPow2SumArr_;
-    final float[] oldHipEstAccumArr = hipEstAccumArr_;
+    final WritableMemory oldMem = mem_;
+    final long oldCouponsOffset = couponsOffset_;
+    final long oldCurCountsOffset = curCountsOffset_;
+    final long oldInvPow2SumOffset = invPow2SumOffset_;
+    final long oldHipEstAccumOffset = hipEstAccumOffset_;
     final int oldNumEntries = tableEntries_;
-    tableEntries_ = Math.max(
+    allocateTable(Math.max(
       nextPrime((int) (numActiveKeys_ / COUPON_MAP_TARGET_FILL_FACTOR)),
       COUPON_MAP_MIN_NUM_ENTRIES
-    );
-    capacityEntries_ = (int)(tableEntries_ * COUPON_MAP_GROW_TRIGGER_FACTOR);
-    keysArr_ = new byte[tableEntries_ * keySizeBytes_];
-    couponsArr_ = new short[tableEntries_ * maxCouponsPerKey_];
-    curCountsArr_ = new byte[tableEntries_];
-    invPow2SumArr_ = new float[tableEntries_];
-    hipEstAccumArr_ = new float[tableEntries_];
+    ));
     numActiveKeys_ = 0;
     numDeletedKeys_ = 0;
+    final long couponAreaBytes = (long) maxCouponsPerKey_ * Short.BYTES;
+    final byte[] key = new byte[keySizeBytes_];
     for (int i = 0; i < oldNumEntries; i++) {
-      if ((oldCurCountsArr[i] != 0) && (oldCurCountsArr[i] != DELETED_KEY_MARKER)) {
+      final byte curCount = oldMem.getByte(oldCurCountsOffset + i);
+      if ((curCount != 0) && (curCount != DELETED_KEY_MARKER)) {
         //extract an old valid key
-        final byte[] key =
-            Arrays.copyOfRange(oldKeysArr, i * keySizeBytes_, (i * keySizeBytes_) + keySizeBytes_);
+        oldMem.getByteArray((long) i * keySizeBytes_, key, 0, keySizeBytes_);
         //insert the key and get its index
         final int index = insertKey(key);
         //copy the coupons array into that index
-        System.arraycopy(oldCouponMapArr, i * maxCouponsPerKey_, couponsArr_,
-            index * maxCouponsPerKey_, maxCouponsPerKey_);
+        oldMem.copyTo(oldCouponsOffset + (i * couponAreaBytes), mem_, getCouponAreaOffset(index),
+            couponAreaBytes);
         //transfer the count
-        curCountsArr_[index] = oldCurCountsArr[i];
+        putCurCount(index, curCount);
         //transfer the HIP registers
-        invPow2SumArr_[index] = oldInvPow2SumArr[i];
-        hipEstAccumArr_[index] = oldHipEstAccumArr[i];
+        putInvPow2Sum(index, oldMem.getFloat(oldInvPow2SumOffset + ((long) i * Float.BYTES)));
+        putHipEstAccum(index, oldMem.getFloat(oldHipEstAccumOffset + ((long) i * Float.BYTES)));
       }
     }
+    closeMemory(oldMem, mem_);
   }
 
   // for internal use by resize, no resize check and no deleted key check here
@@ -319,8 +461,8 @@ final class CouponHashMap extends Map {
     int entryIndex = getIndex(hash[0], tableEntries_);
     final int loopIndex = entryIndex;
     do {
-      if (curCountsArr_[entryIndex] == 0) {
-        System.arraycopy(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_);
+      if (mem_.getByte(curCountsOffset_ + entryIndex) == 0) {
+        mem_.putByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
         numActiveKeys_++;
         return entryIndex;
       }
@@ -329,4 +471,57 @@ final class CouponHashMap extends Map {
     throw new SketchesArgumentException("Key not found and no empty slots!");
   }
 
+  private long getCouponAreaOffset(final int entryIndex) {
+    return couponsOffset_ + ((long) entryIndex * maxCouponsPerKey_ * Short.BYTES);
+  }
+
+  private int getCurCount(final int entryIndex) {
+    return mem_.getByte(curCountsOffset_ + entryIndex) & BYTE_MASK;
+  }
+
+  private void putCurCount(final int entryIndex, final byte curCount) {
+    mem_.putByte(curCountsOffset_ + entryIndex, curCount);
+  }
+
+  private float getInvPow2Sum(final int entryIndex) {
+    return mem_.getFloat(invPow2SumOffset_ + ((long) entryIndex * Float.BYTES));
+  }
+
+  private void putInvPow2Sum(final int entryIndex, final float invPow2Sum) {
+    mem_.putFloat(invPow2SumOffset_ + ((long) entryIndex * Float.BYTES), invPow2Sum);
+  }
+
+  private float getHipEstAccum(final int entryIndex) {
+    return mem_.getFloat(hipEstAccumOffset_ + ((long) entryIndex * Float.BYTES));
+  }
+
+  private void putHipEstAccum(final int entryIndex, final float hipEstAccum) {
+    mem_.putFloat(hipEstAccumOffset_ + ((long) entryIndex * Float.BYTES), hipEstAccum);
+  }
+
+  // sets the table size and allocates the arrays, leaving the counts of keys unchanged
+  private void allocateTable(final int tableEntries) {
+    setTableLayout(tableEntries);
+    mem_ = requestMemory(getArraysBytes(tableEntries, keySizeBytes_, maxCouponsPerKey_));
+  }
+
+  // sets the table size and the offsets of the arrays
+  private void setTableLayout(final int tableEntries) {
+    tableEntries_ = tableEntries;
+    capacityEntries_ = (int)(tableEntries * COUPON_MAP_GROW_TRIGGER_FACTOR);
+    couponsOffset_ = align8((long) tableEntries * keySizeBytes_);
+    curCountsOffset_ = couponsOffset_
+        + align8((long) tableEntries * maxCouponsPerKey_ * Short.BYTES);
+    invPow2SumOffset_ = curCountsOffset_ + align8(tableEntries);
+    hipEstAccumOffset_ = invPow2SumOffset_ + align8((long) tableEntries * Float.BYTES);
+  }
+
+  private static long getArraysBytes(final int tableEntries, final int keySizeBytes,
+      final int maxCouponsPerKey) {
+    return align8((long) tableEntries * keySizeBytes)
+        + align8((long) tableEntries * maxCouponsPerKey * Short.BYTES)
+        + align8(tableEntries)
+        + (2 * align8((long) tableEntries * Float.BYTES));
+  }
+
 }
@@ -19,8 +19,9 @@
 
 package com.yahoo.sketches.hllmap;
 
-import java.util.Arrays;
-
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.SketchesArgumentException;
 import com.yahoo.sketches.hash.MurmurHash3;
 
@@ -46,9 +47,9 @@ final class CouponTraverseMap extends Map {
   private int numDeletedKeys_;
   private double entrySizeBytes_;
 
-  //Arrays
-  private byte[] keysArr_;
-  private short[] couponsArr_;
+  // Arrays, held in mem_ in the order: keys, coupons, state
+  private WritableMemory mem_;
+  private long couponsOffset_;
 
   /**
    * <ul><li>State: 0: Empty always, don't need to look at 1st coupon. Coupons could be dirty.</li>
@@ -56,24 +57,76 @@ final class CouponTraverseMap extends Map {
    * If first coupon != 0 means valid entry; first coupon == 0: dirty (we set to 0 when deleted)</li>
    * </ul>
    */
-  private byte[] stateArr_;
+  private long stateOffset_;
 
-  private CouponTraverseMap(final int keySizeBytes, final int maxCouponsPerKey) {
-    super(keySizeBytes);
+  private CouponTraverseMap(final int keySizeBytes, final int maxCouponsPerKey,
+      final MemoryRequestServer memReqSvr) {
+    super(keySizeBytes, memReqSvr);
     maxCouponsPerKey_ = maxCouponsPerKey;
   }
 
   static CouponTraverseMap getInstance(final int keySizeBytes, final int maxCouponsPerKey) {
-    final CouponTraverseMap map = new CouponTraverseMap(keySizeBytes, maxCouponsPerKey);
-    map.tableEntries_ = COUPON_MAP_MIN_NUM_ENTRIES;
-    map.capacityEntries_ = (int)(map.tableEntries_ * COUPON_MAP_GROW_TRIGGER_FACTOR);
+    return getInstance(keySizeBytes, maxCouponsPerKey, DEFAULT_MEM_REQ_SVR);
+  }
+
+  static CouponTraverseMap getInstance(final int keySizeBytes, final int maxCouponsPerKey,
+      final MemoryRequestServer memReqSvr) {
+    final CouponTraverseMap map = new CouponTraverseMap(keySizeBytes, maxCouponsPerKey, memReqSvr);
+    map.allocateTable(COUPON_MAP_MIN_NUM_ENTRIES);
     map.numActiveKeys_ = 0;
     map.numDeletedKeys_ = 0;
-    map.entrySizeBytes_ = updateEntrySizeBytes(map.tableEntries_, keySizeBytes, maxCouponsPerKey);
+    return map;
+  }
 
-    map.keysArr_ = new byte[COUPON_MAP_MIN_NUM_ENTRIES * keySizeBytes];
-    map.couponsArr_ = new short[COUPON_MAP_MIN_NUM_ENTRIES * maxCouponsPerKey];
-    map.stateArr_ = new byte[(int) Math.ceil(COUPON_MAP_MIN_NUM_ENTRIES / 8.0)];
+  /**
+   * Returns a map instance from a section written by {@link #writeTo(WritableMemory, long)}.
+   * The arrays follow the section preamble in the order: keys, coupons, state.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @param memReqSvr the server of the memory of the arrays of the returned map
+   * @return a map instance
+   */
+  static CouponTraverseMap heapify(final Memory mem, final long offset, final int keySizeBytes,
+      final MemoryRequestServer memReqSvr) {
+    final CouponTraverseMap map = readSectionPreamble(mem, offset, keySizeBytes, memReqSvr);
+    final long arraysBytes =
+        getArraysBytes(map.tableEntries_, keySizeBytes, map.maxCouponsPerKey_);
+    map.mem_ = map.requestMemory(arraysBytes);
+    mem.copyTo(offset + SECTION_PREAMBLE_BYTES, map.mem_, 0, arraysBytes);
+    return map;
+  }
+
+  /**
+   * Returns a read-only map instance whose arrays are those of a section written by
+   * {@link #writeTo(WritableMemory, long)}, without copying them.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @return a map instance
+   */
+  static CouponTraverseMap wrap(final Memory mem, final long offset, final int keySizeBytes) {
+    final CouponTraverseMap map = readSectionPreamble(mem, offset, keySizeBytes, null);
+    map.mem_ = wrapSection(mem, offset,
+        getArraysBytes(map.tableEntries_, keySizeBytes, map.maxCouponsPerKey_));
+    return map;
+  }
+
+  // a map with the table size and counts of the section, but without memory for its arrays
+  private static CouponTraverseMap readSectionPreamble(final Memory mem, final long offset,
+      final int keySizeBytes, final MemoryRequestServer memReqSvr) {
+    final int tableEntries = mem.getInt(offset + TABLE_ENTRIES_INT);
+    final int maxCouponsPerKey = mem.getInt(offset + MAX_COUPONS_INT);
+    if ((maxCouponsPerKey < 1) || (maxCouponsPerKey > 8)) {
+      throw new SketchesArgumentException("Possible corruption: max coupons per key: "
+          + maxCouponsPerKey);
+    }
+    final long arraysBytes = getArraysBytes(tableEntries, keySizeBytes, maxCouponsPerKey);
+    checkSectionBytes(mem, offset, SECTION_PREAMBLE_BYTES + arraysBytes);
+    final CouponTraverseMap map = new CouponTraverseMap(keySizeBytes, maxCouponsPerKey, memReqSvr);
+    map.setTableLayout(tableEntries);
+    map.numActiveKeys_ = mem.getInt(offset + ACTIVE_ENTRIES_INT);
+    map.numDeletedKeys_ = mem.getInt(offset + DELETED_ENTRIES_INT);
     return map;
   }
 
@@ -85,15 +138,16 @@ final class CouponTraverseMap extends Map {
 
   @Override
   double update(final int entryIndex, final short value) {
-    final int offset = entryIndex * maxCouponsPerKey_;
+    final long offset = getCouponAreaOffset(entryIndex);
     boolean wasFound = false;
     for (int i = 0; i < maxCouponsPerKey_; i++) {
-      if (couponsArr_[offset + i] == 0) {
+      final short coupon = mem_.getShort(offset + (i * Short.BYTES));
+      if (coupon == 0) {
         if (wasFound) { return i; }
-        couponsArr_[offset + i] = value;
+        mem_.putShort(offset + (i * Short.BYTES), value);
         return i + 1;
       }
-      if (couponsArr_[offset + i] == value) {
+      if (coupon == value) {
         wasFound = true;
       }
     }
@@ -131,12 +185,12 @@ final class CouponTraverseMap extends Map {
     int firstDeletedIndex = -1;
     final int loopIndex = entryIndex;
     do {
-      if (isBitClear(stateArr_, entryIndex)) {
+      if (isBitClear(mem_, stateOffset_, entryIndex)) {
         return firstDeletedIndex == -1 ? ~entryIndex : ~firstDeletedIndex; // found empty or deleted
       }
-      if (couponsArr_[entryIndex * maxCouponsPerKey_] == 0) { //found deleted
+      if (mem_.getShort(getCouponAreaOffset(entryIndex)) == 0) { //found deleted
         if (firstDeletedIndex == -1) { firstDeletedIndex = entryIndex; }
-      } else if (Map.arraysEqual(keysArr_, entryIndex * keySizeBytes_, key, 0, keySizeBytes_)) {
+      } else if (keyEquals(mem_, (long) entryIndex * keySizeBytes_, key)) {
         return entryIndex; // found key
       }
       entryIndex = (entryIndex + getStride(hash[1], tableEntries_)) % tableEntries_;
@@ -149,7 +203,7 @@ final class CouponTraverseMap extends Map {
     int entryIndex = findKey(key);
     if (entryIndex < 0) {
       entryIndex = ~entryIndex;
-      if (isBitSet(stateArr_, entryIndex)) { // reusing slot from a deleted key
+      if (isBitSet(mem_, stateOffset_, entryIndex)) { // reusing slot from a deleted key
         clearCouponArea(entryIndex);
         numDeletedKeys_--;
       }
@@ -158,8 +212,49 @@ final class CouponTraverseMap extends Map {
         entryIndex = ~findKey(key);
         assert entryIndex >= 0;
       }
-      System.arraycopy(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_);
-      setBit(stateArr_, entryIndex);
+      mem_.putByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+      setBit(mem_, stateOffset_, entryIndex);
+      numActiveKeys_++;
+    }
+    return entryIndex;
+  }
+
+  @Override
+  int findKey(final long key) {
+    final long[] hash = hash(key);
+    int entryIndex = getIndex(hash[0], tableEntries_);
+    int firstDeletedIndex = -1;
+    final int loopIndex = entryIndex;
+    do {
+      if (isBitClear(mem_, stateOffset_, entryIndex)) {
+        return firstDeletedIndex == -1 ? ~entryIndex : ~firstDeletedIndex; // found empty or deleted
+      }
+      if (mem_.getShort(getCouponAreaOffset(entryIndex)) == 0) { //found deleted
+        if (firstDeletedIndex == -1) { firstDeletedIndex = entryIndex; }
+      } else if (mem_.getLong((long) entryIndex * Long.BYTES) == key) {
+        return entryIndex; // found key
+      }
+      entryIndex = (entryIndex + getStride(hash[1], tableEntries_)) % tableEntries_;
+    } while (entryIndex != loopIndex);
+    throw new SketchesArgumentException("Key not found and no empty slots!");
+  }
+
+  @Override
+  int findOrInsertKey(final long key) {
+    int entryIndex = findKey(key);
+    if (entryIndex < 0) {
+      entryIndex = ~entryIndex;
+      if (isBitSet(mem_, stateOffset_, entryIndex)) { // reusing slot from a deleted key
+        clearCouponArea(entryIndex);
+        numDeletedKeys_--;
+      }
+      if ((numActiveKeys_ + numDeletedKeys_ + 1) > capacityEntries_) {
+        resize();
+        entryIndex = ~findKey(key);
+        assert entryIndex >= 0;
+      }
+      mem_.putLong((long) entryIndex * Long.BYTES, key);
+      setBit(mem_, stateOffset_, entryIndex);
       numActiveKeys_++;
     }
     return entryIndex;
@@ -167,7 +262,7 @@ final class CouponTraverseMap extends Map {
 
   @Override
   void deleteKey(final int entryIndex) {
-    couponsArr_[entryIndex * maxCouponsPerKey_] = 0;
+    mem_.putShort(getCouponAreaOffset(entryIndex), (short) 0);
     numActiveKeys_--;
     numDeletedKeys_++;
     if ((numActiveKeys_ > COUPON_MAP_MIN_NUM_ENTRIES)
@@ -177,18 +272,39 @@ final class CouponTraverseMap extends Map {
   }
 
   private int getCouponCount(final int entryIndex) {
-    final int offset = entryIndex * maxCouponsPerKey_;
+    final long offset = getCouponAreaOffset(entryIndex);
     for (int i = 0; i < maxCouponsPerKey_; i++) {
-      if (couponsArr_[offset + i] == 0) {
+      if (mem_.getShort(offset + (i * Short.BYTES)) == 0) {
         return i;
       }
     }
     return maxCouponsPerKey_;
   }
 
+  @Override
+  boolean isActive(final int entryIndex) {
+    return isBitSet(mem_, stateOffset_, entryIndex)
+        && (mem_.getShort(getCouponAreaOffset(entryIndex)) != 0);
+  }
+
+  @Override
+  void getKey(final int entryIndex, final byte[] key) {
+    mem_.getByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+  }
+
+  @Override
+  double getEntryEstimate(final int entryIndex) {
+    return getCouponCount(entryIndex);
+  }
+
+  @Override
+  double getMaxEntryEstimate() {
+    return maxCouponsPerKey_;
+  }
+
   @Override
   CouponsIterator getCouponsIterator(final int entryIndex) {
-    return new CouponsIterator(couponsArr_, entryIndex * maxCouponsPerKey_, maxCouponsPerKey_);
+    return new CouponsIterator(mem_, getCouponAreaOffset(entryIndex), maxCouponsPerKey_);
   }
 
   @Override
@@ -213,9 +329,8 @@ final class CouponTraverseMap extends Map {
 
   @Override
   long getMemoryUsageBytes() {
-    return keysArr_.length
-        + ((long)couponsArr_.length * Short.BYTES)
-        + stateArr_.length + (4L * Integer.BYTES);
+    return getArraysBytes(tableEntries_, keySizeBytes_, maxCouponsPerKey_)
+        + (4L * Integer.BYTES);
   }
 
   @Override
@@ -238,34 +353,49 @@ final class CouponTraverseMap extends Map {
     return maxCouponsPerKey_;
   }
 
+  @Override
+  long getSerializedSizeBytes() {
+    return SECTION_PREAMBLE_BYTES + getArraysBytes(tableEntries_, keySizeBytes_, maxCouponsPerKey_);
+  }
+
+  @Override
+  void writeTo(final WritableMemory mem, final long offset) {
+    writeSectionPreamble(mem, offset, COUPON_TRAVERSE_MAP_ID, tableEntries_, maxCouponsPerKey_,
+        numActiveKeys_, numDeletedKeys_);
+    final long arraysBytes = getArraysBytes(tableEntries_, keySizeBytes_, maxCouponsPerKey_);
+    mem_.copyTo(0, mem, offset + SECTION_PREAMBLE_BYTES, arraysBytes);
+  }
+
+  @Override
+  void close() {
+    closeMemory(mem_, null);
+    mem_ = null;
+  }
+
   private void resize() { //can grow or shrink
-    final byte[] oldKeysArr = keysArr_;
-    final short[] oldCouponsArr = couponsArr_;
-    final byte[] oldStateArr = stateArr_;
+    final WritableMemory oldMem = mem_;
+    final long oldCouponsOffset = couponsOffset_;
+    final long oldStateOffset = stateOffset_;
     final int oldSizeKeys = tableEntries_;
-    tableEntries_ = Math.max(
+    allocateTable(Math.max(
       nextPrime((int) (numActiveKeys_ / COUPON_MAP_TARGET_FILL_FACTOR)),
       COUPON_MAP_MIN_NUM_ENTRIES
-    );
-    capacityEntries_ = (int)(tableEntries_ * COUPON_MAP_GROW_TRIGGER_FACTOR);
+    ));
     numActiveKeys_ = 0;
     numDeletedKeys_ = 0;
-    entrySizeBytes_ = updateEntrySizeBytes(tableEntries_, keySizeBytes_, maxCouponsPerKey_);
-
-    keysArr_ = new byte[tableEntries_ * keySizeBytes_];
-    couponsArr_ = new short[tableEntries_ * maxCouponsPerKey_];
-    stateArr_ = new byte[(int) Math.ceil(tableEntries_ / 8.0)];
 
     //move data
+    final long couponAreaBytes = (long) maxCouponsPerKey_ * Short.BYTES;
+    final byte[] key = new byte[keySizeBytes_];
     for (int i = 0; i < oldSizeKeys; i++) {
-      if (isBitSet(oldStateArr, i) && (oldCouponsArr[i * maxCouponsPerKey_] != 0)) {
-        final byte[] key =
-            Arrays.copyOfRange(oldKeysArr, i * keySizeBytes_, (i * keySizeBytes_) + keySizeBytes_);
+      final long oldCouponAreaOffset = oldCouponsOffset + (i * couponAreaBytes);
+      if (isBitSet(oldMem, oldStateOffset, i) && (oldMem.getShort(oldCouponAreaOffset) != 0)) {
+        oldMem.getByteArray((long) i * keySizeBytes_, key, 0, keySizeBytes_);
         final int index = insertKey(key);
-        System.arraycopy(oldCouponsArr, i * maxCouponsPerKey_, couponsArr_,
-            index * maxCouponsPerKey_, maxCouponsPerKey_);
+        oldMem.copyTo(oldCouponAreaOffset, mem_, getCouponAreaOffset(index), couponAreaBytes);
       }
     }
+    closeMemory(oldMem, mem_);
   }
 
   // for internal use during resize, so no resize check here
@@ -274,9 +404,9 @@ final class CouponTraverseMap extends Map {
     int entryIndex = getIndex(hash[0], tableEntries_);
     final int loopIndex = entryIndex;
     do {
-      if (isBitClear(stateArr_, entryIndex)) {
-        System.arraycopy(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_);
-        setBit(stateArr_, entryIndex);
+      if (isBitClear(mem_, stateOffset_, entryIndex)) {
+        mem_.putByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+        setBit(mem_, stateOffset_, entryIndex);
         numActiveKeys_++;
         return entryIndex;
       }
@@ -286,10 +416,33 @@ final class CouponTraverseMap extends Map {
   }
 
   private void clearCouponArea(final int entryIndex) {
-    final int couponAreaIndex = entryIndex * maxCouponsPerKey_;
-    for (int i = 0; i < maxCouponsPerKey_; i++) {
-      couponsArr_[couponAreaIndex + i] = 0;
-    }
+    mem_.clear(getCouponAreaOffset(entryIndex), (long) maxCouponsPerKey_ * Short.BYTES);
+  }
+
+  private long getCouponAreaOffset(final int entryIndex) {
+    return couponsOffset_ + ((long) entryIndex * maxCouponsPerKey_ * Short.BYTES);
+  }
+
+  // sets the table size and allocates the arrays, leaving the counts of keys unchanged
+  private void allocateTable(final int tableEntries) {
+    setTableLayout(tableEntries);
+    mem_ = requestMemory(getArraysBytes(tableEntries, keySizeBytes_, maxCouponsPerKey_));
+  }
+
+  // sets the table size and the offsets of the arrays
+  private void setTableLayout(final int tableEntries) {
+    tableEntries_ = tableEntries;
+    capacityEntries_ = (int)(tableEntries * COUPON_MAP_GROW_TRIGGER_FACTOR);
+    entrySizeBytes_ = updateEntrySizeBytes(tableEntries, keySizeBytes_, maxCouponsPerKey_);
+    couponsOffset_ = align8((long) tableEntries * keySizeBytes_);
+    stateOffset_ = couponsOffset_ + align8((long) tableEntries * maxCouponsPerKey_ * Short.BYTES);
+  }
+
+  private static long getArraysBytes(final int tableEntries, final int keySizeBytes,
+      final int maxCouponsPerKey) {
+    return align8((long) tableEntries * keySizeBytes)
+        + align8((long) tableEntries * maxCouponsPerKey * Short.BYTES)
+        + align8((tableEntries + 7) / 8);
   }
 
   private static final double updateEntrySizeBytes(final int tableEntries, final int keySizeBytes,
@@ -19,6 +19,8 @@
 
 package com.yahoo.sketches.hllmap;
 
+import com.yahoo.memory.Memory;
+
 /**
  * Common iterator class for maps that need one.
  *
@@ -26,15 +28,21 @@ package com.yahoo.sketches.hllmap;
  */
 class CouponsIterator {
 
-  private final int offset_;
+  private final long offsetBytes_;
   private final int maxEntries_;
-  private final short[] couponsArr_;
+  private final Memory mem_;
   private int index_;
 
-  CouponsIterator(final short[] couponsArr, final int offset, final int maxEntries) {
-    offset_ = offset;
+  /**
+   * Constructs an iterator over the given number of coupons stored in the given memory
+   * @param mem the memory holding the coupons
+   * @param offsetBytes the offset in bytes of the first coupon
+   * @param maxEntries the number of coupons to iterate over, including empty ones
+   */
+  CouponsIterator(final Memory mem, final long offsetBytes, final int maxEntries) {
+    offsetBytes_ = offsetBytes;
     maxEntries_ = maxEntries;
-    couponsArr_ = couponsArr;
+    mem_ = mem;
     index_ = -1;
   }
 
@@ -45,7 +53,7 @@ class CouponsIterator {
   boolean next() {
     index_++;
     while (index_ < maxEntries_) {
-      if (couponsArr_[offset_ + index_] != 0) { return true; }
+      if (getValue() != 0) { return true; }
       index_++;
     }
     return false;
@@ -56,7 +64,7 @@ class CouponsIterator {
    * @return the value at the current index.
    */
   short getValue() {
-    return couponsArr_[offset_ + index_];
+    return mem_.getShort(offsetBytes_ + ((long) index_ * Short.BYTES));
   }
 
 }
@@ -23,8 +23,9 @@ import static com.yahoo.sketches.Util.invPow2;
 import static java.lang.Math.log;
 import static java.lang.Math.sqrt;
 
-import java.util.Arrays;
-
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.SketchesArgumentException;
 import com.yahoo.sketches.hash.MurmurHash3;
 
@@ -57,41 +58,88 @@ final class HllMap extends Map {
   private float growthFactor_;    //e.g., 1.2 to 2.0
   private double entrySizeBytes_;
 
-  //Arrays
-  private byte[] keysArr_; //keys of zero are allowed
-  private long[] arrOfHllArr_;
-  private double[] invPow2SumHiArr_;
-  private double[] invPow2SumLoArr_;
-  private double[] hipEstAccumArr_;
-  private byte[] stateArr_;
+  // Arrays, held in mem_ in the order: keys, HLL arrays, high and low inverse power of 2 sums,
+  // HIP estimates, state. Keys of zero are allowed.
+  private WritableMemory mem_;
+  private long hllArrOffset_;
+  private long invPow2SumHiOffset_;
+  private long invPow2SumLoOffset_;
+  private long hipEstAccumOffset_;
+  private long stateOffset_;
 
   /**
    * Private constructor used to set all finals
    * @param keySizeBytes size of key in bytes
    * @param k size of HLL sketch
+   * @param memReqSvr the server of the memory of the arrays
    */
-  private HllMap(final int keySizeBytes, final int k) {
-    super(keySizeBytes);
+  private HllMap(final int keySizeBytes, final int k, final MemoryRequestServer memReqSvr) {
+    super(keySizeBytes, memReqSvr);
     k_ = k;
     hllArrLongs_ = (k / 10) + 1;
   }
 
   static HllMap getInstance(final int keySizeBytes, final int k) {
-    final int tableEntries = HLL_INIT_NUM_ENTRIES;
+    return getInstance(keySizeBytes, k, DEFAULT_MEM_REQ_SVR);
+  }
 
-    final HllMap map = new HllMap(keySizeBytes, k);
-    map.tableEntries_ = tableEntries;
-    map.capacityEntries_ = (int)(tableEntries * LOAD_FACTOR);
+  static HllMap getInstance(final int keySizeBytes, final int k,
+      final MemoryRequestServer memReqSvr) {
+    final HllMap map = new HllMap(keySizeBytes, k, memReqSvr);
+    map.allocateTable(HLL_INIT_NUM_ENTRIES);
     map.curCountEntries_ = 0;
     map.growthFactor_ = HLL_RESIZE_FACTOR;
-    map.entrySizeBytes_ = updateEntrySizeBytes(map.tableEntries_, keySizeBytes, map.hllArrLongs_);
-
-    map.keysArr_ = new byte[tableEntries * map.keySizeBytes_];
-    map.arrOfHllArr_ = new long[tableEntries * map.hllArrLongs_];
-    map.invPow2SumHiArr_ = new double[tableEntries];
-    map.invPow2SumLoArr_ = new double[tableEntries];
-    map.hipEstAccumArr_ = new double[tableEntries];
-    map.stateArr_ = new byte[(int) Math.ceil(tableEntries / 8.0)];
+    return map;
+  }
+
+  /**
+   * Returns a map instance from a section written by {@link #writeTo(WritableMemory, long)}.
+   * The arrays follow the section preamble in the order: keys, HLL arrays, high and low inverse
+   * power of 2 sums, HIP estimates, state.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @param memReqSvr the server of the memory of the arrays of the returned map
+   * @return a map instance
+   */
+  static HllMap heapify(final Memory mem, final long offset, final int keySizeBytes,
+      final MemoryRequestServer memReqSvr) {
+    final HllMap map = readSectionPreamble(mem, offset, keySizeBytes, memReqSvr);
+    final long arraysBytes = getArraysBytes(map.tableEntries_, keySizeBytes, map.hllArrLongs_);
+    map.mem_ = map.requestMemory(arraysBytes);
+    mem.copyTo(offset + SECTION_PREAMBLE_BYTES, map.mem_, 0, arraysBytes);
+    return map;
+  }
+
+  /**
+   * Returns a read-only map instance whose arrays are those of a section written by
+   * {@link #writeTo(WritableMemory, long)}, without copying them.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @return a map instance
+   */
+  static HllMap wrap(final Memory mem, final long offset, final int keySizeBytes) {
+    final HllMap map = readSectionPreamble(mem, offset, keySizeBytes, null);
+    map.mem_ = wrapSection(mem, offset,
+        getArraysBytes(map.tableEntries_, keySizeBytes, map.hllArrLongs_));
+    return map;
+  }
+
+  // a map with the table size and counts of the section, but without memory for its arrays
+  private static HllMap readSectionPreamble(final Memory mem, final long offset,
+      final int keySizeBytes, final MemoryRequestServer memReqSvr) {
+    final int tableEntries = mem.getInt(offset + TABLE_ENTRIES_INT);
+    final int k = mem.getInt(offset + MAX_COUPONS_INT);
+    if ((k < 16) || (k > 1024) || ((k & (k - 1)) != 0)) {
+      throw new SketchesArgumentException("Possible corruption: HLL k: " + k);
+    }
+    final HllMap map = new HllMap(keySizeBytes, k, memReqSvr);
+    final long arraysBytes = getArraysBytes(tableEntries, keySizeBytes, map.hllArrLongs_);
+    checkSectionBytes(mem, offset, SECTION_PREAMBLE_BYTES + arraysBytes);
+    map.setTableLayout(tableEntries);
+    map.curCountEntries_ = mem.getInt(offset + ACTIVE_ENTRIES_INT);
+    map.growthFactor_ = HLL_RESIZE_FACTOR;
     return map;
   }
 
@@ -104,7 +152,7 @@ final class HllMap extends Map {
   @Override
   double update(final int entryIndex, final short coupon) {
     updateHll(entryIndex, coupon); //update HLL array, updates HIP
-    return hipEstAccumArr_[entryIndex];
+    return getDouble(hipEstAccumOffset_, entryIndex);
   }
 
   @Override
@@ -114,7 +162,7 @@ final class HllMap extends Map {
     if (entryIndex < 0) {
       return 0;
     }
-    return hipEstAccumArr_[entryIndex];
+    return getDouble(hipEstAccumOffset_, entryIndex);
   }
 
   @Override
@@ -129,7 +177,7 @@ final class HllMap extends Map {
 
   @Override
   void updateEstimate(final int entryIndex, final double estimate) {
-    hipEstAccumArr_[entryIndex] = estimate;
+    putDouble(hipEstAccumOffset_, entryIndex, estimate);
   }
 
   /**
@@ -140,17 +188,16 @@ final class HllMap extends Map {
    */
   @Override
   final int findKey(final byte[] key) {
-    final int keyLen = key.length;
     final long[] hash = MurmurHash3.hash(key, SEED);
     int entryIndex  = getIndex(hash[0], tableEntries_);
     final int stride = getStride(hash[1], tableEntries_);
     final int loopIndex = entryIndex;
 
     do {
-      if (isBitClear(stateArr_, entryIndex)) { //check if slot is empty
+      if (isBitClear(mem_, stateOffset_, entryIndex)) { //check if slot is empty
         return ~entryIndex;
       }
-      if (arraysEqual(key, 0, keysArr_, entryIndex * keyLen, keyLen)) { //check for key match
+      if (keyEquals(mem_, (long) entryIndex * key.length, key)) { //check for key match
         return entryIndex;
       }
       entryIndex = (entryIndex + stride) % tableEntries_;
@@ -163,11 +210,50 @@ final class HllMap extends Map {
     int entryIndex = findKey(key);
     if (entryIndex < 0) { //key not found, initialize new row
       entryIndex = ~entryIndex;
-      System.arraycopy(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_);
-      setBit(stateArr_, entryIndex);
-      invPow2SumHiArr_[entryIndex] = k_;
-      invPow2SumLoArr_[entryIndex] = 0;
-      hipEstAccumArr_[entryIndex] = 0;
+      mem_.putByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+      setBit(mem_, stateOffset_, entryIndex);
+      putDouble(invPow2SumHiOffset_, entryIndex, k_);
+      putDouble(invPow2SumLoOffset_, entryIndex, 0);
+      putDouble(hipEstAccumOffset_, entryIndex, 0);
+      curCountEntries_++;
+      if (curCountEntries_ > capacityEntries_) {
+        resize();
+        entryIndex = findKey(key);
+        assert entryIndex >= 0;
+      }
+    }
+    return entryIndex;
+  }
+
+  @Override
+  final int findKey(final long key) {
+    final long[] hash = hash(key);
+    int entryIndex  = getIndex(hash[0], tableEntries_);
+    final int stride = getStride(hash[1], tableEntries_);
+    final int loopIndex = entryIndex;
+
+    do {
+      if (isBitClear(mem_, stateOffset_, entryIndex)) { //check if slot is empty
+        return ~entryIndex;
+      }
+      if (mem_.getLong((long) entryIndex * Long.BYTES) == key) { //check for key match
+        return entryIndex;
+      }
+      entryIndex = (entryIndex + stride) % tableEntries_;
+    } while (entryIndex != loopIndex);
+    throw new SketchesArgumentException("Key not found and no empty slots!");
+  }
+
+  @Override
+  int findOrInsertKey(final long key) {
+    int entryIndex = findKey(key);
+    if (entryIndex < 0) { //key not found, initialize new row
+      entryIndex = ~entryIndex;
+      mem_.putLong((long) entryIndex * Long.BYTES, key);
+      setBit(mem_, stateOffset_, entryIndex);
+      putDouble(invPow2SumHiOffset_, entryIndex, k_);
+      putDouble(invPow2SumLoOffset_, entryIndex, 0);
+      putDouble(hipEstAccumOffset_, entryIndex, 0);
       curCountEntries_++;
       if (curCountEntries_ > capacityEntries_) {
         resize();
@@ -200,16 +286,31 @@ final class HllMap extends Map {
 
   @Override
   long getMemoryUsageBytes() {
-    final long arrays = keysArr_.length
-        + ((long) arrOfHllArr_.length * Long.BYTES)
-        + ((long) invPow2SumLoArr_.length * Double.BYTES)
-        + ((long) invPow2SumHiArr_.length * Double.BYTES)
-        + ((long) hipEstAccumArr_.length * Double.BYTES)
-        + stateArr_.length;
+    final long arrays = getArraysBytes(tableEntries_, keySizeBytes_, hllArrLongs_);
     final long other = (5L * Integer.BYTES) + Float.BYTES + Double.BYTES;
     return arrays + other;
   }
 
+  @Override
+  boolean isActive(final int entryIndex) {
+    return isBitSet(mem_, stateOffset_, entryIndex);
+  }
+
+  @Override
+  void getKey(final int entryIndex, final byte[] key) {
+    mem_.getByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+  }
+
+  @Override
+  double getEntryEstimate(final int entryIndex) {
+    return getDouble(hipEstAccumOffset_, entryIndex);
+  }
+
+  @Override
+  double getMaxEntryEstimate() {
+    return Double.POSITIVE_INFINITY;
+  }
+
   @Override
   CouponsIterator getCouponsIterator(final int index) {
     // not applicable
@@ -238,30 +339,106 @@ final class HllMap extends Map {
     return 0;
   }
 
+  @Override
+  long getSerializedSizeBytes() {
+    return SECTION_PREAMBLE_BYTES + getArraysBytes(tableEntries_, keySizeBytes_, hllArrLongs_);
+  }
+
+  @Override
+  void writeTo(final WritableMemory mem, final long offset) {
+    writeSectionPreamble(mem, offset, HLL_MAP_ID, tableEntries_, k_, curCountEntries_, 0);
+    final long arraysBytes = getArraysBytes(tableEntries_, keySizeBytes_, hllArrLongs_);
+    mem_.copyTo(0, mem, offset + SECTION_PREAMBLE_BYTES, arraysBytes);
+  }
+
+  @Override
+  void close() {
+    closeMemory(mem_, null);
+    mem_ = null;
+  }
+
   /**
    * Find the first empty slot for the given key.
    * Only used by resize, where it is known that the key does not exist in the table.
    * Throws an exception if no empty slots.
    * @param key the given key
-   * @param tableEntries prime size of table
-   * @param stateArr the valid bit array
    * @return the first empty slot for the given key
    */
-  private static final int findEmpty(final byte[] key, final int tableEntries, final byte[] stateArr) {
+  private int findEmpty(final byte[] key) {
     final long[] hash = MurmurHash3.hash(key, SEED);
-    int entryIndex  = getIndex(hash[0], tableEntries);
-    final int stride = getStride(hash[1], tableEntries);
+    int entryIndex  = getIndex(hash[0], tableEntries_);
+    final int stride = getStride(hash[1], tableEntries_);
     final int loopIndex = entryIndex;
 
     do {
-      if (isBitClear(stateArr, entryIndex)) { //check if slot is empty
+      if (isBitClear(mem_, stateOffset_, entryIndex)) { //check if slot is empty
         return entryIndex;
       }
-      entryIndex = (entryIndex + stride) % tableEntries;
+      entryIndex = (entryIndex + stride) % tableEntries_;
     } while (entryIndex != loopIndex);
     throw new SketchesArgumentException("No empty slots.");
   }
 
+  /**
+   * Merges the HLL array of an entry of the other map into the entry at the given index by taking
+   * the maximum of each pair of registers. The HIP estimate is not mergeable, so if any register
+   * changes, the estimate of the entry is replaced by the estimate from its registers.
+   * @param entryIndex the index of the entry of this map
+   * @param other the other map, which must have the same k
+   * @param otherIndex the index of the entry of the other map
+   */
+  void mergeRegisters(final int entryIndex, final HllMap other, final int otherIndex) {
+    if (other.k_ != k_) {
+      throw new SketchesArgumentException("HLL k of other map " + other.k_ + " does not match "
+          + k_);
+    }
+    double invPow2SumHi = getDouble(invPow2SumHiOffset_, entryIndex);
+    double invPow2SumLo = getDouble(invPow2SumLoOffset_, entryIndex);
+    boolean changed = false;
+    int numZeros = 0;
+    final long hllArrBytes = (long) hllArrLongs_ * Long.BYTES;
+    final long offset = hllArrOffset_ + (entryIndex * hllArrBytes);
+    final long otherOffset = other.hllArrOffset_ + (otherIndex * hllArrBytes);
+    for (int longIdx = 0; longIdx < hllArrLongs_; longIdx++) {
+      long hllLong = mem_.getLong(offset + (longIdx * Long.BYTES));
+      final long otherHllLong = other.mem_.getLong(otherOffset + (longIdx * Long.BYTES));
+      final int slots = Math.min(10, k_ - (longIdx * 10));
+      for (int slot = 0; slot < slots; slot++) {
+        final int shift = slot * 6;
+        final int value = (int) (hllLong >>> shift) & SIX_BIT_MASK;
+        final int otherValue = (int) (otherHllLong >>> shift) & SIX_BIT_MASK;
+        if (otherValue > value) {
+          if (value < 32) { invPow2SumHi -= invPow2(value); }
+          else            { invPow2SumLo -= invPow2(value); }
+          if (otherValue < 32) { invPow2SumHi += invPow2(otherValue); }
+          else                 { invPow2SumLo += invPow2(otherValue); }
+          hllLong &= ~(0X3FL << shift);
+          hllLong |= ((long) otherValue) << shift;
+          changed = true;
+        } else if (value == 0) {
+          numZeros++;
+        }
+      }
+      mem_.putLong(offset + (longIdx * Long.BYTES), hllLong);
+    }
+    if (changed) {
+      putDouble(invPow2SumHiOffset_, entryIndex, invPow2SumHi);
+      putDouble(invPow2SumLoOffset_, entryIndex, invPow2SumLo);
+      putDouble(hipEstAccumOffset_, entryIndex,
+          getRegisterEstimate(invPow2SumHi + invPow2SumLo, numZeros));
+    }
+  }
+
+  // The HLL estimate from the registers, with linear counting for the low range
+  private double getRegisterEstimate(final double invPow2Sum, final int numZeros) {
+    final double alpha = 0.7213 / (1.0 + (1.079 / k_));
+    final double rawEstimate = (alpha * k_ * k_) / invPow2Sum;
+    if ((rawEstimate <= (2.5 * k_)) && (numZeros > 0)) {
+      return k_ * log((double) k_ / numZeros);
+    }
+    return rawEstimate;
+  }
+
   //This method is specifically tied to the HLL array layout
   private final boolean updateHll(final int entryIndex, final int coupon) {
     final int newValue = coupon16Value(coupon);
@@ -270,67 +447,98 @@ final class HllMap extends Map {
     final int longIdx = hllIdx / 10;
     final int shift = ((hllIdx % 10) * 6) & SIX_BIT_MASK;
 
-    long hllLong = arrOfHllArr_[(entryIndex * hllArrLongs_) + longIdx];
+    final long hllLongOffset = hllArrOffset_
+        + ((((long) entryIndex * hllArrLongs_) + longIdx) * Long.BYTES);
+    long hllLong = mem_.getLong(hllLongOffset);
     final int oldValue = (int)(hllLong >>> shift) & SIX_BIT_MASK;
     if (newValue <= oldValue) { return false; }
     // newValue > oldValue
 
     //update hipEstAccum BEFORE updating invPow2Sum
-    final double invPow2Sum = invPow2SumHiArr_[entryIndex] + invPow2SumLoArr_[entryIndex];
-    final double oneOverQ = k_ / invPow2Sum;
-    hipEstAccumArr_[entryIndex] += oneOverQ;
+    double invPow2SumHi = getDouble(invPow2SumHiOffset_, entryIndex);
+    double invPow2SumLo = getDouble(invPow2SumLoOffset_, entryIndex);
+    final double oneOverQ = k_ / (invPow2SumHi + invPow2SumLo);
+    putDouble(hipEstAccumOffset_, entryIndex, getDouble(hipEstAccumOffset_, entryIndex) + oneOverQ);
 
     //update invPow2Sum
-    if (oldValue < 32) { invPow2SumHiArr_[entryIndex] -= invPow2(oldValue); }
-    else               { invPow2SumLoArr_[entryIndex] -= invPow2(oldValue); }
-    if (newValue < 32) { invPow2SumHiArr_[entryIndex] += invPow2(newValue); }
-    else               { invPow2SumLoArr_[entryIndex] += invPow2(newValue); }
+    if (oldValue < 32) { invPow2SumHi -= invPow2(oldValue); }
+    else               { invPow2SumLo -= invPow2(oldValue); }
+    if (newValue < 32) { invPow2SumHi += invPow2(newValue); }
+    else               { invPow2SumLo += invPow2(newValue); }
+    putDouble(invPow2SumHiOffset_, entryIndex, invPow2SumHi);
+    putDouble(invPow2SumLoOffset_, entryIndex, invPow2SumLo);
 
     //insert the new value
     hllLong &= ~(0X3FL << shift);  //zero out the 6-bit field
     hllLong |=  ((long)newValue) << shift; //insert
-    arrOfHllArr_[(entryIndex * hllArrLongs_) + longIdx] = hllLong;
+    mem_.putLong(hllLongOffset, hllLong);
     return true;
   }
 
   private final void resize() {
-    final int newTableEntries = nextPrime((int)(tableEntries_ * growthFactor_));
-    final int newCapacityEntries = (int)(newTableEntries * LOAD_FACTOR);
-
-    final byte[] newKeysArr = new byte[newTableEntries * keySizeBytes_];
-    final long[] newArrOfHllArr = new long[newTableEntries * hllArrLongs_];
-    final double[] newInvPow2Sum1 = new double[newTableEntries];
-    final double[] newInvPow2Sum2 = new double[newTableEntries];
-    final double[] newHipEstAccum = new double[newTableEntries];
-    final byte[] newStateArr = new byte[(int) Math.ceil(newTableEntries / 8.0)];
-
-    for (int oldIndex = 0; oldIndex < tableEntries_; oldIndex++) {
-      if (isBitClear(stateArr_, oldIndex)) { continue; }
+    final WritableMemory oldMem = mem_;
+    final long oldHllArrOffset = hllArrOffset_;
+    final long oldInvPow2SumHiOffset = invPow2SumHiOffset_;
+    final long oldInvPow2SumLoOffset = invPow2SumLoOffset_;
+    final long oldHipEstAccumOffset = hipEstAccumOffset_;
+    final long oldStateOffset = stateOffset_;
+    final int oldTableEntries = tableEntries_;
+    //curCountEntries_, growthFactor_  unchanged
+    allocateTable(nextPrime((int)(tableEntries_ * growthFactor_)));
+
+    final long hllArrBytes = (long) hllArrLongs_ * Long.BYTES;
+    final byte[] key = new byte[keySizeBytes_];
+    for (int oldIndex = 0; oldIndex < oldTableEntries; oldIndex++) {
+      if (isBitClear(oldMem, oldStateOffset, oldIndex)) { continue; }
       // extract an old key
-      final byte[] key =
-          Arrays.copyOfRange(keysArr_, oldIndex * keySizeBytes_, (oldIndex + 1) * keySizeBytes_);
-      final int newIndex = findEmpty(key, newTableEntries, newStateArr);
-      System.arraycopy(key, 0, newKeysArr, newIndex * keySizeBytes_, keySizeBytes_); //put key
+      oldMem.getByteArray((long) oldIndex * keySizeBytes_, key, 0, keySizeBytes_);
+      final int newIndex = findEmpty(key);
+      mem_.putByteArray((long) newIndex * keySizeBytes_, key, 0, keySizeBytes_); //put key
       //put the rest of the row
-      System.arraycopy(arrOfHllArr_, oldIndex * hllArrLongs_, newArrOfHllArr,
-          newIndex * hllArrLongs_, hllArrLongs_);
-      newInvPow2Sum1[newIndex] = invPow2SumHiArr_[oldIndex];
-      newInvPow2Sum2[newIndex] = invPow2SumLoArr_[oldIndex];
-      newHipEstAccum[newIndex] = hipEstAccumArr_[oldIndex];
-      setBit(newStateArr, newIndex);
+      oldMem.copyTo(oldHllArrOffset + (oldIndex * hllArrBytes), mem_,
+          hllArrOffset_ + (newIndex * hllArrBytes), hllArrBytes);
+      final long oldDouble = (long) oldIndex * Double.BYTES;
+      putDouble(invPow2SumHiOffset_, newIndex, oldMem.getDouble(oldInvPow2SumHiOffset + oldDouble));
+      putDouble(invPow2SumLoOffset_, newIndex, oldMem.getDouble(oldInvPow2SumLoOffset + oldDouble));
+      putDouble(hipEstAccumOffset_, newIndex, oldMem.getDouble(oldHipEstAccumOffset + oldDouble));
+      setBit(mem_, stateOffset_, newIndex);
     }
-    //restore into sketch
-    tableEntries_ = newTableEntries;
-    capacityEntries_ = newCapacityEntries;
-    //curCountEntries_, growthFactor_  unchanged
-    entrySizeBytes_ = updateEntrySizeBytes(tableEntries_, keySizeBytes_, hllArrLongs_);
-
-    keysArr_ = newKeysArr;
-    arrOfHllArr_ = newArrOfHllArr;
-    invPow2SumHiArr_ = newInvPow2Sum1; //init to k
-    invPow2SumLoArr_ = newInvPow2Sum2; //init to 0
-    hipEstAccumArr_ = newHipEstAccum;  //init to 0
-    stateArr_ = newStateArr;
+    closeMemory(oldMem, mem_);
+  }
+
+  private double getDouble(final long arrOffset, final int entryIndex) {
+    return mem_.getDouble(arrOffset + ((long) entryIndex * Double.BYTES));
+  }
+
+  private void putDouble(final long arrOffset, final int entryIndex, final double value) {
+    mem_.putDouble(arrOffset + ((long) entryIndex * Double.BYTES), value);
+  }
+
+  // sets the table size and allocates the arrays, leaving the count of entries unchanged
+  private void allocateTable(final int tableEntries) {
+    setTableLayout(tableEntries);
+    mem_ = requestMemory(getArraysBytes(tableEntries, keySizeBytes_, hllArrLongs_));
+  }
+
+  // sets the table size and the offsets of the arrays
+  private void setTableLayout(final int tableEntries) {
+    tableEntries_ = tableEntries;
+    capacityEntries_ = (int)(tableEntries * LOAD_FACTOR);
+    entrySizeBytes_ = updateEntrySizeBytes(tableEntries, keySizeBytes_, hllArrLongs_);
+    final long doubleArrBytes = (long) tableEntries * Double.BYTES;
+    hllArrOffset_ = align8((long) tableEntries * keySizeBytes_);
+    invPow2SumHiOffset_ = hllArrOffset_ + ((long) tableEntries * hllArrLongs_ * Long.BYTES);
+    invPow2SumLoOffset_ = invPow2SumHiOffset_ + doubleArrBytes;
+    hipEstAccumOffset_ = invPow2SumLoOffset_ + doubleArrBytes;
+    stateOffset_ = hipEstAccumOffset_ + doubleArrBytes;
+  }
+
+  private static long getArraysBytes(final int tableEntries, final int keySizeBytes,
+      final int hllArrLongs) {
+    return align8((long) tableEntries * keySizeBytes)
+        + ((long) tableEntries * hllArrLongs * Long.BYTES)
+        + (3L * tableEntries * Double.BYTES)
+        + align8((tableEntries + 7) / 8);
   }
 
   private static final double updateEntrySizeBytes(final int tableEntries, final int keySizeBytes,
@@ -21,7 +21,12 @@ package com.yahoo.sketches.hllmap;
 
 import java.math.BigInteger;
 
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.SketchesArgumentException;
 import com.yahoo.sketches.hash.MurmurHash3;
+import com.yahoo.sketches.hash.MurmurHash3v2;
 
 /**
  * Base class and API for all the maps.
@@ -45,10 +50,47 @@ abstract class Map {
   static final double COUPON_MAP_GROW_TRIGGER_FACTOR = 15.0 / 16.0;
   static final double COUPON_MAP_TARGET_FILL_FACTOR = 2.0 / 3.0;
 
+  // Serialized section of a single map, written by writeTo(). The arrays of a map are kept in one
+  // WritableMemory, each starting at an 8-byte aligned offset in the order listed by the writeTo()
+  // method of the map, and follow the section preamble verbatim.
+  //
+  // Long || Start Byte Adr:
+  // Adr:
+  //      ||    7   |    6   |    5   |    4   |    3   |    2   |    1   |     0          |
+  //  0   ||----------Key Size Bytes-----------|------------unused----------|    Map ID      |
+  //      ||   15   |   14   |   13   |   12   |   11   |   10   |    9   |     8          |
+  //  1   ||------Max Coupons Per Key or K-----|-----------Table Entries-------------------|
+  //      ||   23   |   22   |   21   |   20   |   19   |   18   |   17   |    16          |
+  //  2   ||--------Deleted Entries------------|-----------Active Entries------------------|
+  static final int SECTION_PREAMBLE_BYTES = 24;
+  static final int MAP_ID_BYTE = 0;
+  static final int KEY_SIZE_INT = 4;
+  static final int TABLE_ENTRIES_INT = 8;
+  static final int MAX_COUPONS_INT = 12;
+  static final int ACTIVE_ENTRIES_INT = 16;
+  static final int DELETED_ENTRIES_INT = 20;
+
+  static final int SINGLE_COUPON_MAP_ID = 1;
+  static final int COUPON_TRAVERSE_MAP_ID = 2;
+  static final int COUPON_HASH_MAP_ID = 3;
+  static final int HLL_MAP_ID = 4;
+
+  // The arrays of a map live in a single region, so on the heap the size of a map is bounded by the
+  // largest long[], which is about 16 GB. With 1024 HLL bins per key this is about 20 million keys
+  // in the HLL map. A DefaultMemoryRequestServer would back each region by a byte[] and cap it at
+  // 2 GB, about 2.5 million keys in the HLL map.
+  static final long MAX_HEAP_MEMORY_BYTES = (Integer.MAX_VALUE - 8L) * Long.BYTES;
+
+  static final MemoryRequestServer DEFAULT_MEM_REQ_SVR = new HeapMemoryRequestServer();
+
   final int keySizeBytes_;
+  // reused when hashing long keys, which hash the same as their 8 little-endian bytes
+  private final long[] longKeyHash_ = new long[2];
+  final MemoryRequestServer memReqSvr_;
 
-  Map(final int keySizeBytes) {
+  Map(final int keySizeBytes, final MemoryRequestServer memReqSvr) {
     keySizeBytes_ = keySizeBytes;
+    memReqSvr_ = memReqSvr;
   }
 
   /**
@@ -105,8 +147,50 @@ abstract class Map {
 
   abstract int findKey(byte[] key);
 
+  /**
+   * Returns true if the entry at the given index holds a key of this map
+   * @param entryIndex the given index
+   * @return true if the entry at the given index holds a key of this map
+   */
+  abstract boolean isActive(int entryIndex);
+
+  /**
+   * Copies the key of the active entry at the given index
+   * @param entryIndex the given index
+   * @param key the destination of the key
+   */
+  abstract void getKey(int entryIndex, byte[] key);
+
+  /**
+   * Returns the estimate of the active entry at the given index
+   * @param entryIndex the given index
+   * @return the estimate of the active entry at the given index
+   */
+  abstract double getEntryEstimate(int entryIndex);
+
+  /**
+   * Returns an upper bound of the estimates of all entries this map can hold, which allows
+   * skipping the whole map when searching for keys with large estimates.
+   * @return an upper bound of the estimates of all entries
+   */
+  abstract double getMaxEntryEstimate();
+
   abstract int findOrInsertKey(byte[] key);
 
+  /**
+   * Same as {@link #findKey(byte[])} for an 8-byte key given as a long, without allocating
+   * @param key the given key, equal to the byte[] key of its 8 little-endian bytes
+   * @return the entryIndex of the key, or the one's complement of the index if not found
+   */
+  abstract int findKey(long key);
+
+  /**
+   * Same as {@link #findOrInsertKey(byte[])} for an 8-byte key given as a long, without allocating
+   * @param key the given key, equal to the byte[] key of its 8 little-endian bytes
+   * @return the entryIndex of the key
+   */
+  abstract int findOrInsertKey(long key);
+
   abstract CouponsIterator getCouponsIterator(int index);
 
   abstract int getMaxCouponsPerEntry();
@@ -131,6 +215,149 @@ abstract class Map {
     return keySizeBytes_;
   }
 
+  /**
+   * Returns the number of bytes required by {@link #writeTo(WritableMemory, long)}.
+   * @return the number of bytes of the serialized section of this map
+   */
+  abstract long getSerializedSizeBytes();
+
+  /**
+   * Writes this map as a section starting at the given offset.
+   * @param mem the destination, which must have at least {@link #getSerializedSizeBytes()} bytes
+   * beyond the offset
+   * @param offset the offset in bytes of the start of the section
+   */
+  abstract void writeTo(WritableMemory mem, long offset);
+
+  /**
+   * Returns a map instance from a section written by {@link #writeTo(WritableMemory, long)}.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the expected key size
+   * @param memReqSvr the server of the memory of the arrays of the returned map
+   * @return a map instance of the type recorded in the section
+   */
+  static Map heapify(final Memory mem, final long offset, final int keySizeBytes,
+      final MemoryRequestServer memReqSvr) {
+    final int mapId = checkSectionPreamble(mem, offset, keySizeBytes);
+    switch (mapId) {
+      case SINGLE_COUPON_MAP_ID:
+        return SingleCouponMap.heapify(mem, offset, keySizeBytes, memReqSvr);
+      case COUPON_TRAVERSE_MAP_ID:
+        return CouponTraverseMap.heapify(mem, offset, keySizeBytes, memReqSvr);
+      case COUPON_HASH_MAP_ID:
+        return CouponHashMap.heapify(mem, offset, keySizeBytes, memReqSvr);
+      case HLL_MAP_ID:
+        return HllMap.heapify(mem, offset, keySizeBytes, memReqSvr);
+      default: throw new SketchesArgumentException("Possible corruption: unknown map ID: " + mapId);
+    }
+  }
+
+  /**
+   * Returns a read-only map instance whose arrays are those of a section written by
+   * {@link #writeTo(WritableMemory, long)}, without copying them. The map must not be updated.
+   * @param mem the source, which must stay valid for as long as the returned map is used
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the expected key size
+   * @return a map instance of the type recorded in the section
+   */
+  static Map wrap(final Memory mem, final long offset, final int keySizeBytes) {
+    final int mapId = checkSectionPreamble(mem, offset, keySizeBytes);
+    switch (mapId) {
+      case SINGLE_COUPON_MAP_ID: return SingleCouponMap.wrap(mem, offset, keySizeBytes);
+      case COUPON_TRAVERSE_MAP_ID: return CouponTraverseMap.wrap(mem, offset, keySizeBytes);
+      case COUPON_HASH_MAP_ID: return CouponHashMap.wrap(mem, offset, keySizeBytes);
+      case HLL_MAP_ID: return HllMap.wrap(mem, offset, keySizeBytes);
+      default: throw new SketchesArgumentException("Possible corruption: unknown map ID: " + mapId);
+    }
+  }
+
+  // checks the parts of the section preamble common to all maps and returns the map ID
+  private static int checkSectionPreamble(final Memory mem, final long offset,
+      final int keySizeBytes) {
+    checkSectionBytes(mem, offset, SECTION_PREAMBLE_BYTES);
+    final int keySize = mem.getInt(offset + KEY_SIZE_INT);
+    if (keySize != keySizeBytes) {
+      throw new SketchesArgumentException("Possible corruption: key size of map section "
+          + keySize + " does not match " + keySizeBytes);
+    }
+    final int tableEntries = mem.getInt(offset + TABLE_ENTRIES_INT);
+    // the keys alone take tableEntries * keySizeBytes bytes, which bounds the allocations
+    if ((tableEntries < COUPON_MAP_MIN_NUM_ENTRIES) || (((long) tableEntries * keySizeBytes)
+        > Math.min(Integer.MAX_VALUE, mem.getCapacity() - offset))) {
+      throw new SketchesArgumentException("Possible corruption: table entries: " + tableEntries);
+    }
+    return mem.getByte(offset + MAP_ID_BYTE) & 0XFF;
+  }
+
+  final void writeSectionPreamble(final WritableMemory mem, final long offset, final int mapId,
+      final int tableEntries, final int maxCouponsPerKey, final int activeEntries,
+      final int deletedEntries) {
+    mem.putByte(offset + MAP_ID_BYTE, (byte) mapId);
+    mem.putInt(offset + KEY_SIZE_INT, keySizeBytes_);
+    mem.putInt(offset + TABLE_ENTRIES_INT, tableEntries);
+    mem.putInt(offset + MAX_COUPONS_INT, maxCouponsPerKey);
+    mem.putInt(offset + ACTIVE_ENTRIES_INT, activeEntries);
+    mem.putInt(offset + DELETED_ENTRIES_INT, deletedEntries);
+  }
+
+  static void checkSectionBytes(final Memory mem, final long offset, final long sectionBytes) {
+    if ((offset + sectionBytes) > mem.getCapacity()) {
+      throw new SketchesArgumentException("Possible corruption: map section requires "
+          + sectionBytes + " bytes at offset " + offset + ", capacity: " + mem.getCapacity());
+    }
+  }
+
+  /**
+   * Returns the arrays of a section as the memory of a wrapped map. The cast only allows the
+   * arrays to be held like those of any other map, a wrapped map is never written.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param arraysBytes the number of bytes of the arrays
+   * @return the region of the arrays
+   */
+  static WritableMemory wrapSection(final Memory mem, final long offset, final long arraysBytes) {
+    return (WritableMemory) mem.region(offset + SECTION_PREAMBLE_BYTES, arraysBytes);
+  }
+
+  static long align8(final long bytes) {
+    return (bytes + 7L) & ~7L;
+  }
+
+  /**
+   * Requests memory for the arrays of a table from the memory request server of this map.
+   * Memory from a server may hold stale data, so it is cleared here.
+   * @param bytes the required number of bytes
+   * @return the cleared memory
+   */
+  final WritableMemory requestMemory(final long bytes) {
+    final WritableMemory mem = memReqSvr_.request(bytes);
+    if (mem.getCapacity() < bytes) {
+      throw new SketchesArgumentException("Memory request server returned " + mem.getCapacity()
+          + " bytes, less than the requested " + bytes);
+    }
+    if (memReqSvr_ != DEFAULT_MEM_REQ_SVR) { // new heap arrays are already zero
+      mem.clear(0, bytes);
+    }
+    return mem;
+  }
+
+  /**
+   * Returns memory that is no longer needed to the memory request server of this map.
+   * @param memToClose the memory to release
+   * @param newMem the memory that replaces it, or null if the map is being closed
+   */
+  final void closeMemory(final WritableMemory memToClose, final WritableMemory newMem) {
+    if (memReqSvr_ != null) { // a wrapped map has no server and does not own its memory
+      memReqSvr_.requestClose(memToClose, newMem);
+    }
+  }
+
+  /**
+   * Releases the memory of the arrays of this map. The map must not be used afterwards.
+   */
+  abstract void close();
+
   /**
    * Delete the key at the given index
    * @param index the given index
@@ -138,28 +365,43 @@ abstract class Map {
   void deleteKey(final int index) {}
 
   /**
-   * Returns <tt>true</tt> if the two specified sub-arrays of bytes are <i>equal</i> to one another.
-   * Two arrays are considered equal if all corresponding pairs of elements in the two arrays are
-   * equal. In other words, two arrays are equal if and only if they contain the same elements
-   * in the same order.
+   * Returns <tt>true</tt> if the key stored in the given memory at the given offset is equal to
+   * the given key.
    *
-   * @param a one sub-array to be tested for equality
-   * @param offsetA the offset in bytes of the start of sub-array <i>a</i>.
-   * @param b the other sub-array to be tested for equality
-   * @param offsetB the offset in bytes of the start of sub-array <i>b</i>.
-   * @param length the length in bytes of the two sub-arrays.
-   * @return <tt>true</tt> if the two sub-arrays are equal
+   * @param mem the memory holding the stored key
+   * @param offset the offset in bytes of the stored key
+   * @param key the given key
+   * @return <tt>true</tt> if the two keys are equal
    */
-  static final boolean arraysEqual(final byte[] a, final int offsetA, final byte[] b,
-      final int offsetB, final int length) {
-    for (int i = 0; i < length; i++) {
-      if (a[i + offsetA] != b[i + offsetB]) {
+  static final boolean keyEquals(final Memory mem, final long offset, final byte[] key) {
+    final int keyLen = key.length;
+    int i = 0;
+    for (; (i + Long.BYTES) <= keyLen; i += Long.BYTES) { //compare 8 bytes at a time
+      if (mem.getLong(offset + i) != getLongLE(key, i)) {
+        return false;
+      }
+    }
+    for (; i < keyLen; i++) {
+      if (mem.getByte(offset + i) != key[i]) {
         return false;
       }
     }
     return true;
   }
 
+  // the long of the 8 little-endian bytes of the given array at the given offset, which is how
+  // Memory reads them
+  private static long getLongLE(final byte[] arr, final int offset) {
+    return (arr[offset] & 0XFFL)
+        | ((arr[offset + 1] & 0XFFL) << 8)
+        | ((arr[offset + 2] & 0XFFL) << 16)
+        | ((arr[offset + 3] & 0XFFL) << 24)
+        | ((arr[offset + 4] & 0XFFL) << 32)
+        | ((arr[offset + 5] & 0XFFL) << 40)
+        | ((arr[offset + 6] & 0XFFL) << 48)
+        | ((long) arr[offset + 7] << 56);
+  }
+
   /**
    * Returns the HLL array index and value as a 16-bit coupon given the identifier to be hashed
    * and k.
@@ -167,7 +409,21 @@ abstract class Map {
    * @return the HLL array index and value
    */
   static final int coupon16(final byte[] identifier) {
-    final long[] hash = MurmurHash3.hash(identifier, SEED);
+    return coupon16(MurmurHash3.hash(identifier, SEED));
+  }
+
+  /**
+   * Returns the same coupon as {@link #coupon16(byte[])} of the 8 little-endian bytes of the given
+   * identifier, without allocating
+   * @param identifier the given identifier
+   * @param hashOut a long array of size 2 for the hash of the identifier
+   * @return the HLL array index and value
+   */
+  static final int coupon16(final long identifier, final long[] hashOut) {
+    return coupon16(MurmurHash3v2.hash(identifier, SEED, hashOut));
+  }
+
+  private static int coupon16(final long[] hash) {
     final int hllIdx = (int) (((hash[0] >>> 1) % 1024) & TEN_BIT_MASK); //hash[0] for 10-bit address
     final int lz = Long.numberOfLeadingZeros(hash[1]);
     final int value = (lz > 62 ? 62 : lz) + 1;
@@ -178,6 +434,10 @@ abstract class Map {
     return (coupon >>> 10) & SIX_BIT_MASK;
   }
 
+  final long[] hash(final long key) {
+    return MurmurHash3v2.hash(key, SEED, longKeyHash_);
+  }
+
   static final int getIndex(final long hash, final int tableEntries) {
     return (int) ((hash >>> 1) % tableEntries);
   }
@@ -186,28 +446,28 @@ abstract class Map {
     return (int) ((hash >>> 1) % (tableEntries - 2L) + 1L);
   }
 
-  static boolean isBitSet(final byte[] byteArr, final int bitIndex) {
-    final int byteIndex = bitIndex / 8;
+  // The following access a bit array that starts at the given offset in bytes
+
+  static boolean isBitSet(final Memory mem, final long offset, final int bitIndex) {
     final int mask = 1 << (bitIndex % 8);
-    return (byteArr[byteIndex] & mask) > 0;
+    return (mem.getByte(offset + (bitIndex / 8)) & mask) > 0;
   }
 
-  static boolean isBitClear(final byte[] byteArr, final int bitIndex) {
-    final int byteIndex = bitIndex / 8;
+  static boolean isBitClear(final Memory mem, final long offset, final int bitIndex) {
     final int mask = 1 << (bitIndex % 8);
-    return (byteArr[byteIndex] & mask) == 0;
+    return (mem.getByte(offset + (bitIndex / 8)) & mask) == 0;
   }
 
-  static void clearBit(final byte[] byteArr, final int index) {
-    final int byteIndex = index / 8;
+  static void clearBit(final WritableMemory mem, final long offset, final int index) {
+    final long byteOffset = offset + (index / 8);
     final int mask = 1 << (index % 8);
-    byteArr[byteIndex] &= ~mask;
+    mem.putByte(byteOffset, (byte) (mem.getByte(byteOffset) & ~mask));
   }
 
-  static void setBit(final byte[] bits, final int index) {
-    final int byteIndex = index / 8;
+  static void setBit(final WritableMemory mem, final long offset, final int index) {
+    final long byteOffset = offset + (index / 8);
     final int mask = 1 << (index % 8);
-    bits[byteIndex] |= mask;
+    mem.putByte(byteOffset, (byte) (mem.getByte(byteOffset) | mask));
   }
 
   /**
@@ -228,6 +488,29 @@ abstract class Map {
     return String.format("%,.3f", value);
   }
 
+  /**
+   * The default server of the memory of the maps. It backs each region by a new long[], which
+   * allows regions of up to {@link #MAX_HEAP_MEMORY_BYTES} and is already cleared. The garbage
+   * collector reclaims the memory, so closing it is a no-op.
+   */
+  static final class HeapMemoryRequestServer implements MemoryRequestServer {
+
+    @Override
+    public WritableMemory request(final long capacityBytes) {
+      if ((capacityBytes < 0) || (capacityBytes > MAX_HEAP_MEMORY_BYTES)) {
+        throw new SketchesArgumentException("Requested " + capacityBytes
+            + " bytes, more than the maximum of " + MAX_HEAP_MEMORY_BYTES
+            + " bytes of an internal map on the heap");
+      }
+      return WritableMemory.wrap(new long[(int) ((capacityBytes + 7L) >>> 3)]);
+    }
+
+    @Override
+    public void requestClose(final WritableMemory memToClose, final WritableMemory newMemory) {
+      // nothing to do, the garbage collector reclaims heap memory
+    }
+  }
+
   @Override
   public String toString() {
     final String mcpe = Map.fmtLong(getMaxCouponsPerEntry());
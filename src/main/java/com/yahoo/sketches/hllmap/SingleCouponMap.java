@@ -19,8 +19,9 @@
 
 package com.yahoo.sketches.hllmap;
 
-import java.util.Arrays;
-
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.SketchesArgumentException;
 import com.yahoo.sketches.hash.MurmurHash3;
 
@@ -42,9 +43,9 @@ final class SingleCouponMap extends Map {
   private int curCountEntries_;
   private double entrySizeBytes_;
 
-  // Arrays
-  private byte[] keysArr_;
-  private short[] couponsArr_;
+  // Arrays, held in mem_ in the order: keys, coupons, state
+  private WritableMemory mem_;
+  private long couponsOffset_;
 
   /**
    * <ul><li>state: 0: empty or valid; empty if coupon is 0, otherwise valid.</li>
@@ -52,24 +53,65 @@ final class SingleCouponMap extends Map {
    * reference instead.</li>
    * </ul>
    */
-  private byte[] stateArr_;
+  private long stateOffset_;
 
-  private SingleCouponMap(final int keySizeBytes) {
-    super(keySizeBytes);
+  private SingleCouponMap(final int keySizeBytes, final MemoryRequestServer memReqSvr) {
+    super(keySizeBytes, memReqSvr);
   }
 
   static SingleCouponMap getInstance(final int initialNumEntries, final int keySizeBytes) {
-    final int tableEntries = nextPrime(initialNumEntries);
+    return getInstance(initialNumEntries, keySizeBytes, DEFAULT_MEM_REQ_SVR);
+  }
 
-    final SingleCouponMap map = new SingleCouponMap(keySizeBytes);
-    map.tableEntries_ = tableEntries;
-    map.capacityEntries_ = (int)(tableEntries * COUPON_MAP_GROW_TRIGGER_FACTOR);
+  static SingleCouponMap getInstance(final int initialNumEntries, final int keySizeBytes,
+      final MemoryRequestServer memReqSvr) {
+    final SingleCouponMap map = new SingleCouponMap(keySizeBytes, memReqSvr);
+    map.allocateTable(nextPrime(initialNumEntries));
     map.curCountEntries_ = 0;
-    map.entrySizeBytes_ = updateEntrySizeBytes(tableEntries, keySizeBytes);
+    return map;
+  }
 
-    map.keysArr_ = new byte[tableEntries * map.keySizeBytes_];
-    map.couponsArr_ = new short[tableEntries];
-    map.stateArr_ = new byte[(int) Math.ceil(tableEntries / 8.0)];
+  /**
+   * Returns a map instance from a section written by {@link #writeTo(WritableMemory, long)}.
+   * The arrays follow the section preamble in the order: keys, coupons, state.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @param memReqSvr the server of the memory of the arrays of the returned map
+   * @return a map instance
+   */
+  static SingleCouponMap heapify(final Memory mem, final long offset, final int keySizeBytes,
+      final MemoryRequestServer memReqSvr) {
+    final SingleCouponMap map = readSectionPreamble(mem, offset, keySizeBytes, memReqSvr);
+    final long arraysBytes = getArraysBytes(map.tableEntries_, keySizeBytes);
+    map.mem_ = map.requestMemory(arraysBytes);
+    mem.copyTo(offset + SECTION_PREAMBLE_BYTES, map.mem_, 0, arraysBytes);
+    return map;
+  }
+
+  /**
+   * Returns a read-only map instance whose arrays are those of a section written by
+   * {@link #writeTo(WritableMemory, long)}, without copying them.
+   * @param mem the source
+   * @param offset the offset in bytes of the start of the section
+   * @param keySizeBytes the key size
+   * @return a map instance
+   */
+  static SingleCouponMap wrap(final Memory mem, final long offset, final int keySizeBytes) {
+    final SingleCouponMap map = readSectionPreamble(mem, offset, keySizeBytes, null);
+    map.mem_ = wrapSection(mem, offset, getArraysBytes(map.tableEntries_, keySizeBytes));
+    return map;
+  }
+
+  // a map with the table size and counts of the section, but without memory for its arrays
+  private static SingleCouponMap readSectionPreamble(final Memory mem, final long offset,
+      final int keySizeBytes, final MemoryRequestServer memReqSvr) {
+    final int tableEntries = mem.getInt(offset + TABLE_ENTRIES_INT);
+    final long arraysBytes = getArraysBytes(tableEntries, keySizeBytes);
+    checkSectionBytes(mem, offset, SECTION_PREAMBLE_BYTES + arraysBytes);
+    final SingleCouponMap map = new SingleCouponMap(keySizeBytes, memReqSvr);
+    map.setTableLayout(tableEntries);
+    map.curCountEntries_ = mem.getInt(offset + ACTIVE_ENTRIES_INT);
     return map;
   }
 
@@ -81,17 +123,18 @@ final class SingleCouponMap extends Map {
 
   @Override
   double update(final int entryIndex, final short coupon) {
-    if (couponsArr_[entryIndex] == 0) {
-      couponsArr_[entryIndex] = coupon;
+    final short curCoupon = getCoupon(entryIndex);
+    if (curCoupon == 0) {
+      putCoupon(entryIndex, coupon);
       return 1;
     }
     if (isCoupon(entryIndex)) {
-      if (couponsArr_[entryIndex] == coupon) { //duplicate
+      if (curCoupon == coupon) { //duplicate
         return 1;
       }
       return 0; // signal to promote
     }
-    return -couponsArr_[entryIndex]; // negative level number
+    return -curCoupon; // negative level number
   }
 
   @Override
@@ -127,10 +170,10 @@ final class SingleCouponMap extends Map {
     final int loopIndex = entryIndex;
 
     do {
-      if (couponsArr_[entryIndex] == 0) {
+      if (getCoupon(entryIndex) == 0) {
         return ~entryIndex; //empty
       }
-      if (Map.arraysEqual(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_)) {
+      if (keyEquals(mem_, (long) entryIndex * keySizeBytes_, key)) {
         return entryIndex;
       }
       entryIndex = (entryIndex + stride) % tableEntries_;
@@ -148,15 +191,72 @@ final class SingleCouponMap extends Map {
         assert entryIndex < 0;
       }
       entryIndex = ~entryIndex;
-      System.arraycopy(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_);
+      mem_.putByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+      curCountEntries_++;
+    }
+    return entryIndex;
+  }
+
+  @Override
+  int findKey(final long key) {
+    final long[] hash = hash(key);
+    int entryIndex = getIndex(hash[0], tableEntries_);
+    final int stride = getStride(hash[1], tableEntries_);
+    final int loopIndex = entryIndex;
+
+    do {
+      if (getCoupon(entryIndex) == 0) {
+        return ~entryIndex; //empty
+      }
+      if (mem_.getLong((long) entryIndex * Long.BYTES) == key) {
+        return entryIndex;
+      }
+      entryIndex = (entryIndex + stride) % tableEntries_;
+    } while (entryIndex != loopIndex);
+    throw new SketchesArgumentException("Key not found and no empty slots!");
+  }
+
+  @Override
+  int findOrInsertKey(final long key) {
+    int entryIndex = findKey(key);
+    if (entryIndex < 0) {
+      if (curCountEntries_ + 1 > capacityEntries_) {
+        resize();
+        entryIndex = findKey(key);
+        assert entryIndex < 0;
+      }
+      entryIndex = ~entryIndex;
+      mem_.putLong((long) entryIndex * Long.BYTES, key);
       curCountEntries_++;
     }
     return entryIndex;
   }
 
+  // only keys that have not been promoted are active in this map
+  @Override
+  boolean isActive(final int entryIndex) {
+    return (getCoupon(entryIndex) != 0) && isCoupon(entryIndex);
+  }
+
+  // also applies to promoted keys
+  @Override
+  void getKey(final int entryIndex, final byte[] key) {
+    mem_.getByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+  }
+
+  @Override
+  double getEntryEstimate(final int entryIndex) {
+    return 1;
+  }
+
+  @Override
+  double getMaxEntryEstimate() {
+    return 1;
+  }
+
   @Override
   CouponsIterator getCouponsIterator(final int entryIndex) {
-    return new CouponsIterator(couponsArr_, entryIndex, 1);
+    return new CouponsIterator(mem_, couponsOffset_ + ((long) entryIndex * Short.BYTES), 1);
   }
 
   @Override
@@ -180,25 +280,29 @@ final class SingleCouponMap extends Map {
   }
 
   boolean isCoupon(final int entryIndex) {
-    return !isBitSet(stateArr_, entryIndex);
+    return !isBitSet(mem_, stateOffset_, entryIndex);
   }
 
   short getCoupon(final int entryIndex) {
-    return couponsArr_[entryIndex];
+    return mem_.getShort(couponsOffset_ + ((long) entryIndex * Short.BYTES));
   }
 
   void setCoupon(final int entryIndex, final short coupon, final boolean isLevel) {
-    couponsArr_[entryIndex] = coupon;
+    putCoupon(entryIndex, coupon);
     if (isLevel) {
-      setBit(stateArr_, entryIndex);
+      setBit(mem_, stateOffset_, entryIndex);
     } else {
-      clearBit(stateArr_, entryIndex);
+      clearBit(mem_, stateOffset_, entryIndex);
     }
   }
 
   void setLevel(final int entryIndex, final int level) {
-    couponsArr_[entryIndex] = (short) level;
-    setBit(stateArr_, entryIndex);
+    putCoupon(entryIndex, (short) level);
+    setBit(mem_, stateOffset_, entryIndex);
+  }
+
+  private void putCoupon(final int entryIndex, final short coupon) {
+    mem_.putShort(couponsOffset_ + ((long) entryIndex * Short.BYTES), coupon);
   }
 
   @Override
@@ -223,44 +327,57 @@ final class SingleCouponMap extends Map {
 
   @Override
   long getMemoryUsageBytes() {
-    final long arrays = keysArr_.length
-        + (long)couponsArr_.length * Short.BYTES
-        + stateArr_.length;
+    final long arrays = getArraysBytes(tableEntries_, keySizeBytes_);
     final long other = 4 * 4 + 8;
     return arrays + other;
   }
 
+  @Override
+  long getSerializedSizeBytes() {
+    return SECTION_PREAMBLE_BYTES + getArraysBytes(tableEntries_, keySizeBytes_);
+  }
+
+  @Override
+  void writeTo(final WritableMemory mem, final long offset) {
+    writeSectionPreamble(mem, offset, SINGLE_COUPON_MAP_ID, tableEntries_, 1, curCountEntries_, 0);
+    final long arraysBytes = getArraysBytes(tableEntries_, keySizeBytes_);
+    mem_.copyTo(0, mem, offset + SECTION_PREAMBLE_BYTES, arraysBytes);
+  }
+
+  @Override
+  void close() {
+    closeMemory(mem_, null);
+    mem_ = null;
+  }
+
   private void resize() {
-    final byte[] oldKeysArr = keysArr_;
-    final short[] oldCouponsArr = couponsArr_;
-    final byte[] oldStateArr = stateArr_;
+    final WritableMemory oldMem = mem_;
+    final long oldCouponsOffset = couponsOffset_;
+    final long oldStateOffset = stateOffset_;
     final int oldTableEntries = tableEntries_;
-    tableEntries_ = nextPrime((int) (curCountEntries_ / COUPON_MAP_TARGET_FILL_FACTOR));
-    capacityEntries_ = (int)(tableEntries_ * COUPON_MAP_GROW_TRIGGER_FACTOR);
-    keysArr_ = new byte[tableEntries_ * keySizeBytes_];
-    couponsArr_ = new short[tableEntries_];
-    stateArr_ = new byte[(int) Math.ceil(tableEntries_ / 8.0)];
-    entrySizeBytes_ = updateEntrySizeBytes(tableEntries_, keySizeBytes_);
+    allocateTable(nextPrime((int) (curCountEntries_ / COUPON_MAP_TARGET_FILL_FACTOR)));
     //move the data
+    final byte[] key = new byte[keySizeBytes_];
     for (int i = 0; i < oldTableEntries; i++) {
-      if (oldCouponsArr[i] != 0) {
-        final byte[] key =
-            Arrays.copyOfRange(oldKeysArr, i * keySizeBytes_, i * keySizeBytes_ + keySizeBytes_);
-        insertEntry(key, oldCouponsArr[i], isBitSet(oldStateArr, i));
+      final short coupon = oldMem.getShort(oldCouponsOffset + ((long) i * Short.BYTES));
+      if (coupon != 0) {
+        oldMem.getByteArray((long) i * keySizeBytes_, key, 0, keySizeBytes_);
+        insertEntry(key, coupon, isBitSet(oldMem, oldStateOffset, i));
       }
     }
+    closeMemory(oldMem, mem_);
   }
 
   // for internal use during resize, so no resize check here
-  private void insertEntry(final byte[] key, final int coupon, final boolean setStateOne) {
+  private void insertEntry(final byte[] key, final short coupon, final boolean setStateOne) {
     final long[] hash = MurmurHash3.hash(key, SEED);
     int entryIndex = getIndex(hash[0], tableEntries_);
     final int stride = getStride(hash[1], tableEntries_);
     final int loopIndex = entryIndex;
     do {
-      if (couponsArr_[entryIndex] == 0) {
-        System.arraycopy(key, 0, keysArr_, entryIndex * keySizeBytes_, keySizeBytes_);
-        setCoupon(entryIndex, (short)coupon, setStateOne);
+      if (getCoupon(entryIndex) == 0) {
+        mem_.putByteArray((long) entryIndex * keySizeBytes_, key, 0, keySizeBytes_);
+        setCoupon(entryIndex, coupon, setStateOne);
         return;
       }
       entryIndex = (entryIndex + stride) % tableEntries_;
@@ -268,6 +385,26 @@ final class SingleCouponMap extends Map {
     throw new SketchesArgumentException("Key not found and no empty slots!");
   }
 
+  // sets the table size and allocates the arrays, leaving the count of entries unchanged
+  private void allocateTable(final int tableEntries) {
+    setTableLayout(tableEntries);
+    mem_ = requestMemory(getArraysBytes(tableEntries, keySizeBytes_));
+  }
+
+  // sets the table size and the offsets of the arrays
+  private void setTableLayout(final int tableEntries) {
+    tableEntries_ = tableEntries;
+    capacityEntries_ = (int)(tableEntries * COUPON_MAP_GROW_TRIGGER_FACTOR);
+    entrySizeBytes_ = updateEntrySizeBytes(tableEntries, keySizeBytes_);
+    couponsOffset_ = align8((long) tableEntries * keySizeBytes_);
+    stateOffset_ = couponsOffset_ + align8((long) tableEntries * Short.BYTES);
+  }
+
+  private static long getArraysBytes(final int tableEntries, final int keySizeBytes) {
+    return align8((long) tableEntries * keySizeBytes) + align8((long) tableEntries * Short.BYTES)
+        + align8((tableEntries + 7) / 8);
+  }
+
   private static final double updateEntrySizeBytes(final int tableEntries, final int keySizeBytes) {
     final double byteFraction = Math.ceil(tableEntries / 8.0) / tableEntries;
     return keySizeBytes + Short.BYTES + byteFraction;
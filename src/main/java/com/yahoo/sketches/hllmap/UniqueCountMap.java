@@ -19,7 +19,18 @@
 
 package com.yahoo.sketches.hllmap;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesReadOnlyException;
+import com.yahoo.sketches.Util;
 
 /**
  * This is a real-time, key-value HLL mapping sketch that tracks approximate unique counts of
@@ -66,6 +77,14 @@ import com.yahoo.sketches.SketchesArgumentException;
  * <p>All the intermediate maps support deletes and can dynamically grow and shrink as required by
  * the input stream.
  *
+ * <p>The arrays of every internal map are held in a single {@link WritableMemory} obtained from a
+ * {@link MemoryRequestServer}, which also receives the old memory whenever a map is resized.
+ * By default the memory is on the Java heap in long arrays, which bounds each internal map to
+ * about 16 GB, or about 20 million keys that have been promoted to the final HLL map. A server
+ * that returns off-heap memory is not limited this way, and keeps the
+ * multi-gigabyte tables of a large map out of the reach of the garbage collector, in which case
+ * {@link #close()} must be called to release that memory once the map is no longer needed.
+ *
  * <p>The sketch estimator algorithms are unbiased with a Relative Standard Error (RSE)
  * of about 2.6% with 68% confidence, or equivalently, about 5.2% with a 95% confidence.
  *
@@ -87,7 +106,25 @@ public class UniqueCountMap {
   private static final int HLL_K = 1024;
   private static final int INITIAL_NUM_ENTRIES = 1000003;
   private static final int MIN_INITIAL_NUM_ENTRIES = 157;
+
+  // Serialization preamble, followed by one section per active map in order of level.
+  // Long || Start Byte Adr:
+  // Adr:
+  //      ||    7   |    6   |    5   |    4   |    3   |    2   |    1   |     0          |
+  //  0   ||----------Key Size Bytes-----------| unused | Levels | SerVer | Preamble_Longs |
+  //      ||   15   |   14   |   13   |   12   |   11   |   10   |    9   |     8          |
+  //  1   ||--------------unused---------------|--------Bitmap of Active Levels------------|
+  private static final int SER_VER = 1;
+  private static final int PREAMBLE_LONGS = 2;
+  private static final int PREAMBLE_LONGS_BYTE = 0;
+  private static final int SER_VER_BYTE = 1;
+  private static final int NUM_LEVELS_BYTE = 2;
+  private static final int KEY_SIZE_INT = 4;
+  private static final int LEVELS_BITMAP_INT = 8;
   private final int keySizeBytes_;
+  private final MemoryRequestServer memReqSvr_; // null if this map wraps a read-only image
+  // reused when hashing long identifiers
+  private final long[] idHash_ = new long[2];
 
   /** TraverseCouponMap or HashCouponMap instances */
   private final Map[] maps_;
@@ -108,11 +145,128 @@ public class UniqueCountMap {
    * @param keySizeBytes must be at least 4 bytes to have sufficient entropy
    */
   public UniqueCountMap(final int initialNumEntries, final int keySizeBytes) {
+    this(initialNumEntries, keySizeBytes, Map.DEFAULT_MEM_REQ_SVR);
+  }
+
+  /**
+   * Constructs a UniqueCountMap with a given initial number of entries, whose internal maps hold
+   * their arrays in memory obtained from the given server.
+   *
+   * @param initialNumEntries The initial number of entries provides a tradeoff between
+   * wasted space, if too high, and wasted time resizing the table, if too low.
+   * @param keySizeBytes must be at least 4 bytes to have sufficient entropy
+   * @param memReqSvr the server that provides the memory of the internal maps and receives it
+   * back through {@link MemoryRequestServer#requestClose(WritableMemory, WritableMemory)} when a
+   * map is resized, or with a null replacement when this map is closed.
+   */
+  public UniqueCountMap(final int initialNumEntries, final int keySizeBytes,
+      final MemoryRequestServer memReqSvr) {
     checkConstructorKeySize(keySizeBytes);
+    if (memReqSvr == null) {
+      throw new SketchesArgumentException("MemoryRequestServer must not be null");
+    }
     final int initEntries = Math.max(initialNumEntries, MIN_INITIAL_NUM_ENTRIES);
     keySizeBytes_ = keySizeBytes;
+    memReqSvr_ = memReqSvr;
     maps_ = new Map[NUM_LEVELS]; // includes base level and top level
-    maps_[0] = SingleCouponMap.getInstance(initEntries, keySizeBytes);
+    maps_[0] = SingleCouponMap.getInstance(initEntries, keySizeBytes, memReqSvr);
+  }
+
+  private UniqueCountMap(final int keySizeBytes, final MemoryRequestServer memReqSvr,
+      final Map[] maps) {
+    keySizeBytes_ = keySizeBytes;
+    memReqSvr_ = memReqSvr;
+    maps_ = maps;
+  }
+
+  /**
+   * Returns a UniqueCountMap from the given srcMem, which must hold an image written by
+   * {@link #toByteArray()} or {@link #writeTo(WritableMemory)}. The image holds the internal
+   * tables of all levels as is, so this is a sequence of bulk copies without rehashing any keys.
+   *
+   * @param srcMem an image of a UniqueCountMap
+   * @return a UniqueCountMap equal to the one that wrote the image
+   */
+  public static UniqueCountMap heapify(final Memory srcMem) {
+    return heapify(srcMem, Map.DEFAULT_MEM_REQ_SVR);
+  }
+
+  /**
+   * Returns a UniqueCountMap from the given srcMem, whose internal maps hold their arrays in
+   * memory obtained from the given server. See {@link #heapify(Memory)}.
+   *
+   * @param srcMem an image of a UniqueCountMap
+   * @param memReqSvr the server of the memory of the internal maps of the returned map
+   * @return a UniqueCountMap equal to the one that wrote the image
+   */
+  public static UniqueCountMap heapify(final Memory srcMem, final MemoryRequestServer memReqSvr) {
+    if (memReqSvr == null) {
+      throw new SketchesArgumentException("MemoryRequestServer must not be null");
+    }
+    return readImage(srcMem, memReqSvr);
+  }
+
+  /**
+   * Wraps a read-only UniqueCountMap around the given srcMem, which must hold an image written by
+   * {@link #toByteArray()} or {@link #writeTo(WritableMemory)}. No tables are copied, so wrapping
+   * the image in a memory-mapped file is near instant, and only the pages touched by queries are
+   * read from the file. All queries and {@link #toByteArray()} are supported, as is merging the
+   * returned map into another map, while any attempt to update the returned map or to merge into
+   * it throws a {@link SketchesReadOnlyException}.
+   *
+   * @param srcMem an image of a UniqueCountMap, which must stay valid and unchanged for as long as
+   * the returned map is used
+   * @return a read-only UniqueCountMap that wraps the given srcMem
+   */
+  public static UniqueCountMap wrap(final Memory srcMem) {
+    return readImage(srcMem, null);
+  }
+
+  // heapifies the image into memory from the given server, or wraps it if the server is null
+  private static UniqueCountMap readImage(final Memory srcMem,
+      final MemoryRequestServer memReqSvr) {
+    if (srcMem.getCapacity() < (PREAMBLE_LONGS << 3)) {
+      throw new SketchesArgumentException("Possible corruption: Insufficient memory for preamble: "
+          + srcMem.getCapacity());
+    }
+    final int preLongs = srcMem.getByte(PREAMBLE_LONGS_BYTE) & 0XFF;
+    final int serVer = srcMem.getByte(SER_VER_BYTE) & 0XFF;
+    final int numLevels = srcMem.getByte(NUM_LEVELS_BYTE) & 0XFF;
+    if ((preLongs != PREAMBLE_LONGS) || (serVer != SER_VER) || (numLevels != NUM_LEVELS)) {
+      throw new SketchesArgumentException("Possible corruption: Preamble longs, Ser. Ver. or "
+          + "levels incorrect: " + preLongs + ", " + serVer + ", " + numLevels);
+    }
+    final int keySizeBytes = srcMem.getInt(KEY_SIZE_INT);
+    checkConstructorKeySize(keySizeBytes);
+    final int levelsBitmap = srcMem.getInt(LEVELS_BITMAP_INT);
+    if ((levelsBitmap & 1) == 0) {
+      throw new SketchesArgumentException("Possible corruption: Base map missing");
+    }
+
+    final Map[] maps = new Map[NUM_LEVELS];
+    try {
+      long offset = PREAMBLE_LONGS << 3;
+      for (int level = 0; level < NUM_LEVELS; level++) {
+        if ((levelsBitmap & (1 << level)) == 0) { continue; }
+        final Map map = (memReqSvr == null) ? Map.wrap(srcMem, offset, keySizeBytes)
+            : Map.heapify(srcMem, offset, keySizeBytes, memReqSvr);
+        maps[level] = map;
+        if (map.getClass() != getMapClassForLevel(level)) {
+          throw new SketchesArgumentException("Possible corruption: "
+              + map.getClass().getSimpleName() + " found at level " + level);
+        }
+        if ((level > 0) && (level < (NUM_LEVELS - 1))
+            && (map.getMaxCouponsPerEntry() != (1 << level))) {
+          throw new SketchesArgumentException("Possible corruption: Invalid coupons per entry "
+              + map.getMaxCouponsPerEntry() + " at level " + level);
+        }
+        offset += map.getSerializedSizeBytes();
+      }
+    } catch (final SketchesArgumentException e) {
+      closeMaps(maps); // return the memory of the maps read so far
+      throw e;
+    }
+    return new UniqueCountMap(keySizeBytes, memReqSvr, maps);
   }
 
   /**
@@ -123,11 +277,97 @@ public class UniqueCountMap {
    * @return the estimate of the number of unique identifiers encountered so far for the given key.
    */
   public double update(final byte[] key, final byte[] identifier) {
+    checkWritable("update");
     if (key == null) { return Double.NaN; }
     checkMethodKeySize(key);
     if (identifier == null) { return getEstimate(key); }
-    final short coupon = (short) Map.coupon16(identifier);
+    return update(key, (short) Map.coupon16(identifier));
+  }
 
+  /**
+   * Updates the map with a given long key and long identifier and returns the estimate of the
+   * number of unique identifiers encountered so far for the given key. This requires a key size
+   * of 8 bytes, and is the same as {@link #update(byte[], byte[])} with the 8 little-endian bytes
+   * of the key and of the identifier, except that no arrays are allocated unless the key is
+   * promoted to the next internal map.
+   * @param key the given key
+   * @param identifier the given identifier for unique counting associated with the key
+   * @return the estimate of the number of unique identifiers encountered so far for the given key.
+   */
+  public double update(final long key, final long identifier) {
+    checkWritable("update");
+    checkLongKeySize();
+    final short coupon = (short) Map.coupon16(identifier, idHash_);
+    final int baseMapIndex = maps_[0].findOrInsertKey(key);
+    final double baseMapEstimate = maps_[0].update(baseMapIndex, coupon);
+    if (baseMapEstimate > 0) { return baseMapEstimate; }
+    final int level = -(int) baseMapEstimate; // base map is level 0
+    if (level == 0) {
+      return promote(Util.longToBytes(key, new byte[Long.BYTES]), coupon, maps_[0], baseMapIndex,
+          level, baseMapIndex, 0);
+    }
+
+    final Map map = maps_[level];
+    final int index = map.findOrInsertKey(key);
+    final double estimate = map.update(index, coupon);
+    if (estimate > 0) { return estimate; }
+    return promote(Util.longToBytes(key, new byte[Long.BYTES]), coupon, map, index, level,
+        baseMapIndex, -estimate);
+  }
+
+  /**
+   * Merges the given map into this one, so that the estimate of every key is that of the union of
+   * the identifiers seen by both maps for that key. The given map is not modified.
+   *
+   * <p>The coupons of the keys in the coupon maps of the given map are applied to this map key by
+   * key, promoting keys as needed, exactly as if their identifiers had been updated into this map.
+   * The keys in the HLL map of the given map are first promoted to the HLL map of this map and
+   * then merged register by register. The HIP estimator is not mergeable, so once a merge changes
+   * any of the registers of a key, the estimate of that key is replaced by the HLL estimate from
+   * its registers, which has a slightly larger error than HIP.
+   *
+   * <p>A merge that raises none of the registers of a key, for instance because the identifiers
+   * of the given map for that key are a subset of those of this map, leaves the register state
+   * unchanged and so keeps the HIP estimate of that key. The estimate of a key can therefore
+   * depend on the order of merges: merging A into an empty map gives the register estimate of A,
+   * while merging that result back into A keeps the HIP estimate of A.</p>
+   *
+   * @param other the map to merge into this one, which must have the same key size
+   */
+  public void merge(final UniqueCountMap other) {
+    checkWritable("merge");
+    if ((other == null) || (other == this)) { return; }
+    if (other.keySizeBytes_ != keySizeBytes_) {
+      throw new SketchesArgumentException("Key size of other map " + other.keySizeBytes_
+          + " does not match " + keySizeBytes_);
+    }
+    final SingleCouponMap otherBaseMap = (SingleCouponMap) other.maps_[0];
+    final byte[] key = new byte[keySizeBytes_];
+    for (int i = 0; i < otherBaseMap.getTableEntries(); i++) {
+      final short coupon = otherBaseMap.getCoupon(i);
+      if (coupon == 0) { continue; }
+      otherBaseMap.getKey(i, key);
+      if (otherBaseMap.isCoupon(i)) {
+        update(key, coupon);
+        continue;
+      }
+      final int level = coupon;
+      final Map otherMap = other.maps_[level];
+      final int otherIndex = otherMap.findKey(key);
+      if (level < (NUM_LEVELS - 1)) {
+        final CouponsIterator it = otherMap.getCouponsIterator(otherIndex);
+        while (it.next()) {
+          update(key, it.getValue());
+        }
+      } else {
+        final HllMap hllMap = (HllMap) getMapForLevel(level);
+        final int index = promoteToHllMap(key);
+        hllMap.mergeRegisters(index, (HllMap) otherMap, otherIndex);
+      }
+    }
+  }
+
+  private double update(final byte[] key, final short coupon) {
     final int baseMapIndex = maps_[0].findOrInsertKey(key);
     final double baseMapEstimate = maps_[0].update(baseMapIndex, coupon);
     if (baseMapEstimate > 0) { return baseMapEstimate; }
@@ -159,6 +399,26 @@ public class UniqueCountMap {
     return map.getEstimate(key);
   }
 
+  /**
+   * Retrieves the current estimate of unique count for a given long key. This requires a key size
+   * of 8 bytes, and is the same as {@link #getEstimate(byte[])} with the 8 little-endian bytes of
+   * the key.
+   * @param key given key
+   * @return estimate of unique count so far
+   */
+  public double getEstimate(final long key) {
+    checkLongKeySize();
+    final SingleCouponMap baseMap = (SingleCouponMap) maps_[0];
+    final int baseMapIndex = baseMap.findKey(key);
+    if (baseMapIndex < 0) { return 0; }
+    if (baseMap.isCoupon(baseMapIndex)) { return 1; }
+    //key has been promoted
+    final Map map = maps_[baseMap.getCoupon(baseMapIndex)];
+    final int index = map.findKey(key);
+    if (index < 0) { return 0; }
+    return map.getEntryEstimate(index);
+  }
+
   /**
    * Returns the upper bound cardinality with respect to {@link #getEstimate(byte[])} associated
    * with the given key.
@@ -195,6 +455,80 @@ public class UniqueCountMap {
     return map.getLowerBound(key);
   }
 
+  /**
+   * Returns the keys with the largest estimates, in descending order of their estimates.
+   *
+   * <p>The internal maps are searched from the HLL map down to the base map, and a search stops
+   * as soon as the estimates of the keys found so far are not smaller than any estimate the next
+   * map can hold. Keys that were not promoted have an estimate of at most 1 and keys in a coupon
+   * traverse map at most its number of coupons per key, so the maps holding most of the keys are
+   * usually never scanned.</p>
+   *
+   * <p>Keys with equal estimates are returned in no particular order, and if the n-th and the
+   * (n+1)-th estimates are equal, either key may be returned.</p>
+   *
+   * @param n the maximum number of keys to return, which must be positive
+   * @return an array of at most n rows with the keys with the largest estimates
+   */
+  public Row[] topKeys(final int n) {
+    if (n < 1) {
+      throw new SketchesArgumentException("n must be positive: " + n);
+    }
+    final PriorityQueue<Candidate> heap = new PriorityQueue<>(n);
+    for (int level = NUM_LEVELS - 1; level >= 0; level--) {
+      final Map map = maps_[level];
+      if (map == null) { continue; }
+      if ((heap.size() == n) && (heap.peek().estimate >= map.getMaxEntryEstimate())) { break; }
+      final int tableEntries = map.getTableEntries();
+      for (int i = 0; i < tableEntries; i++) {
+        if (!map.isActive(i)) { continue; }
+        final double estimate = map.getEntryEstimate(i);
+        if (heap.size() < n) {
+          heap.add(new Candidate(level, i, estimate));
+        } else if (estimate > heap.peek().estimate) {
+          final Candidate min = heap.poll();
+          min.level = level;
+          min.index = i;
+          min.estimate = estimate;
+          heap.add(min);
+        }
+      }
+    }
+    final Row[] rows = new Row[heap.size()];
+    for (int i = rows.length; i-- > 0; ) {
+      final Candidate c = heap.poll();
+      rows[i] = getRow(maps_[c.level], c.index, c.estimate);
+    }
+    return rows;
+  }
+
+  /**
+   * Returns the keys with estimates greater than the given threshold, in descending order of
+   * their estimates. The internal maps that cannot hold such a key are not scanned.
+   * See {@link #topKeys(int)}.
+   *
+   * @param threshold the given threshold
+   * @return an array of rows with the keys with estimates greater than the given threshold
+   */
+  public Row[] keysAbove(final double threshold) {
+    final List<Row> rows = new ArrayList<>();
+    for (int level = NUM_LEVELS - 1; level >= 0; level--) {
+      final Map map = maps_[level];
+      if (map == null) { continue; }
+      if (map.getMaxEntryEstimate() <= threshold) { break; }
+      final int tableEntries = map.getTableEntries();
+      for (int i = 0; i < tableEntries; i++) {
+        if (!map.isActive(i)) { continue; }
+        final double estimate = map.getEntryEstimate(i);
+        if (estimate > threshold) {
+          rows.add(getRow(map, i, estimate));
+        }
+      }
+    }
+    Collections.sort(rows, Collections.reverseOrder());
+    return rows.toArray(new Row[rows.size()]);
+  }
+
   /**
    * Returns the number of active, unique keys across all internal maps
    * @return the number of active, unique keys across all internal maps
@@ -239,6 +573,80 @@ public class UniqueCountMap {
     return (double) (getMemoryUsageBytes() - getKeyMemoryUsageBytes()) / getActiveEntries();
   }
 
+  /**
+   * Returns the number of bytes required to serialize this map with {@link #toByteArray()} or
+   * {@link #writeTo(WritableMemory)}.
+   * @return the number of bytes required to serialize this map
+   */
+  public long getSerializedSizeBytes() {
+    long total = PREAMBLE_LONGS << 3;
+    for (int i = 0; i < maps_.length; i++) {
+      if (maps_[i] != null) {
+        total += maps_[i].getSerializedSizeBytes();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns a byte array image of this map, including the internal tables of all levels.
+   * See {@link #writeTo(WritableMemory)}.
+   * @return a byte array image of this map
+   */
+  public byte[] toByteArray() {
+    final long bytes = getSerializedSizeBytes();
+    if (bytes > Integer.MAX_VALUE) {
+      throw new SketchesArgumentException("Map too large for a byte array, use writeTo(): "
+          + bytes);
+    }
+    final byte[] outArr = new byte[(int) bytes];
+    writeTo(WritableMemory.wrap(outArr));
+    return outArr;
+  }
+
+  /**
+   * Writes an image of this map, including the internal tables of all levels, to the start of the
+   * given destination. Every table is written as is, with each array 8-byte aligned, so the image
+   * can be written to and restored from a memory-mapped file with bulk copies only.
+   * @param dstMem the destination, which must have at least {@link #getSerializedSizeBytes()}
+   * bytes of capacity
+   */
+  public void writeTo(final WritableMemory dstMem) {
+    final long bytes = getSerializedSizeBytes();
+    if (dstMem.getCapacity() < bytes) {
+      throw new SketchesArgumentException("Destination capacity " + dstMem.getCapacity()
+          + " less than required " + bytes);
+    }
+    int levelsBitmap = 0;
+    for (int level = 0; level < maps_.length; level++) {
+      if (maps_[level] != null) { levelsBitmap |= 1 << level; }
+    }
+    dstMem.putByte(PREAMBLE_LONGS_BYTE, (byte) PREAMBLE_LONGS);
+    dstMem.putByte(SER_VER_BYTE, (byte) SER_VER);
+    dstMem.putByte(NUM_LEVELS_BYTE, (byte) NUM_LEVELS);
+    dstMem.putByte(NUM_LEVELS_BYTE + 1, (byte) 0);
+    dstMem.putInt(KEY_SIZE_INT, keySizeBytes_);
+    dstMem.putInt(LEVELS_BITMAP_INT, levelsBitmap);
+    dstMem.putInt(LEVELS_BITMAP_INT + 4, 0);
+
+    long offset = PREAMBLE_LONGS << 3;
+    for (int level = 0; level < maps_.length; level++) {
+      if (maps_[level] != null) {
+        maps_[level].writeTo(dstMem, offset);
+        offset += maps_[level].getSerializedSizeBytes();
+      }
+    }
+  }
+
+  /**
+   * Returns the memory of all internal maps to the memory request server. This is required to
+   * release off-heap memory, and the map must not be used afterwards. A map returned by
+   * {@link #wrap(Memory)} does not own its memory, so closing it only drops its references.
+   */
+  public void close() {
+    closeMaps(maps_);
+  }
+
   /**
    * Returns the number of active internal maps so far.
    * Only the base map is initialized in the constructor, so this method would return 1.
@@ -263,6 +671,15 @@ public class UniqueCountMap {
     return maps_[0];
   }
 
+  /**
+   * Returns the map of the given level. It may be null.
+   * @param level the given level
+   * @return the map of the given level.
+   */
+  Map getMap(final int level) {
+    return maps_[level];
+  }
+
   /**
    * Returns the top-level HllMap. It may be null.
    * @return the top-level HllMap.
@@ -333,20 +750,75 @@ public class UniqueCountMap {
     return newEstimate;
   }
 
+  // Moves the given key directly to the HLL map, with all its coupons and its estimate, and
+  // returns its index in the HLL map. A new key is inserted.
+  private int promoteToHllMap(final byte[] key) {
+    final int hllLevel = NUM_LEVELS - 1;
+    final Map hllMap = getMapForLevel(hllLevel);
+    final SingleCouponMap baseMap = (SingleCouponMap) maps_[0];
+    final int baseMapIndex = baseMap.findOrInsertKey(key);
+    final short baseCoupon = baseMap.getCoupon(baseMapIndex);
+    if ((baseCoupon != 0) && !baseMap.isCoupon(baseMapIndex) && (baseCoupon == hllLevel)) {
+      return hllMap.findKey(key);
+    }
+    final int hllIndex = hllMap.findOrInsertKey(key);
+    if (baseCoupon == 0) { // new key
+      baseMap.setLevel(baseMapIndex, hllLevel);
+      return hllIndex;
+    }
+    if (baseMap.isCoupon(baseMapIndex)) {
+      hllMap.update(hllIndex, baseCoupon);
+    } else {
+      final Map fromMap = maps_[baseCoupon];
+      final int fromIndex = fromMap.findKey(key);
+      final double estimate = fromMap.getEstimate(key);
+      final CouponsIterator it = fromMap.getCouponsIterator(fromIndex);
+      while (it.next()) {
+        hllMap.update(hllIndex, it.getValue());
+      }
+      fromMap.deleteKey(fromIndex);
+      hllMap.updateEstimate(hllIndex, estimate);
+    }
+    baseMap.setLevel(baseMapIndex, hllLevel);
+    return hllIndex;
+  }
+
   private Map getMapForLevel(final int level) {
     if (maps_[level] == null) {
       final int newLevelCapacity = 1 << level;
       if (level <= NUM_TRAVERSE_MAPS) {
-        maps_[level] = CouponTraverseMap.getInstance(keySizeBytes_, newLevelCapacity);
+        maps_[level] = CouponTraverseMap.getInstance(keySizeBytes_, newLevelCapacity, memReqSvr_);
       } else if (level < (maps_.length - 1)) {
-        maps_[level] = CouponHashMap.getInstance(keySizeBytes_, newLevelCapacity);
+        maps_[level] = CouponHashMap.getInstance(keySizeBytes_, newLevelCapacity, memReqSvr_);
       } else {
-        maps_[level] = HllMap.getInstance(keySizeBytes_, HLL_K);
+        maps_[level] = HllMap.getInstance(keySizeBytes_, HLL_K, memReqSvr_);
       }
     }
     return maps_[level];
   }
 
+  private Row getRow(final Map map, final int index, final double estimate) {
+    final byte[] key = new byte[keySizeBytes_];
+    map.getKey(index, key);
+    return new Row(key, estimate, getUpperBound(key), getLowerBound(key));
+  }
+
+  private static void closeMaps(final Map[] maps) {
+    for (int i = 0; i < maps.length; i++) {
+      if (maps[i] != null) {
+        maps[i].close();
+        maps[i] = null;
+      }
+    }
+  }
+
+  private static Class<? extends Map> getMapClassForLevel(final int level) {
+    if (level == 0) { return SingleCouponMap.class; }
+    if (level <= NUM_TRAVERSE_MAPS) { return CouponTraverseMap.class; }
+    if (level < (NUM_LEVELS - 1)) { return CouponHashMap.class; }
+    return HllMap.class;
+  }
+
   private static final void checkConstructorKeySize(final int keySizeBytes) {
     if (keySizeBytes < 4) {
       throw new SketchesArgumentException("KeySizeBytes must be >= 4: " + keySizeBytes);
@@ -359,4 +831,126 @@ public class UniqueCountMap {
     }
   }
 
+  private void checkWritable(final String method) {
+    if (memReqSvr_ == null) {
+      throw new SketchesReadOnlyException("Call to " + method + " on read-only map");
+    }
+  }
+
+  private final void checkLongKeySize() {
+    if (keySizeBytes_ != Long.BYTES) {
+      throw new SketchesArgumentException("Long keys require a key size of 8 bytes, not "
+          + keySizeBytes_ + " bytes.");
+    }
+  }
+
+  /**
+   * Row class that defines the return values from a search for keys with large estimates.
+   */
+  public static class Row implements Comparable<Row> {
+    final byte[] key;
+    final double est;
+    final double ub;
+    final double lb;
+    private static final String FMT =  "  %12.3f%12.3f%12.3f %s";
+    private static final String HFMT = "  %12s%12s%12s %s";
+
+    Row(final byte[] key, final double estimate, final double ub, final double lb) {
+      this.key = key;
+      est = estimate;
+      this.ub = ub;
+      this.lb = lb;
+    }
+
+    /**
+     * @return the key, which must not be modified
+     */
+    public byte[] getKey() { return key; }
+
+    /**
+     * @return the estimate of the number of unique identifiers of the key
+     */
+    public double getEstimate() { return est; }
+
+    /**
+     * @return the upper bound of the number of unique identifiers of the key
+     */
+    public double getUpperBound() { return ub; }
+
+    /**
+     * @return the lower bound of the number of unique identifiers of the key
+     */
+    public double getLowerBound() { return lb; }
+
+    /**
+     * @return the descriptive row header
+     */
+    public static String getRowHeader() {
+      return String.format(HFMT,"Est", "UB", "LB", "Key");
+    }
+
+    @Override
+    public String toString() {
+      return String.format(FMT, est, ub, lb, Arrays.toString(key));
+    }
+
+    /**
+     * This compareTo is strictly limited to the Row.getEstimate() value and does not imply any
+     * ordering whatsoever to the other elements of the row: key and upper and lower bounds.
+     * Defined this way, this compareTo will be consistent with hashCode() and equals(Object).
+     * @param that the other row to compare to.
+     * @return a negative integer, zero, or a positive integer as this.getEstimate() is less than,
+     * equal to, or greater than that.getEstimate().
+     */
+    @Override
+    public int compareTo(final Row that) {
+      return Double.compare(est, that.est);
+    }
+
+    /**
+     * This hashCode is computed only from the Row.getEstimate() value.
+     * Defined this way, this hashCode will be consistent with equals(Object):<br>
+     * If (x.equals(y)) implies: x.hashCode() == y.hashCode().<br>
+     * If (!x.equals(y)) does NOT imply: x.hashCode() != y.hashCode().
+     * @return the hashCode computed from getEstimate().
+     */
+    @Override
+    public int hashCode() {
+      return Double.hashCode(est);
+    }
+
+    /**
+     * This equals is computed only from the Row.getEstimate() value and does not imply equality
+     * of the other items within the row: key and upper and lower bounds.
+     * Defined this way, this equals will be consistent with compareTo(Row).
+     * @param obj the other row to determine equality with.
+     * @return true if this.getEstimate() equals ((Row)obj).getEstimate().
+     */
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) { return true; }
+      if ((obj == null) || !(obj instanceof Row)) { return false; }
+      final Row that = (Row) obj;
+      return Double.compare(est, that.est) == 0;
+    }
+  }
+
+  // an entry of one of the internal maps that is a candidate for topKeys, ordered by estimate
+  private static final class Candidate implements Comparable<Candidate> {
+    int level;
+    int index;
+    double estimate;
+
+    Candidate(final int level, final int index, final double estimate) {
+      this.level = level;
+      this.index = index;
+      this.estimate = estimate;
+    }
+
+    @Override
+    public int compareTo(final Candidate that) {
+      return Double.compare(estimate, that.estimate);
+    }
+  }
+
 }
@@ -0,0 +1,751 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.kll;
+
+import static com.yahoo.sketches.kll.KllFloatsSketch.DATA_START;
+import static com.yahoo.sketches.kll.KllFloatsSketch.DATA_START_SINGLE_ITEM;
+import static com.yahoo.sketches.kll.KllFloatsSketch.DEFAULT_M;
+import static com.yahoo.sketches.kll.KllFloatsSketch.FLAGS_BYTE;
+import static com.yahoo.sketches.kll.KllFloatsSketch.K_SHORT;
+import static com.yahoo.sketches.kll.KllFloatsSketch.MIN_K_SHORT;
+import static com.yahoo.sketches.kll.KllFloatsSketch.M_BYTE;
+import static com.yahoo.sketches.kll.KllFloatsSketch.NUM_LEVELS_BYTE;
+import static com.yahoo.sketches.kll.KllFloatsSketch.N_LONG;
+import static com.yahoo.sketches.kll.KllFloatsSketch.SER_VER_BYTE;
+import static com.yahoo.sketches.kll.KllFloatsSketch.serialVersionUID3;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.yahoo.memory.DefaultMemoryRequestServer;
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.QuantilesHelper;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesReadOnlyException;
+import com.yahoo.sketches.Util;
+import com.yahoo.sketches.kll.KllFloatsSketch.Flags;
+
+/**
+ * Implements the KllFloatsSketch off-heap.
+ *
+ * <p>The updatable sketch keeps its levels and items in place in the given WritableMemory using
+ * the updatable layout (serial version 3), which can be obtained from
+ * {@link KllFloatsSketch#toUpdatableByteArray()} or created empty with
+ * {@link #newInstance(int, WritableMemory)}. Updates write directly into the Memory.
+ * When the sketch needs another level and the Memory is too small, larger Memory is requested from
+ * the MemoryRequestServer of the current Memory.
+ *
+ * <p>A read-only sketch can be wrapped around either the compact form produced by
+ * {@link KllFloatsSketch#toByteArray()} or the updatable form. Queries read the items directly
+ * from the Memory without creating a heap sketch.
+ *
+ * <p>The accuracy guarantees and query semantics are the same as for {@link KllFloatsSketch}.
+ *
+ * @author Kevin Lang
+ * @author Alexander Saydakov
+ * @author Lee Rhodes
+ */
+public final class KllDirectFloatsSketch {
+  private static final int FLAG_EMPTY = 1 << Flags.IS_EMPTY.ordinal();
+  private static final int FLAG_SORTED = 1 << Flags.IS_LEVEL_ZERO_SORTED.ordinal();
+  private static final int FLAG_SINGLE_ITEM = 1 << Flags.IS_SINGLE_ITEM.ordinal();
+
+  private final int k_;
+  private final int m_;
+  private final boolean updatable_; // updatable layout, which may still be wrapped read-only
+  private Memory mem_;
+  private WritableMemory wmem_; // null if read-only
+  private MemoryRequestServer memReqSvr = null;
+  private final SplittableRandom random_;
+
+  private KllDirectFloatsSketch(final Memory mem, final WritableMemory wmem) {
+    mem_ = mem;
+    wmem_ = wmem;
+    k_ = mem.getShort(K_SHORT) & 0xffff;
+    m_ = mem.getByte(M_BYTE) & 0xff;
+    updatable_ = (mem.getByte(SER_VER_BYTE) & 0xff) == serialVersionUID3;
+    random_ = new SplittableRandom();
+  }
+
+  /**
+   * Obtains a new updatable off-heap instance of KllFloatsSketch.
+   *
+   * @param k parameter that controls size of the sketch and accuracy of estimates
+   * @param dstMem the destination Memory that will be initialized to hold the data for this
+   * sketch. It must be at least {@link #getUpdatableStorageBytes(int)} bytes. As the sketch grows
+   * it will request more memory using the MemoryRequestServer of this Memory.
+   * @return a new KllDirectFloatsSketch
+   */
+  public static KllDirectFloatsSketch newInstance(final int k, final WritableMemory dstMem) {
+    KllFloatsSketch.checkK(k);
+    final long memCap = dstMem.getCapacity();
+    if (memCap < getUpdatableStorageBytes(k)) {
+      throw new SketchesArgumentException("Memory capacity is too small: " + memCap + " < "
+          + getUpdatableStorageBytes(k));
+    }
+    new KllFloatsSketch(k).putUpdatableImage(dstMem);
+    return new KllDirectFloatsSketch(dstMem, dstMem);
+  }
+
+  /**
+   * Wraps an updatable sketch around the given Memory image in the updatable layout.
+   * Updates will be written into the given Memory.
+   *
+   * @param srcMem the given Memory image of a sketch in the updatable layout
+   * @return an updatable sketch that wraps the given srcMem
+   */
+  public static KllDirectFloatsSketch writableWrap(final WritableMemory srcMem) {
+    KllFloatsSketch.checkPreamble(srcMem);
+    if ((srcMem.getByte(SER_VER_BYTE) & 0xff) != serialVersionUID3) {
+      throw new SketchesArgumentException(
+          "Only the updatable layout (serial version 3) can be wrapped for updating");
+    }
+    final KllDirectFloatsSketch sketch = new KllDirectFloatsSketch(srcMem, srcMem);
+    sketch.checkMemCapacity(srcMem.getCapacity());
+    return sketch;
+  }
+
+  /**
+   * Wraps a read-only sketch around the given Memory image in either the compact or the
+   * updatable layout.
+   *
+   * @param srcMem the given Memory image of a sketch
+   * @return a read-only sketch that wraps the given srcMem
+   */
+  public static KllDirectFloatsSketch wrap(final Memory srcMem) {
+    KllFloatsSketch.checkPreamble(srcMem);
+    final KllDirectFloatsSketch sketch = new KllDirectFloatsSketch(srcMem, null);
+    sketch.checkMemCapacity(srcMem.getCapacity());
+    return sketch;
+  }
+
+  /**
+   * Returns the number of bytes required for an empty updatable sketch with the given k.
+   * @param k parameter that controls size of the sketch and accuracy of estimates
+   * @return the number of bytes required for an empty updatable sketch
+   */
+  public static int getUpdatableStorageBytes(final int k) {
+    return KllFloatsSketch.getUpdatableSerializedSizeBytes(1, k);
+  }
+
+  /**
+   * Returns upper bound on the size of the updatable layout given a parameter <em>k</em> and
+   * stream length. Memory of this size will never need to grow for the given stream length.
+   * @param k parameter that controls size of the sketch and accuracy of estimates
+   * @param n stream length
+   * @return upper bound on the size of the updatable layout
+   */
+  public static int getMaxUpdatableStorageBytes(final int k, final long n) {
+    final int numLevels = KllHelper.ubOnNumLevels(n);
+    final int capacity = KllHelper.computeTotalCapacity(k, DEFAULT_M, numLevels);
+    return KllFloatsSketch.getUpdatableSerializedSizeBytes(numLevels, capacity);
+  }
+
+  /**
+   * Returns the parameter k
+   * @return parameter k
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the length of the input stream.
+   * @return stream length
+   */
+  public long getN() {
+    if (updatable_) { return mem_.getLong(N_LONG); }
+    final int flags = getFlags();
+    if ((flags & FLAG_EMPTY) > 0) { return 0; }
+    if ((flags & FLAG_SINGLE_ITEM) > 0) { return 1; }
+    return mem_.getLong(N_LONG);
+  }
+
+  /**
+   * Returns true if this sketch is empty.
+   * @return empty flag
+   */
+  public boolean isEmpty() {
+    return getN() == 0;
+  }
+
+  /**
+   * Returns true if this sketch cannot be updated.
+   * @return read-only flag
+   */
+  public boolean isReadOnly() {
+    return wmem_ == null;
+  }
+
+  /**
+   * Returns true if the backing resource of this sketch is identical with the backing resource
+   * of the given Memory.
+   * @param that the given Memory
+   * @return true if the backing resource of this sketch is identical with the backing resource
+   * of the given Memory
+   */
+  public boolean isSameResource(final Memory that) {
+    return mem_.isSameResource(that);
+  }
+
+  /**
+   * Returns the number of retained items (samples) in the sketch.
+   * @return the number of retained items (samples) in the sketch
+   */
+  public int getNumRetained() {
+    final int numLevels = getNumLevels();
+    final int[] levels = getLevels(numLevels);
+    return levels[numLevels] - levels[0];
+  }
+
+  /**
+   * Returns true if this sketch is in estimation mode.
+   * @return estimation mode flag
+   */
+  public boolean isEstimationMode() {
+    return getNumLevels() > 1;
+  }
+
+  /**
+   * Returns the min value of the stream.
+   * If the sketch is empty this returns NaN.
+   *
+   * @return the min value of the stream
+   */
+  public float getMinValue() {
+    if (isEmpty()) { return Float.NaN; }
+    if (isSingleItem()) { return mem_.getFloat(DATA_START_SINGLE_ITEM); }
+    return mem_.getFloat(getMinValueOffset(getNumLevels()));
+  }
+
+  /**
+   * Returns the max value of the stream.
+   * If the sketch is empty this returns NaN.
+   *
+   * @return the max value of the stream
+   */
+  public float getMaxValue() {
+    if (isEmpty()) { return Float.NaN; }
+    if (isSingleItem()) { return mem_.getFloat(DATA_START_SINGLE_ITEM); }
+    return mem_.getFloat(getMinValueOffset(getNumLevels()) + Float.BYTES);
+  }
+
+  /**
+   * Updates this sketch with the given data item.
+   *
+   * @param value an item from a stream of items. NaNs are ignored.
+   */
+  public void update(final float value) {
+    if (Float.isNaN(value)) { return; }
+    checkWritable("update()");
+    final long n = getN();
+    int numLevels = getNumLevels();
+    long minOffset = getMinValueOffset(numLevels);
+    if (n == 0) {
+      wmem_.putFloat(minOffset, value);
+      wmem_.putFloat(minOffset + Float.BYTES, value);
+    } else {
+      if (value < wmem_.getFloat(minOffset)) { wmem_.putFloat(minOffset, value); }
+      if (value > wmem_.getFloat(minOffset + Float.BYTES)) {
+        wmem_.putFloat(minOffset + Float.BYTES, value);
+      }
+    }
+    if (wmem_.getInt(DATA_START) == 0) {
+      compressWhileUpdating();
+      numLevels = getNumLevels();
+      minOffset = getMinValueOffset(numLevels);
+    }
+    final int nextPos = wmem_.getInt(DATA_START) - 1;
+    assert nextPos >= 0;
+    wmem_.putInt(DATA_START, nextPos);
+    wmem_.putFloat(minOffset + (2 * Float.BYTES) + ((long) nextPos * Float.BYTES), value);
+    wmem_.putLong(N_LONG, n + 1);
+    wmem_.putByte(FLAGS_BYTE, (byte) 0); // not empty, level zero not sorted
+  }
+
+  /**
+   * Merges another sketch into this one.
+   * The merge is done on a temporary heap copy, which is then written back into the Memory
+   * of this sketch, growing it if necessary.
+   * @param other sketch to merge into this one
+   */
+  public void merge(final KllFloatsSketch other) {
+    if ((other == null) || other.isEmpty()) { return; }
+    checkWritable("merge()");
+    final KllFloatsSketch heap = new KllFloatsSketch(mem_);
+    heap.merge(other);
+    final int numLevels = heap.getNumLevels();
+    final int needBytes = KllFloatsSketch.getUpdatableSerializedSizeBytes(numLevels,
+        heap.getLevels()[numLevels]);
+    if (needBytes > wmem_.getCapacity()) {
+      final WritableMemory newMem = requestMemory(needBytes);
+      heap.putUpdatableImage(newMem);
+      closeMemory(newMem);
+    } else {
+      heap.putUpdatableImage(wmem_);
+    }
+  }
+
+  /**
+   * Merges another off-heap sketch into this one.
+   * @param other sketch to merge into this one
+   */
+  public void merge(final KllDirectFloatsSketch other) {
+    if ((other == null) || other.isEmpty()) { return; }
+    merge(KllFloatsSketch.heapify(other.mem_));
+  }
+
+  /**
+   * Returns an approximation to the value of the data item
+   * that would be preceded by the given fraction of a hypothetical sorted
+   * version of the input stream so far.
+   *
+   * <p>If the sketch is empty this returns NaN.
+   *
+   * @param fraction the specified fractional position in the hypothetical sorted stream.
+   * @return the approximation to the value at the given fraction
+   * @see KllFloatsSketch#getQuantile(double)
+   */
+  public float getQuantile(final double fraction) {
+    if (isEmpty()) { return Float.NaN; }
+    if (fraction == 0.0) { return getMinValue(); }
+    if (fraction == 1.0) { return getMaxValue(); }
+    if ((fraction < 0.0) || (fraction > 1.0)) {
+      throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+    }
+    return getQuantileCalculator().getQuantile(fraction);
+  }
+
+  /**
+   * Gets the upper bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the upper bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%. Returns NaN if the sketch is empty.
+   */
+  public float getQuantileUpperBound(final double fraction) {
+    return getQuantile(min(1.0, fraction + getNormalizedRankError(false)));
+  }
+
+  /**
+   * Gets the lower bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the lower bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%. Returns NaN if the sketch is empty.
+   */
+  public float getQuantileLowerBound(final double fraction) {
+    return getQuantile(max(0, fraction - getNormalizedRankError(false)));
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getQuantile().
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param fractions given array of fractional positions in the hypothetical sorted stream.
+   * These fractions must be in the interval [0.0, 1.0], inclusive.
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array.
+   * @see KllFloatsSketch#getQuantiles(double[])
+   */
+  public float[] getQuantiles(final double[] fractions) {
+    if (isEmpty()) { return null; }
+    KllFloatsQuantileCalculator quant = null;
+    final float[] quantiles = new float[fractions.length];
+    for (int i = 0; i < fractions.length; i++) {
+      final double fraction = fractions[i];
+      if ((fraction < 0.0) || (fraction > 1.0)) {
+        throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+      }
+      if      (fraction == 0.0) { quantiles[i] = getMinValue(); }
+      else if (fraction == 1.0) { quantiles[i] = getMaxValue(); }
+      else {
+        if (quant == null) {
+          quant = getQuantileCalculator();
+        }
+        quantiles[i] = quant.getQuantile(fraction);
+      }
+    }
+    return quantiles;
+  }
+
+  /**
+   * This is also a more efficient multiple-query version of getQuantile() and allows the caller to
+   * specify the number of evenly spaced fractional ranks.
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param numEvenlySpaced an integer that specifies the number of evenly spaced fractional ranks.
+   * @return array of approximations to the evenly spaced fractional ranks.
+   * @see KllFloatsSketch#getQuantiles(int)
+   */
+  public float[] getQuantiles(final int numEvenlySpaced) {
+    if (isEmpty()) { return null; }
+    return getQuantiles(QuantilesHelper.getEvenlySpacedRanks(numEvenlySpaced));
+  }
+
+  /**
+   * Returns an approximation to the normalized (fractional) rank of the given value from 0 to 1,
+   * inclusive.
+   *
+   * <p>If the sketch is empty this returns NaN.</p>
+   *
+   * @param value to be ranked
+   * @return an approximate rank of the given value
+   * @see KllFloatsSketch#getRank(float)
+   */
+  public double getRank(final float value) {
+    if (isEmpty()) { return Double.NaN; }
+    final int numLevels = getNumLevels();
+    final int[] levels = getLevels(numLevels);
+    return KllHelper.getRank(getItems(numLevels, levels), levels, numLevels,
+        isLevelZeroSorted(), getN(), value);
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getRank().
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param values to be ranked
+   * @return array of approximate ranks of the given values in the same order as given values
+   * array.
+   * @see KllFloatsSketch#getRanks(float[])
+   */
+  public double[] getRanks(final float[] values) {
+    if (isEmpty()) { return null; }
+    final KllFloatsQuantileCalculator quant = getQuantileCalculator();
+    final double[] ranks = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      ranks[i] = quant.getRank(values[i]);
+    }
+    return ranks;
+  }
+
+  /**
+   * Returns an approximation to the Probability Mass Function (PMF) of the input stream
+   * given a set of splitPoints (values).
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing float values
+   * that divide the real number line into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 doubles each of which is an approximation
+   * to the fraction of the input stream values (the mass) that fall into one of those intervals.
+   * @see KllFloatsSketch#getPMF(float[])
+   */
+  public double[] getPMF(final float[] splitPoints) {
+    return getPmfOrCdf(splitPoints, false);
+  }
+
+  /**
+   * Returns an approximation to the Cumulative Distribution Function (CDF), which is the
+   * cumulative analog of the PMF, of the input stream given a set of splitPoint (values).
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing float values
+   * that divide the real number line into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 double values, which are a consecutive approximation to the CDF
+   * of the input stream given the splitPoints.
+   * @see KllFloatsSketch#getCDF(float[])
+   */
+  public double[] getCDF(final float[] splitPoints) {
+    return getPmfOrCdf(splitPoints, true);
+  }
+
+  /**
+   * Gets the approximate rank error of this sketch normalized as a fraction between zero and one.
+   * @param pmf if true, returns the "double-sided" normalized rank error for the getPMF() function.
+   * Otherwise, it is the "single-sided" normalized rank error for all the other queries.
+   * @return if pmf is true, returns the normalized rank error for the getPMF() function.
+   * Otherwise, it is the "single-sided" normalized rank error for all the other queries.
+   */
+  public double getNormalizedRankError(final boolean pmf) {
+    return KllFloatsSketch.getNormalizedRankError(getMinK(), pmf);
+  }
+
+  /**
+   * Returns serialized sketch in the compact form of {@link KllFloatsSketch#toByteArray()}.
+   * @return serialized sketch in the compact form.
+   */
+  public byte[] toByteArray() {
+    if (!updatable_) {
+      final byte[] bytes = new byte[(int) mem_.getCapacity()];
+      mem_.getByteArray(0, bytes, 0, bytes.length);
+      return bytes;
+    }
+    return KllFloatsSketch.heapify(mem_).toByteArray();
+  }
+
+  /**
+   * Returns an iterator over the items retained by this sketch. The order is not defined.
+   * @return an iterator over the items retained by this sketch
+   */
+  public KllFloatsSketchIterator iterator() {
+    final int numLevels = getNumLevels();
+    final int[] levels = getLevels(numLevels);
+    return new KllFloatsSketchIterator(getItems(numLevels, levels), levels, numLevels);
+  }
+
+  @Override
+  public String toString() {
+    final String epsPct = String.format("%.3f%%", getNormalizedRankError(false) * 100);
+    final int numLevels = getNumLevels();
+    final StringBuilder sb = new StringBuilder();
+    sb.append(Util.LS).append("### Direct KLL sketch summary:").append(Util.LS);
+    sb.append("   K                    : ").append(k_).append(Util.LS);
+    sb.append("   min K                : ").append(getMinK()).append(Util.LS);
+    sb.append("   M                    : ").append(m_).append(Util.LS);
+    sb.append("   N                    : ").append(getN()).append(Util.LS);
+    sb.append("   Epsilon              : ").append(epsPct).append(Util.LS);
+    sb.append("   Read Only            : ").append(isReadOnly()).append(Util.LS);
+    sb.append("   Updatable Layout     : ").append(updatable_).append(Util.LS);
+    sb.append("   Levels               : ").append(numLevels).append(Util.LS);
+    sb.append("   Sorted               : ").append(isLevelZeroSorted()).append(Util.LS);
+    sb.append("   Buffer Capacity Items: ").append(getLevels(numLevels)[numLevels]).append(Util.LS);
+    sb.append("   Retained Items       : ").append(getNumRetained()).append(Util.LS);
+    sb.append("   Memory Capacity Bytes: ").append(mem_.getCapacity()).append(Util.LS);
+    sb.append("   Min Value            : ").append(getMinValue()).append(Util.LS);
+    sb.append("   Max Value            : ").append(getMaxValue()).append(Util.LS);
+    sb.append("### End sketch summary").append(Util.LS);
+    return sb.toString();
+  }
+
+  // restricted
+
+  WritableMemory getMemory() {
+    return wmem_;
+  }
+
+  int getNumLevels() {
+    if (updatable_) { return mem_.getByte(NUM_LEVELS_BYTE) & 0xff; }
+    return ((getFlags() & (FLAG_EMPTY | FLAG_SINGLE_ITEM)) > 0)
+        ? 1 : mem_.getByte(NUM_LEVELS_BYTE) & 0xff;
+  }
+
+  /**
+   * Returns the levels array with the absolute positions of the levels in the items buffer,
+   * regardless of the layout.
+   * @param numLevels the current number of levels
+   * @return the levels array of length numLevels + 1
+   */
+  int[] getLevels(final int numLevels) {
+    final int[] levels = new int[numLevels + 1];
+    if (updatable_) {
+      mem_.getIntArray(DATA_START, levels, 0, numLevels + 1);
+      return levels;
+    }
+    final int capacity = KllHelper.computeTotalCapacity(k_, m_, numLevels);
+    final int flags = getFlags();
+    if ((flags & FLAG_EMPTY) > 0) {
+      levels[0] = capacity;
+    } else if ((flags & FLAG_SINGLE_ITEM) > 0) {
+      levels[0] = capacity - 1;
+    } else {
+      // the last integer is not serialized because it can be derived
+      mem_.getIntArray(DATA_START, levels, 0, numLevels);
+    }
+    levels[numLevels] = capacity;
+    return levels;
+  }
+
+  /**
+   * Returns the items buffer with the retained items at their absolute positions.
+   * The free space in level zero is not filled.
+   * @param numLevels the current number of levels
+   * @param levels the current levels array
+   * @return the items buffer
+   */
+  private float[] getItems(final int numLevels, final int[] levels) {
+    final float[] items = new float[levels[numLevels]];
+    final int numRetained = levels[numLevels] - levels[0];
+    mem_.getFloatArray(getItemOffset(numLevels, levels, levels[0]), items, levels[0], numRetained);
+    return items;
+  }
+
+  private long getItemOffset(final int numLevels, final int[] levels, final int index) {
+    if (updatable_) {
+      return getMinValueOffset(numLevels) + (2 * Float.BYTES) + ((long) index * Float.BYTES);
+    }
+    final long start = isSingleItem() ? DATA_START_SINGLE_ITEM : getMinValueOffset(numLevels)
+        + (2 * Float.BYTES);
+    return start + ((long) (index - levels[0]) * Float.BYTES);
+  }
+
+  private long getMinValueOffset(final int numLevels) {
+    final int numLevelInts = updatable_ ? numLevels + 1 : numLevels;
+    return DATA_START + ((long) numLevelInts * Integer.BYTES);
+  }
+
+  private int getMinK() {
+    if (!updatable_ && ((getFlags() & (FLAG_EMPTY | FLAG_SINGLE_ITEM)) > 0)) { return k_; }
+    return mem_.getShort(MIN_K_SHORT) & 0xffff;
+  }
+
+  private int getFlags() {
+    return mem_.getByte(FLAGS_BYTE) & 0xff;
+  }
+
+  private boolean isSingleItem() {
+    return !updatable_ && ((getFlags() & FLAG_SINGLE_ITEM) > 0);
+  }
+
+  private boolean isLevelZeroSorted() {
+    return (getFlags() & FLAG_SORTED) > 0;
+  }
+
+  private KllFloatsQuantileCalculator getQuantileCalculator() {
+    final int numLevels = getNumLevels();
+    final int[] levels = getLevels(numLevels);
+    final float[] items = getItems(numLevels, levels);
+    if (!isLevelZeroSorted()) {
+      Arrays.sort(items, levels[0], levels[1]);
+      if (wmem_ != null) { // sort in the sketch to reuse if possible
+        wmem_.putFloatArray(getItemOffset(numLevels, levels, levels[0]), items, levels[0],
+            levels[1] - levels[0]);
+        wmem_.putByte(FLAGS_BYTE, (byte) (getFlags() | FLAG_SORTED));
+      }
+    }
+    return new KllFloatsQuantileCalculator(items, levels, numLevels, getN());
+  }
+
+  private double[] getPmfOrCdf(final float[] splitPoints, final boolean isCdf) {
+    if (isEmpty()) { return null; }
+    final int numLevels = getNumLevels();
+    final int[] levels = getLevels(numLevels);
+    return KllHelper.getPmfOrCdf(getItems(numLevels, levels), levels, numLevels,
+        isLevelZeroSorted(), getN(), splitPoints, isCdf);
+  }
+
+  // The following code is only valid in the special case of exactly reaching capacity while updating.
+  // Only the levels that take part in the compaction are copied out of the Memory and back.
+  private void compressWhileUpdating() {
+    int numLevels = getNumLevels();
+    int[] levels = getLevels(numLevels);
+    final int level = KllHelper.findLevelToCompact(k_, m_, numLevels, levels);
+
+    if (level == (numLevels - 1)) {
+      addEmptyTopLevelToCompletelyFullSketch(numLevels, levels);
+      numLevels++;
+      levels = getLevels(numLevels);
+    }
+
+    // only the levels up to the one above the compacted level are affected
+    final int beg = levels[0];
+    final int lim = levels[level + 2];
+    final float[] buf = new float[lim];
+    final long itemsOffset = getItemOffset(numLevels, levels, 0);
+    wmem_.getFloatArray(itemsOffset + ((long) beg * Float.BYTES), buf, beg, lim - beg);
+    KllHelper.compactLevelWhileUpdating(buf, levels, level, random_);
+    wmem_.putFloatArray(itemsOffset + ((long) levels[0] * Float.BYTES), buf, levels[0],
+        lim - levels[0]);
+    wmem_.putIntArray(DATA_START, levels, 0, numLevels + 1);
+  }
+
+  // Adds a level, which shifts the items by one int for the levels array and by the capacity
+  // of the new level zero. Requests larger Memory if necessary.
+  private void addEmptyTopLevelToCompletelyFullSketch(final int numLevels, final int[] levels) {
+    final int curTotalCap = levels[numLevels];
+    assert levels[0] == 0;
+
+    final int deltaCap = KllHelper.levelCapacity(k_, numLevels + 1, 0, m_);
+    final int newTotalCap = curTotalCap + deltaCap;
+    final int needBytes = KllFloatsSketch.getUpdatableSerializedSizeBytes(numLevels + 1,
+        newTotalCap);
+
+    final long minOffset = getMinValueOffset(numLevels);
+    final float minValue = wmem_.getFloat(minOffset);
+    final float maxValue = wmem_.getFloat(minOffset + Float.BYTES);
+    final float[] items = new float[curTotalCap];
+    wmem_.getFloatArray(minOffset + (2 * Float.BYTES), items, 0, curTotalCap);
+
+    final WritableMemory newMem;
+    if (needBytes > wmem_.getCapacity()) {
+      newMem = requestMemory(needBytes);
+      wmem_.copyTo(0, newMem, 0, DATA_START);
+    } else {
+      newMem = wmem_;
+    }
+
+    final int[] newLevels = new int[numLevels + 2];
+    for (int i = 0; i <= numLevels; i++) {
+      newLevels[i] = levels[i] + deltaCap;
+    }
+    newLevels[numLevels + 1] = newTotalCap;
+
+    newMem.putByte(NUM_LEVELS_BYTE, (byte) (numLevels + 1));
+    newMem.putIntArray(DATA_START, newLevels, 0, numLevels + 2);
+    final long newMinOffset = DATA_START + ((long) (numLevels + 2) * Integer.BYTES);
+    newMem.putFloat(newMinOffset, minValue);
+    newMem.putFloat(newMinOffset + Float.BYTES, maxValue);
+    newMem.putFloatArray(newMinOffset + (2 * Float.BYTES) + ((long) deltaCap * Float.BYTES),
+        items, 0, curTotalCap);
+
+    if (newMem != wmem_) {
+      closeMemory(newMem);
+    }
+  }
+
+  private WritableMemory requestMemory(final long needBytes) {
+    if (memReqSvr == null) {
+      memReqSvr = wmem_.getMemoryRequestServer();
+      if (memReqSvr == null) { // heap memory may not have a server
+        memReqSvr = new DefaultMemoryRequestServer();
+      }
+    }
+    return memReqSvr.request(needBytes);
+  }
+
+  private void closeMemory(final WritableMemory newMem) {
+    memReqSvr.requestClose(wmem_, newMem);
+    mem_ = newMem;
+    wmem_ = newMem;
+  }
+
+  private void checkWritable(final String method) {
+    if (wmem_ == null) {
+      throw new SketchesReadOnlyException("Call to " + method + " on read-only sketch");
+    }
+  }
+
+  private void checkMemCapacity(final long memCap) {
+    final int numLevels = getNumLevels();
+    final long needBytes;
+    if (updatable_) {
+      needBytes = KllFloatsSketch.getUpdatableSerializedSizeBytes(numLevels,
+          getLevels(numLevels)[numLevels]);
+    } else if (isEmpty()) {
+      needBytes = N_LONG;
+    } else {
+      needBytes = getItemOffset(numLevels, getLevels(numLevels), getLevels(numLevels)[numLevels]);
+    }
+    if (memCap < needBytes) {
+      throw new SketchesArgumentException("Possible corruption: Memory capacity is too small: "
+          + memCap + " < " + needBytes);
+    }
+  }
+
+}
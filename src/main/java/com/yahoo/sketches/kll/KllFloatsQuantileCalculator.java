@@ -54,6 +54,49 @@ final class KllFloatsQuantileCalculator {
     return approximatelyAnswerPositonalQuery(pos);
   }
 
+  /**
+   * Returns the normalized rank of the given value, which is the total weight of the items
+   * less than the given value divided by n.
+   * @param value to be ranked
+   * @return the normalized rank
+   */
+  double getRank(final float value) {
+    return (double) weights_[lowerBound(value)] / n_;
+  }
+
+  /**
+   * Returns the PMF or CDF given the split points, which must be validated by the caller.
+   * @param splitPoints unique, monotonically increasing values
+   * @param isCdf if true the CDF is returned, otherwise the PMF
+   * @return an array of splitPoints.length + 1 normalized masses or cumulative masses
+   */
+  double[] getPmfOrCdf(final float[] splitPoints, final boolean isCdf) {
+    final double[] buckets = new double[splitPoints.length + 1];
+    long prevWeight = 0;
+    for (int j = 0; j < splitPoints.length; j++) {
+      final long weight = weights_[lowerBound(splitPoints[j])];
+      buckets[j] = (double) (isCdf ? weight : weight - prevWeight) / n_;
+      prevWeight = weight;
+    }
+    buckets[splitPoints.length] = (double) (isCdf ? n_ : n_ - prevWeight) / n_;
+    return buckets;
+  }
+
+  // returns the index of the first item that is not less than the given value
+  private int lowerBound(final float value) {
+    int lo = 0;
+    int hi = items_.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (items_[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
   private float approximatelyAnswerPositonalQuery(final long pos) {
     assert pos >= 0;
     assert pos < n_;
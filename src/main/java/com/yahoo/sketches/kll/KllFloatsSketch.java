@@ -19,6 +19,7 @@
 
 package com.yahoo.sketches.kll;
 
+import static com.yahoo.sketches.Util.checkArrayRange;
 import static java.lang.Math.abs;
 import static java.lang.Math.ceil;
 import static java.lang.Math.exp;
@@ -29,8 +30,10 @@ import static java.lang.Math.pow;
 import static java.lang.Math.round;
 
 import java.util.Arrays;
+import java.util.SplittableRandom;
 
 import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.ByteArrayUtil;
 import com.yahoo.sketches.Family;
 import com.yahoo.sketches.QuantilesHelper;
@@ -163,28 +166,36 @@ public class KllFloatsSketch {
    *  1   ||---------------------------------N_LONG---------------------------------------|
    *      ||   23    |   22  |   21   |   20   |   19   |    18   |   17   |      16      |
    *  2   ||---------------data----------------|--------|numLevels|-------min K-----------|
+   *
+   * The updatable layout (serial version 3) used by KllDirectFloatsSketch has the same preamble,
+   * which is always full, followed by all numLevels + 1 entries of the levels array,
+   * min and max values, and then the whole items buffer including the free space in level zero:
+   *
+   *  20  ||---levels[0]---| ... |---levels[numLevels]---|---min value---|---max value---|
+   *      ||---items[0]---| ... |---items[levels[numLevels] - 1]---|
    */
 
-  private static final int PREAMBLE_INTS_BYTE = 0;
-  private static final int SER_VER_BYTE       = 1;
-  private static final int FAMILY_BYTE        = 2;
-  private static final int FLAGS_BYTE         = 3;
-  private static final int K_SHORT            = 4;  // to 5
-  private static final int M_BYTE             = 6;
-  private static final int N_LONG             = 8;  // to 15
-  private static final int MIN_K_SHORT        = 16;  // to 17
-  private static final int NUM_LEVELS_BYTE    = 18;
-  private static final int DATA_START         = 20;
+  static final int PREAMBLE_INTS_BYTE = 0;
+  static final int SER_VER_BYTE       = 1;
+  static final int FAMILY_BYTE        = 2;
+  static final int FLAGS_BYTE         = 3;
+  static final int K_SHORT            = 4;  // to 5
+  static final int M_BYTE             = 6;
+  static final int N_LONG             = 8;  // to 15
+  static final int MIN_K_SHORT        = 16;  // to 17
+  static final int NUM_LEVELS_BYTE    = 18;
+  static final int DATA_START         = 20;
 
-  private static final int DATA_START_SINGLE_ITEM = 8;
+  static final int DATA_START_SINGLE_ITEM = 8;
 
-  private static final byte serialVersionUID1 = 1;
-  private static final byte serialVersionUID2 = 2;
+  static final byte serialVersionUID1 = 1;
+  static final byte serialVersionUID2 = 2;
+  static final byte serialVersionUID3 = 3; // updatable
 
-  private enum Flags { IS_EMPTY, IS_LEVEL_ZERO_SORTED, IS_SINGLE_ITEM }
+  enum Flags { IS_EMPTY, IS_LEVEL_ZERO_SORTED, IS_SINGLE_ITEM }
 
-  private static final int PREAMBLE_INTS_SHORT = 2; // for empty and single item
-  private static final int PREAMBLE_INTS_FULL = 5;
+  static final int PREAMBLE_INTS_SHORT = 2; // for empty and single item
+  static final int PREAMBLE_INTS_FULL = 5;
 
   /*
    * Data is stored in items_.
@@ -213,12 +224,21 @@ public class KllFloatsSketch {
   private float maxValue_;
   private boolean isLevelZeroSorted_;
 
-  private KllFloatsSketch(final Memory mem) {
+  // sorted view with cumulative weights, built on demand and dropped on update or merge
+  private KllFloatsQuantileCalculator quantileCalculator_;
+
+  // each sketch has its own generator so that compactions of independent sketches
+  // running in different threads do not contend on a shared seed
+  private final SplittableRandom random_;
+
+  KllFloatsSketch(final Memory mem) {
+    random_ = new SplittableRandom();
     m_ = DEFAULT_M;
     k_ = mem.getShort(K_SHORT) & 0xffff;
     final int flags = mem.getByte(FLAGS_BYTE) & 0xff;
     final boolean isEmpty = (flags & (1 << Flags.IS_EMPTY.ordinal())) > 0;
     final boolean isSingleItem = (flags & (1 << Flags.IS_SINGLE_ITEM.ordinal())) > 0;
+    final boolean isUpdatable = (mem.getByte(SER_VER_BYTE) & 0xff) == serialVersionUID3;
     if (isEmpty) {
       numLevels_ = 1;
       levels_ = new int[] {k_, k_};
@@ -242,6 +262,9 @@ public class KllFloatsSketch {
       final int capacity = KllHelper.computeTotalCapacity(k_, m_, numLevels_);
       if (isSingleItem) {
         levels_[0] = capacity - 1;
+      } else if (isUpdatable) {
+        mem.getIntArray(offset, levels_, 0, numLevels_ + 1);
+        offset += (numLevels_ + 1) * Integer.BYTES;
       } else {
         // the last integer in levels_ is not serialized because it can be derived
         mem.getIntArray(offset, levels_, 0, numLevels_);
@@ -255,6 +278,10 @@ public class KllFloatsSketch {
         offset += Float.BYTES;
       }
       items_ = new float[capacity];
+      if (isUpdatable) {
+        // the updatable layout keeps the whole buffer, including the free space in level zero
+        offset += levels_[0] * Float.BYTES;
+      }
       mem.getFloatArray(offset, items_, levels_[0], getNumRetained());
       if (isSingleItem) {
         minValue_ = items_[levels_[0]];
@@ -264,8 +291,9 @@ public class KllFloatsSketch {
     }
   }
 
-  private KllFloatsSketch(final int k, final int m) {
+  private KllFloatsSketch(final int k, final int m, final SplittableRandom random) {
     checkK(k);
+    random_ = random;
     k_ = k;
     m_ = m;
     numLevels_ = 1;
@@ -291,7 +319,18 @@ public class KllFloatsSketch {
    * @param k parameter that controls size of the sketch and accuracy of estimates
    */
   public KllFloatsSketch(final int k) {
-    this(k, DEFAULT_M);
+    this(k, DEFAULT_M, new SplittableRandom());
+  }
+
+  /**
+   * Constructor with a given parameter <em>k</em> and a seed for the random choices made during
+   * compaction. Setting the seed makes the results of the sketch deterministic if the input
+   * values are received in exactly the same order. This is only useful for reproducible tests.
+   * @param k parameter that controls size of the sketch and accuracy of estimates
+   * @param seed the seed for the random generator of this sketch
+   */
+  public KllFloatsSketch(final int k, final long seed) {
+    this(k, DEFAULT_M, new SplittableRandom(seed));
   }
 
   /**
@@ -351,6 +390,7 @@ public class KllFloatsSketch {
     if (levels_[0] == 0) {
       compressWhileUpdating();
     }
+    quantileCalculator_ = null;
     n_++;
     isLevelZeroSorted_ = false;
     final int nextPos = levels_[0] - 1;
@@ -359,6 +399,99 @@ public class KllFloatsSketch {
     items_[nextPos] = value;
   }
 
+  /**
+   * Updates this sketch with the given data item repeated the given number of times.
+   * This is equivalent to calling {@link #update(float)} <em>weight</em> times, but the cost is
+   * logarithmic in the weight: the value is placed once into each level whose bit is set in
+   * the binary representation of the weight, since an item at level <em>i</em> has weight
+   * 2<sup><em>i</em></sup>, and these levels are then merged into the sketch.
+   *
+   * @param value an item from a stream of items. NaNs are ignored.
+   * @param weight the number of times the item occurred, must be positive
+   */
+  public void update(final float value, final long weight) {
+    if (weight < 1) {
+      throw new SketchesArgumentException("Weight must be positive: " + weight);
+    }
+    if (Float.isNaN(value)) { return; }
+    if ((weight & 1) == 1) {
+      update(value); // level zero
+    }
+    if (weight == 1) { return; }
+    final long finalN = n_ + (weight & ~1L);
+
+    final int otherNumLevels = Long.SIZE - Long.numberOfLeadingZeros(weight);
+    final float[] otherItems = new float[Long.bitCount(weight & ~1L)];
+    Arrays.fill(otherItems, value);
+    final int[] otherLevels = new int[otherNumLevels + 1];
+    for (int lvl = 1; lvl < otherNumLevels; lvl++) {
+      otherLevels[lvl + 1] = otherLevels[lvl] + (int) ((weight >>> lvl) & 1);
+    }
+    mergeHigherLevels(otherItems, otherLevels, otherNumLevels, finalN);
+
+    if (Float.isNaN(minValue_) || (value < minValue_)) { minValue_ = value; }
+    if (Float.isNaN(maxValue_) || (value > maxValue_)) { maxValue_ = value; }
+    n_ = finalN;
+    quantileCalculator_ = null;
+    assertCorrectTotalWeight();
+  }
+
+  /**
+   * Updates this sketch with the given range of data items.
+   * This is equivalent to calling {@link #update(float)} for each item in the range,
+   * but level zero is filled with bulk copies and its capacity is only checked when it is full.
+   *
+   * @param values an array of items from a stream of items. NaNs are ignored.
+   * @param offset the index of the first item to use
+   * @param length the number of items to use
+   */
+  public void update(final float[] values, final int offset, final int length) {
+    checkArrayRange(values.length, offset, length);
+    if (length == 0) { return; }
+
+    // min and max in one pass, NaNs fail all comparisons and are counted separately
+    float minValue = isEmpty() ? Float.POSITIVE_INFINITY : minValue_;
+    float maxValue = isEmpty() ? Float.NEGATIVE_INFINITY : maxValue_;
+    int numNaNs = 0;
+    for (int i = offset; i < (offset + length); i++) {
+      final float value = values[i];
+      if (value < minValue) { minValue = value; }
+      if (value > maxValue) { maxValue = value; }
+      if (value != value) { numNaNs++; }
+    }
+    if (numNaNs == length) { return; }
+
+    final float[] src;
+    int srcIndex;
+    if (numNaNs == 0) {
+      src = values;
+      srcIndex = offset;
+    } else {
+      src = new float[length - numNaNs];
+      int j = 0;
+      for (int i = offset; i < (offset + length); i++) {
+        if (!Float.isNaN(values[i])) { src[j++] = values[i]; }
+      }
+      srcIndex = 0;
+    }
+    final int srcLim = srcIndex + (length - numNaNs);
+
+    minValue_ = minValue;
+    maxValue_ = maxValue;
+    quantileCalculator_ = null;
+    isLevelZeroSorted_ = false;
+    while (srcIndex < srcLim) {
+      if (levels_[0] == 0) {
+        compressWhileUpdating();
+      }
+      final int count = min(levels_[0], srcLim - srcIndex);
+      levels_[0] -= count;
+      System.arraycopy(src, srcIndex, items_, levels_[0], count);
+      srcIndex += count;
+      n_ += count;
+    }
+  }
+
   /**
    * Merges another sketch into this one.
    * @param other sketch to merge into this one
@@ -373,11 +506,12 @@ public class KllFloatsSketch {
       update(other.items_[i]);
     }
     if (other.numLevels_ >= 2) {
-      mergeHigherLevels(other, finalN);
+      mergeHigherLevels(other.items_, other.levels_, other.numLevels_, finalN);
     }
     if (Float.isNaN(minValue_) || (other.minValue_ < minValue_)) { minValue_ = other.minValue_; }
     if (Float.isNaN(maxValue_) || (other.maxValue_ > maxValue_)) { maxValue_ = other.maxValue_; }
     n_ = finalN;
+    quantileCalculator_ = null;
     assertCorrectTotalWeight();
     if (other.isEstimationMode()) {
       minK_ = min(minK_, other.minK_);
@@ -409,9 +543,9 @@ public class KllFloatsSketch {
    * that would be preceded by the given fraction of a hypothetical sorted
    * version of the input stream so far.
    *
-   * <p>We note that this method has a fairly large overhead (microseconds instead of nanoseconds)
-   * so it should not be called multiple times to get different quantiles from the same
-   * sketch. Instead use getQuantiles(), which pays the overhead only once.
+   * <p>The first query after an update or a merge has a fairly large overhead (microseconds
+   * instead of nanoseconds) to build a sorted view of the sketch. The sorted view is kept until
+   * the next update or merge, so subsequent queries are answered with a binary search.
    *
    * <p>If the sketch is empty this returns NaN.
    *
@@ -527,23 +661,30 @@ public class KllFloatsSketch {
    */
   public double getRank(final float value) {
     if (isEmpty()) { return Double.NaN; }
-    int level = 0;
-    int weight = 1;
-    long total = 0;
-    while (level < numLevels_) {
-      final int fromIndex = levels_[level];
-      final int toIndex = levels_[level + 1]; // exclusive
-      for (int i = fromIndex; i < toIndex; i++) {
-        if (items_[i] < value) {
-          total += weight;
-        } else if ((level > 0) || isLevelZeroSorted_) {
-          break; // levels above 0 are sorted, no point comparing further
-        }
-      }
-      level++;
-      weight *= 2;
+    return getQuantileCalculator().getRank(value);
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getRank().
+   *
+   * <p>This returns an array that could have been generated by using getRank() with many
+   * different values. All values are ranked against the same sorted view of the sketch.
+   * The values do not need to be sorted.
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param values to be ranked
+   * @return array of approximate ranks of the given values in the same order as given values
+   * array.
+   */
+  public double[] getRanks(final float[] values) {
+    if (isEmpty()) { return null; }
+    final KllFloatsQuantileCalculator quant = getQuantileCalculator();
+    final double[] ranks = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      ranks[i] = quant.getRank(values[i]);
     }
-    return (double) total / n_;
+    return ranks;
   }
 
   /**
@@ -806,6 +947,27 @@ public class KllFloatsSketch {
     return bytes;
   }
 
+  /**
+   * Returns serialized sketch in the updatable form, which can be wrapped by
+   * {@link KllDirectFloatsSketch#writableWrap(WritableMemory)} and updated in place.
+   * This form keeps the free space in level zero and is therefore larger than
+   * {@link #toByteArray()}.
+   * @return serialized sketch in the updatable form.
+   */
+  public byte[] toUpdatableByteArray() {
+    final byte[] bytes = new byte[getUpdatableSerializedSizeBytes()];
+    putUpdatableImage(WritableMemory.wrap(bytes));
+    return bytes;
+  }
+
+  /**
+   * Returns the number of bytes this sketch would require to store in the updatable form.
+   * @return the number of bytes this sketch would require to store in the updatable form.
+   */
+  public int getUpdatableSerializedSizeBytes() {
+    return getUpdatableSerializedSizeBytes(numLevels_, levels_[numLevels_]);
+  }
+
   /**
    * Heapify takes the sketch image in Memory and instantiates an on-heap sketch.
    * The resulting sketch will not retain any link to the source Memory.
@@ -814,6 +976,16 @@ public class KllFloatsSketch {
    * @return a heap-based sketch based on the given Memory
    */
   public static KllFloatsSketch heapify(final Memory mem) {
+    checkPreamble(mem);
+    return new KllFloatsSketch(mem);
+  }
+
+  /**
+   * Checks the preamble of the given Memory image of a sketch in either the compact or
+   * the updatable layout.
+   * @param mem a Memory image of a sketch
+   */
+  static void checkPreamble(final Memory mem) {
     final int preambleInts = mem.getByte(PREAMBLE_INTS_BYTE) & 0xff;
     final int serialVersion = mem.getByte(SER_VER_BYTE) & 0xff;
     final int family = mem.getByte(FAMILY_BYTE) & 0xff;
@@ -825,7 +997,13 @@ public class KllFloatsSketch {
     }
     final boolean isEmpty = (flags & (1 << Flags.IS_EMPTY.ordinal())) > 0;
     final boolean isSingleItem = (flags & (1 << Flags.IS_SINGLE_ITEM.ordinal())) > 0;
-    if (isEmpty || isSingleItem) {
+    if (serialVersion == serialVersionUID3) {
+      if (isSingleItem || (preambleInts != PREAMBLE_INTS_FULL)) {
+        throw new SketchesArgumentException("Possible corruption: preambleInts must be "
+            + PREAMBLE_INTS_FULL + " and single item flag must not be set for an updatable sketch: "
+            + preambleInts);
+      }
+    } else if (isEmpty || isSingleItem) {
       if (preambleInts != PREAMBLE_INTS_SHORT) {
         throw new SketchesArgumentException("Possible corruption: preambleInts must be "
             + PREAMBLE_INTS_SHORT + " for an empty or single item sketch: " + preambleInts);
@@ -836,16 +1014,16 @@ public class KllFloatsSketch {
             + PREAMBLE_INTS_FULL + " for a sketch with more than one item: " + preambleInts);
       }
     }
-    if ((serialVersion != serialVersionUID1) && (serialVersion != serialVersionUID2)) {
+    if ((serialVersion != serialVersionUID1) && (serialVersion != serialVersionUID2)
+        && (serialVersion != serialVersionUID3)) {
       throw new SketchesArgumentException(
-          "Possible corruption: serial version mismatch: expected " + serialVersionUID1 + " or "
-              + serialVersionUID2 + ", got " + serialVersion);
+          "Possible corruption: serial version mismatch: expected " + serialVersionUID1 + ", "
+              + serialVersionUID2 + " or " + serialVersionUID3 + ", got " + serialVersion);
     }
     if (family != Family.KLL.getID()) {
       throw new SketchesArgumentException(
       "Possible corruption: family mismatch: expected " + Family.KLL.getID() + ", got " + family);
     }
-    return new KllFloatsSketch(mem);
   }
 
   public KllFloatsSketchIterator iterator() {
@@ -864,79 +1042,23 @@ public class KllFloatsSketch {
   }
 
   private KllFloatsQuantileCalculator getQuantileCalculator() {
-    sortLevelZero(); // sort in the sketch to reuse if possible
-    return new KllFloatsQuantileCalculator(items_, levels_, numLevels_, n_);
+    if (quantileCalculator_ == null) {
+      sortLevelZero(); // sort in the sketch to reuse if possible
+      quantileCalculator_ = new KllFloatsQuantileCalculator(items_, levels_, numLevels_, n_);
+    }
+    return quantileCalculator_;
   }
 
   private double[] getPmfOrCdf(final float[] splitPoints, final boolean isCdf) {
     if (isEmpty()) { return null; }
     KllHelper.validateValues(splitPoints);
-    final double[] buckets = new double[splitPoints.length + 1];
-    int level = 0;
-    int weight = 1;
-    while (level < numLevels_) {
-      final int fromIndex = levels_[level];
-      final int toIndex = levels_[level + 1]; // exclusive
-      if ((level == 0) && !isLevelZeroSorted_) {
-        incrementBucketsUnsortedLevel(fromIndex, toIndex, weight, splitPoints, buckets);
-      } else {
-        incrementBucketsSortedLevel(fromIndex, toIndex, weight, splitPoints, buckets);
-      }
-      level++;
-      weight *= 2;
-    }
-    // normalize and, if CDF, convert to cumulative
-    if (isCdf) {
-      double subtotal = 0;
-      for (int i = 0; i < buckets.length; i++) {
-        subtotal += buckets[i];
-        buckets[i] = subtotal / n_;
-      }
-    } else {
-      for (int i = 0; i < buckets.length; i++) {
-        buckets[i] /= n_;
-      }
-    }
-    return buckets;
-  }
-
-  private void incrementBucketsUnsortedLevel(final int fromIndex, final int toIndex,
-      final int weight, final float[] splitPoints, final double[] buckets) {
-    for (int i = fromIndex; i < toIndex; i++) {
-      int j;
-      for (j = 0; j < splitPoints.length; j++) {
-        if (items_[i] < splitPoints[j]) {
-          break;
-        }
-      }
-      buckets[j] += weight;
-    }
-  }
-
-  private void incrementBucketsSortedLevel(final int fromIndex, final int toIndex,
-      final int weight, final float[] splitPoints, final double[] buckets) {
-    int i = fromIndex;
-    int j = 0;
-    while ((i <  toIndex) && (j < splitPoints.length)) {
-      if (items_[i] < splitPoints[j]) {
-        buckets[j] += weight; // this sample goes into this bucket
-        i++; // move on to next sample and see whether it also goes into this bucket
-      } else {
-        j++; // no more samples for this bucket
-      }
-    }
-    // now either i == toIndex (we are out of samples), or
-    // j == numSplitPoints (we are out of buckets, but there are more samples remaining)
-    // we only need to do something in the latter case
-    if (j == splitPoints.length) {
-      buckets[j] += weight * (toIndex - i);
-    }
+    return getQuantileCalculator().getPmfOrCdf(splitPoints, isCdf);
   }
 
   // The following code is only valid in the special case of exactly reaching capacity while updating.
   // It cannot be used while merging, while reducing k, or anything else.
   private void compressWhileUpdating() {
-    final int level = findLevelToCompact();
+    final int level = KllHelper.findLevelToCompact(k_, m_, numLevels_, levels_);
 
     // It is important to do add the new top level right here. Be aware that this operation
     // grows the buffer and shifts the data and also the boundaries of the data and grows the
@@ -945,60 +1067,7 @@ public class KllFloatsSketch {
       addEmptyTopLevelToCompletelyFullSketch();
     }
 
-    final int rawBeg = levels_[level];
-    final int rawLim = levels_[level + 1];
-    // +2 is OK because we already added a new top level if necessary
-    final int popAbove = levels_[level + 2] - rawLim;
-    final int rawPop = rawLim - rawBeg;
-    final boolean oddPop = KllHelper.isOdd(rawPop);
-    final int adjBeg = oddPop ? rawBeg + 1 : rawBeg;
-    final int adjPop = oddPop ? rawPop - 1 : rawPop;
-    final int halfAdjPop = adjPop / 2;
-
-    // level zero might not be sorted, so we must sort it if we wish to compact it
-    if (level == 0) {
-      Arrays.sort(items_, adjBeg, adjBeg + adjPop);
-    }
-    if (popAbove == 0) {
-      KllHelper.randomlyHalveUp(items_, adjBeg, adjPop);
-    } else {
-      KllHelper.randomlyHalveDown(items_, adjBeg, adjPop);
-      KllHelper.mergeSortedArrays(items_, adjBeg, halfAdjPop, items_, rawLim, popAbove,
-          items_, adjBeg + halfAdjPop);
-    }
-    levels_[level + 1] -= halfAdjPop; // adjust boundaries of the level above
-    if (oddPop) {
-      levels_[level] = levels_[level + 1] - 1; // the current level now contains one item
-      items_[levels_[level]] = items_[rawBeg]; // namely this leftover guy
-    } else {
-      levels_[level] = levels_[level + 1]; // the current level is now empty
-    }
-
-    // verify that we freed up halfAdjPop array slots just below the current level
-    assert levels_[level] == (rawBeg + halfAdjPop);
-
-    // finally, we need to shift up the data in the levels below
-    // so that the freed-up space can be used by level zero
-    if (level > 0) {
-      final int amount = rawBeg - levels_[0];
-      System.arraycopy(items_, levels_[0], items_, levels_[0] + halfAdjPop, amount);
-      for (int lvl = 0; lvl < level; lvl++) {
-        levels_[lvl] += halfAdjPop;
-      }
-    }
-  }
-
-  private int findLevelToCompact() {
-    int level = 0;
-    while (true) {
-      assert level < numLevels_;
-      final int pop = levels_[level + 1] - levels_[level];
-      final int cap = KllHelper.levelCapacity(k_, numLevels_, level, m_);
-      if (pop >= cap) {
-        return level;
-      }
-      level++;
-    }
+    KllHelper.compactLevelWhileUpdating(items_, levels_, level, random_);
   }
 
   private void addEmptyTopLevelToCompletelyFullSketch() {
@@ -1040,20 +1109,24 @@ public class KllFloatsSketch {
     }
   }
 
-  private void mergeHigherLevels(final KllFloatsSketch other, final long finalN) {
-    final int tmpSpaceNeeded = getNumRetained() + other.getNumRetainedAboveLevelZero();
+  // merges levels 1 and above of the given structure into this sketch,
+  // level zero of the other structure must have been inserted already
+  private void mergeHigherLevels(final float[] otherItems, final int[] otherLevels,
+      final int otherNumLevels, final long finalN) {
+    final int tmpSpaceNeeded = getNumRetained() + otherLevels[otherNumLevels] - otherLevels[1];
     final float[] workbuf = new float[tmpSpaceNeeded];
     final int ub = KllHelper.ubOnNumLevels(finalN);
     final int[] worklevels = new int[ub + 2]; // ub+1 does not work
     final int[] outlevels  = new int[ub + 2];
 
-    final int provisionalNumLevels = max(numLevels_, other.numLevels_);
+    final int provisionalNumLevels = max(numLevels_, otherNumLevels);
 
-    populateWorkArrays(other, workbuf, worklevels, provisionalNumLevels);
+    populateWorkArrays(otherItems, otherLevels, otherNumLevels, workbuf, worklevels,
+        provisionalNumLevels);
 
     // notice that workbuf is being used as both the input and output here
     final int[] result = KllHelper.generalCompress(k_, m_, provisionalNumLevels, workbuf,
-        worklevels, workbuf, outlevels, isLevelZeroSorted_);
+        worklevels, workbuf, outlevels, isLevelZeroSorted_, random_);
     final int finalNumLevels = result[0];
     final int finalCapacity = result[1];
     final int finalPop = result[2];
@@ -1078,8 +1151,9 @@ public class KllFloatsSketch {
     numLevels_ = finalNumLevels;
   }
 
-  private void populateWorkArrays(final KllFloatsSketch other, final float[] workbuf,
-      final int[] worklevels, final int provisionalNumLevels) {
+  private void populateWorkArrays(final float[] otherItems, final int[] otherLevels,
+      final int otherNumLevels, final float[] workbuf, final int[] worklevels,
+      final int provisionalNumLevels) {
     worklevels[0] = 0;
 
     // Note: the level zero data from "other" was already inserted into "self"
@@ -1089,16 +1163,16 @@ public class KllFloatsSketch {
 
     for (int lvl = 1; lvl < provisionalNumLevels; lvl++) {
       final int selfPop = safeLevelSize(lvl);
-      final int otherPop = other.safeLevelSize(lvl);
+      final int otherPop = lvl < otherNumLevels ? otherLevels[lvl + 1] - otherLevels[lvl] : 0;
       worklevels[lvl + 1] = worklevels[lvl] + selfPop + otherPop;
 
       if ((selfPop > 0) && (otherPop == 0)) {
         System.arraycopy(items_, levels_[lvl], workbuf, worklevels[lvl], selfPop);
       } else if ((selfPop == 0) && (otherPop > 0)) {
-        System.arraycopy(other.items_, other.levels_[lvl], workbuf, worklevels[lvl], otherPop);
+        System.arraycopy(otherItems, otherLevels[lvl], workbuf, worklevels[lvl], otherPop);
       } else if ((selfPop > 0) && (otherPop > 0)) {
-        KllHelper.mergeSortedArrays(items_, levels_[lvl], selfPop, other.items_,
-            other.levels_[lvl], otherPop, workbuf, worklevels[lvl]);
+        KllHelper.mergeSortedArrays(items_, levels_[lvl], selfPop, otherItems,
+            otherLevels[lvl], otherPop, workbuf, worklevels[lvl]);
       }
     }
   }
@@ -1108,16 +1182,47 @@ public class KllFloatsSketch {
     return levels_[level + 1] - levels_[level];
   }
 
- private int getNumRetainedAboveLevelZero() {
-    if (numLevels_ == 1) { return 0; }
-    return levels_[numLevels_] - levels_[1];
-  }
-
   private void assertCorrectTotalWeight() {
     final long total = KllHelper.sumTheSampleWeights(numLevels_, levels_);
     assert total == n_;
   }
 
+  static int getUpdatableSerializedSizeBytes(final int numLevels, final int capacity) {
+    // all numLevels + 1 integers of levels_ are stored, + 2 for min and max
+    return DATA_START + ((numLevels + 1) * Integer.BYTES) + ((capacity + 2) * Float.BYTES);
+  }
+
+  /**
+   * Writes this sketch in the updatable layout into the given memory, which must be large enough.
+   * @param wmem the destination
+   */
+  void putUpdatableImage(final WritableMemory wmem) {
+    final int capacity = levels_[numLevels_];
+    assert wmem.getCapacity() >= getUpdatableSerializedSizeBytes(numLevels_, capacity);
+    wmem.putByte(PREAMBLE_INTS_BYTE, (byte) PREAMBLE_INTS_FULL);
+    wmem.putByte(SER_VER_BYTE, serialVersionUID3);
+    wmem.putByte(FAMILY_BYTE, (byte) Family.KLL.getID());
+    wmem.putByte(FLAGS_BYTE, (byte) (
+        (isEmpty() ? 1 << Flags.IS_EMPTY.ordinal() : 0)
+      | (isLevelZeroSorted_ ? 1 << Flags.IS_LEVEL_ZERO_SORTED.ordinal() : 0)
+    ));
+    wmem.putShort(K_SHORT, (short) k_);
+    wmem.putByte(M_BYTE, (byte) m_);
+    wmem.putByte(M_BYTE + 1, (byte) 0);
+    wmem.putLong(N_LONG, n_);
+    wmem.putShort(MIN_K_SHORT, (short) minK_);
+    wmem.putByte(NUM_LEVELS_BYTE, (byte) numLevels_);
+    wmem.putByte(NUM_LEVELS_BYTE + 1, (byte) 0);
+    long offset = DATA_START;
+    wmem.putIntArray(offset, levels_, 0, numLevels_ + 1);
+    offset += (numLevels_ + 1) * Integer.BYTES;
+    wmem.putFloat(offset, minValue_);
+    offset += Float.BYTES;
+    wmem.putFloat(offset, maxValue_);
+    offset += Float.BYTES;
+    wmem.putFloatArray(offset, items_, 0, capacity);
+  }
+
   private static int getSerializedSizeBytes(final int numLevels, final int numRetained) {
     if ((numLevels == 1) && (numRetained == 1)) {
       return DATA_START_SINGLE_ITEM + Float.BYTES;
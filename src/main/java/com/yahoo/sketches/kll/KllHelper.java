@@ -20,7 +20,7 @@
 package com.yahoo.sketches.kll;
 
 import java.util.Arrays;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 import com.yahoo.sketches.SketchesArgumentException;
 
@@ -31,8 +31,6 @@ import com.yahoo.sketches.SketchesArgumentException;
  */
 class KllHelper {
 
-  private static final Random random = new Random();
-
   static boolean isEven(final int value) {
     return (value & 1) == 0;
   }
@@ -134,6 +132,156 @@ class KllHelper {
     return total;
   }
 
+  static int findLevelToCompact(final int k, final int m, final int numLevels, final int[] levels) {
+    int level = 0;
+    while (true) {
+      assert level < numLevels;
+      final int pop = levels[level + 1] - levels[level];
+      final int cap = levelCapacity(k, numLevels, level, m);
+      if (pop >= cap) {
+        return level;
+      }
+      level++;
+    }
+  }
+
+  /*
+   * This is only valid in the special case of exactly reaching capacity while updating.
+   * It cannot be used while merging, while reducing k, or anything else.
+   * The caller must have already added an empty top level if the given level is the top one,
+   * so that levels[level + 2] is valid.
+   */
+  static void compactLevelWhileUpdating(final float[] items, final int[] levels, final int level,
+      final SplittableRandom random) {
+    final int rawBeg = levels[level];
+    final int rawLim = levels[level + 1];
+    final int popAbove = levels[level + 2] - rawLim;
+    final int rawPop = rawLim - rawBeg;
+    final boolean oddPop = isOdd(rawPop);
+    final int adjBeg = oddPop ? rawBeg + 1 : rawBeg;
+    final int adjPop = oddPop ? rawPop - 1 : rawPop;
+    final int halfAdjPop = adjPop / 2;
+
+    // level zero might not be sorted, so we must sort it if we wish to compact it
+    if (level == 0) {
+      Arrays.sort(items, adjBeg, adjBeg + adjPop);
+    }
+    if (popAbove == 0) {
+      randomlyHalveUp(items, adjBeg, adjPop, random);
+    } else {
+      randomlyHalveDown(items, adjBeg, adjPop, random);
+      mergeSortedArrays(items, adjBeg, halfAdjPop, items, rawLim, popAbove, items,
+          adjBeg + halfAdjPop);
+    }
+    levels[level + 1] -= halfAdjPop; // adjust boundaries of the level above
+    if (oddPop) {
+      levels[level] = levels[level + 1] - 1; // the current level now contains one item
+      items[levels[level]] = items[rawBeg]; // namely this leftover guy
+    } else {
+      levels[level] = levels[level + 1]; // the current level is now empty
+    }
+
+    // verify that we freed up halfAdjPop array slots just below the current level
+    assert levels[level] == (rawBeg + halfAdjPop);
+
+    // finally, we need to shift up the data in the levels below
+    // so that the freed-up space can be used by level zero
+    if (level > 0) {
+      final int amount = rawBeg - levels[0];
+      System.arraycopy(items, levels[0], items, levels[0] + halfAdjPop, amount);
+      for (int lvl = 0; lvl < level; lvl++) {
+        levels[lvl] += halfAdjPop;
+      }
+    }
+  }
+
+  static double getRank(final float[] items, final int[] levels, final int numLevels,
+      final boolean isLevelZeroSorted, final long n, final float value) {
+    int level = 0;
+    int weight = 1;
+    long total = 0;
+    while (level < numLevels) {
+      final int fromIndex = levels[level];
+      final int toIndex = levels[level + 1]; // exclusive
+      for (int i = fromIndex; i < toIndex; i++) {
+        if (items[i] < value) {
+          total += weight;
+        } else if ((level > 0) || isLevelZeroSorted) {
+          break; // levels above 0 are sorted, no point comparing further
+        }
+      }
+      level++;
+      weight *= 2;
+    }
+    return (double) total / n;
+  }
+
+  static double[] getPmfOrCdf(final float[] items, final int[] levels, final int numLevels,
+      final boolean isLevelZeroSorted, final long n, final float[] splitPoints,
+      final boolean isCdf) {
+    validateValues(splitPoints);
+    final double[] buckets = new double[splitPoints.length + 1];
+    int level = 0;
+    int weight = 1;
+    while (level < numLevels) {
+      final int fromIndex = levels[level];
+      final int toIndex = levels[level + 1]; // exclusive
+      if ((level == 0) && !isLevelZeroSorted) {
+        incrementBucketsUnsortedLevel(items, fromIndex, toIndex, weight, splitPoints, buckets);
+      } else {
+        incrementBucketsSortedLevel(items, fromIndex, toIndex, weight, splitPoints, buckets);
+      }
+      level++;
+      weight *= 2;
+    }
+    // normalize and, if CDF, convert to cumulative
+    if (isCdf) {
+      double subtotal = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        subtotal += buckets[i];
+        buckets[i] = subtotal / n;
+      }
+    } else {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] /= n;
+      }
+    }
+    return buckets;
+  }
+
+  private static void incrementBucketsUnsortedLevel(final float[] items, final int fromIndex,
+      final int toIndex, final int weight, final float[] splitPoints, final double[] buckets) {
+    for (int i = fromIndex; i < toIndex; i++) {
+      int j;
+      for (j = 0; j < splitPoints.length; j++) {
+        if (items[i] < splitPoints[j]) {
+          break;
+        }
+      }
+      buckets[j] += weight;
+    }
+  }
+
+  private static void incrementBucketsSortedLevel(final float[] items, final int fromIndex,
+      final int toIndex, final int weight, final float[] splitPoints, final double[] buckets) {
+    int i = fromIndex;
+    int j = 0;
+    while ((i <  toIndex) && (j < splitPoints.length)) {
+      if (items[i] < splitPoints[j]) {
+        buckets[j] += weight; // this sample goes into this bucket
+        i++; // move on to next sample and see whether it also goes into this bucket
+      } else {
+        j++; // no more samples for this bucket
+      }
+    }
+    // now either i == toIndex (we are out of samples), or
+    // j == numSplitPoints (we are out of buckets, but there are more samples remaining)
+    // we only need to do something in the latter case
+    if (j == splitPoints.length) {
+      buckets[j] += weight * (toIndex - i);
+    }
+  }
+
   static void mergeSortedArrays(final float[] bufA, final int startA, final int lenA,
       final float[] bufB, final int startB, final int lenB, final float[] bufC, final int startC) {
     final int lenC = lenA + lenB;
@@ -187,7 +335,8 @@ class KllHelper {
    * returns (finalNumLevels, finalCapacity, finalItemCount)
    */
   static int[] generalCompress(final int k, final int m, final int numLevelsIn, final float[] inBuf,
-      final int[] inLevels, final float[] outBuf, final int[] outLevels, final boolean isLevelZeroSorted) {
+      final int[] inLevels, final float[] outBuf, final int[] outLevels, final boolean isLevelZeroSorted,
+      final SplittableRandom random) {
     assert numLevelsIn > 0; // things are too weird if zero levels are allowed
     int numLevels = numLevelsIn;
     int currentItemCount = inLevels[numLevels] - inLevels[0]; // decreases with each compaction
@@ -238,9 +387,9 @@ class KllHelper {
         }
 
         if (popAbove == 0) { // Level above is empty, so halve up
-          randomlyHalveUp(inBuf, adjBeg, adjPop);
+          randomlyHalveUp(inBuf, adjBeg, adjPop, random);
         } else { // Level above is nonempty, so halve down, then merge up
-          randomlyHalveDown(inBuf, adjBeg, adjPop);
+          randomlyHalveDown(inBuf, adjBeg, adjPop, random);
           mergeSortedArrays(inBuf, adjBeg, halfAdjPop, inBuf, rawLim, popAbove, inBuf, adjBeg + halfAdjPop);
         }
 
@@ -270,7 +419,8 @@ class KllHelper {
     return new int[] {numLevels, targetItemCount, currentItemCount};
   }
 
-  static void randomlyHalveDown(final float[] buf, final int start, final int length) {
+  static void randomlyHalveDown(final float[] buf, final int start, final int length,
+      final SplittableRandom random) {
     assert isEven(length);
     final int half_length = length / 2;
     final int offset = random.nextInt(2);
@@ -282,7 +432,8 @@ class KllHelper {
     }
   }
 
-  static void randomlyHalveUp(final float[] buf, final int start, final int length) {
+  static void randomlyHalveUp(final float[] buf, final int start, final int length,
+      final SplittableRandom random) {
     assert isEven(length);
     final int half_length = length / 2;
     final int offset = random.nextInt(2);
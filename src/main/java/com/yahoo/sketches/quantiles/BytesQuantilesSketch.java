@@ -0,0 +1,842 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMPACT_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.ORDERED_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertSerVer;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.UnsafeUtil;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.QuantilesHelper;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+
+/**
+ * This is a quantiles sketch of byte strings. It implements the same algorithm as
+ * {@link ItemsSketch}, and has the same accuracy guarantees, but the items are ordered by
+ * unsigned lexicographic comparison with a single static comparison routine, rather than through
+ * a user supplied {@link Comparator}.
+ *
+ * <p>The bytes of all retained items are packed into one buffer. The base buffer and the levels
+ * only hold primitive handles (offset and length) into it, so an update does not allocate an
+ * object per item, and compactions only move handles. The bytes of the items discarded by
+ * compactions are reclaimed by rewriting the buffer once they make up half of it. Strings are
+ * encoded directly into the buffer.</p>
+ *
+ * <p>Strings are accepted as their UTF-8 encoding, for which the unsigned byte order is the same
+ * as the order of the Unicode code points. Note that this differs from the natural order of
+ * {@link String} for characters outside of the Basic Multilingual Plane.</p>
+ *
+ * <p>The serialized form is the same as that of an <i>ItemsSketch&lt;String&gt;</i> serialized
+ * with an {@link com.yahoo.sketches.ArrayOfStringsSerDe}. Such an image can be heapified by
+ * this sketch, and the reverse as long as the items are valid UTF-8.</p>
+ *
+ * <p>The documentation for {@link DoublesSketch} applies here as well.</p>
+ */
+public final class BytesQuantilesSketch extends LongBufferQuantilesSketch<BytesQuantilesSketch> {
+
+  /**
+   * The smallest value ever seen in the stream. Not valid if the sketch is empty.
+   */
+  byte[] minValue_;
+
+  /**
+   * The largest value ever seen in the stream. Not valid if the sketch is empty.
+   */
+  byte[] maxValue_;
+
+  /**
+   * The packed bytes of all items referenced from the combined buffer, plus the bytes of
+   * discarded items that have not been reclaimed yet. Each slot of the combined buffer holds the
+   * handle of an item: its offset in the upper 32 bits and its length in the lower 32 bits.
+   */
+  byte[] items_;
+
+  /**
+   * Number of bytes of {@link #items_} in use.
+   */
+  int itemsBytes_;
+
+  /**
+   * Number of bytes in use by items that are no longer referenced.
+   */
+  int discardedBytes_;
+
+  private static final int MIN_ITEMS_BYTES = 64;
+  private static final int MAX_ITEMS_BYTES = Integer.MAX_VALUE - 8;
+
+  private BytesQuantilesSketch(final int k) {
+    super(k);
+    reset();
+  }
+
+  /**
+   * Obtains a new instance of a BytesQuantilesSketch using the DEFAULT_K.
+   * @return a new instance of a BytesQuantilesSketch
+   */
+  public static BytesQuantilesSketch getInstance() {
+    return getInstance(PreambleUtil.DEFAULT_K);
+  }
+
+  /**
+   * Obtains a new instance of a BytesQuantilesSketch.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 2 and less than 65536 and a power of 2.
+   * @return a new instance of a BytesQuantilesSketch
+   */
+  public static BytesQuantilesSketch getInstance(final int k) {
+    return new BytesQuantilesSketch(k);
+  }
+
+  /**
+   * Obtains a new instance of a BytesQuantilesSketch with a seeded random generator. Sketches
+   * created with the same seed produce identical results if they receive the same items in the
+   * same order.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 2 and less than 65536 and a power of 2.
+   * @param seed the seed of the random generator
+   * @return a new instance of a BytesQuantilesSketch
+   */
+  public static BytesQuantilesSketch getInstance(final int k, final long seed) {
+    final BytesQuantilesSketch sketch = new BytesQuantilesSketch(k);
+    sketch.random_ = new SplittableRandom(seed);
+    return sketch;
+  }
+
+  /**
+   * Heapifies the given srcMem, which must be a Memory image of a BytesQuantilesSketch or of an
+   * ItemsSketch&lt;String&gt; serialized with an ArrayOfStringsSerDe.
+   * @param srcMem a Memory image of a sketch.
+   * <a href="{@docRoot}/resources/dictionary.html#mem">See Memory</a>
+   * @return a BytesQuantilesSketch on the Java heap.
+   */
+  public static BytesQuantilesSketch heapify(final Memory srcMem) {
+    final long memCapBytes = srcMem.getCapacity();
+    if (memCapBytes < 8) {
+      throw new SketchesArgumentException("Memory too small: " + memCapBytes);
+    }
+    final int preambleLongs = extractPreLongs(srcMem);
+    final int serVer = extractSerVer(srcMem);
+    final int familyID = extractFamilyID(srcMem);
+    final int flags = extractFlags(srcMem);
+    final int k = extractK(srcMem);
+
+    ItemsUtil.checkItemsSerVer(serVer);
+    if ((serVer == 3) && ((flags & COMPACT_FLAG_MASK) == 0)) {
+      throw new SketchesArgumentException("Non-compact Memory images are not supported.");
+    }
+    final boolean empty = Util.checkPreLongsFlagsCap(preambleLongs, flags, memCapBytes);
+    Util.checkFamilyID(familyID);
+
+    final BytesQuantilesSketch qs = getInstance(k); //checks k
+    if (empty) { return qs; }
+
+    final long n = extractN(srcMem);
+    qs.initBuffers(n);
+
+    final long[] offsetBytes = {preambleLongs * Long.BYTES};
+    qs.minValue_ = readItem(srcMem, offsetBytes);
+    qs.maxValue_ = readItem(srcMem, offsetBytes);
+    for (int i = 0; i < qs.baseBufferCount_; i++) {
+      qs.combinedBuffer_[i] = qs.readItemHandle(srcMem, offsetBytes);
+    }
+    long bits = qs.bitPattern_;
+    for (int level = 0; bits != 0L; level++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        final int levelStart = (2 + level) * k;
+        for (int i = levelStart; i < (levelStart + k); i++) {
+          qs.combinedBuffer_[i] = qs.readItemHandle(srcMem, offsetBytes);
+        }
+      }
+    }
+    return qs;
+  }
+
+  /**
+   * Returns a copy of the given sketch
+   * @param sketch the given sketch
+   * @return a copy of the given sketch
+   */
+  static BytesQuantilesSketch copy(final BytesQuantilesSketch sketch) {
+    final BytesQuantilesSketch qsCopy = new BytesQuantilesSketch(sketch.k_);
+    qsCopy.copyBuffers(sketch);
+    if (!sketch.isEmpty()) {
+      qsCopy.minValue_ = sketch.minValue_.clone();
+      qsCopy.maxValue_ = sketch.maxValue_.clone();
+    }
+    qsCopy.items_ = sketch.items_.clone();
+    qsCopy.itemsBytes_ = sketch.itemsBytes_;
+    qsCopy.discardedBytes_ = sketch.discardedBytes_;
+    return qsCopy;
+  }
+
+  /**
+   * Updates this sketch with the given data item
+   * @param dataItem an item from a stream of items
+   */
+  public void update(final byte[] dataItem) {
+    if (dataItem == null) { return; }
+    updateItem(appendItem(dataItem, 0, dataItem.length));
+  }
+
+  /**
+   * Updates this sketch with the UTF-8 encoding of the given String. The String is encoded
+   * directly into the item buffer of this sketch. Unpaired surrogates are encoded as '?', as
+   * {@link String#getBytes(java.nio.charset.Charset)} does.
+   * @param dataItem an item from a stream of items
+   */
+  public void update(final String dataItem) {
+    if (dataItem == null) { return; }
+    updateItem(appendUtf8(dataItem));
+  }
+
+  /**
+   * This returns an approximation to the value of the data item
+   * that would be preceded by the given fraction of a hypothetical sorted
+   * version of the input stream so far.
+   *
+   * <p>The first query after the sketch has been modified builds a sorted view of the sketch,
+   * which is kept until the next modification.
+   *
+   * @param fraction the specified fractional position in the hypothetical sorted stream.
+   * These are also called normalized ranks or fractional ranks.
+   * If fraction = 0.0, the true minimum value of the stream is returned.
+   * If fraction = 1.0, the true maximum value of the stream is returned.
+   *
+   * @return the approximation to the value at the above fraction
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public byte[] getQuantile(final double fraction) {
+    checkNotEmpty();
+    if ((fraction < 0.0) || (fraction > 1.0)) {
+      throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+    }
+    if      (fraction == 0.0) { return minValue_.clone(); }
+    else if (fraction == 1.0) { return maxValue_.clone(); }
+    else { return itemOf(quantileFromSortedView(fraction)); }
+  }
+
+  /**
+   * Gets the upper bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the upper bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public byte[] getQuantileUpperBound(final double fraction) {
+    return getQuantile(min(1.0, fraction + Util.getNormalizedRankError(k_, false)));
+  }
+
+  /**
+   * Gets the lower bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the lower bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public byte[] getQuantileLowerBound(final double fraction) {
+    return getQuantile(max(0, fraction - Util.getNormalizedRankError(k_, false)));
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getQuantile().
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param fRanks the given array of fractional (or normalized) ranks in the hypothetical
+   * sorted stream of all the input values seen so far.
+   * These fRanks must all be in the interval [0.0, 1.0] inclusively.
+   *
+   * @return array of approximate quantiles of the given fRanks in the same order as in the given
+   * fRanks array.
+   */
+  public byte[][] getQuantiles(final double[] fRanks) {
+    if (isEmpty()) { return null; }
+    final byte[][] quantiles = new byte[fRanks.length][];
+    for (int i = 0; i < fRanks.length; i++) {
+      final double fRank = fRanks[i];
+      if      (fRank == 0.0) { quantiles[i] = minValue_.clone(); }
+      else if (fRank == 1.0) { quantiles[i] = maxValue_.clone(); }
+      else { quantiles[i] = itemOf(quantileFromSortedView(fRank)); }
+    }
+    return quantiles;
+  }
+
+  /**
+   * This is also a more efficient multiple-query version of getQuantile() and allows the caller to
+   * specify the number of evenly spaced fractional ranks.
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param evenlySpaced an integer that specifies the number of evenly spaced fractional ranks.
+   * This must be a positive integer greater than 0. A value of 1 will return the min value.
+   * A value of 2 will return the min and the max value. A value of 3 will return the min,
+   * the median and the max value, etc.
+   *
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array.
+   */
+  public byte[][] getQuantiles(final int evenlySpaced) {
+    if (isEmpty()) { return null; }
+    return getQuantiles(QuantilesHelper.getEvenlySpacedRanks(evenlySpaced));
+  }
+
+  /**
+   * Returns an approximation to the normalized (fractional) rank of the given value from 0 to 1
+   * inclusive.
+   *
+   * <p>If the sketch is empty this returns NaN.</p>
+   *
+   * @param value to be ranked
+   * @return an approximate rank of the given value
+   */
+  public double getRank(final byte[] value) {
+    if (isEmpty()) { return Double.NaN; }
+    buildSortedViewIfNeeded();
+    return (double) sortedCumWeights_[lowerBound(value)] / n_;
+  }
+
+  /**
+   * Returns an approximation to the normalized (fractional) rank of the UTF-8 encoding of the
+   * given String.
+   *
+   * <p>If the sketch is empty this returns NaN.</p>
+   *
+   * @param value to be ranked
+   * @return an approximate rank of the given value
+   */
+  public double getRank(final String value) {
+    return getRank(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getRank().
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param values to be ranked
+   * @return array of approximate ranks of the given values in the same order as given values
+   * array.
+   */
+  public double[] getRanks(final byte[][] values) {
+    if (isEmpty()) { return null; }
+    buildSortedViewIfNeeded();
+    final double[] ranks = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      ranks[i] = (double) sortedCumWeights_[lowerBound(values[i])] / n_;
+    }
+    return ranks;
+  }
+
+  /**
+   * Returns an approximation to the Probability Mass Function (PMF) of the input stream
+   * given a set of splitPoints (values).
+   * See {@link ItemsSketch#getPMF(Object[])} for the details.
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * that divide the ordered space into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 doubles each of which is an approximation
+   * to the fraction of the input stream values (the mass) that fall into one of those intervals.
+   */
+  public double[] getPMF(final byte[][] splitPoints) {
+    return getPmfOrCdf(splitPoints, false);
+  }
+
+  /**
+   * Returns an approximation to the Cumulative Distribution Function (CDF), which is the
+   * cumulative analog of the PMF, of the input stream given a set of splitPoints (values).
+   * See {@link ItemsSketch#getCDF(Object[])} for the details.
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * that divide the ordered space into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 double values, which are a consecutive approximation to the CDF
+   * of the input stream given the splitPoints.
+   */
+  public double[] getCDF(final byte[][] splitPoints) {
+    return getPmfOrCdf(splitPoints, true);
+  }
+
+  /**
+   * Returns the min value of the stream
+   * @return the min value of the stream
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public byte[] getMinValue() {
+    checkNotEmpty();
+    return minValue_.clone();
+  }
+
+  /**
+   * Returns the max value of the stream
+   * @return the max value of the stream
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public byte[] getMaxValue() {
+    checkNotEmpty();
+    return maxValue_.clone();
+  }
+
+  /**
+   * Resets this sketch to a virgin state, but retains the original value of k.
+   */
+  public void reset() {
+    resetBuffers();
+    items_ = new byte[MIN_ITEMS_BYTES];
+    itemsBytes_ = 0;
+    discardedBytes_ = 0;
+    minValue_ = null;
+    maxValue_ = null;
+  }
+
+  /**
+   * From an existing sketch, this creates a new sketch that can have a smaller value of K.
+   * The original sketch is not modified.
+   *
+   * @param newK the new value of K that must be smaller than current value of K.
+   * It is required that this.getK() = newK * 2^(nonnegative integer).
+   * @return the new sketch.
+   */
+  public BytesQuantilesSketch downSample(final int newK) {
+    final BytesQuantilesSketch newSketch = getInstance(newK);
+    downSamplingMergeInto(this, newSketch);
+    return newSketch;
+  }
+
+  /**
+   * Serialize this sketch to a byte array form.
+   * @return byte array of this sketch
+   */
+  public byte[] toByteArray() {
+    return toByteArray(false);
+  }
+
+  /**
+   * Serialize this sketch to a byte array form.
+   * @param ordered if true the base buffer will be ordered (default == false).
+   * @return this sketch in a byte array form.
+   */
+  public byte[] toByteArray(final boolean ordered) {
+    final boolean empty = isEmpty();
+    final int flags = (empty ? EMPTY_FLAG_MASK : 0)
+        | (ordered ? ORDERED_FLAG_MASK : 0)
+        | COMPACT_FLAG_MASK; //always compact
+    final int preLongs = empty ? 1 : 2;
+    final byte[] outByteArr = new byte[(preLongs << 3) + (empty ? 0 : getItemsBytes())];
+    final WritableMemory memOut = WritableMemory.wrap(outByteArr);
+    insertPreLongs(memOut, preLongs);
+    insertSerVer(memOut, ItemsUtil.ITEMS_SER_VER);
+    insertFamilyID(memOut, Family.QUANTILES.getID());
+    insertFlags(memOut, flags);
+    insertK(memOut, k_);
+    if (empty) { return outByteArr; }
+
+    insertN(memOut, n_);
+    final long[] offsetBytes = {preLongs << 3};
+    writeItem(memOut, offsetBytes, minValue_);
+    writeItem(memOut, offsetBytes, maxValue_);
+    final long[] baseBuffer = Arrays.copyOf(combinedBuffer_, baseBufferCount_);
+    if (ordered) { sortHandles(baseBuffer, 0, baseBufferCount_ - 1); }
+    for (int i = 0; i < baseBufferCount_; i++) {
+      writeItemHandle(memOut, offsetBytes, baseBuffer[i]);
+    }
+    long bits = bitPattern_;
+    for (int level = 0; bits != 0L; level++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        final int levelStart = (2 + level) * k_;
+        for (int i = levelStart; i < (levelStart + k_); i++) {
+          writeItemHandle(memOut, offsetBytes, combinedBuffer_[i]);
+        }
+      }
+    }
+    return outByteArr;
+  }
+
+  // Restricted
+
+  /**
+   * Compares two byte arrays lexicographically, treating the bytes as unsigned.
+   * @param a the first array
+   * @param b the second array
+   * @return a negative integer, zero, or a positive integer as the first array is less than,
+   * equal to, or greater than the second.
+   */
+  static int compare(final byte[] a, final byte[] b) {
+    return compare(a, 0, a.length, b, 0, b.length);
+  }
+
+  /**
+   * Compares two byte ranges lexicographically, treating the bytes as unsigned.
+   * @param a the array of the first range
+   * @param aOffset the offset of the first range
+   * @param aLength the length of the first range
+   * @param b the array of the second range
+   * @param bOffset the offset of the second range
+   * @param bLength the length of the second range
+   * @return a negative integer, zero, or a positive integer as the first range is less than,
+   * equal to, or greater than the second.
+   */
+  static int compare(final byte[] a, final int aOffset, final int aLength,
+      final byte[] b, final int bOffset, final int bLength) {
+    final int len = Math.min(aLength, bLength);
+    for (int i = 0; i < len; i++) {
+      final int diff = (a[aOffset + i] & 0XFF) - (b[bOffset + i] & 0XFF);
+      if (diff != 0) { return diff; }
+    }
+    return aLength - bLength;
+  }
+
+  private static int offset(final long handle) {
+    return (int) (handle >>> 32);
+  }
+
+  private static int length(final long handle) {
+    return (int) handle;
+  }
+
+  private static long handle(final int offset, final int length) {
+    return ((long) offset << 32) | length;
+  }
+
+  private int compareHandles(final long h1, final long h2) {
+    return compare(items_, offset(h1), length(h1), items_, offset(h2), length(h2));
+  }
+
+  private int compareHandle(final long h, final byte[] value) {
+    return compare(items_, offset(h), length(h), value, 0, value.length);
+  }
+
+  @Override
+  int compareItems(final long item1, final long item2) {
+    return compareHandles(item1, item2);
+  }
+
+  @Override
+  void sortItems(final long[] arr, final int fromIndex, final int toIndex) {
+    sortHandles(arr, fromIndex, toIndex - 1);
+  }
+
+  // copies the item of the given sketch to the end of the item buffer and returns its handle
+  @Override
+  long importItem(final BytesQuantilesSketch src, final long item) {
+    return appendItem(src.items_, offset(item), length(item));
+  }
+
+  @Override
+  void updateMinMax(final long item) {
+    if (n_ == 0) {
+      minValue_ = itemOf(item);
+      maxValue_ = minValue_;
+    } else {
+      if (compareHandle(item, minValue_) < 0) { minValue_ = itemOf(item); }
+      if (compareHandle(item, maxValue_) > 0) { maxValue_ = itemOf(item); }
+    }
+  }
+
+  @Override
+  void mergeMinMax(final BytesQuantilesSketch src, final boolean wasEmpty) {
+    if (wasEmpty || (compare(src.minValue_, minValue_) < 0)) {
+      minValue_ = src.minValue_.clone();
+    }
+    if (wasEmpty || (compare(src.maxValue_, maxValue_) > 0)) {
+      maxValue_ = src.maxValue_.clone();
+    }
+  }
+
+  // the discarded items only leave their bytes behind in the item buffer
+  @Override
+  void discardItem(final long item) {
+    discardedBytes_ += length(item);
+  }
+
+  @Override
+  void compacted() {
+    maybeReclaimDiscardedBytes();
+  }
+
+  @Override
+  void appendStorageSummary(final StringBuilder sb) {
+    sb.append("   Item Bytes (Discarded)       : ").append(itemsBytes_).append(" (")
+      .append(discardedBytes_).append(")").append(Util.LS);
+  }
+
+  @Override
+  String minValueString() {
+    return Arrays.toString(minValue_);
+  }
+
+  @Override
+  String maxValueString() {
+    return Arrays.toString(maxValue_);
+  }
+
+  private byte[] itemOf(final long handle) {
+    final int offset = offset(handle);
+    return Arrays.copyOfRange(items_, offset, offset + length(handle));
+  }
+
+  private void ensureItemsCapacity(final int extraBytes) {
+    final long needed = (long) itemsBytes_ + extraBytes;
+    if (needed <= items_.length) { return; }
+    if (needed > MAX_ITEMS_BYTES) {
+      throw new SketchesStateException("Retained items exceed the maximum size of "
+          + MAX_ITEMS_BYTES + " bytes");
+    }
+    final long grown = (long) items_.length + (items_.length >>> 1);
+    items_ = Arrays.copyOf(items_, (int) Math.min(MAX_ITEMS_BYTES, Math.max(needed, grown)));
+  }
+
+  // copies the given bytes to the end of the item buffer and returns their handle
+  private long appendItem(final byte[] src, final int srcOffset, final int length) {
+    ensureItemsCapacity(length);
+    System.arraycopy(src, srcOffset, items_, itemsBytes_, length);
+    final long handle = handle(itemsBytes_, length);
+    itemsBytes_ += length;
+    return handle;
+  }
+
+  // encodes the given String as UTF-8 at the end of the item buffer and returns its handle
+  private long appendUtf8(final String str) {
+    final int numChars = str.length();
+    ensureItemsCapacity(3 * numChars); // a surrogate pair takes 2 chars and 4 bytes
+    final byte[] buf = items_;
+    final int start = itemsBytes_;
+    int pos = start;
+    for (int i = 0; i < numChars; i++) {
+      final char c = str.charAt(i);
+      if (c < 0X80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0X800) {
+        buf[pos++] = (byte) (0XC0 | (c >> 6));
+        buf[pos++] = (byte) (0X80 | (c & 0X3F));
+      } else if (!Character.isSurrogate(c)) {
+        buf[pos++] = (byte) (0XE0 | (c >> 12));
+        buf[pos++] = (byte) (0X80 | ((c >> 6) & 0X3F));
+        buf[pos++] = (byte) (0X80 | (c & 0X3F));
+      } else if (Character.isHighSurrogate(c) && ((i + 1) < numChars)
+          && Character.isLowSurrogate(str.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, str.charAt(++i));
+        buf[pos++] = (byte) (0XF0 | (cp >> 18));
+        buf[pos++] = (byte) (0X80 | ((cp >> 12) & 0X3F));
+        buf[pos++] = (byte) (0X80 | ((cp >> 6) & 0X3F));
+        buf[pos++] = (byte) (0X80 | (cp & 0X3F));
+      } else {
+        buf[pos++] = (byte) '?';
+      }
+    }
+    itemsBytes_ = pos;
+    return handle(start, pos - start);
+  }
+
+  /**
+   * Rewrites the item buffer with only the retained items once the discarded items make up half
+   * of it. Must only be called when no handles are held outside of the combined buffer.
+   */
+  private void maybeReclaimDiscardedBytes() {
+    if ((discardedBytes_ < MIN_ITEMS_BYTES) || (discardedBytes_ < (itemsBytes_ >>> 1))) {
+      return;
+    }
+    final int liveBytes = itemsBytes_ - discardedBytes_;
+    final byte[] newItems =
+        new byte[(int) Math.min(MAX_ITEMS_BYTES, Math.max(MIN_ITEMS_BYTES, 2L * liveBytes))];
+    int pos = 0;
+    for (int i = 0; i < baseBufferCount_; i++) {
+      pos = moveItem(i, newItems, pos);
+    }
+    long bits = bitPattern_;
+    for (int level = 0; bits != 0L; level++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        final int levelStart = (2 + level) * k_;
+        for (int i = levelStart; i < (levelStart + k_); i++) {
+          pos = moveItem(i, newItems, pos);
+        }
+      }
+    }
+    assert pos == liveBytes;
+    items_ = newItems;
+    itemsBytes_ = pos;
+    discardedBytes_ = 0;
+  }
+
+  // copies the item in the given slot of the combined buffer to newItems and updates its handle
+  private int moveItem(final int slot, final byte[] newItems, final int pos) {
+    final long h = combinedBuffer_[slot];
+    final int length = length(h);
+    System.arraycopy(items_, offset(h), newItems, pos, length);
+    combinedBuffer_[slot] = handle(pos, length);
+    return pos + length;
+  }
+
+  // sorts the handles in the inclusive range [lo, hi] by the items they refer to
+  private void sortHandles(final long[] arr, final int lo, final int hi) {
+    if ((hi - lo) < 16) {
+      for (int i = lo + 1; i <= hi; i++) {
+        final long h = arr[i];
+        int j = i - 1;
+        while ((j >= lo) && (compareHandles(arr[j], h) > 0)) {
+          arr[j + 1] = arr[j];
+          j--;
+        }
+        arr[j + 1] = h;
+      }
+      return;
+    }
+    // median of three as the pivot, then Hoare partition
+    final int mid = (lo + hi) >>> 1;
+    if (compareHandles(arr[mid], arr[lo]) < 0) { swap(arr, lo, mid); }
+    if (compareHandles(arr[hi], arr[lo]) < 0) { swap(arr, lo, hi); }
+    if (compareHandles(arr[hi], arr[mid]) < 0) { swap(arr, mid, hi); }
+    final long pivot = arr[mid];
+    int i = lo - 1;
+    int j = hi + 1;
+    while (true) {
+      do { i++; } while (compareHandles(arr[i], pivot) < 0);
+      do { j--; } while (compareHandles(arr[j], pivot) > 0);
+      if (i >= j) { break; }
+      swap(arr, i, j);
+    }
+    sortHandles(arr, lo, j);
+    sortHandles(arr, j + 1, hi);
+  }
+
+  private static void swap(final long[] arr, final int i, final int j) {
+    final long tmp = arr[i];
+    arr[i] = arr[j];
+    arr[j] = tmp;
+  }
+
+  // serialized size of min, max and all retained items, each as an int length followed by bytes
+  private int getItemsBytes() {
+    int bytes = (2 * Integer.BYTES) + minValue_.length + maxValue_.length;
+    for (int i = 0; i < baseBufferCount_; i++) {
+      bytes += Integer.BYTES + length(combinedBuffer_[i]);
+    }
+    long bits = bitPattern_;
+    for (int level = 0; bits != 0L; level++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        final int levelStart = (2 + level) * k_;
+        for (int i = levelStart; i < (levelStart + k_); i++) {
+          bytes += Integer.BYTES + length(combinedBuffer_[i]);
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static byte[] readItem(final Memory mem, final long[] offsetBytes) {
+    UnsafeUtil.checkBounds(offsetBytes[0], Integer.BYTES, mem.getCapacity());
+    final int length = mem.getInt(offsetBytes[0]);
+    offsetBytes[0] += Integer.BYTES;
+    UnsafeUtil.checkBounds(offsetBytes[0], length, mem.getCapacity());
+    final byte[] item = new byte[length];
+    mem.getByteArray(offsetBytes[0], item, 0, length);
+    offsetBytes[0] += length;
+    return item;
+  }
+
+  // reads an item directly into the item buffer and returns its handle
+  private long readItemHandle(final Memory mem, final long[] offsetBytes) {
+    UnsafeUtil.checkBounds(offsetBytes[0], Integer.BYTES, mem.getCapacity());
+    final int length = mem.getInt(offsetBytes[0]);
+    offsetBytes[0] += Integer.BYTES;
+    UnsafeUtil.checkBounds(offsetBytes[0], length, mem.getCapacity());
+    ensureItemsCapacity(length);
+    mem.getByteArray(offsetBytes[0], items_, itemsBytes_, length);
+    offsetBytes[0] += length;
+    final long handle = handle(itemsBytes_, length);
+    itemsBytes_ += length;
+    return handle;
+  }
+
+  private static void writeItem(final WritableMemory mem, final long[] offsetBytes,
+      final byte[] item) {
+    mem.putInt(offsetBytes[0], item.length);
+    offsetBytes[0] += Integer.BYTES;
+    mem.putByteArray(offsetBytes[0], item, 0, item.length);
+    offsetBytes[0] += item.length;
+  }
+
+  private void writeItemHandle(final WritableMemory mem, final long[] offsetBytes,
+      final long handle) {
+    final int length = length(handle);
+    mem.putInt(offsetBytes[0], length);
+    offsetBytes[0] += Integer.BYTES;
+    mem.putByteArray(offsetBytes[0], items_, offset(handle), length);
+    offsetBytes[0] += length;
+  }
+
+  private double[] getPmfOrCdf(final byte[][] splitPoints, final boolean isCdf) {
+    if (isEmpty()) { return null; }
+    for (int j = 0; j < (splitPoints.length - 1); j++) {
+      if (compare(splitPoints[j], splitPoints[j + 1]) >= 0) {
+        throw new SketchesArgumentException("Values must be unique and monotonically increasing.");
+      }
+    }
+    buildSortedViewIfNeeded();
+    final long[] splitWeights = new long[splitPoints.length];
+    for (int j = 0; j < splitPoints.length; j++) {
+      splitWeights[j] = sortedCumWeights_[lowerBound(splitPoints[j])];
+    }
+    return bucketsFromWeights(splitWeights, isCdf);
+  }
+
+  // returns the index of the first sorted item that is not less than the given value
+  private int lowerBound(final byte[] value) {
+    int lo = 0;
+    int hi = sortedItems_.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (compareHandle(sortedItems_[mid], value) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A quantiles DoublesSketch that can be updated by many threads at the same time.
+ *
+ * <p>Every updating thread fills its own base buffer of 2k items without taking any lock.
+ * A full buffer is sorted by its thread and then propagated into the shared sketch, which only
+ * holds a short lock while the carry ripples through its levels. This is exactly what a single
+ * sketch does when its own base buffer fills up, so the accuracy guarantees are those of an
+ * {@link UpdateDoublesSketch} with the same <i>k</i>.</p>
+ *
+ * <p>Queries never touch the buffers of live threads. They are answered by a compact snapshot of
+ * the shared sketch, which is refreshed on the first query after a buffer was propagated, so a
+ * snapshot misses at most the fewer than 2k items in the buffer of each updating thread.
+ * A thread can call {@link #flush()} to propagate its partial buffer early, for instance before
+ * it becomes idle. The partial buffers of terminated threads are propagated by the next query,
+ * and their buffers are dropped. {@link #getN()} is a running count that includes the buffered
+ * items and is read without a lock.</p>
+ *
+ * <p>A ConcurrentDoublesSketch is obtained from {@link DoublesSketchBuilder#buildShared()}.</p>
+ */
+public final class ConcurrentDoublesSketch {
+
+  private static final AtomicIntegerFieldUpdater<LocalBuffer> COUNT =
+      AtomicIntegerFieldUpdater.newUpdater(LocalBuffer.class, "count");
+
+  private final int k_;
+  private final HeapUpdateDoublesSketch sketch_; // guarded by itself
+  private final CopyOnWriteArrayList<LocalBuffer> registry_ = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<LocalBuffer> localBuffer_;
+  private volatile long sketchN_ = 0; // the N of sketch_, written under its lock
+  private volatile CompactDoublesSketch snapshot_;
+  private volatile boolean snapshotStale_ = false;
+
+  private ConcurrentDoublesSketch(final int k) {
+    k_ = k;
+    sketch_ = HeapUpdateDoublesSketch.newInstance(k);
+    snapshot_ = sketch_.compact();
+    localBuffer_ = new ThreadLocal<LocalBuffer>() {
+      @Override
+      protected LocalBuffer initialValue() {
+        final LocalBuffer local = new LocalBuffer(Thread.currentThread(), 2 * k_);
+        registry_.add(local);
+        return local;
+      }
+    };
+  }
+
+  static ConcurrentDoublesSketch newInstance(final int k) {
+    return new ConcurrentDoublesSketch(k);
+  }
+
+  void seedRandom(final long seed) {
+    synchronized (sketch_) {
+      sketch_.seedRandom(seed);
+    }
+  }
+
+  /**
+   * Updates this sketch with the given double data item. It is stored in the buffer of the
+   * calling thread, which is propagated into the shared sketch when it is full.
+   * @param dataItem an item from a stream of items. NaNs are ignored.
+   */
+  public void update(final double dataItem) {
+    if (Double.isNaN(dataItem)) { return; }
+    final LocalBuffer local = localBuffer_.get();
+    final double[] buffer = local.items;
+    final int count = local.count;
+    buffer[count] = dataItem;
+    if ((count + 1) < buffer.length) {
+      COUNT.lazySet(local, count + 1); // only read by getN, which needs no fence
+      return;
+    }
+    COUNT.lazySet(local, 0); // before the items are counted by the sketch, so never counted twice
+    Arrays.sort(buffer);
+    synchronized (sketch_) {
+      sketch_.propagateSortedBuffer(buffer);
+      publish();
+    }
+  }
+
+  /**
+   * Propagates the items in the buffer of the calling thread into the shared sketch, so that the
+   * next snapshot includes them.
+   */
+  public void flush() {
+    drain(localBuffer_.get());
+  }
+
+  /**
+   * Returns a compact snapshot of the shared sketch, which can answer all the queries of a
+   * {@link DoublesSketch}. It reflects all updates that completed before this call, except those
+   * still in the partial buffers of live threads.
+   * @return a compact snapshot of the shared sketch
+   */
+  public CompactDoublesSketch getSnapshot() {
+    drainTerminated();
+    if (snapshotStale_) {
+      synchronized (sketch_) {
+        if (snapshotStale_) {
+          snapshot_ = sketch_.compact();
+          snapshotStale_ = false;
+        }
+      }
+    }
+    return snapshot_;
+  }
+
+  /**
+   * Returns a copy of the shared sketch that can be updated further by a single thread.
+   * See {@link #getSnapshot()} for the updates it reflects.
+   * @return a copy of the shared sketch
+   */
+  public UpdateDoublesSketch getResult() {
+    drainTerminated();
+    synchronized (sketch_) {
+      return DoublesUtil.copyToHeap(sketch_);
+    }
+  }
+
+  /**
+   * Returns the configured value of K
+   * @return the configured value of K
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the number of items this sketch has seen, including those still buffered by the
+   * updating threads. While updates are in progress it may briefly miss the 2k items of a buffer
+   * that is being propagated.
+   * @return the number of items this sketch has seen
+   */
+  public long getN() {
+    long n = sketchN_;
+    for (final LocalBuffer local : registry_) {
+      n += local.count;
+    }
+    return n;
+  }
+
+  /**
+   * Returns summary information about the snapshot of this sketch.
+   */
+  @Override
+  public String toString() {
+    return getSnapshot().toString();
+  }
+
+  // marks the snapshot as stale after sketch_ changed, must hold the lock of sketch_
+  private void publish() {
+    sketchN_ = sketch_.getN();
+    snapshotStale_ = true;
+  }
+
+  /**
+   * Propagates the partial buffers of terminated threads and drops them from the registry.
+   * A thread that has terminated is seen to do so after all of its writes, so its buffer can
+   * be read without a lock.
+   */
+  private void drainTerminated() {
+    for (final LocalBuffer local : registry_) {
+      if (!local.owner.isAlive()) {
+        drain(local);
+        registry_.remove(local);
+      }
+    }
+  }
+
+  // must be called by the owner of the buffer or after the owner has terminated
+  private void drain(final LocalBuffer local) {
+    final int count = local.count;
+    if (count == 0) { return; }
+    COUNT.lazySet(local, 0);
+    synchronized (sketch_) {
+      sketch_.update(local.items, 0, count);
+      publish();
+    }
+  }
+
+  /**
+   * The buffer of one updating thread, which is only written by that thread.
+   */
+  private static final class LocalBuffer {
+    final Thread owner;
+    final double[] items;
+    volatile int count = 0;
+
+    LocalBuffer(final Thread owner, final int capacity) {
+      this.owner = owner;
+      items = new double[capacity];
+    }
+  }
+
+}
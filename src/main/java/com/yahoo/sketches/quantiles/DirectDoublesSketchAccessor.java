@@ -77,6 +77,19 @@ class DirectDoublesSketchAccessor extends DoublesSketchAccessor {
     ds_.getMemory().putDoubleArray(offsetBytes, srcArray, srcIndex, numItems);
   }
 
+  @Override
+  void copyTo(final int fromIdx, final DoublesBufferAccessor dst, final int dstIdx,
+              final int numItems) {
+    if (dst instanceof DirectDoublesSketchAccessor) {
+      final DirectDoublesSketchAccessor directDst = (DirectDoublesSketchAccessor) dst;
+      assert !directDst.ds_.isCompact(); // can't write to compact sketch
+      ds_.getMemory().copyTo(offset_ + (fromIdx << 3), directDst.ds_.getMemory(),
+          directDst.offset_ + (dstIdx << 3), numItems << 3);
+    } else {
+      super.copyTo(fromIdx, dst, dstIdx, numItems);
+    }
+  }
+
   @Override
   void sort() {
     assert currLvl_ == BB_LVL_IDX;
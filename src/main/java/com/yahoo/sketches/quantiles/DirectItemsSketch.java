@@ -0,0 +1,794 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMPACT_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.FLAGS_BYTE;
+import static com.yahoo.sketches.quantiles.PreambleUtil.N_LONG;
+import static com.yahoo.sketches.quantiles.PreambleUtil.ORDERED_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertSerVer;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.lang.reflect.Array;
+import java.util.SplittableRandom;
+
+import com.yahoo.memory.DefaultMemoryRequestServer;
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.ArrayOfFixedWidthItemsSerDe;
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.QuantilesHelper;
+import com.yahoo.sketches.SketchesArgumentException;
+
+/**
+ * This is an updatable quantiles sketch of generic items that keeps all of its state in
+ * WritableMemory, which may be off the Java heap. It implements the same algorithm as
+ * {@link ItemsSketch} and has the same accuracy guarantees. The items must have a fixed-width
+ * serialized form given by an {@link ArrayOfFixedWidthItemsSerDe}, which is also used to compare
+ * them in place. Items are only materialized on the heap when they are returned from a query.
+ *
+ * <p>The Memory layout is the same as that of an updatable {@link DoublesSketch}, except that
+ * the min value, the max value and the combined buffer hold items of
+ * {@link ArrayOfFixedWidthItemsSerDe#getItemSizeBytes()} bytes:</p>
+ *
+ * <pre>
+ * Long || Start Byte Adr:
+ * Adr:
+ *      ||    7   |    6   |    5   |    4   |    3   |    2   |    1   |     0          |
+ *  0   ||------unused-----|--------K--------|  Flags | FamID  | SerVer | Preamble_Longs |
+ *
+ *      ||   15   |   14   |   13   |   12   |   11   |   10   |    9   |     8          |
+ *  1   ||-----------------------------------N_LONG--------------------------------------|
+ *
+ *  16  || min item, max item, base buffer of 2K items, levels of K items ...            |
+ * </pre>
+ *
+ * <p>As the sketch grows it requests larger Memory from the MemoryRequestServer of the
+ * current Memory. {@link #toByteArray(boolean)} produces the compact image of an
+ * {@link ItemsSketch} that can be read with the same SerDe.</p>
+ *
+ * @param <T> type of item
+ */
+public final class DirectItemsSketch<T> {
+
+  private static final int DATA_START = 16;
+
+  private final int k_;
+  private final ArrayOfFixedWidthItemsSerDe<T> serDe_;
+  private final int itemBytes_;
+  private WritableMemory mem_;
+  private MemoryRequestServer memReqSvr_ = null;
+  private SplittableRandom random_ = null;
+  private WritableMemory valueMem_ = null; // scratch space for the serialized value of getRank()
+
+  private DirectItemsSketch(final int k, final ArrayOfFixedWidthItemsSerDe<T> serDe,
+      final WritableMemory mem) {
+    k_ = k;
+    serDe_ = serDe;
+    itemBytes_ = serDe.getItemSizeBytes();
+    mem_ = mem;
+  }
+
+  /**
+   * Obtains a new instance of a DirectItemsSketch in the given Memory.
+   * @param <T> type of item
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 1 and less than 65536 and a power of 2.
+   * @param serDe the SerDe for the fixed-width items
+   * @param dstMem the destination Memory that will be initialized to hold the data for this
+   * sketch. It must be at least {@link #getUpdatableStorageBytes(int, long, int)
+   * getUpdatableStorageBytes(k, 0, itemSizeBytes)} bytes. As it grows it will request more
+   * memory using the MemoryRequestServer.
+   * @return a new instance of a DirectItemsSketch
+   */
+  public static <T> DirectItemsSketch<T> newInstance(final int k,
+      final ArrayOfFixedWidthItemsSerDe<T> serDe, final WritableMemory dstMem) {
+    Util.checkK(k);
+    checkMemCapacity(k, 0, serDe.getItemSizeBytes(), dstMem.getCapacity());
+    dstMem.putLong(0, 0L); //clear pre0
+    insertPreLongs(dstMem, 2);
+    insertSerVer(dstMem, ItemsUtil.ITEMS_SER_VER);
+    insertFamilyID(dstMem, Family.QUANTILES.getID());
+    insertFlags(dstMem, EMPTY_FLAG_MASK);
+    insertK(dstMem, k);
+    insertN(dstMem, 0L);
+    return new DirectItemsSketch<>(k, serDe, dstMem);
+  }
+
+  /**
+   * Obtains a new instance of a DirectItemsSketch in the given Memory with a seeded random
+   * generator. Sketches created with the same seed produce identical results if they receive the
+   * same items in the same order. The seed is not part of the Memory image.
+   * @param <T> type of item
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 1 and less than 65536 and a power of 2.
+   * @param serDe the SerDe for the fixed-width items
+   * @param dstMem the destination Memory that will be initialized to hold the data for this
+   * sketch, see {@link #newInstance(int, ArrayOfFixedWidthItemsSerDe, WritableMemory)}
+   * @param seed the seed of the random generator
+   * @return a new instance of a DirectItemsSketch
+   */
+  public static <T> DirectItemsSketch<T> newInstance(final int k,
+      final ArrayOfFixedWidthItemsSerDe<T> serDe, final WritableMemory dstMem, final long seed) {
+    final DirectItemsSketch<T> sketch = newInstance(k, serDe, dstMem);
+    sketch.random_ = new SplittableRandom(seed);
+    return sketch;
+  }
+
+  /**
+   * Wraps the given Memory image of a DirectItemsSketch, which may contain data. The image
+   * must have been created by {@link #newInstance(int, ArrayOfFixedWidthItemsSerDe, WritableMemory)}
+   * with a SerDe of the same item width.
+   * @param <T> type of item
+   * @param srcMem the given Memory image
+   * @param serDe the SerDe for the fixed-width items
+   * @return a sketch that wraps the given srcMem
+   */
+  public static <T> DirectItemsSketch<T> writableWrap(final WritableMemory srcMem,
+      final ArrayOfFixedWidthItemsSerDe<T> serDe) {
+    final long memCap = srcMem.getCapacity();
+    if (memCap < DATA_START) {
+      throw new SketchesArgumentException("Memory too small: " + memCap);
+    }
+    final int preLongs = extractPreLongs(srcMem);
+    final int serVer = extractSerVer(srcMem);
+    final int familyID = extractFamilyID(srcMem);
+    final int flags = extractFlags(srcMem);
+    final int k = extractK(srcMem);
+    final long n = extractN(srcMem);
+
+    if (preLongs != 2) {
+      throw new SketchesArgumentException("Possible corruption: PreLongs must be 2: " + preLongs);
+    }
+    ItemsUtil.checkItemsSerVer(serVer);
+    Util.checkFamilyID(familyID);
+    if ((flags & COMPACT_FLAG_MASK) > 0) {
+      throw new SketchesArgumentException("Compact Memory images cannot be wrapped.");
+    }
+    Util.checkK(k);
+    final boolean empty = (flags & EMPTY_FLAG_MASK) > 0;
+    if (empty != (n == 0)) {
+      throw new SketchesArgumentException(
+          "Possible corruption: Empty flag inconsistent with N: " + empty + ", " + n);
+    }
+    checkMemCapacity(k, n, serDe.getItemSizeBytes(), memCap);
+    return new DirectItemsSketch<>(k, serDe, srcMem);
+  }
+
+  /**
+   * Returns the number of bytes required to hold an updatable sketch with the given parameters.
+   * @param k the size configuration parameter for the sketch
+   * @param n the number of items input into the sketch
+   * @param itemSizeBytes the number of bytes of every item
+   * @return the number of bytes required
+   */
+  public static long getUpdatableStorageBytes(final int k, final long n, final int itemSizeBytes) {
+    final long items = 2L + Util.computeCombinedBufferItemCapacity(k, n);
+    return DATA_START + (items * itemSizeBytes);
+  }
+
+  /**
+   * Updates this sketch with the given data item
+   * @param dataItem an item from a stream of items. Nulls are ignored.
+   */
+  public void update(final T dataItem) {
+    if (dataItem == null) { return; }
+    final long curN = getN();
+    final int curBBCount = Util.computeBaseBufferItems(k_, curN);
+    if ((curBBCount + 1) > getCombinedBufferItemCapacity()) {
+      //only changes the combined buffer when it is only a base buffer
+      growCombinedMemBuffer(2 * k_);
+    }
+    final long itemOffset = itemOffset(curBBCount);
+    serDe_.putItem(mem_, itemOffset, dataItem);
+    if (curN == 0) {
+      mem_.copyTo(itemOffset, mem_, minOffset(), itemBytes_);
+      mem_.copyTo(itemOffset, mem_, maxOffset(), itemBytes_);
+    } else {
+      if (serDe_.compare(mem_, itemOffset, mem_, minOffset()) < 0) {
+        mem_.copyTo(itemOffset, mem_, minOffset(), itemBytes_);
+      }
+      if (serDe_.compare(mem_, itemOffset, mem_, maxOffset()) > 0) {
+        mem_.copyTo(itemOffset, mem_, maxOffset(), itemBytes_);
+      }
+    }
+    mem_.putByte(FLAGS_BYTE, (byte) 0); //not compact, not ordered, not empty
+    final long newN = curN + 1;
+    if ((curBBCount + 1) == (2 * k_)) {
+      propagateFullBaseBuffer(curN, newN);
+    }
+    mem_.putLong(N_LONG, newN);
+  }
+
+  /**
+   * This returns an approximation to the value of the data item
+   * that would be preceded by the given fraction of a hypothetical sorted
+   * version of the input stream so far.
+   * See {@link ItemsSketch#getQuantile(double)} for the details.
+   *
+   * @param fraction the specified fractional position in the hypothetical sorted stream.
+   * @return the approximation to the value at the above fraction, or null if the sketch is empty
+   */
+  public T getQuantile(final double fraction) {
+    if (isEmpty()) { return null; }
+    if ((fraction < 0.0) || (fraction > 1.0)) {
+      throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+    }
+    if      (fraction == 0.0) { return getMinValue(); }
+    else if (fraction == 1.0) { return getMaxValue(); }
+    return new SortedView().getQuantile(fraction);
+  }
+
+  /**
+   * Gets the upper bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the upper bound of the value interval, or null if the sketch is empty
+   */
+  public T getQuantileUpperBound(final double fraction) {
+    return getQuantile(min(1.0, fraction + Util.getNormalizedRankError(k_, false)));
+  }
+
+  /**
+   * Gets the lower bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the lower bound of the value interval, or null if the sketch is empty
+   */
+  public T getQuantileLowerBound(final double fraction) {
+    return getQuantile(max(0, fraction - Util.getNormalizedRankError(k_, false)));
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getQuantile().
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param fRanks the given array of fractional (or normalized) ranks in the hypothetical
+   * sorted stream of all the input values seen so far.
+   * These fRanks must all be in the interval [0.0, 1.0] inclusively.
+   * @return array of approximate quantiles of the given fRanks in the same order as in the given
+   * fRanks array.
+   */
+  @SuppressWarnings("unchecked")
+  public T[] getQuantiles(final double[] fRanks) {
+    if (isEmpty()) { return null; }
+    final T minValue = getMinValue();
+    final T[] quantiles = (T[]) Array.newInstance(minValue.getClass(), fRanks.length);
+    SortedView view = null;
+    for (int i = 0; i < fRanks.length; i++) {
+      final double fRank = fRanks[i];
+      if      (fRank == 0.0) { quantiles[i] = minValue; }
+      else if (fRank == 1.0) { quantiles[i] = getMaxValue(); }
+      else {
+        if (view == null) { view = new SortedView(); }
+        quantiles[i] = view.getQuantile(fRank);
+      }
+    }
+    return quantiles;
+  }
+
+  /**
+   * This is also a more efficient multiple-query version of getQuantile() and allows the caller to
+   * specify the number of evenly spaced fractional ranks.
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param evenlySpaced an integer that specifies the number of evenly spaced fractional ranks.
+   * @return array of approximations to the given number of evenly spaced fractional ranks.
+   */
+  public T[] getQuantiles(final int evenlySpaced) {
+    if (isEmpty()) { return null; }
+    return getQuantiles(QuantilesHelper.getEvenlySpacedRanks(evenlySpaced));
+  }
+
+  /**
+   * Returns an approximation to the normalized (fractional) rank of the given value from 0 to 1
+   * inclusive.
+   *
+   * <p>If the sketch is empty this returns NaN.</p>
+   *
+   * @param value to be ranked
+   * @return an approximate rank of the given value
+   */
+  public double getRank(final T value) {
+    if (isEmpty()) { return Double.NaN; }
+    if (valueMem_ == null) {
+      valueMem_ = WritableMemory.allocate(itemBytes_);
+    }
+    final WritableMemory valueMem = valueMem_;
+    serDe_.putItem(valueMem, 0, value);
+    final long n = getN();
+    long total = 0;
+    final int bbCount = Util.computeBaseBufferItems(k_, n);
+    for (int i = 0; i < bbCount; i++) {
+      if (serDe_.compare(mem_, itemOffset(i), valueMem, 0) < 0) { total++; }
+    }
+    long weight = 1;
+    long bits = Util.computeBitPattern(k_, n);
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      weight *= 2;
+      if ((bits & 1L) > 0L) {
+        // levels are sorted, so stop at the first item that is not less than the value
+        final int levelStart = (2 + lvl) * k_;
+        for (int i = levelStart; i < (levelStart + k_); i++) {
+          if (serDe_.compare(mem_, itemOffset(i), valueMem, 0) >= 0) { break; }
+          total += weight;
+        }
+      }
+    }
+    return (double) total / n;
+  }
+
+  /**
+   * Returns an approximation to the Probability Mass Function (PMF) of the input stream
+   * given a set of splitPoints (values).
+   * See {@link ItemsSketch#getPMF(Object[])} for the details.
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * that divide the ordered space into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 doubles, or null if the sketch is empty
+   */
+  public double[] getPMF(final T[] splitPoints) {
+    return getPmfOrCdf(splitPoints, false);
+  }
+
+  /**
+   * Returns an approximation to the Cumulative Distribution Function (CDF), which is the
+   * cumulative analog of the PMF, of the input stream given a set of splitPoints (values).
+   * See {@link ItemsSketch#getCDF(Object[])} for the details.
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * that divide the ordered space into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 doubles, or null if the sketch is empty
+   */
+  public double[] getCDF(final T[] splitPoints) {
+    return getPmfOrCdf(splitPoints, true);
+  }
+
+  /**
+   * Returns the configured value of K
+   * @return the configured value of K
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the length of the input stream so far.
+   * @return the length of the input stream so far
+   */
+  public long getN() {
+    return mem_.getLong(N_LONG);
+  }
+
+  /**
+   * Returns the min value of the stream
+   * @return the min value of the stream, or null if the sketch is empty
+   */
+  public T getMinValue() {
+    return isEmpty() ? null : serDe_.getItem(mem_, minOffset());
+  }
+
+  /**
+   * Returns the max value of the stream
+   * @return the max value of the stream, or null if the sketch is empty
+   */
+  public T getMaxValue() {
+    return isEmpty() ? null : serDe_.getItem(mem_, maxOffset());
+  }
+
+  /**
+   * Returns true if this sketch is empty
+   * @return true if this sketch is empty
+   */
+  public boolean isEmpty() {
+    return getN() == 0;
+  }
+
+  /**
+   * Returns true if this sketch is in estimation mode
+   * @return true if this sketch is in estimation mode
+   */
+  public boolean isEstimationMode() {
+    return getN() >= (2L * k_);
+  }
+
+  /**
+   * Computes the number of retained entries (samples) in the sketch
+   * @return the number of retained entries (samples) in the sketch
+   */
+  public int getRetainedItems() {
+    return Util.computeRetainedItems(k_, getN());
+  }
+
+  /**
+   * Gets the approximate rank error of this sketch normalized as a fraction between zero and one.
+   * @param pmf if true, returns the "double-sided" normalized rank error for the getPMF() function.
+   * Otherwise, it is the "single-sided" normalized rank error for all the other queries.
+   * @return the normalized rank error
+   */
+  public double getNormalizedRankError(final boolean pmf) {
+    return Util.getNormalizedRankError(k_, pmf);
+  }
+
+  /**
+   * Returns the Memory that currently backs this sketch. It changes when the sketch grows.
+   * @return the Memory that currently backs this sketch
+   */
+  public WritableMemory getMemory() {
+    return mem_;
+  }
+
+  /**
+   * Returns true if the backing resource of this sketch is identical with the backing resource
+   * of that.
+   * @param that the given Memory
+   * @return true if the backing resource of this sketch is identical with the backing resource
+   * of that.
+   */
+  public boolean isSameResource(final Memory that) {
+    return mem_.isSameResource(that);
+  }
+
+  /**
+   * Resets this sketch to the empty state, but retains the original value of k and the Memory.
+   */
+  public void reset() {
+    mem_.putByte(FLAGS_BYTE, (byte) EMPTY_FLAG_MASK); //not compact, not ordered
+    mem_.putLong(N_LONG, 0L);
+  }
+
+  /**
+   * Serialize this sketch to the compact form of an {@link ItemsSketch} of the same SerDe.
+   * @return byte array of this sketch
+   */
+  public byte[] toByteArray() {
+    return toByteArray(false);
+  }
+
+  /**
+   * Serialize this sketch to the compact form of an {@link ItemsSketch} of the same SerDe.
+   * @param ordered if true the base buffer will be ordered (default == false). Ordering sorts
+   * the base buffer of this sketch in place, which does not change its state.
+   * @return this sketch in a byte array form.
+   */
+  public byte[] toByteArray(final boolean ordered) {
+    final boolean empty = isEmpty();
+    final int flags = (empty ? EMPTY_FLAG_MASK : 0)
+        | (ordered ? ORDERED_FLAG_MASK : 0)
+        | COMPACT_FLAG_MASK; //always compact
+    final int preLongs = empty ? 1 : 2;
+    final long n = getN();
+    final int numItems = empty ? 0 : Util.computeRetainedItems(k_, n) + 2;
+    final byte[] outByteArr = new byte[(preLongs << 3) + (numItems * itemBytes_)];
+    final WritableMemory memOut = WritableMemory.wrap(outByteArr);
+    insertPreLongs(memOut, preLongs);
+    insertSerVer(memOut, ItemsUtil.ITEMS_SER_VER);
+    insertFamilyID(memOut, Family.QUANTILES.getID());
+    insertFlags(memOut, flags);
+    insertK(memOut, k_);
+    if (empty) { return outByteArr; }
+
+    insertN(memOut, n);
+    final int bbCount = Util.computeBaseBufferItems(k_, n);
+    if (ordered) { sortBaseBuffer(bbCount); }
+    long offsetBytes = preLongs << 3;
+    final long minMaxAndBaseBytes = (2L + bbCount) * itemBytes_;
+    mem_.copyTo(minOffset(), memOut, offsetBytes, minMaxAndBaseBytes);
+    offsetBytes += minMaxAndBaseBytes;
+    final long levelBytes = (long) k_ * itemBytes_;
+    long bits = Util.computeBitPattern(k_, n);
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        mem_.copyTo(itemOffset((2 + lvl) * k_), memOut, offsetBytes, levelBytes);
+        offsetBytes += levelBytes;
+      }
+    }
+    return outByteArr;
+  }
+
+  /**
+   * Returns summary information about this sketch.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    final String thisSimpleName = this.getClass().getSimpleName();
+    final long n = getN();
+    sb.append(Util.LS).append("### ").append(thisSimpleName).append(" SUMMARY: ").append(Util.LS);
+    sb.append("   K                            : ").append(k_).append(Util.LS);
+    sb.append("   N                            : ").append(n).append(Util.LS);
+    sb.append("   Item Bytes                   : ").append(itemBytes_).append(Util.LS);
+    sb.append("   Combined Buffer Capacity     : ").append(getCombinedBufferItemCapacity())
+      .append(Util.LS);
+    sb.append("   Retained Items               : ").append(getRetainedItems()).append(Util.LS);
+    sb.append("   Storage Bytes                : ").append(mem_.getCapacity()).append(Util.LS);
+    if (n > 0) {
+      sb.append("   Min Value                    : ").append(getMinValue()).append(Util.LS);
+      sb.append("   Max Value                    : ").append(getMaxValue()).append(Util.LS);
+    }
+    sb.append("### END SKETCH SUMMARY").append(Util.LS);
+    return sb.toString();
+  }
+
+  // Restricted
+
+  private long minOffset() {
+    return DATA_START;
+  }
+
+  private long maxOffset() {
+    return DATA_START + itemBytes_;
+  }
+
+  private long itemOffset(final int index) {
+    return DATA_START + ((2L + index) * itemBytes_);
+  }
+
+  private int getCombinedBufferItemCapacity() {
+    return (int) (((mem_.getCapacity() - DATA_START) / itemBytes_) - 2);
+  }
+
+  private SplittableRandom getRandom() {
+    if (random_ == null) {
+      random_ = new SplittableRandom(ItemsSketch.rand.nextLong());
+    }
+    return random_;
+  }
+
+  private static void checkMemCapacity(final int k, final long n, final int itemSizeBytes,
+      final long memCapBytes) {
+    final long required = getUpdatableStorageBytes(k, n, itemSizeBytes);
+    if (memCapBytes < required) {
+      throw new SketchesArgumentException(
+          "Memory capacity too small: " + memCapBytes + " < " + required);
+    }
+  }
+
+  /**
+   * Sorts the full base buffer and propagates it into the levels, in place in Memory.
+   * See ItemsUpdateImpl.inPlacePropagateCarry() for the details.
+   * @param curN the value of n before the last item was put into the base buffer
+   * @param newN the value of n including the last item
+   */
+  private void propagateFullBaseBuffer(final long curN, final long newN) {
+    final int itemSpaceNeeded = (2 + Util.computeNumLevelsNeeded(k_, newN)) * k_;
+    if (itemSpaceNeeded > getCombinedBufferItemCapacity()) {
+      growCombinedMemBuffer(itemSpaceNeeded);
+    }
+    sortBaseBuffer(2 * k_);
+
+    final long bitPattern = Util.computeBitPattern(k_, curN);
+    final int endingLevel = Util.lowestZeroBitStartingAt(bitPattern, 0);
+    final int endingStart = (2 + endingLevel) * k_;
+    zipBaseBufferInto(endingStart);
+    for (int lvl = 0; lvl < endingLevel; lvl++) {
+      assert (bitPattern & (1L << lvl)) > 0; // internal consistency check
+      mergeLevelsIntoBaseBuffer((2 + lvl) * k_, endingStart);
+      zipBaseBufferInto(endingStart);
+    }
+  }
+
+  private void zipBaseBufferInto(final int startC) {
+    final int randomOffset = getRandom().nextBoolean() ? 1 : 0;
+    for (int a = randomOffset, c = startC; c < (startC + k_); a += 2, c++) {
+      mem_.copyTo(itemOffset(a), mem_, itemOffset(c), itemBytes_);
+    }
+  }
+
+  private void mergeLevelsIntoBaseBuffer(final int start1, final int start2) {
+    final int stop1 = start1 + k_;
+    final int stop2 = start2 + k_;
+    int i1 = start1;
+    int i2 = start2;
+    int i3 = 0;
+    while ((i1 < stop1) && (i2 < stop2)) {
+      if (serDe_.compare(mem_, itemOffset(i2), mem_, itemOffset(i1)) < 0) {
+        mem_.copyTo(itemOffset(i2++), mem_, itemOffset(i3++), itemBytes_);
+      } else {
+        mem_.copyTo(itemOffset(i1++), mem_, itemOffset(i3++), itemBytes_);
+      }
+    }
+    if (i1 < stop1) {
+      mem_.copyTo(itemOffset(i1), mem_, itemOffset(i3), (long) (stop1 - i1) * itemBytes_);
+    } else {
+      mem_.copyTo(itemOffset(i2), mem_, itemOffset(i3), (long) (stop2 - i2) * itemBytes_);
+    }
+  }
+
+  // in-place heap sort of the first count items of the base buffer
+  private void sortBaseBuffer(final int count) {
+    final byte[] tmp = new byte[itemBytes_];
+    for (int i = (count / 2) - 1; i >= 0; i--) {
+      siftDown(i, count, tmp);
+    }
+    for (int end = count - 1; end > 0; end--) {
+      swap(0, end, tmp);
+      siftDown(0, end, tmp);
+    }
+  }
+
+  private void siftDown(final int start, final int count, final byte[] tmp) {
+    int root = start;
+    while (true) {
+      int child = (2 * root) + 1;
+      if (child >= count) { return; }
+      if (((child + 1) < count)
+          && (serDe_.compare(mem_, itemOffset(child), mem_, itemOffset(child + 1)) < 0)) {
+        child++;
+      }
+      if (serDe_.compare(mem_, itemOffset(root), mem_, itemOffset(child)) >= 0) { return; }
+      swap(root, child, tmp);
+      root = child;
+    }
+  }
+
+  private void swap(final int i, final int j, final byte[] tmp) {
+    final long offsetI = itemOffset(i);
+    final long offsetJ = itemOffset(j);
+    mem_.getByteArray(offsetI, tmp, 0, itemBytes_);
+    mem_.copyTo(offsetJ, mem_, offsetI, itemBytes_);
+    mem_.putByteArray(offsetJ, tmp, 0, itemBytes_);
+  }
+
+  private void growCombinedMemBuffer(final int itemSpaceNeeded) {
+    final long memBytes = mem_.getCapacity();
+    final long needBytes = DATA_START + ((2L + itemSpaceNeeded) * itemBytes_);
+    assert needBytes > memBytes;
+    if (memReqSvr_ == null) {
+      memReqSvr_ = mem_.getMemoryRequestServer();
+      if (memReqSvr_ == null) { // heap memory may not have a server
+        memReqSvr_ = new DefaultMemoryRequestServer();
+      }
+    }
+    final WritableMemory newMem = memReqSvr_.request(needBytes);
+    mem_.copyTo(0, newMem, 0, memBytes);
+    memReqSvr_.requestClose(mem_, newMem);
+    mem_ = newMem;
+  }
+
+  private double[] getPmfOrCdf(final T[] splitPoints, final boolean isCdf) {
+    if (isEmpty()) { return null; }
+    final WritableMemory splitMem = WritableMemory.allocate(splitPoints.length * itemBytes_);
+    for (int j = 0; j < splitPoints.length; j++) {
+      serDe_.putItem(splitMem, (long) j * itemBytes_, splitPoints[j]);
+      if ((j > 0) && (serDe_.compare(splitMem, (long) (j - 1) * itemBytes_,
+          splitMem, (long) j * itemBytes_) >= 0)) {
+        throw new SketchesArgumentException("Values must be unique and monotonically increasing.");
+      }
+    }
+    final SortedView view = new SortedView();
+    final long n = getN();
+    final double[] buckets = new double[splitPoints.length + 1];
+    long prevWeight = 0;
+    for (int j = 0; j < splitPoints.length; j++) {
+      final long weight = view.getWeightBelow(splitMem, (long) j * itemBytes_);
+      buckets[j] = (double) (isCdf ? weight : weight - prevWeight) / n;
+      prevWeight = weight;
+    }
+    buckets[splitPoints.length] = (double) (isCdf ? n : n - prevWeight) / n;
+    return buckets;
+  }
+
+  /**
+   * The retained items in sorted order as offsets into the Memory, with the total weights
+   * preceding each item and an extra slot at the end that holds n. Building it sorts the base
+   * buffer in place, which does not change the state of the sketch.
+   */
+  private final class SortedView {
+    private final long[] offsets_;
+    private final long[] cumWeights_;
+
+    SortedView() {
+      final long n = getN();
+      final int bbCount = Util.computeBaseBufferItems(k_, n);
+      final int numItems = Util.computeRetainedItems(k_, n);
+      sortBaseBuffer(bbCount);
+      long[] offsets = new long[numItems];
+      long[] weights = new long[numItems];
+      long[] tmpOffsets = new long[numItems];
+      long[] tmpWeights = new long[numItems];
+      for (int i = 0; i < bbCount; i++) {
+        offsets[i] = itemOffset(i);
+        weights[i] = 1;
+      }
+      int count = bbCount;
+      long weight = 1;
+      long bits = Util.computeBitPattern(k_, n);
+      for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+        weight *= 2;
+        if ((bits & 1L) == 0L) { continue; }
+        final int levelStart = (2 + lvl) * k_;
+        final int levelStop = levelStart + k_;
+        int i1 = 0;
+        int i2 = levelStart;
+        int i3 = 0;
+        while ((i1 < count) && (i2 < levelStop)) {
+          if (serDe_.compare(mem_, itemOffset(i2), mem_, offsets[i1]) < 0) {
+            tmpOffsets[i3] = itemOffset(i2++);
+            tmpWeights[i3++] = weight;
+          } else {
+            tmpOffsets[i3] = offsets[i1];
+            tmpWeights[i3++] = weights[i1++];
+          }
+        }
+        while (i1 < count) {
+          tmpOffsets[i3] = offsets[i1];
+          tmpWeights[i3++] = weights[i1++];
+        }
+        while (i2 < levelStop) {
+          tmpOffsets[i3] = itemOffset(i2++);
+          tmpWeights[i3++] = weight;
+        }
+        count = i3;
+        final long[] swapOffsets = offsets;
+        offsets = tmpOffsets;
+        tmpOffsets = swapOffsets;
+        final long[] swapWeights = weights;
+        weights = tmpWeights;
+        tmpWeights = swapWeights;
+      }
+      assert count == numItems;
+      final long[] cumWeights = new long[numItems + 1];
+      System.arraycopy(weights, 0, cumWeights, 0, numItems);
+      final long total = QuantilesHelper.convertToPrecedingCummulative(cumWeights);
+      assert total == n;
+      offsets_ = offsets;
+      cumWeights_ = cumWeights;
+    }
+
+    T getQuantile(final double fRank) {
+      Util.checkFractionalRankBounds(fRank);
+      final long pos = QuantilesHelper.posOfPhi(fRank, cumWeights_[offsets_.length]);
+      return serDe_.getItem(mem_, offsets_[QuantilesHelper.chunkContainingPos(cumWeights_, pos)]);
+    }
+
+    // the total weight of the items less than the item at the given offset of the given Memory
+    long getWeightBelow(final Memory valueMem, final long valueOffset) {
+      int lo = 0;
+      int hi = offsets_.length;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (serDe_.compare(mem_, offsets_[mid], valueMem, valueOffset) < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return cumWeights_[lo];
+    }
+  }
+
+}
@@ -19,6 +19,7 @@
 
 package com.yahoo.sketches.quantiles;
 
+import static com.yahoo.sketches.Util.checkArrayRange;
 import static com.yahoo.sketches.quantiles.PreambleUtil.COMBINED_BUFFER;
 import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
 import static com.yahoo.sketches.quantiles.PreambleUtil.FLAGS_BYTE;
@@ -130,6 +131,7 @@ final class DirectUpdateDoublesSketch extends DirectUpdateDoublesSketchR {
   @Override
   public void update(final double dataItem) {
     if (Double.isNaN(dataItem)) { return; }
+    invalidateAuxiliary();
 
     final int curBBCount = getBaseBufferCount();
     final int newBBCount = curBBCount + 1; //derived, not stored
@@ -156,39 +158,62 @@ final class DirectUpdateDoublesSketch extends DirectUpdateDoublesSketchR {
     mem_.putByte(FLAGS_BYTE, (byte) 0); //not compact, not ordered, not empty
 
     if (newBBCount == (2 * k_)) { //Propagate
-      // make sure there will be enough levels for the propagation
-      final int curMemItemCap = getCombinedBufferItemCapacity();
-      final int itemSpaceNeeded = DoublesUpdateImpl.getRequiredItemCapacity(k_, newN);
-
-      //check mem has capacity to accommodate new level
-      if (itemSpaceNeeded > curMemItemCap) {
-        // copies base buffer plus old levels, adds space for new level
-        mem_ = growCombinedMemBuffer(itemSpaceNeeded);
+      propagateFullBaseBuffer(newN);
+    }
+    putN(newN);
+  }
+
+  @Override
+  public void update(final double[] values, final int offset, final int length) {
+    checkArrayRange(values.length, offset, length);
+    final int end = offset + length;
+    final int twoK = 2 * k_;
+    final boolean wasEmpty = getN() == 0;
+    double minValue = wasEmpty ? Double.POSITIVE_INFINITY : getMinValue();
+    double maxValue = wasEmpty ? Double.NEGATIVE_INFINITY : getMaxValue();
+    double[] chunk = null;
+    int i = offset;
+    while (i < end) {
+      final int curBBCount = getBaseBufferCount();
+
+      // gather as many items as fit into the base buffer, skipping NaNs
+      if (chunk == null) { chunk = new double[Math.min(twoK, end - i)]; }
+      int count = 0;
+      final int chunkCap = Math.min(chunk.length, twoK - curBBCount);
+      while ((i < end) && (count < chunkCap)) {
+        final double value = values[i++];
+        if (value != value) { continue; } // NaN
+        chunk[count++] = value;
+        if (value < minValue) { minValue = value; }
+        if (value > maxValue) { maxValue = value; }
+      }
+      if (count == 0) { break; } // only NaNs were left
+
+      //must check memory capacity before we put anything in it
+      final int newBBCount = curBBCount + count;
+      if (newBBCount > getCombinedBufferItemCapacity()) {
+        //only changes combinedBuffer when it is only a base buffer
+        mem_ = growCombinedMemBuffer(twoK);
       }
+      invalidateAuxiliary();
+      mem_.putDoubleArray(COMBINED_BUFFER + ((long) curBBCount * Double.BYTES), chunk, 0, count);
+      mem_.putByte(FLAGS_BYTE, (byte) 0); //not compact, not ordered, not empty
 
-      // sort base buffer via accessor which modifies the underlying base buffer,
-      // then use as one of the inputs to propagate-carry
-      final DoublesSketchAccessor bbAccessor = DoublesSketchAccessor.wrap(this, true);
-      bbAccessor.sort();
-
-      final long newBitPattern = DoublesUpdateImpl.inPlacePropagateCarry(
-              0, // starting level
-              null,
-              bbAccessor,
-              true,
-              k_,
-              DoublesSketchAccessor.wrap(this, true),
-              getBitPattern()
-      );
-
-      assert newBitPattern == computeBitPattern(k_, newN); // internal consistency check
-      //bit pattern on direct is always derived, no need to save it.
+      final long newN = getN() + count;
+      if (newBBCount == twoK) { //Propagate
+        propagateFullBaseBuffer(newN);
+      }
+      putN(newN);
+    }
+    if (getN() > 0) {
+      putMinValue(minValue);
+      putMaxValue(maxValue);
     }
-    putN(newN);
   }
 
   @Override
   public void reset() {
+    invalidateAuxiliary();
     if (mem_.getCapacity() >= COMBINED_BUFFER) {
       mem_.putByte(FLAGS_BYTE, (byte) EMPTY_FLAG_MASK); //not compact, not ordered
       mem_.putLong(N_LONG, 0L);
@@ -214,12 +239,14 @@ final class DirectUpdateDoublesSketch extends DirectUpdateDoublesSketchR {
 
   @Override
   void putN(final long n) {
+    invalidateAuxiliary();
     assert (mem_.getCapacity() >= COMBINED_BUFFER);
     mem_.putLong(N_LONG, n);
   }
 
   @Override
   void putCombinedBuffer(final double[] combinedBuffer) {
+    invalidateAuxiliary();
     mem_.putDoubleArray(COMBINED_BUFFER, combinedBuffer, 0, combinedBuffer.length);
   }
 
@@ -244,6 +271,42 @@ final class DirectUpdateDoublesSketch extends DirectUpdateDoublesSketchR {
 
   //Direct supporting methods
 
+  /**
+   * Sorts the full base buffer and propagates it into the levels. Must be called before
+   * <i>n</i> is updated.
+   * @param newN the value of n including the items in the base buffer
+   */
+  private void propagateFullBaseBuffer(final long newN) {
+    // make sure there will be enough levels for the propagation
+    final int curMemItemCap = getCombinedBufferItemCapacity();
+    final int itemSpaceNeeded = DoublesUpdateImpl.getRequiredItemCapacity(k_, newN);
+
+    //check mem has capacity to accommodate new level
+    if (itemSpaceNeeded > curMemItemCap) {
+      // copies base buffer plus old levels, adds space for new level
+      mem_ = growCombinedMemBuffer(itemSpaceNeeded);
+    }
+
+    // sort base buffer via accessor which modifies the underlying base buffer,
+    // then use as one of the inputs to propagate-carry
+    final DoublesSketchAccessor bbAccessor = DoublesSketchAccessor.wrap(this, true);
+    bbAccessor.sort();
+
+    final long newBitPattern = DoublesUpdateImpl.inPlacePropagateCarry(
+            0, // starting level
+            null,
+            bbAccessor,
+            true,
+            k_,
+            DoublesSketchAccessor.wrap(this, true),
+            getBitPattern(),
+            getRandom()
+    );
+
+    assert newBitPattern == computeBitPattern(k_, newN); // internal consistency check
+    //bit pattern on direct is always derived, no need to save it.
+  }
+
   private WritableMemory growCombinedMemBuffer(final int itemSpaceNeeded) {
     final long memBytes = mem_.getCapacity();
     final int needBytes = (itemSpaceNeeded << 3) + COMBINED_BUFFER; //+ preamble + min & max
@@ -123,6 +123,11 @@ class DirectUpdateDoublesSketchR extends UpdateDoublesSketch {
     throw new SketchesReadOnlyException("Call to update() on read-only buffer");
   }
 
+  @Override
+  public void update(final double[] values, final int offset, final int length) {
+    throw new SketchesReadOnlyException("Call to update() on read-only buffer");
+  }
+
   //Restricted overrides
   //Gets
 
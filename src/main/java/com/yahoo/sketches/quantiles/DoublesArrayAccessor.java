@@ -72,4 +72,10 @@ final class DoublesArrayAccessor extends DoublesBufferAccessor {
     System.arraycopy(srcArray, srcIndex, buffer_, dstIndex, numItems);
   }
 
+  @Override
+  void copyTo(final int fromIdx, final DoublesBufferAccessor dst, final int dstIdx,
+              final int numItems) {
+    dst.putArray(buffer_, fromIdx, dstIdx, numItems);
+  }
+
 }
@@ -34,9 +34,9 @@ import com.yahoo.sketches.QuantilesHelper;
  * @author Lee Rhodes
  */
 final class DoublesAuxiliary {
-  long auxN_;
-  double[] auxSamplesArr_; //array of size samples
-  long[] auxCumWtsArr_;
+  final long auxN_;
+  final double[] auxSamplesArr_; //array of size samples
+  final long[] auxCumWtsArr_;
 
   /**
    * Constructs the Auxiliary structure from the DoublesSketch
@@ -79,6 +79,49 @@ final class DoublesAuxiliary {
     return approximatelyAnswerPositionalQuery(pos);
   }
 
+  /**
+   * Get the estimated normalized rank of the given value, which is the fraction of the
+   * total weight of the retained items that are less than the value.
+   * @param value the value to be ranked
+   * @return the estimated normalized rank
+   */
+  double getRank(final double value) {
+    return (double) auxCumWtsArr_[lowerBound(value)] / auxN_;
+  }
+
+  /**
+   * Returns the PMF or CDF given the split points, which must be validated by the caller.
+   * @param splitPoints unique, monotonically increasing values
+   * @param isCdf if true the CDF is returned, otherwise the PMF
+   * @return an array of splitPoints.length + 1 normalized masses or cumulative masses
+   */
+  double[] getPmfOrCdf(final double[] splitPoints, final boolean isCdf) {
+    final double[] buckets = new double[splitPoints.length + 1];
+    long prevWeight = 0;
+    for (int j = 0; j < splitPoints.length; j++) {
+      final long weight = auxCumWtsArr_[lowerBound(splitPoints[j])];
+      buckets[j] = (double) (isCdf ? weight : weight - prevWeight) / auxN_;
+      prevWeight = weight;
+    }
+    buckets[splitPoints.length] = (double) (isCdf ? auxN_ : auxN_ - prevWeight) / auxN_;
+    return buckets;
+  }
+
+  // returns the index of the first sample that is not less than the given value
+  private int lowerBound(final double value) {
+    int lo = 0;
+    int hi = auxSamplesArr_.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (auxSamplesArr_[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
   /**
    * Assuming that there are n items in the true stream, this asks what
    * item would appear in position 0 &le; pos &lt; n of a hypothetical sorted
@@ -33,4 +33,19 @@ abstract class DoublesBufferAccessor {
 
   abstract void putArray(double[] srcArray, int srcIndex,
                          int dstIndex, int numItems);
+
+  /**
+   * Copies items of this buffer into the given buffer. Subclasses avoid the intermediate array
+   * of getArray() where their storage allows it.
+   * @param fromIdx index of the first item of this buffer
+   * @param dst the destination buffer
+   * @param dstIdx index of the first item in the destination buffer
+   * @param numItems number of items to copy
+   */
+  void copyTo(final int fromIdx, final DoublesBufferAccessor dst, final int dstIdx,
+              final int numItems) {
+    for (int i = 0; i < numItems; i++) {
+      dst.set(dstIdx + i, get(fromIdx + i));
+    }
+  }
 }
@@ -101,7 +101,8 @@ final class DoublesMergeImpl {
                 false,
                 tgtK,
                 tgtSketchBuf,
-                newTgtBitPattern
+                newTgtBitPattern,
+                tgt.getRandom()
         );
       }
     }
@@ -169,9 +170,8 @@ final class DoublesMergeImpl {
       tgt.growCombinedBuffer(curCombBufCap, spaceNeeded);
     }
 
-    //working scratch buffers
+    //working scratch buffer, the source levels are zipped straight into the target levels
     final DoublesArrayAccessor scratch2KAcc = DoublesArrayAccessor.initialize(2 * tgtK);
-    final DoublesArrayAccessor downScratchKAcc = DoublesArrayAccessor.initialize(tgtK);
 
     final DoublesSketchAccessor tgtSketchBuf = DoublesSketchAccessor.wrap(tgt, true);
 
@@ -179,20 +179,15 @@ final class DoublesMergeImpl {
     long newTgtBitPattern = tgt.getBitPattern();
     for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
       if ((srcBitPattern & 1L) > 0L) {
-        justZipWithStride(
-                srcSketchBuf.setLevel(srcLvl),
-                downScratchKAcc,
-                tgtK,
-                downFactor
-        );
         newTgtBitPattern = DoublesUpdateImpl.inPlacePropagateCarry(
                 srcLvl + lgDownFactor,    //starting level
-                downScratchKAcc,       //optSrcKBuf,
+                srcSketchBuf.setLevel(srcLvl), //optSrcKBuf, zipped with stride downFactor
                 scratch2KAcc,          //size2KBuf,
                 false,                    //do mergeInto version
                 tgtK,
                 tgtSketchBuf,
-                newTgtBitPattern
+                newTgtBitPattern,
+                tgt.getRandom()
         );
 
         tgt.putBitPattern(newTgtBitPattern); //off-heap is a no-op
@@ -220,15 +215,4 @@ final class DoublesMergeImpl {
     if (srcMin < tgtMin) { tgt.putMinValue(srcMin); }
   }
 
-  private static void justZipWithStride(
-          final DoublesBufferAccessor bufA, // input
-          final DoublesBufferAccessor bufC, // output
-          final int kC, // number of items that should be in the output
-          final int stride) {
-    final int randomOffset = DoublesSketch.rand.nextInt(stride);
-    for (int a = randomOffset, c = 0; c < kC; a += stride, c++ ) {
-      bufC.set(c, bufA.get(a));
-    }
-  }
-
 }
@@ -143,6 +143,7 @@ public abstract class DoublesSketch {
   static final int MAX_K = 1 << 24;
 
   /**
+   * Source of the seeds for the random generators of the individual update sketches.
    * Setting the seed makes the results of the sketch deterministic if the input values are
    * received in exactly the same order. This is only useful when performing test comparisons,
    * otherwise is not recommended.
@@ -154,6 +155,13 @@ public abstract class DoublesSketch {
    */
   final int k_;
 
+  /**
+   * Sorted view of the retained items with their cumulative weights, built on demand.
+   * Update sketches drop it whenever they are modified. The view is immutable and the field is
+   * volatile so that a compact sketch shared between threads stays safe to query.
+   */
+  private volatile DoublesAuxiliary aux_ = null;
+
   DoublesSketch(final int k) {
     Util.checkK(k);
     k_ = k;
@@ -203,9 +211,9 @@ public abstract class DoublesSketch {
    * that would be preceded by the given fraction of a hypothetical sorted
    * version of the input stream so far.
    *
-   * <p>We note that this method has a fairly large overhead (microseconds instead of nanoseconds)
-   * so it should not be called multiple times to get different quantiles from the same
-   * sketch. Instead use getQuantiles(), which pays the overhead only once.
+   * <p>The first query after the sketch has been modified builds a sorted view of the sketch,
+   * which has a fairly large overhead (microseconds instead of nanoseconds). This view is kept
+   * until the next modification, so further queries are fast.
    *
    * <p>If the sketch is empty this returns Double.NaN.
    *
@@ -224,8 +232,7 @@ public abstract class DoublesSketch {
     if      (fraction == 0.0) { return getMinValue(); }
     else if (fraction == 1.0) { return getMaxValue(); }
     else {
-      final DoublesAuxiliary aux = new DoublesAuxiliary(this);
-      return aux.getQuantile(fraction);
+      return getAuxiliary().getQuantile(fraction);
     }
   }
 
@@ -271,18 +278,12 @@ public abstract class DoublesSketch {
    */
   public double[] getQuantiles(final double[] fRanks) {
     if (isEmpty()) { return null; }
-    DoublesAuxiliary aux = null;
     final double[] quantiles = new double[fRanks.length];
     for (int i = 0; i < fRanks.length; i++) {
       final double fRank = fRanks[i];
       if      (fRank == 0.0) { quantiles[i] = getMinValue(); }
       else if (fRank == 1.0) { quantiles[i] = getMaxValue(); }
-      else {
-        if (aux == null) {
-          aux = new DoublesAuxiliary(this);
-        }
-        quantiles[i] = aux.getQuantile(fRank);
-      }
+      else { quantiles[i] = getAuxiliary().getQuantile(fRank); }
     }
     return quantiles;
   }
@@ -320,30 +321,30 @@ public abstract class DoublesSketch {
    */
   public double getRank(final double value) {
     if (isEmpty()) { return Double.NaN; }
-    final DoublesSketchAccessor samples = DoublesSketchAccessor.wrap(this);
-    long total = 0;
-    int weight = 1;
-    samples.setLevel(DoublesSketchAccessor.BB_LVL_IDX);
-    for (int i = 0; i < samples.numItems(); i++) {
-      if (samples.get(i) < value) {
-        total += weight;
-      }
-    }
-    long bitPattern = getBitPattern();
-    for (int lvl = 0; bitPattern != 0L; lvl++, bitPattern >>>= 1) {
-      weight *= 2;
-      if ((bitPattern & 1L) > 0) { // level is not empty
-        samples.setLevel(lvl);
-        for (int i = 0; i < samples.numItems(); i++) {
-          if (samples.get(i) < value) {
-            total += weight;
-          } else {
-            break; // levels are sorted, no point comparing further
-          }
-        }
-      }
+    return getAuxiliary().getRank(value);
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getRank().
+   *
+   * <p>This returns an array that could have been generated by using getRank() with many
+   * different values. All values are ranked against the same sorted view of the sketch.
+   * The values do not need to be sorted.
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param values to be ranked
+   * @return array of approximate ranks of the given values in the same order as given values
+   * array.
+   */
+  public double[] getRanks(final double[] values) {
+    if (isEmpty()) { return null; }
+    final DoublesAuxiliary aux = getAuxiliary();
+    final double[] ranks = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      ranks[i] = aux.getRank(values[i]);
     }
-    return (double) total / getN();
+    return ranks;
   }
 
   /**
@@ -369,7 +370,8 @@ public abstract class DoublesSketch {
    */
   public double[] getPMF(final double[] splitPoints) {
     if (isEmpty()) { return null; }
-    return DoublesPmfCdfImpl.getPMFOrCDF(this, splitPoints, false);
+    Util.checkSplitPointsOrder(splitPoints);
+    return getAuxiliary().getPmfOrCdf(splitPoints, false);
   }
 
   /**
@@ -395,7 +397,8 @@ public abstract class DoublesSketch {
    */
   public double[] getCDF(final double[] splitPoints) {
     if (isEmpty()) { return null; }
-    return DoublesPmfCdfImpl.getPMFOrCDF(this, splitPoints, true);
+    Util.checkSplitPointsOrder(splitPoints);
+    return getAuxiliary().getPmfOrCdf(splitPoints, true);
   }
 
   /**
@@ -750,6 +753,31 @@ public abstract class DoublesSketch {
    */
   abstract boolean isCompact();
 
+  /**
+   * Returns the sorted view of this sketch, building it if it is not cached.
+   * The view is also rebuilt if the value of <i>n</i> has changed, which guards against the
+   * underlying Memory of a direct sketch having been modified through another object.
+   * @return the sorted view of this sketch
+   */
+  DoublesAuxiliary getAuxiliary() {
+    DoublesAuxiliary aux = aux_;
+    if ((aux == null) || (aux.auxN_ != getN())) {
+      aux = new DoublesAuxiliary(this);
+      aux_ = aux;
+    }
+    return aux;
+  }
+
+  /**
+   * Drops the cached sorted view. Must be called whenever the sketch is modified.
+   * This is called on every update, so the volatile field is only written if a view is cached.
+   */
+  void invalidateAuxiliary() {
+    if (aux_ != null) {
+      aux_ = null;
+    }
+  }
+
   /**
    * Returns the base buffer count
    * @return the base buffer count
@@ -31,12 +31,15 @@ import com.yahoo.memory.WritableMemory;
  */
 public class DoublesSketchBuilder {
   private int bK = PreambleUtil.DEFAULT_K;
+  private boolean bSeeded = false;
+  private long bSeed = 0;
 
   /**
    * Constructor for a new DoublesSketchBuilder. The default configuration is
    * <ul>
    * <li>k: 128. This produces a normalized rank error of about 1.7%</li>
    * <li>Memory: null</li>
+   * <li>Seed: none, each sketch draws its seed from a shared generator</li>
    * </ul>
    */
   public DoublesSketchBuilder() {}
@@ -55,6 +58,19 @@ public class DoublesSketchBuilder {
     return this;
   }
 
+  /**
+   * Sets the seed of the random generator of the sketches built by this builder. Sketches built
+   * with the same seed produce identical results if they receive the same items in the same
+   * order.
+   * @param seed the seed of the random generator
+   * @return this builder
+   */
+  public DoublesSketchBuilder setSeed(final long seed) {
+    bSeeded = true;
+    bSeed = seed;
+    return this;
+  }
+
   /**
    * Gets the current configured value of <i>k</i>
    * @return the current configured value of <i>k</i>
@@ -68,7 +84,9 @@ public class DoublesSketchBuilder {
    * @return a UpdateDoublesSketch
    */
   public UpdateDoublesSketch build() {
-    return HeapUpdateDoublesSketch.newInstance(bK);
+    final UpdateDoublesSketch sketch = HeapUpdateDoublesSketch.newInstance(bK);
+    if (bSeeded) { sketch.seedRandom(bSeed); }
+    return sketch;
   }
 
   /**
@@ -78,7 +96,20 @@ public class DoublesSketchBuilder {
    * @return an UpdateDoublesSketch
    */
   public UpdateDoublesSketch build(final WritableMemory dstMem) {
-    return DirectUpdateDoublesSketch.newInstance(bK, dstMem);
+    final UpdateDoublesSketch sketch = DirectUpdateDoublesSketch.newInstance(bK, dstMem);
+    if (bSeeded) { sketch.seedRandom(bSeed); }
+    return sketch;
+  }
+
+  /**
+   * Returns a ConcurrentDoublesSketch with the current configuration of this builder, which
+   * can be updated by many threads at the same time.
+   * @return a ConcurrentDoublesSketch
+   */
+  public ConcurrentDoublesSketch buildShared() {
+    final ConcurrentDoublesSketch sketch = ConcurrentDoublesSketch.newInstance(bK);
+    if (bSeeded) { sketch.seedRandom(bSeed); }
+    return sketch;
   }
 
   /**
@@ -20,6 +20,7 @@
 package com.yahoo.sketches.quantiles;
 
 import static com.yahoo.sketches.quantiles.DoublesUtil.copyToHeap;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
 
 import com.yahoo.memory.Memory;
 import com.yahoo.memory.WritableMemory;
@@ -120,7 +121,14 @@ final class DoublesUnionImpl extends DoublesUnionImplR {
 
   @Override
   public void update(final Memory mem) {
-    gadget_ = updateLogic(maxK_, gadget_, HeapUpdateDoublesSketch.heapifyInstance(mem));
+    // Current images are read in place, so their levels are merged straight from the Memory.
+    // Older serialization versions have a different layout and must be heapified.
+    final boolean wrappable = (mem.getCapacity() >= Long.BYTES)
+        && (extractSerVer(mem) >= DirectUpdateDoublesSketchR.MIN_DIRECT_DOUBLES_SER_VER);
+    final DoublesSketch other = wrappable
+        ? DoublesSketch.wrap(mem)
+        : HeapUpdateDoublesSketch.heapifyInstance(mem);
+    gadget_ = updateLogic(maxK_, gadget_, other);
   }
 
   @Override
@@ -19,6 +19,8 @@
 
 package com.yahoo.sketches.quantiles;
 
+import java.util.SplittableRandom;
+
 /**
  * The doubles update algorithms for quantiles.
  *
@@ -75,8 +77,8 @@ final class DoublesUpdateImpl {
    *
    * <p><b>Downsample Merge Version:</b> This is a variant of the above Merge Version, except at
    * each level the downsampling is performed and the target level is computed for the target merge.
-   * In this case the optSrcKBuf is the result of the downsample process and needs to be allocated
-   * for that purpose.
+   * In this case the optSrcKBuf is the larger source level, which is zipped with a stride of
+   * (source level size / k) straight into the target level, so no intermediate buffer is needed.
    *
    * <p><b>Recursive carry:</b> This starts with a given sorted, size 2K buffer, which is zipped
    * into a size K buffer. If the next level is not valid, the size K buffer is already in position,
@@ -87,12 +89,14 @@ final class DoublesUpdateImpl {
    * the bit pattern is updated and returned.</p>
    *
    * @param startingLevel 0-based starting level
-   * @param optSrcKBuf optional, size k source, read only buffer
+   * @param optSrcKBuf optional, read only source level of size k, or of size k * 2^m
+   * for the downsample merge version
    * @param size2KBuf size 2k scratch buffer
    * @param doUpdateVersion true if update version
    * @param k the target value of k
    * @param tgtSketchBuf the given DoublesSketchAccessor
    * @param bitPattern the current bitPattern, prior to this call
+   * @param random the random generator of the target sketch
    * @return The updated bit pattern.  The updated combined buffer is output as a side effect.
    */
   static long inPlacePropagateCarry(
@@ -102,15 +106,21 @@ final class DoublesUpdateImpl {
           final boolean doUpdateVersion,
           final int k,
           final DoublesSketchAccessor tgtSketchBuf,
-          final long bitPattern) {
+          final long bitPattern,
+          final SplittableRandom random) {
     final int endingLevel = Util.lowestZeroBitStartingAt(bitPattern, startingLevel);
     tgtSketchBuf.setLevel(endingLevel);
     if (doUpdateVersion) { // update version of computation
       // its is okay for optSrcKBuf to be null in this case
-      zipSize2KBuffer(size2KBuf, tgtSketchBuf);
+      zipSize2KBuffer(size2KBuf, tgtSketchBuf, random);
     } else { // mergeInto version of computation
       assert (optSrcKBuf != null);
-      tgtSketchBuf.putArray(optSrcKBuf.getArray(0, k), 0, 0, k);
+      final int stride = optSrcKBuf.numItems() / k;
+      if (stride == 1) {
+        optSrcKBuf.copyTo(0, tgtSketchBuf, 0, k);
+      } else {
+        justZipWithStride(optSrcKBuf, tgtSketchBuf, k, stride, random);
+      }
     }
 
     for (int lvl = startingLevel; lvl < endingLevel; lvl++) {
@@ -120,7 +130,7 @@ final class DoublesUpdateImpl {
               currLevelBuf, // target level: lvl
               tgtSketchBuf, // target level: endingLevel
               size2KBuf);
-      zipSize2KBuffer(size2KBuf, tgtSketchBuf);
+      zipSize2KBuffer(size2KBuf, tgtSketchBuf, random);
     } // end of loop over lower levels
 
     // update bit pattern with binary-arithmetic ripple carry
@@ -129,14 +139,27 @@ final class DoublesUpdateImpl {
 
   private static void zipSize2KBuffer(
           final DoublesBufferAccessor bufIn,
-          final DoublesBufferAccessor bufOut) {
-    final int randomOffset = DoublesSketch.rand.nextBoolean() ? 1 : 0;
+          final DoublesBufferAccessor bufOut,
+          final SplittableRandom random) {
+    final int randomOffset = random.nextBoolean() ? 1 : 0;
     final int limOut = bufOut.numItems();
     for (int idxIn = randomOffset, idxOut = 0; idxOut < limOut; idxIn += 2, idxOut++) {
       bufOut.set(idxOut, bufIn.get(idxIn));
     }
   }
 
+  private static void justZipWithStride(
+          final DoublesBufferAccessor bufA, // input
+          final DoublesBufferAccessor bufC, // output
+          final int kC, // number of items that should be in the output
+          final int stride,
+          final SplittableRandom random) {
+    final int randomOffset = random.nextInt(stride);
+    for (int a = randomOffset, c = 0; c < kC; a += stride, c++ ) {
+      bufC.set(c, bufA.get(a));
+    }
+  }
+
   private static void mergeTwoSizeKBuffers(
           final DoublesBufferAccessor src1,
           final DoublesBufferAccessor src2,
@@ -157,10 +180,10 @@ final class DoublesUpdateImpl {
 
     if (i1 < k) {
       final int numItems = k - i1;
-      dst.putArray(src1.getArray(i1, numItems), 0, iDst, numItems);
+      src1.copyTo(i1, dst, iDst, numItems);
     } else {
       final int numItems = k - i2;
-      dst.putArray(src2.getArray(i2, numItems), 0, iDst, numItems);
+      src2.copyTo(i2, dst, iDst, numItems);
     }
   }
 }
@@ -70,6 +70,12 @@ class HeapDoublesSketchAccessor extends DoublesSketchAccessor {
     System.arraycopy(srcArray, srcIndex, ds_.getCombinedBuffer(), tgtIdx, numItems);
   }
 
+  @Override
+  void copyTo(final int fromIdx, final DoublesBufferAccessor dst, final int dstIdx,
+              final int numItems) {
+    dst.putArray(ds_.getCombinedBuffer(), offset_ + fromIdx, dstIdx, numItems);
+  }
+
   @Override
   void sort() {
     assert currLvl_ == BB_LVL_IDX;
@@ -19,6 +19,7 @@
 
 package com.yahoo.sketches.quantiles;
 
+import static com.yahoo.sketches.Util.checkArrayRange;
 import static com.yahoo.sketches.quantiles.PreambleUtil.COMPACT_FLAG_MASK;
 import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
 import static com.yahoo.sketches.quantiles.PreambleUtil.MAX_DOUBLE;
@@ -184,6 +185,7 @@ final class HeapUpdateDoublesSketch extends UpdateDoublesSketch {
 
   @Override
   public void reset() {
+    invalidateAuxiliary();
     n_ = 0;
     final int combinedBufferItemCapacity = 2 * Math.min(DoublesSketch.MIN_K, k_); //min is important
     combinedBuffer_ = new double[combinedBufferItemCapacity];
@@ -196,6 +198,7 @@ final class HeapUpdateDoublesSketch extends UpdateDoublesSketch {
   @Override
   public void update(final double dataItem) {
     if (Double.isNaN(dataItem)) { return; }
+    invalidateAuxiliary();
 
     if (n_ == 0) {
       putMaxValue(dataItem);
@@ -219,35 +222,7 @@ final class HeapUpdateDoublesSketch extends UpdateDoublesSketch {
     combinedBuffer_[curBBCount] = dataItem;
 
     if (newBBCount == (k_ << 1)) { //Propagate
-
-      // make sure there will be enough space (levels) for the propagation
-      final int spaceNeeded = DoublesUpdateImpl.getRequiredItemCapacity(k_, newN);
-
-      if (spaceNeeded > combBufItemCap) {
-        // copies base buffer plus old levels, adds space for new level
-        growCombinedBuffer(combBufItemCap, spaceNeeded);
-      }
-
-      // sort only the (full) base buffer via accessor which modifies the underlying base buffer,
-      // then use as one of the inputs to propagate-carry
-      final DoublesSketchAccessor bbAccessor = DoublesSketchAccessor.wrap(this, true);
-      bbAccessor.sort();
-
-      final long newBitPattern = DoublesUpdateImpl.inPlacePropagateCarry(
-              0, // starting level
-              null,
-              bbAccessor,
-              true,
-              k_,
-              DoublesSketchAccessor.wrap(this, true),
-              bitPattern_
-      );
-
-      assert newBitPattern == computeBitPattern(k_, newN); // internal consistency check
-      assert newBitPattern == (bitPattern_ + 1);
-
-      bitPattern_ = newBitPattern;
-      baseBufferCount_ = 0;
+      propagateFullBaseBuffer(newN);
     } else {
       //bitPattern unchanged
       baseBufferCount_ = newBBCount;
@@ -255,6 +230,48 @@ final class HeapUpdateDoublesSketch extends UpdateDoublesSketch {
     n_ = newN;
   }
 
+  @Override
+  public void update(final double[] values, final int offset, final int length) {
+    checkArrayRange(values.length, offset, length);
+    final int end = offset + length;
+    final int twoK = k_ << 1;
+    double minValue = (n_ == 0) ? Double.POSITIVE_INFINITY : minValue_;
+    double maxValue = (n_ == 0) ? Double.NEGATIVE_INFINITY : maxValue_;
+    int i = offset;
+    while (i < end) {
+      final int curBBCount = baseBufferCount_;
+      final int bbCountNeeded = (int) Math.min(twoK, (long) curBBCount + (end - i));
+      while (combinedBuffer_.length < bbCountNeeded) {
+        growBaseBuffer(); //only changes combinedBuffer when it is only a base buffer
+      }
+
+      // copy as many items as fit into the base buffer, skipping NaNs
+      int bbCount = curBBCount;
+      final double[] baseBuffer = combinedBuffer_;
+      while ((i < end) && (bbCount < twoK)) {
+        final double value = values[i++];
+        if (value != value) { continue; } // NaN
+        baseBuffer[bbCount++] = value;
+        if (value < minValue) { minValue = value; }
+        if (value > maxValue) { maxValue = value; }
+      }
+      if (bbCount == curBBCount) { break; } // only NaNs were left
+
+      invalidateAuxiliary();
+      final long newN = (n_ + bbCount) - curBBCount;
+      if (bbCount == twoK) {
+        propagateFullBaseBuffer(newN);
+      } else {
+        baseBufferCount_ = bbCount;
+      }
+      n_ = newN;
+    }
+    if (n_ > 0) {
+      minValue_ = minValue;
+      maxValue_ = maxValue;
+    }
+  }
+
   /**
    * Loads the Combined Buffer, min and max from the given source Memory.
    * The resulting Combined Buffer is always in non-compact form and must be pre-allocated.
@@ -345,11 +362,13 @@ final class HeapUpdateDoublesSketch extends UpdateDoublesSketch {
 
   @Override
   void putN(final long n) {
+    invalidateAuxiliary();
     n_ = n;
   }
 
   @Override
   void putCombinedBuffer(final double[] combinedBuffer) {
+    invalidateAuxiliary();
     combinedBuffer_ = combinedBuffer;
   }
 
@@ -369,6 +388,85 @@ final class HeapUpdateDoublesSketch extends UpdateDoublesSketch {
     return combinedBuffer_;
   }
 
+  /**
+   * Sorts the full base buffer and propagates it into the levels.
+   * @param newN the value of n including the items in the base buffer
+   */
+  private void propagateFullBaseBuffer(final long newN) {
+    // make sure there will be enough space (levels) for the propagation
+    final int combBufItemCap = combinedBuffer_.length;
+    final int spaceNeeded = DoublesUpdateImpl.getRequiredItemCapacity(k_, newN);
+
+    if (spaceNeeded > combBufItemCap) {
+      // copies base buffer plus old levels, adds space for new level
+      growCombinedBuffer(combBufItemCap, spaceNeeded);
+    }
+
+    // sort only the (full) base buffer via accessor which modifies the underlying base buffer,
+    // then use as one of the inputs to propagate-carry
+    final DoublesSketchAccessor bbAccessor = DoublesSketchAccessor.wrap(this, true);
+    bbAccessor.sort();
+
+    final long newBitPattern = DoublesUpdateImpl.inPlacePropagateCarry(
+            0, // starting level
+            null,
+            bbAccessor,
+            true,
+            k_,
+            DoublesSketchAccessor.wrap(this, true),
+            bitPattern_,
+            getRandom()
+    );
+
+    assert newBitPattern == computeBitPattern(k_, newN); // internal consistency check
+    assert newBitPattern == (bitPattern_ + 1);
+
+    bitPattern_ = newBitPattern;
+    baseBufferCount_ = 0;
+  }
+
+  /**
+   * Propagates a sorted, full buffer of 2k items from outside of this sketch into the levels,
+   * exactly as if these items had filled the base buffer. The base buffer itself is not changed.
+   * The given buffer is used as the size 2k scratch buffer, so its content is lost.
+   * @param sortedBuffer 2k items in ascending order, none of which is NaN
+   */
+  void propagateSortedBuffer(final double[] sortedBuffer) {
+    assert sortedBuffer.length == (k_ << 1);
+    invalidateAuxiliary();
+    final double bufMin = sortedBuffer[0];
+    final double bufMax = sortedBuffer[sortedBuffer.length - 1];
+    if (n_ == 0) {
+      putMinValue(bufMin);
+      putMaxValue(bufMax);
+    } else {
+      if (bufMax > getMaxValue()) { putMaxValue(bufMax); }
+      if (bufMin < getMinValue()) { putMinValue(bufMin); }
+    }
+
+    final long newN = n_ + (k_ << 1);
+    final int combBufItemCap = combinedBuffer_.length;
+    final int spaceNeeded = DoublesUpdateImpl.getRequiredItemCapacity(k_, newN);
+    if (spaceNeeded > combBufItemCap) {
+      growCombinedBuffer(combBufItemCap, spaceNeeded);
+    }
+
+    final long newBitPattern = DoublesUpdateImpl.inPlacePropagateCarry(
+            0, // starting level
+            null,
+            DoublesArrayAccessor.wrap(sortedBuffer),
+            true,
+            k_,
+            DoublesSketchAccessor.wrap(this, true),
+            bitPattern_,
+            getRandom()
+    );
+    assert newBitPattern == computeBitPattern(k_, newN); // internal consistency check
+
+    bitPattern_ = newBitPattern;
+    n_ = newN;
+  }
+
   /**
    * This is only used for on-heap sketches, and grows the Base Buffer by factors of 2 until it
    * reaches the maximum size of 2 * k. It is only called when there are no levels above the
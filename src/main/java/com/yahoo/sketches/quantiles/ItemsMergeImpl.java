@@ -24,6 +24,7 @@ import static java.lang.System.arraycopy;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.SplittableRandom;
 
 import com.yahoo.sketches.SketchesArgumentException;
 
@@ -168,7 +169,8 @@ final class ItemsMergeImpl {
             sourceLevels, (2 + srcLvl) * sourceK,
             downBuf, 0,
             targetK,
-            downFactor);
+            downFactor,
+            tgt.getRandom());
         ItemsUpdateImpl.inPlacePropagateCarry(
             srcLvl + lgDownFactor,
             (T[]) downBuf, 0,
@@ -205,8 +207,9 @@ final class ItemsMergeImpl {
       final T[] bufSrc, final int startSrc, // input
       final T[] bufC, final int startC, // output
       final int kC, // number of items that should be in the output
-      final int stride) {
-    final int randomOffset = ItemsSketch.rand.nextInt(stride);
+      final int stride,
+      final SplittableRandom random) {
+    final int randomOffset = random.nextInt(stride);
     final int limC = startC + kC;
     for (int a = startSrc + randomOffset, c = startC; c < limC; a += stride, c++ ) {
       bufC[c] = bufSrc[a];
@@ -35,6 +35,7 @@ import java.lang.reflect.Array;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Random;
+import java.util.SplittableRandom;
 
 import com.yahoo.memory.Memory;
 import com.yahoo.memory.WritableMemory;
@@ -118,6 +119,12 @@ public final class ItemsSketch<T> {
   Object[] combinedBuffer_;
 
   /**
+   * The random generator of this sketch, created on first use. See {@link #rand}.
+   */
+  private SplittableRandom random_ = null;
+
+  /**
+   * Source of the seeds for the random generators of the individual sketches.
    * Setting the seed makes the results of the sketch deterministic if the input values are
    * received in exactly the same order. This is only useful when performing test comparisons,
    * otherwise is not recommended.
@@ -161,6 +168,23 @@ public final class ItemsSketch<T> {
     return qs;
   }
 
+  /**
+   * Obtains a new instance of an ItemsSketch with a seeded random generator. Sketches created
+   * with the same seed produce identical results if they receive the same items in the same order.
+   * @param <T> type of item
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 2 and less than 65536 and a power of 2.
+   * @param comparator to compare items
+   * @param seed the seed of the random generator
+   * @return a GenericQuantileSketch
+   */
+  public static <T> ItemsSketch<T> getInstance(final int k, final Comparator<? super T> comparator,
+      final long seed) {
+    final ItemsSketch<T> qs = getInstance(k, comparator);
+    qs.random_ = new SplittableRandom(seed);
+    return qs;
+  }
+
   /**
    * Heapifies the given srcMem, which must be a Memory image of a ItemsSketch
    * @param <T> type of item
@@ -726,6 +750,19 @@ public final class ItemsSketch<T> {
     return comparator_;
   }
 
+  /**
+   * Returns the random generator of this sketch, which is seeded from {@link #rand} on first use.
+   * Each sketch having its own generator avoids contention between sketches updated in
+   * different threads.
+   * @return the random generator of this sketch
+   */
+  SplittableRandom getRandom() {
+    if (random_ == null) {
+      random_ = new SplittableRandom(rand.nextLong());
+    }
+    return random_;
+  }
+
   /**
    * Loads the Combined Buffer, min and max from the given items array.
    * The Combined Buffer is always in non-compact form and must be pre-allocated.
@@ -21,6 +21,7 @@ package com.yahoo.sketches.quantiles;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.SplittableRandom;
 
 final class ItemsUpdateImpl {
 
@@ -66,7 +67,7 @@ final class ItemsUpdateImpl {
       zipSize2KBuffer(
           size2KBuf, size2KStart,
           levelsArr, (2 + endingLevel) * k,
-          k);
+          k, sketch.getRandom());
     } else { // mergeInto version of computation
       System.arraycopy(
           sizeKBuf, sizeKStart,
@@ -84,7 +85,7 @@ final class ItemsUpdateImpl {
       zipSize2KBuffer(
           size2KBuf, size2KStart,
           levelsArr, (2 + endingLevel) * k,
-          k);
+          k, sketch.getRandom());
       // to release the discarded objects
       Arrays.fill(levelsArr, (2 + lvl) * k, (2 + lvl + 1) * k, null);
     } // end of loop over lower levels
@@ -93,12 +94,12 @@ final class ItemsUpdateImpl {
     sketch.bitPattern_ = bitPattern + (1L << startingLevel);
   }
 
-  //note: this version refers to the ItemsSketch.rand
+  //note: this version uses the random generator of the target sketch
   private static void zipSize2KBuffer(
       final Object[] bufA, final int startA, // input
       final Object[] bufC, final int startC, // output
-      final int k) {
-    final int randomOffset = ItemsSketch.rand.nextBoolean() ? 1 : 0;
+      final int k, final SplittableRandom random) {
+    final int randomOffset = random.nextBoolean() ? 1 : 0;
     final int limC = startC + k;
     for (int a = startA + randomOffset, c = startC; c < limC; a += 2, c++) {
       bufC[c] = bufA[a];
@@ -0,0 +1,555 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.Util.checkIfPowerOf2;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.yahoo.sketches.QuantilesHelper;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+
+/**
+ * The common part of the quantiles sketches that keep each retained item as a long in their
+ * combined buffer: either the item itself, or a handle to the item that the subclass resolves.
+ * It implements the update, compaction, merge and sorted view logic of {@link ItemsSketch}
+ * once, with the order of the items defined by the subclass.
+ *
+ * @param <S> the type of the subclass
+ */
+abstract class LongBufferQuantilesSketch<S extends LongBufferQuantilesSketch<S>> {
+
+  /**
+   * Parameter that controls space usage of sketch and accuracy of estimates.
+   */
+  final int k_;
+
+  /**
+   * Total number of data items in the stream so far.
+   */
+  long n_;
+
+  /**
+   * Number of samples currently in base buffer.
+   *
+   * <p>Count = N % (2*K)
+   */
+  int baseBufferCount_;
+
+  /**
+   * Active levels expressed as a bit pattern.
+   *
+   * <p>Pattern = N / (2 * K)
+   */
+  long bitPattern_;
+
+  /**
+   * The base buffer of length up to 2*K followed by all levels of length K.
+   * See {@link ItemsSketch} for the details.
+   */
+  long[] combinedBuffer_;
+
+  // sorted view with cumulative weights, built on demand and dropped on any modification
+  long[] sortedItems_ = null;
+  long[] sortedCumWeights_ = null;
+
+  SplittableRandom random_ = null;
+
+  LongBufferQuantilesSketch(final int k) {
+    Util.checkK(k);
+    k_ = k;
+  }
+
+  /**
+   * Compares two items of the combined buffer.
+   * @param item1 the first item
+   * @param item2 the second item
+   * @return a negative integer, zero, or a positive integer as the first item is less than,
+   * equal to, or greater than the second.
+   */
+  abstract int compareItems(long item1, long item2);
+
+  /**
+   * Sorts the given range of items.
+   * @param arr the array of items
+   * @param fromIndex the index of the first item to be sorted, inclusive
+   * @param toIndex the index of the last item to be sorted, exclusive
+   */
+  abstract void sortItems(long[] arr, int fromIndex, int toIndex);
+
+  /**
+   * Makes an item of the given sketch an item of this sketch.
+   * @param src the sketch that holds the item
+   * @param item the item of the given sketch
+   * @return the item for this sketch
+   */
+  abstract long importItem(S src, long item);
+
+  /**
+   * Updates the min and max values with the given item, before it is added to the base buffer.
+   * @param item the new item
+   */
+  abstract void updateMinMax(long item);
+
+  /**
+   * Updates the min and max values with those of the given sketch at the end of a merge.
+   * @param src the merged sketch
+   * @param wasEmpty true if this sketch was empty before the merge
+   */
+  abstract void mergeMinMax(S src, boolean wasEmpty);
+
+  /**
+   * Called for each item that a compaction drops.
+   * @param item the dropped item
+   */
+  void discardItem(final long item) {}
+
+  /**
+   * Called after a compaction or a merge, when no items are held outside of the combined buffer.
+   */
+  void compacted() {}
+
+  /**
+   * Returns the configured value of K
+   * @return the configured value of K
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the length of the input stream so far.
+   * @return the length of the input stream so far
+   */
+  public long getN() {
+    return n_;
+  }
+
+  /**
+   * Gets the approximate rank error of this sketch normalized as a fraction between zero and one.
+   * @param pmf if true, returns the "double-sided" normalized rank error for the getPMF() function.
+   * Otherwise, it is the "single-sided" normalized rank error for all the other queries.
+   * @return if pmf is true, returns the normalized rank error for the getPMF() function.
+   * Otherwise, it is the "single-sided" normalized rank error for all the other queries.
+   */
+  public double getNormalizedRankError(final boolean pmf) {
+    return Util.getNormalizedRankError(k_, pmf);
+  }
+
+  /**
+   * Returns true if this sketch is empty
+   * @return true if this sketch is empty
+   */
+  public boolean isEmpty() {
+    return n_ == 0;
+  }
+
+  /**
+   * Returns true if this sketch is in estimation mode
+   * @return true if this sketch is in estimation mode
+   */
+  public boolean isEstimationMode() {
+    return n_ >= (2L * k_);
+  }
+
+  /**
+   * Computes the number of retained entries (samples) in the sketch
+   * @return the number of retained entries (samples) in the sketch
+   */
+  public int getRetainedItems() {
+    return Util.computeRetainedItems(k_, n_);
+  }
+
+  /**
+   * Returns summary information about this sketch.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    final String thisSimpleName = this.getClass().getSimpleName();
+    sb.append(Util.LS).append("### ").append(thisSimpleName).append(" SUMMARY: ").append(Util.LS);
+    sb.append("   K                            : ").append(k_).append(Util.LS);
+    sb.append("   N                            : ").append(n_).append(Util.LS);
+    sb.append("   BaseBufferCount              : ").append(baseBufferCount_).append(Util.LS);
+    sb.append("   Combined Buffer Capacity     : ").append(combinedBuffer_.length).append(Util.LS);
+    appendStorageSummary(sb);
+    sb.append("   Retained Items               : ").append(getRetainedItems()).append(Util.LS);
+    sb.append("   Valid Levels                 : ").append(Util.computeValidLevels(bitPattern_))
+      .append(Util.LS);
+    if (!isEmpty()) {
+      sb.append("   Min Value                    : ").append(minValueString()).append(Util.LS);
+      sb.append("   Max Value                    : ").append(maxValueString()).append(Util.LS);
+    }
+    sb.append("### END SKETCH SUMMARY").append(Util.LS);
+    return sb.toString();
+  }
+
+  // Restricted
+
+  /**
+   * Appends the lines about the storage of the items, if any, to the summary.
+   * @param sb the summary
+   */
+  void appendStorageSummary(final StringBuilder sb) {}
+
+  abstract String minValueString();
+
+  abstract String maxValueString();
+
+  /**
+   * Merges the source sketch into the target sketch, which can have a smaller value of K.
+   * The ratio of the two K values must be a power of 2. The source is not modified.
+   * See {@link ItemsMergeImpl#mergeInto(ItemsSketch, ItemsSketch)} for the details.
+   * @param <S> the type of the sketches
+   * @param src The source sketch
+   * @param tgt The target sketch
+   */
+  static <S extends LongBufferQuantilesSketch<S>> void mergeInto(final S src, final S tgt) {
+    if (src.isEmpty()) { return; }
+    if (src.k_ != tgt.k_) {
+      downSamplingMergeInto(src, tgt);
+      return;
+    }
+    final int k = tgt.k_;
+    final long nFinal = tgt.n_ + src.n_;
+    tgt.updateFromBaseBuffer(src); //update only the base buffer
+    tgt.maybeGrowLevels(nFinal);
+    final long[] scratchBuf = new long[2 * k];
+    final long[] levelBuf = new long[k];
+    long srcBitPattern = src.bitPattern_;
+    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+      if ((srcBitPattern & 1L) > 0L) {
+        final int levelStart = (2 + srcLvl) * k;
+        for (int c = 0; c < k; c++) {
+          levelBuf[c] = tgt.importItem(src, src.combinedBuffer_[levelStart + c]);
+        }
+        tgt.inPlacePropagateCarry(srcLvl, levelBuf, 0, scratchBuf, 0, false);
+      }
+    }
+    tgt.finishMerge(src, nFinal);
+  }
+
+  /**
+   * Merges the source sketch into the target sketch that has a smaller value of K.
+   * It is required that source.getK() = target.getK() * 2^(nonnegative integer).
+   * The source is not modified.
+   * @param <S> the type of the sketches
+   * @param src The source sketch
+   * @param tgt The target sketch
+   */
+  static <S extends LongBufferQuantilesSketch<S>> void downSamplingMergeInto(final S src,
+      final S tgt) {
+    final int targetK = tgt.k_;
+    final int sourceK = src.k_;
+    if ((sourceK % targetK) != 0) {
+      throw new SketchesArgumentException(
+          "source.getK() must equal target.getK() * 2^(nonnegative integer).");
+    }
+    final int downFactor = sourceK / targetK;
+    checkIfPowerOf2(downFactor, "source.getK()/target.getK() ratio");
+    final int lgDownFactor = Integer.numberOfTrailingZeros(downFactor);
+    if (src.isEmpty()) { return; }
+
+    final long nFinal = tgt.n_ + src.n_;
+    tgt.updateFromBaseBuffer(src);
+    tgt.maybeGrowLevels(nFinal);
+
+    final long[] scratchBuf = new long[2 * targetK];
+    final long[] downBuf = new long[targetK];
+    long srcBitPattern = src.bitPattern_;
+    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+      if ((srcBitPattern & 1L) > 0L) {
+        // zip with stride
+        final int randomOffset = tgt.getRandom().nextInt(downFactor);
+        for (int a = ((2 + srcLvl) * sourceK) + randomOffset, c = 0; c < targetK;
+            a += downFactor, c++) {
+          downBuf[c] = tgt.importItem(src, src.combinedBuffer_[a]);
+        }
+        tgt.inPlacePropagateCarry(srcLvl + lgDownFactor, downBuf, 0, scratchBuf, 0, false);
+      }
+    }
+    tgt.finishMerge(src, nFinal);
+  }
+
+  /**
+   * Updates this sketch with the items in the base buffer of the given sketch.
+   * @param src the given sketch
+   */
+  final void updateFromBaseBuffer(final S src) {
+    for (int i = 0; i < src.baseBufferCount_; i++) {
+      updateItem(importItem(src, src.combinedBuffer_[i]));
+    }
+  }
+
+  /**
+   * Updates this sketch with the given item.
+   * @param item an item of this sketch
+   */
+  final void updateItem(final long item) {
+    updateMinMax(item);
+    if (baseBufferCount_ == combinedBuffer_.length) {
+      growBaseBuffer();
+    }
+    combinedBuffer_[baseBufferCount_++] = item;
+    n_++;
+    sortedItems_ = null;
+    if (baseBufferCount_ == (2 * k_)) {
+      processFullBaseBuffer();
+    }
+  }
+
+  /**
+   * Resets the buffers to those of an empty sketch.
+   */
+  final void resetBuffers() {
+    n_ = 0;
+    combinedBuffer_ = new long[2 * Math.min(DoublesSketch.MIN_K, k_)]; //the min is important
+    baseBufferCount_ = 0;
+    bitPattern_ = 0;
+    sortedItems_ = null;
+  }
+
+  /**
+   * Sizes the buffers for a sketch of the given length of the stream, to be filled from an image.
+   * @param n the length of the stream
+   */
+  final void initBuffers(final long n) {
+    n_ = n;
+    baseBufferCount_ = Util.computeBaseBufferItems(k_, n);
+    bitPattern_ = Util.computeBitPattern(k_, n);
+    combinedBuffer_ = new long[Util.computeCombinedBufferItemCapacity(k_, n)];
+    sortedItems_ = null;
+  }
+
+  /**
+   * Copies the buffers of the given sketch into this sketch.
+   * @param src the given sketch
+   */
+  final void copyBuffers(final S src) {
+    n_ = src.n_;
+    baseBufferCount_ = src.baseBufferCount_;
+    bitPattern_ = src.bitPattern_;
+    combinedBuffer_ = src.combinedBuffer_.clone();
+    sortedItems_ = null;
+  }
+
+  final SplittableRandom getRandom() {
+    if (random_ == null) {
+      random_ = new SplittableRandom(ItemsSketch.rand.nextLong());
+    }
+    return random_;
+  }
+
+  final void checkNotEmpty() {
+    if (isEmpty()) {
+      throw new SketchesStateException("The sketch is empty");
+    }
+  }
+
+  /**
+   * Returns the item of the sorted view at the given fractional rank.
+   * @param fRank the fractional rank
+   * @return the item at the given fractional rank
+   */
+  final long quantileFromSortedView(final double fRank) {
+    Util.checkFractionalRankBounds(fRank);
+    buildSortedViewIfNeeded();
+    final long pos = QuantilesHelper.posOfPhi(fRank, n_);
+    return sortedItems_[QuantilesHelper.chunkContainingPos(sortedCumWeights_, pos)];
+  }
+
+  /**
+   * Converts the weights preceding each split point into the buckets of a PMF or CDF.
+   * @param splitWeights the total weights of the items less than each split point
+   * @param isCdf true for a CDF, false for a PMF
+   * @return the buckets, one more than the split points
+   */
+  final double[] bucketsFromWeights(final long[] splitWeights, final boolean isCdf) {
+    final double[] buckets = new double[splitWeights.length + 1];
+    long prevWeight = 0;
+    for (int j = 0; j < splitWeights.length; j++) {
+      final long weight = splitWeights[j];
+      buckets[j] = (double) (isCdf ? weight : weight - prevWeight) / n_;
+      prevWeight = weight;
+    }
+    buckets[splitWeights.length] = (double) (isCdf ? n_ : n_ - prevWeight) / n_;
+    return buckets;
+  }
+
+  /**
+   * Builds the sorted items with the total weights preceding each item, with an extra slot at
+   * the end that holds n. The sorted base buffer is merged with the levels from the bottom up.
+   */
+  final void buildSortedViewIfNeeded() {
+    if (sortedItems_ != null) { return; }
+    final int numItems = getRetainedItems();
+    long[] items = new long[numItems];
+    long[] weights = new long[numItems];
+    long[] tmpItems = new long[numItems];
+    long[] tmpWeights = new long[numItems];
+
+    System.arraycopy(combinedBuffer_, 0, items, 0, baseBufferCount_);
+    sortItems(items, 0, baseBufferCount_);
+    Arrays.fill(weights, 0, baseBufferCount_, 1);
+    int count = baseBufferCount_;
+    long weight = 1;
+    long bits = bitPattern_;
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      weight *= 2;
+      if ((bits & 1L) == 0L) { continue; }
+      final int levelStart = (2 + lvl) * k_;
+      final int levelStop = levelStart + k_;
+      int i1 = 0;
+      int i2 = levelStart;
+      int i3 = 0;
+      while ((i1 < count) && (i2 < levelStop)) {
+        if (compareItems(combinedBuffer_[i2], items[i1]) < 0) {
+          tmpItems[i3] = combinedBuffer_[i2++];
+          tmpWeights[i3++] = weight;
+        } else {
+          tmpItems[i3] = items[i1];
+          tmpWeights[i3++] = weights[i1++];
+        }
+      }
+      while (i1 < count) {
+        tmpItems[i3] = items[i1];
+        tmpWeights[i3++] = weights[i1++];
+      }
+      while (i2 < levelStop) {
+        tmpItems[i3] = combinedBuffer_[i2++];
+        tmpWeights[i3++] = weight;
+      }
+      count = i3;
+      final long[] swapItems = items;
+      items = tmpItems;
+      tmpItems = swapItems;
+      final long[] swapWeights = weights;
+      weights = tmpWeights;
+      tmpWeights = swapWeights;
+    }
+    assert count == numItems;
+
+    final long[] cumWeights = Arrays.copyOf(weights, numItems + 1);
+    final long total = QuantilesHelper.convertToPrecedingCummulative(cumWeights);
+    assert total == n_;
+    sortedCumWeights_ = cumWeights;
+    sortedItems_ = items;
+  }
+
+  final void finishMerge(final S src, final long nFinal) {
+    final boolean wasEmpty = n_ == 0; // n_ only includes the base buffer of the source here
+    n_ = nFinal;
+    assert (n_ / (2L * k_)) == bitPattern_; // internal consistency check
+    mergeMinMax(src, wasEmpty);
+    sortedItems_ = null;
+    compacted();
+  }
+
+  private void growBaseBuffer() {
+    final int oldSize = combinedBuffer_.length;
+    assert oldSize < (2 * k_);
+    final int newSize = Math.max(Math.min(2 * k_, 2 * oldSize), 1);
+    combinedBuffer_ = Arrays.copyOf(combinedBuffer_, newSize);
+  }
+
+  // called when the base buffer has just acquired 2*k elements
+  private void processFullBaseBuffer() {
+    maybeGrowLevels(n_);
+    sortItems(combinedBuffer_, 0, 2 * k_);
+    inPlacePropagateCarry(0, null, 0, combinedBuffer_, 0, true);
+    baseBufferCount_ = 0;
+    assert (n_ / (2L * k_)) == bitPattern_; // internal consistency check
+    compacted();
+  }
+
+  // this only increases the size and does not touch or move any data
+  final void maybeGrowLevels(final long newN) {
+    final int numLevelsNeeded = Util.computeNumLevelsNeeded(k_, newN);
+    if (numLevelsNeeded == 0) {
+      // don't need any levels yet, and might have small base buffer; this can happen during a merge
+      return;
+    }
+    final int spaceNeeded = (2 + numLevelsNeeded) * k_;
+    if (spaceNeeded <= combinedBuffer_.length) {
+      return;
+    }
+    combinedBuffer_ = Arrays.copyOf(combinedBuffer_, spaceNeeded);
+  }
+
+  // see ItemsUpdateImpl.inPlacePropagateCarry()
+  final void inPlacePropagateCarry(final int startingLevel,
+      final long[] sizeKBuf, final int sizeKStart,
+      final long[] size2KBuf, final int size2KStart,
+      final boolean doUpdateVersion) {
+    final long[] levelsArr = combinedBuffer_;
+    final int endingLevel = Util.lowestZeroBitStartingAt(bitPattern_, startingLevel);
+    final int endingStart = (2 + endingLevel) * k_;
+
+    if (doUpdateVersion) { // update version of computation
+      zipSize2KBuffer(size2KBuf, size2KStart, levelsArr, endingStart);
+    } else { // mergeInto version of computation
+      System.arraycopy(sizeKBuf, sizeKStart, levelsArr, endingStart, k_);
+    }
+
+    for (int lvl = startingLevel; lvl < endingLevel; lvl++) {
+      assert (bitPattern_ & (1L << lvl)) > 0; // internal consistency check
+      mergeTwoSizeKBuffers(levelsArr, (2 + lvl) * k_, levelsArr, endingStart,
+          size2KBuf, size2KStart, k_);
+      zipSize2KBuffer(size2KBuf, size2KStart, levelsArr, endingStart);
+    }
+    // update bit pattern with binary-arithmetic ripple carry
+    bitPattern_ = bitPattern_ + (1L << startingLevel);
+  }
+
+  private void zipSize2KBuffer(final long[] bufA, final int startA, final long[] bufC,
+      final int startC) {
+    final int randomOffset = getRandom().nextBoolean() ? 1 : 0;
+    final int limC = startC + k_;
+    for (int a = startA + randomOffset, c = startC; c < limC; a += 2, c++) {
+      bufC[c] = bufA[a];
+      discardItem(bufA[(a - randomOffset) + (1 - randomOffset)]);
+    }
+  }
+
+  private void mergeTwoSizeKBuffers(final long[] keySrc1, final int arrStart1,
+      final long[] keySrc2, final int arrStart2, final long[] keyDst, final int arrStart3,
+      final int k) {
+    final int arrStop1 = arrStart1 + k;
+    final int arrStop2 = arrStart2 + k;
+    int i1 = arrStart1;
+    int i2 = arrStart2;
+    int i3 = arrStart3;
+    while ((i1 < arrStop1) && (i2 < arrStop2)) {
+      if (compareItems(keySrc2[i2], keySrc1[i1]) < 0) {
+        keyDst[i3++] = keySrc2[i2++];
+      } else {
+        keyDst[i3++] = keySrc1[i1++];
+      }
+    }
+    if (i1 < arrStop1) {
+      System.arraycopy(keySrc1, i1, keyDst, i3, arrStop1 - i1);
+    } else {
+      System.arraycopy(keySrc2, i2, keyDst, i3, arrStop2 - i2);
+    }
+  }
+
+}
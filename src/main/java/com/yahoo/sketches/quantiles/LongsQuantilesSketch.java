@@ -0,0 +1,514 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMPACT_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.ORDERED_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertSerVer;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.QuantilesHelper;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+
+/**
+ * This is a quantiles sketch of long values. It implements the same algorithm as
+ * {@link ItemsSketch}, and has the same accuracy guarantees, but the items are kept in a
+ * long[] and compared as primitives, which avoids boxing and comparator calls.
+ *
+ * <p>The serialized form is the same as that of an <i>ItemsSketch&lt;Long&gt;</i> serialized
+ * with an {@link com.yahoo.sketches.ArrayOfLongsSerDe}, so images can be exchanged between the
+ * two sketches.</p>
+ *
+ * <p>The documentation for {@link DoublesSketch} applies here as well.</p>
+ */
+public final class LongsQuantilesSketch extends LongBufferQuantilesSketch<LongsQuantilesSketch> {
+
+  /**
+   * The smallest value ever seen in the stream. Not valid if the sketch is empty.
+   */
+  long minValue_;
+
+  /**
+   * The largest value ever seen in the stream. Not valid if the sketch is empty.
+   */
+  long maxValue_;
+
+  private LongsQuantilesSketch(final int k) {
+    super(k);
+    reset();
+  }
+
+  /**
+   * Obtains a new instance of a LongsQuantilesSketch using the DEFAULT_K.
+   * @return a new instance of a LongsQuantilesSketch
+   */
+  public static LongsQuantilesSketch getInstance() {
+    return getInstance(PreambleUtil.DEFAULT_K);
+  }
+
+  /**
+   * Obtains a new instance of a LongsQuantilesSketch.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 2 and less than 65536 and a power of 2.
+   * @return a new instance of a LongsQuantilesSketch
+   */
+  public static LongsQuantilesSketch getInstance(final int k) {
+    return new LongsQuantilesSketch(k);
+  }
+
+  /**
+   * Obtains a new instance of a LongsQuantilesSketch with a seeded random generator. Sketches
+   * created with the same seed produce identical results if they receive the same items in the
+   * same order.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 2 and less than 65536 and a power of 2.
+   * @param seed the seed of the random generator
+   * @return a new instance of a LongsQuantilesSketch
+   */
+  public static LongsQuantilesSketch getInstance(final int k, final long seed) {
+    final LongsQuantilesSketch sketch = new LongsQuantilesSketch(k);
+    sketch.random_ = new SplittableRandom(seed);
+    return sketch;
+  }
+
+  /**
+   * Heapifies the given srcMem, which must be a Memory image of a LongsQuantilesSketch or of an
+   * ItemsSketch&lt;Long&gt; serialized with an ArrayOfLongsSerDe.
+   * @param srcMem a Memory image of a sketch.
+   * <a href="{@docRoot}/resources/dictionary.html#mem">See Memory</a>
+   * @return a LongsQuantilesSketch on the Java heap.
+   */
+  public static LongsQuantilesSketch heapify(final Memory srcMem) {
+    final long memCapBytes = srcMem.getCapacity();
+    if (memCapBytes < 8) {
+      throw new SketchesArgumentException("Memory too small: " + memCapBytes);
+    }
+    final int preambleLongs = extractPreLongs(srcMem);
+    final int serVer = extractSerVer(srcMem);
+    final int familyID = extractFamilyID(srcMem);
+    final int flags = extractFlags(srcMem);
+    final int k = extractK(srcMem);
+
+    ItemsUtil.checkItemsSerVer(serVer);
+    if ((serVer == 3) && ((flags & COMPACT_FLAG_MASK) == 0)) {
+      throw new SketchesArgumentException("Non-compact Memory images are not supported.");
+    }
+    final boolean empty = Util.checkPreLongsFlagsCap(preambleLongs, flags, memCapBytes);
+    Util.checkFamilyID(familyID);
+
+    final LongsQuantilesSketch qs = getInstance(k); //checks k
+    if (empty) { return qs; }
+
+    final long n = extractN(srcMem);
+    final int retainedItems = Util.computeRetainedItems(k, n);
+    final long itemsOffsetBytes = preambleLongs * Long.BYTES;
+    final long memBytesNeeded = itemsOffsetBytes + ((retainedItems + 2L) * Long.BYTES);
+    if (memCapBytes < memBytesNeeded) {
+      throw new SketchesArgumentException(
+          "Possible corruption: Memory too small: " + memCapBytes + " < " + memBytesNeeded);
+    }
+
+    qs.initBuffers(n);
+    qs.minValue_ = srcMem.getLong(itemsOffsetBytes);
+    qs.maxValue_ = srcMem.getLong(itemsOffsetBytes + Long.BYTES);
+    long offsetBytes = itemsOffsetBytes + (2L * Long.BYTES);
+    srcMem.getLongArray(offsetBytes, qs.combinedBuffer_, 0, qs.baseBufferCount_);
+    offsetBytes += (long) qs.baseBufferCount_ * Long.BYTES;
+    long bits = qs.bitPattern_;
+    for (int level = 0; bits != 0L; level++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        srcMem.getLongArray(offsetBytes, qs.combinedBuffer_, (2 + level) * k, k);
+        offsetBytes += (long) k * Long.BYTES;
+      }
+    }
+    return qs;
+  }
+
+  /**
+   * Returns a copy of the given sketch
+   * @param sketch the given sketch
+   * @return a copy of the given sketch
+   */
+  static LongsQuantilesSketch copy(final LongsQuantilesSketch sketch) {
+    final LongsQuantilesSketch qsCopy = new LongsQuantilesSketch(sketch.k_);
+    qsCopy.copyBuffers(sketch);
+    qsCopy.minValue_ = sketch.minValue_;
+    qsCopy.maxValue_ = sketch.maxValue_;
+    return qsCopy;
+  }
+
+  /**
+   * Updates this sketch with the given data item
+   * @param dataItem an item from a stream of items
+   */
+  public void update(final long dataItem) {
+    updateItem(dataItem);
+  }
+
+  /**
+   * This returns an approximation to the value of the data item
+   * that would be preceded by the given fraction of a hypothetical sorted
+   * version of the input stream so far.
+   *
+   * <p>The first query after the sketch has been modified builds a sorted view of the sketch,
+   * which is kept until the next modification.
+   *
+   * @param fraction the specified fractional position in the hypothetical sorted stream.
+   * These are also called normalized ranks or fractional ranks.
+   * If fraction = 0.0, the true minimum value of the stream is returned.
+   * If fraction = 1.0, the true maximum value of the stream is returned.
+   *
+   * @return the approximation to the value at the above fraction
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public long getQuantile(final double fraction) {
+    checkNotEmpty();
+    if ((fraction < 0.0) || (fraction > 1.0)) {
+      throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+    }
+    if      (fraction == 0.0) { return minValue_; }
+    else if (fraction == 1.0) { return maxValue_; }
+    else { return quantileFromSortedView(fraction); }
+  }
+
+  /**
+   * Gets the upper bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the upper bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public long getQuantileUpperBound(final double fraction) {
+    return getQuantile(min(1.0, fraction + Util.getNormalizedRankError(k_, false)));
+  }
+
+  /**
+   * Gets the lower bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @param fraction the given normalized rank as a fraction
+   * @return the lower bound of the value interval in which the true quantile of the given rank
+   * exists with a confidence of at least 99%.
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public long getQuantileLowerBound(final double fraction) {
+    return getQuantile(max(0, fraction - Util.getNormalizedRankError(k_, false)));
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getQuantile().
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param fRanks the given array of fractional (or normalized) ranks in the hypothetical
+   * sorted stream of all the input values seen so far.
+   * These fRanks must all be in the interval [0.0, 1.0] inclusively.
+   *
+   * @return array of approximate quantiles of the given fRanks in the same order as in the given
+   * fRanks array.
+   */
+  public long[] getQuantiles(final double[] fRanks) {
+    if (isEmpty()) { return null; }
+    final long[] quantiles = new long[fRanks.length];
+    for (int i = 0; i < fRanks.length; i++) {
+      final double fRank = fRanks[i];
+      if      (fRank == 0.0) { quantiles[i] = minValue_; }
+      else if (fRank == 1.0) { quantiles[i] = maxValue_; }
+      else { quantiles[i] = quantileFromSortedView(fRank); }
+    }
+    return quantiles;
+  }
+
+  /**
+   * This is also a more efficient multiple-query version of getQuantile() and allows the caller to
+   * specify the number of evenly spaced fractional ranks.
+   *
+   * <p>If the sketch is empty this returns null.
+   *
+   * @param evenlySpaced an integer that specifies the number of evenly spaced fractional ranks.
+   * This must be a positive integer greater than 0. A value of 1 will return the min value.
+   * A value of 2 will return the min and the max value. A value of 3 will return the min,
+   * the median and the max value, etc.
+   *
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array.
+   */
+  public long[] getQuantiles(final int evenlySpaced) {
+    if (isEmpty()) { return null; }
+    return getQuantiles(QuantilesHelper.getEvenlySpacedRanks(evenlySpaced));
+  }
+
+  /**
+   * Returns an approximation to the normalized (fractional) rank of the given value from 0 to 1
+   * inclusive.
+   *
+   * <p>If the sketch is empty this returns NaN.</p>
+   *
+   * @param value to be ranked
+   * @return an approximate rank of the given value
+   */
+  public double getRank(final long value) {
+    if (isEmpty()) { return Double.NaN; }
+    buildSortedViewIfNeeded();
+    return (double) sortedCumWeights_[lowerBound(value)] / n_;
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getRank().
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param values to be ranked
+   * @return array of approximate ranks of the given values in the same order as given values
+   * array.
+   */
+  public double[] getRanks(final long[] values) {
+    if (isEmpty()) { return null; }
+    buildSortedViewIfNeeded();
+    final double[] ranks = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      ranks[i] = (double) sortedCumWeights_[lowerBound(values[i])] / n_;
+    }
+    return ranks;
+  }
+
+  /**
+   * Returns an approximation to the Probability Mass Function (PMF) of the input stream
+   * given a set of splitPoints (values).
+   * See {@link ItemsSketch#getPMF(Object[])} for the details.
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * that divide the ordered space into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 doubles each of which is an approximation
+   * to the fraction of the input stream values (the mass) that fall into one of those intervals.
+   */
+  public double[] getPMF(final long[] splitPoints) {
+    return getPmfOrCdf(splitPoints, false);
+  }
+
+  /**
+   * Returns an approximation to the Cumulative Distribution Function (CDF), which is the
+   * cumulative analog of the PMF, of the input stream given a set of splitPoints (values).
+   * See {@link ItemsSketch#getCDF(Object[])} for the details.
+   *
+   * <p>If the sketch is empty this returns null.</p>
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * that divide the ordered space into <i>m+1</i> consecutive disjoint intervals.
+   * @return an array of m+1 double values, which are a consecutive approximation to the CDF
+   * of the input stream given the splitPoints.
+   */
+  public double[] getCDF(final long[] splitPoints) {
+    return getPmfOrCdf(splitPoints, true);
+  }
+
+  /**
+   * Returns the min value of the stream
+   * @return the min value of the stream
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public long getMinValue() {
+    checkNotEmpty();
+    return minValue_;
+  }
+
+  /**
+   * Returns the max value of the stream
+   * @return the max value of the stream
+   * @throws SketchesStateException if the sketch is empty
+   */
+  public long getMaxValue() {
+    checkNotEmpty();
+    return maxValue_;
+  }
+
+  /**
+   * Resets this sketch to a virgin state, but retains the original value of k.
+   */
+  public void reset() {
+    resetBuffers();
+    minValue_ = 0;
+    maxValue_ = 0;
+  }
+
+  /**
+   * From an existing sketch, this creates a new sketch that can have a smaller value of K.
+   * The original sketch is not modified.
+   *
+   * @param newK the new value of K that must be smaller than current value of K.
+   * It is required that this.getK() = newK * 2^(nonnegative integer).
+   * @return the new sketch.
+   */
+  public LongsQuantilesSketch downSample(final int newK) {
+    final LongsQuantilesSketch newSketch = getInstance(newK);
+    downSamplingMergeInto(this, newSketch);
+    return newSketch;
+  }
+
+  /**
+   * Serialize this sketch to a byte array form.
+   * @return byte array of this sketch
+   */
+  public byte[] toByteArray() {
+    return toByteArray(false);
+  }
+
+  /**
+   * Serialize this sketch to a byte array form.
+   * @param ordered if true the base buffer will be ordered (default == false).
+   * @return this sketch in a byte array form.
+   */
+  public byte[] toByteArray(final boolean ordered) {
+    final boolean empty = isEmpty();
+    final int flags = (empty ? EMPTY_FLAG_MASK : 0)
+        | (ordered ? ORDERED_FLAG_MASK : 0)
+        | COMPACT_FLAG_MASK; //always compact
+    final int preLongs = empty ? 1 : 2;
+    final int numItems = empty ? 0 : getRetainedItems() + 2;
+    final byte[] outByteArr = new byte[(preLongs + numItems) << 3];
+    final WritableMemory memOut = WritableMemory.wrap(outByteArr);
+    insertPreLongs(memOut, preLongs);
+    insertSerVer(memOut, ItemsUtil.ITEMS_SER_VER);
+    insertFamilyID(memOut, Family.QUANTILES.getID());
+    insertFlags(memOut, flags);
+    insertK(memOut, k_);
+    if (empty) { return outByteArr; }
+
+    insertN(memOut, n_);
+    long offsetBytes = preLongs << 3;
+    memOut.putLong(offsetBytes, minValue_);
+    memOut.putLong(offsetBytes + Long.BYTES, maxValue_);
+    offsetBytes += 2 * Long.BYTES;
+    final long[] baseBuffer = Arrays.copyOf(combinedBuffer_, baseBufferCount_);
+    if (ordered) { Arrays.sort(baseBuffer); }
+    memOut.putLongArray(offsetBytes, baseBuffer, 0, baseBufferCount_);
+    offsetBytes += (long) baseBufferCount_ * Long.BYTES;
+    long bits = bitPattern_;
+    for (int level = 0; bits != 0L; level++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        memOut.putLongArray(offsetBytes, combinedBuffer_, (2 + level) * k_, k_);
+        offsetBytes += (long) k_ * Long.BYTES;
+      }
+    }
+    return outByteArr;
+  }
+
+  // Restricted
+
+  @Override
+  int compareItems(final long item1, final long item2) {
+    return Long.compare(item1, item2);
+  }
+
+  @Override
+  void sortItems(final long[] arr, final int fromIndex, final int toIndex) {
+    Arrays.sort(arr, fromIndex, toIndex);
+  }
+
+  @Override
+  long importItem(final LongsQuantilesSketch src, final long item) {
+    return item;
+  }
+
+  @Override
+  void updateMinMax(final long item) {
+    if (n_ == 0) {
+      minValue_ = item;
+      maxValue_ = item;
+    } else {
+      if (item < minValue_) { minValue_ = item; }
+      if (item > maxValue_) { maxValue_ = item; }
+    }
+  }
+
+  @Override
+  void mergeMinMax(final LongsQuantilesSketch src, final boolean wasEmpty) {
+    if (wasEmpty) {
+      minValue_ = src.minValue_;
+      maxValue_ = src.maxValue_;
+    } else {
+      if (src.minValue_ < minValue_) { minValue_ = src.minValue_; }
+      if (src.maxValue_ > maxValue_) { maxValue_ = src.maxValue_; }
+    }
+  }
+
+  @Override
+  String minValueString() {
+    return Long.toString(minValue_);
+  }
+
+  @Override
+  String maxValueString() {
+    return Long.toString(maxValue_);
+  }
+
+  private double[] getPmfOrCdf(final long[] splitPoints, final boolean isCdf) {
+    if (isEmpty()) { return null; }
+    for (int j = 0; j < (splitPoints.length - 1); j++) {
+      if (splitPoints[j] >= splitPoints[j + 1]) {
+        throw new SketchesArgumentException("Values must be unique and monotonically increasing.");
+      }
+    }
+    buildSortedViewIfNeeded();
+    final long[] splitWeights = new long[splitPoints.length];
+    for (int j = 0; j < splitPoints.length; j++) {
+      splitWeights[j] = sortedCumWeights_[lowerBound(splitPoints[j])];
+    }
+    return bucketsFromWeights(splitWeights, isCdf);
+  }
+
+  // returns the index of the first sorted item that is not less than the given value
+  private int lowerBound(final long value) {
+    int lo = 0;
+    int hi = sortedItems_.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (sortedItems_[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+}
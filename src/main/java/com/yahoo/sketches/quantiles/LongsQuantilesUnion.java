@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.Util.LS;
+
+import com.yahoo.memory.Memory;
+
+/**
+ * The API for Union operations for LongsQuantilesSketches. It follows the same rules as
+ * {@link ItemsUnion}.
+ */
+public final class LongsQuantilesUnion {
+
+  private final int maxK_;
+  private LongsQuantilesSketch gadget_;
+
+  private LongsQuantilesUnion(final int maxK, final LongsQuantilesSketch gadget) {
+    maxK_ = maxK;
+    gadget_ = gadget;
+  }
+
+  /**
+   * Create an instance of LongsQuantilesUnion with the default k
+   * @return an instance of LongsQuantilesUnion
+   */
+  public static LongsQuantilesUnion getInstance() {
+    return new LongsQuantilesUnion(PreambleUtil.DEFAULT_K, null);
+  }
+
+  /**
+   * Create an instance of LongsQuantilesUnion
+   * @param maxK determines the accuracy and size of the union and is a maximum value.
+   * The effective <i>k</i> can be smaller due to unions with smaller <i>k</i> sketches.
+   * It is recommended that <i>maxK</i> be a power of 2 to enable unioning of sketches with
+   * different values of <i>k</i>.
+   * @return an instance of LongsQuantilesUnion
+   */
+  public static LongsQuantilesUnion getInstance(final int maxK) {
+    return new LongsQuantilesUnion(maxK, null);
+  }
+
+  /**
+   * Heapify the given srcMem into a Union object.
+   * @param srcMem the given srcMem.
+   * A reference to srcMem will not be maintained internally.
+   * @return an instance of LongsQuantilesUnion
+   */
+  public static LongsQuantilesUnion getInstance(final Memory srcMem) {
+    final LongsQuantilesSketch gadget = LongsQuantilesSketch.heapify(srcMem);
+    return new LongsQuantilesUnion(gadget.getK(), gadget);
+  }
+
+  /**
+   * Create an instance of LongsQuantilesUnion based on LongsQuantilesSketch
+   * @param sketch the basis of the union
+   * @return an instance of LongsQuantilesUnion
+   */
+  public static LongsQuantilesUnion getInstance(final LongsQuantilesSketch sketch) {
+    return new LongsQuantilesUnion(sketch.getK(), LongsQuantilesSketch.copy(sketch));
+  }
+
+  /**
+   * Iterative union operation, which means this method can be repeatedly called.
+   * Merges the given sketch into this union object.
+   * The given sketch is not modified.
+   * It is required that the ratio of the two K values be a power of 2.
+   * This is easily satisfied if each of the K values is already a power of 2.
+   * If the given sketch is null or empty it is ignored.
+   *
+   * <p>It is required that the results of the union operation, which can be obtained at any time,
+   * is obtained from {@link #getResult() }.</p>
+   *
+   * @param sketchIn the sketch to be merged into this one.
+   */
+  public void update(final LongsQuantilesSketch sketchIn) {
+    gadget_ = updateLogic(maxK_, gadget_, sketchIn);
+  }
+
+  /**
+   * Iterative union operation, which means this method can be repeatedly called.
+   * Merges the given Memory image of a LongsQuantilesSketch into this union object.
+   * The given Memory object is not modified and a link to it is not retained.
+   *
+   * @param srcMem Memory image of sketch to be merged
+   */
+  public void update(final Memory srcMem) {
+    gadget_ = updateLogic(maxK_, gadget_, LongsQuantilesSketch.heapify(srcMem));
+  }
+
+  /**
+   * Update this union with the given data item.
+   *
+   * @param dataItem The given datum.
+   */
+  public void update(final long dataItem) {
+    if (gadget_ == null) {
+      gadget_ = LongsQuantilesSketch.getInstance(maxK_);
+    }
+    gadget_.update(dataItem);
+  }
+
+  /**
+   * Gets the result of this Union operation as a copy of the internal state.
+   * This enables further union update operations on this state.
+   * @return the result of this Union operation
+   */
+  public LongsQuantilesSketch getResult() {
+    if (gadget_ == null) {
+      return LongsQuantilesSketch.getInstance(maxK_);
+    }
+    return LongsQuantilesSketch.copy(gadget_); //can't have any externally owned handles.
+  }
+
+  /**
+   * Gets the result of this Union operation (without a copy) and resets this Union to the
+   * virgin state.
+   *
+   * @return the result of this Union operation and reset.
+   */
+  public LongsQuantilesSketch getResultAndReset() {
+    if (gadget_ == null) { return null; } //Intentionally return null here for speed.
+    final LongsQuantilesSketch qs = gadget_;
+    gadget_ = null;
+    return qs;
+  }
+
+  /**
+   * Resets this Union to a virgin state.
+   */
+  public void reset() {
+    gadget_ = null;
+  }
+
+  /**
+   * Returns true if this union is empty
+   * @return true if this union is empty
+   */
+  public boolean isEmpty() {
+    return (gadget_ == null) || gadget_.isEmpty();
+  }
+
+  /**
+   * Returns the configured <i>maxK</i> of this Union.
+   * @return the configured <i>maxK</i> of this Union.
+   */
+  public int getMaxK() {
+    return maxK_;
+  }
+
+  /**
+   * Returns the effective <i>k</i> of this Union.
+   * @return the effective <i>k</i> of this Union.
+   */
+  public int getEffectiveK() {
+    return (gadget_ != null) ? gadget_.getK() : maxK_;
+  }
+
+  /**
+   * Returns summary information about the backing sketch.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    final String thisSimpleName = this.getClass().getSimpleName();
+    sb.append(Util.LS).append("### Quantiles ").append(thisSimpleName).append(LS);
+    sb.append("   maxK                         : ").append(String.format("%,d", maxK_));
+    sb.append((gadget_ == null) ? LongsQuantilesSketch.getInstance(maxK_).toString()
+        : gadget_.toString());
+    return sb.toString();
+  }
+
+  /**
+   * Serialize this union to a byte array. Result is a LongsQuantilesSketch, serialized in an
+   * unordered, compact form. The resulting byte[] can be passed to getInstance for either a
+   * sketch or union.
+   *
+   * @return byte array of this union
+   */
+  public byte[] toByteArray() {
+    if (gadget_ == null) {
+      return LongsQuantilesSketch.getInstance(maxK_).toByteArray();
+    }
+    return gadget_.toByteArray();
+  }
+
+  //@formatter:off
+  @SuppressWarnings("null")
+  static LongsQuantilesSketch updateLogic(final int myMaxK, final LongsQuantilesSketch myQS,
+      final LongsQuantilesSketch other) {
+    int sw1 = ((myQS   == null) ? 0 :   myQS.isEmpty() ? 4 : 8);
+    sw1 |=    ((other  == null) ? 0 :  other.isEmpty() ? 1 : 2);
+    int outCase = 0; //0=null, 1=NOOP, 2=copy, 3=merge
+    switch (sw1) {
+      case 0:  outCase = 0; break; //myQS = null,  other = null ; return null
+      case 1:  outCase = 4; break; //myQS = null,  other = empty; create empty-heap(myMaxK)
+      case 2:  outCase = 2; break; //myQS = null,  other = valid; stream or downsample to myMaxK
+      case 4:  outCase = 1; break; //myQS = empty, other = null ; no-op
+      case 5:  outCase = 1; break; //myQS = empty, other = empty; no-op
+      case 6:  outCase = 3; break; //myQS = empty, other = valid; merge
+      case 8:  outCase = 1; break; //myQS = valid, other = null ; no-op
+      case 9:  outCase = 1; break; //myQS = valid, other = empty: no-op
+      case 10: outCase = 3; break; //myQS = valid, other = valid; merge
+      //default: //This cannot happen and cannot be tested
+    }
+    LongsQuantilesSketch ret = null;
+    switch (outCase) {
+      case 0: ret = null; break;
+      case 1: ret = myQS; break;
+      case 2: { //myQS = null,  other = valid; stream or downsample to myMaxK
+        assert other != null;
+        if (!other.isEstimationMode()) { //other is exact, stream items in
+          ret = LongsQuantilesSketch.getInstance(myMaxK);
+          ret.updateFromBaseBuffer(other);
+        }
+        else { //myQS = null, other is est mode
+          ret = (myMaxK < other.getK())
+              ? other.downSample(myMaxK)
+              : LongsQuantilesSketch.copy(other); //required because caller has handle
+        }
+        break;
+      }
+      case 3: { //myQS = empty/valid, other = valid; merge
+        assert other != null;
+        assert myQS != null;
+        if (!other.isEstimationMode()) { //other is exact, stream items in
+          ret = myQS;
+          ret.updateFromBaseBuffer(other);
+        }
+        else { //myQS = empty/valid, other = valid and in est mode
+          if (myQS.getK() <= other.getK()) { //I am smaller or equal, thus the target
+            LongsQuantilesSketch.mergeInto(other, myQS);
+            ret = myQS;
+          }
+          else { //Bigger: myQS.getK() > other.getK(), must reverse roles
+            //must copy other as it will become mine and can't have any externally owned handles.
+            ret = LongsQuantilesSketch.copy(other);
+            LongsQuantilesSketch.mergeInto(myQS, ret);
+          }
+        }
+        break;
+      }
+      case 4: {
+        assert other != null;
+        ret = LongsQuantilesSketch.getInstance(Math.min(myMaxK, other.getK()));
+        break;
+      }
+      //default: //This cannot happen and cannot be tested
+    }
+    return ret;
+  }
+  //@formatter:on
+
+}
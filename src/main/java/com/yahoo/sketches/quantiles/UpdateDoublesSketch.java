@@ -19,6 +19,8 @@
 
 package com.yahoo.sketches.quantiles;
 
+import java.util.SplittableRandom;
+
 import com.yahoo.memory.Memory;
 import com.yahoo.memory.WritableMemory;
 
@@ -26,6 +28,8 @@ import com.yahoo.memory.WritableMemory;
  * @author Jon Malkin
  */
 public abstract class UpdateDoublesSketch extends DoublesSketch {
+  private SplittableRandom random_ = null;
+
   UpdateDoublesSketch(final int k) {
     super(k);
   }
@@ -47,6 +51,18 @@ public abstract class UpdateDoublesSketch extends DoublesSketch {
    */
   public abstract void update(double dataItem);
 
+  /**
+   * Updates this sketch with the given range of double data items.
+   * This is equivalent to calling {@link #update(double)} for each item in the range,
+   * but the base buffer is filled in bulk and each full base buffer is sorted and propagated
+   * into the levels once.
+   *
+   * @param values array of items from a stream of items. NaNs are ignored.
+   * @param offset the index of the first item to use
+   * @param length the number of items to use
+   */
+  public abstract void update(double[] values, int offset, int length);
+
   /**
    * Resets this sketch to the empty state, but retains the original value of k.
    */
@@ -78,6 +94,28 @@ public abstract class UpdateDoublesSketch extends DoublesSketch {
     return false;
   }
 
+  /**
+   * Returns the random generator of this sketch, which is used for the random choices made when
+   * levels are zipped. It is created on first use and seeded from the shared
+   * {@link DoublesSketch#rand}, so the results stay deterministic when that seed is set, while
+   * sketches updated in different threads no longer contend on one generator.
+   * @return the random generator of this sketch
+   */
+  SplittableRandom getRandom() {
+    if (random_ == null) {
+      random_ = new SplittableRandom(rand.nextLong());
+    }
+    return random_;
+  }
+
+  /**
+   * Replaces the random generator of this sketch with one created from the given seed.
+   * @param seed the seed of the random generator
+   */
+  void seedRandom(final long seed) {
+    random_ = new SplittableRandom(seed);
+  }
+
   //Puts
 
   /**
@@ -0,0 +1,1098 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.sampling;
+
+import static com.yahoo.sketches.Util.LS;
+import static com.yahoo.sketches.sampling.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.sampling.PreambleUtil.GADGET_FLAG_MASK;
+import static com.yahoo.sketches.sampling.PreambleUtil.SER_VER;
+import static com.yahoo.sketches.sampling.PreambleUtil.TOTAL_WEIGHT_R_DOUBLE;
+import static com.yahoo.sketches.sampling.SamplingUtil.getGroupTally;
+import static com.yahoo.sketches.sampling.SamplingUtil.pseudoHypergeometricLBonP;
+import static com.yahoo.sketches.sampling.SamplingUtil.pseudoHypergeometricUBonP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.ArrayOfBooleansSerDe;
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.ResizeFactor;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+import com.yahoo.sketches.Util;
+
+/**
+ * The varopt sampling algorithm shared by {@link VarOptItemsSketch} and
+ * {@link VarOptLongsSketch}. This class keeps the weights and the marks of the samples and
+ * maintains the H, M and R regions; the subclasses only store the sampled items.
+ *
+ * <p>The storage is laid out as an array of k + 1 slots, with the heap of the H region first,
+ * followed by the gap and the R region. Every insertion starts with the new item stored at slot
+ * h_, which is either the end of the H region while warming up or the gap, and from there items
+ * only move through {@link #swapItems(int, int)} and {@link #moveItem(int, int)}.</p>
+ *
+ * @param <T> The type of the items, as seen by the subset sum predicates.
+ * @param <S> The type of the concrete sketch.
+ *
+ * @author Jon Malkin
+ * @author Kevin Lang
+ */
+abstract class BaseVarOptSketch<T, S extends BaseVarOptSketch<T, S>> {
+  /**
+   * The smallest sampling array allocated: 16
+   */
+  static final int MIN_LG_ARR_ITEMS = 4;
+
+  /**
+   * Default sampling size multiple when reallocating storage: 8
+   */
+  static final ResizeFactor DEFAULT_RESIZE_FACTOR = ResizeFactor.X8;
+
+  int k_;                                // max size of sketch, in items
+  int currItemsAlloc_;                   // currently allocated array size
+  final ResizeFactor rf_;                // resize factor
+  double[] weights_;                     // weights for sampled items
+
+  long n_;                               // total number of items processed by the sketch
+  int h_;                                // number of items in heap
+  int m_;                                // number of items in middle region
+  int r_;                                // number of items in reservoir-like area
+  double totalWtR_;                      // total weight of items in reservoir-like area
+
+  // per-sketch generator, seeded from SamplingUtil.rand so that tests can still fix the seed
+  SplittableRandom rand_ = new SplittableRandom(SamplingUtil.rand.nextLong());
+
+  // The next two fields are hidden from the user because they are part of the state of the
+  // unioning algorithm, NOT part of a varopt sketch, or even of a varopt "gadget" (our name for
+  // the potentially invalid sketch that is maintained by the unioning algorithm). It would make
+  // more sense logically for these fields to be declared in the unioning object (whose entire
+  // purpose is storing the state of the unioning algorithm) but for reasons of programming
+  // convenience we are currently declaring them here. However, that could change in the future.
+
+  // Following int is:
+  //  1. Zero (for a varopt sketch)
+  //  2. Count of marked items in H region, if part of a unioning algo's gadget
+  int numMarksInH_;
+
+  // The following array is absent in a varopt sketch, and notionally present in a gadget
+  // [although it really belongs in the unioning object]. If the array were to be made explicit,
+  // some additional coding would need to be done to ensure that all of the necessary data motion
+  // occurs and is properly tracked.
+  boolean[] marks_;
+
+  BaseVarOptSketch(final int k, final ResizeFactor rf) {
+    // required due to a theorem about lightness during merging
+    if (k < 1) {
+      throw new SketchesArgumentException("k must be at least 1");
+    }
+
+    k_ = k;
+    rf_ = rf;
+    currItemsAlloc_ = getInitialAllocation();
+    weights_ = new double[currItemsAlloc_];
+    marks_ = null;
+  }
+
+  BaseVarOptSketch(final double[] weights,
+                   final int k,
+                   final long n,
+                   final ResizeFactor rf,
+                   final int hCount,
+                   final int rCount,
+                   final double totalWtR) {
+    assert ((rCount == 0) && (weights.length >= hCount)) || (weights.length >= (k + 1));
+
+    k_ = k;
+    n_ = n;
+    h_ = hCount;
+    r_ = rCount;
+    m_ = 0;
+    totalWtR_ = totalWtR;
+    currItemsAlloc_ = weights.length;
+    rf_ = rf;
+    weights_ = weights;
+
+    numMarksInH_ = 0;
+    marks_ = null;
+  }
+
+  /**
+   * Returns the sketch's value of <i>k</i>, the maximum number of samples stored in the
+   * sketch. The current number of items in the sketch may be lower.
+   *
+   * @return k, the maximum number of samples in the sketch
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the number of items processed from the input stream
+   *
+   * @return n, the number of stream items the sketch has seen
+   */
+  public long getN() {
+    return n_;
+  }
+
+  /**
+   * Returns the current number of items in the sketch, which may be smaller than the
+   * sketch capacity.
+   *
+   * @return the number of items currently in the sketch
+   */
+  public int getNumSamples() {
+    return Math.min(k_, h_ + r_);
+  }
+
+  /**
+   * Resets this sketch to the empty state, but retains the original value of k.
+   */
+  public void reset() {
+    currItemsAlloc_ = getInitialAllocation();
+    weights_ = new double[currItemsAlloc_];
+    if (marks_ != null) {
+      marks_ = new boolean[currItemsAlloc_];
+    }
+    resetItems(currItemsAlloc_);
+
+    n_ = 0;
+    h_ = 0;
+    m_ = 0;
+    r_ = 0;
+    numMarksInH_ = 0;
+    totalWtR_ = 0.0;
+  }
+
+  /**
+   * Returns a human-readable summary of the sketch.
+   *
+   * @return A string version of the sketch summary
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+
+    final String thisSimpleName = this.getClass().getSimpleName();
+
+    sb.append(LS);
+    sb.append("### ").append(thisSimpleName).append(" SUMMARY: ").append(LS);
+    sb.append("   k            : ").append(k_).append(LS);
+    sb.append("   h            : ").append(h_).append(LS);
+    sb.append("   r            : ").append(r_).append(LS);
+    sb.append("   weight_r     : ").append(totalWtR_).append(LS);
+    sb.append("   Current size : ").append(currItemsAlloc_).append(LS);
+    sb.append("   Resize factor: ").append(rf_).append(LS);
+    sb.append("### END SKETCH SUMMARY").append(LS);
+
+    return sb.toString();
+  }
+
+  /**
+   * Computes an estimated subset sum from the entire stream for objects matching a given
+   * predicate. Provides a lower bound, estimate, and upper bound using a target of 2 standard
+   * deviations.
+   *
+   * <p>This is technically a heuristic method, and tries to err on the conservative side.</p>
+   *
+   * @param predicate A predicate to use when identifying items.
+   * @return A summary object containing the estimate, upper and lower bounds, and the total
+   * sketch weight.
+   */
+  public SampleSubsetSummary estimateSubsetSum(final Predicate<T> predicate) {
+    double totalWtH = 0.0;
+    double hTrueWeight = 0.0;
+    int idx = 0;
+    for (; idx < h_; ++idx) {
+      final double wt = weights_[idx];
+      totalWtH += wt;
+      if (predicate.test(itemAt(idx))) {
+        hTrueWeight += wt;
+      }
+    }
+
+    int rTrueCount = 0;
+    if (r_ > 0) {
+      ++idx; // skip the gap
+      for (; idx < (k_ + 1); ++idx) {
+        if (predicate.test(itemAt(idx))) {
+          ++rTrueCount;
+        }
+      }
+    }
+
+    return summarizeSubset(hTrueWeight, rTrueCount, totalWtH);
+  }
+
+  /**
+   * Computes estimated subset sums for several predicates with a single pass over the samples.
+   * The summary at each position is the same as the one {@link #estimateSubsetSum(Predicate)}
+   * returns for the predicate at that position, but each sample is visited only once regardless
+   * of the number of predicates.
+   *
+   * @param predicates A list of predicates to use when identifying items.
+   * @return A list of summary objects, one per predicate and in the same order.
+   */
+  public List<SampleSubsetSummary> estimateSubsetSums(final List<Predicate<T>> predicates) {
+    final List<Predicate<T>> preds = new ArrayList<>(predicates); // constant-time get()
+    final int numPreds = preds.size();
+    final double[] hTrueWeights = new double[numPreds];
+    final int[] rTrueCounts = new int[numPreds];
+
+    double totalWtH = 0.0;
+    int idx = 0;
+    for (; idx < h_; ++idx) {
+      final T item = itemAt(idx);
+      final double wt = weights_[idx];
+      totalWtH += wt;
+      for (int p = 0; p < numPreds; ++p) {
+        if (preds.get(p).test(item)) {
+          hTrueWeights[p] += wt;
+        }
+      }
+    }
+
+    if (r_ > 0) {
+      ++idx; // skip the gap
+      for (; idx < (k_ + 1); ++idx) {
+        final T item = itemAt(idx);
+        for (int p = 0; p < numPreds; ++p) {
+          if (preds.get(p).test(item)) {
+            ++rTrueCounts[p];
+          }
+        }
+      }
+    }
+
+    final List<SampleSubsetSummary> result = new ArrayList<>(numPreds);
+    for (int p = 0; p < numPreds; ++p) {
+      result.add(summarizeSubset(hTrueWeights[p], rTrueCounts[p], totalWtH));
+    }
+    return result;
+  }
+
+  /**
+   * Computes estimated subset sums for every group of a partition of the items with a single
+   * pass over the samples, evaluating the grouping function exactly once per sample. The summary
+   * for each group is the same as the one {@link #estimateSubsetSum(Predicate)} returns for a
+   * predicate matching exactly the items of that group.
+   *
+   * <p>Groups with no items in the sample are absent from the result.</p>
+   *
+   * @param <G> the type of the group identifiers
+   * @param grouper A function mapping each item to its group identifier.
+   * @return A map from group identifier to the summary object for that group.
+   */
+  public <G> Map<G, SampleSubsetSummary> estimateSubsetSumsByGroup(
+          final Function<? super T, ? extends G> grouper) {
+    // per group: {weight of matching H items, count of matching R items}
+    final Map<G, double[]> tallies = new HashMap<>();
+
+    double totalWtH = 0.0;
+    int idx = 0;
+    for (; idx < h_; ++idx) {
+      final double wt = weights_[idx];
+      totalWtH += wt;
+      getGroupTally(tallies, grouper.apply(itemAt(idx)), 2)[0] += wt;
+    }
+
+    if (r_ > 0) {
+      ++idx; // skip the gap
+      for (; idx < (k_ + 1); ++idx) {
+        ++getGroupTally(tallies, grouper.apply(itemAt(idx)), 2)[1];
+      }
+    }
+
+    final Map<G, SampleSubsetSummary> result = new HashMap<>(2 * tallies.size());
+    for (final Map.Entry<G, double[]> entry : tallies.entrySet()) {
+      final double[] tally = entry.getValue();
+      result.put(entry.getKey(), summarizeSubset(tally[0], (int) tally[1], totalWtH));
+    }
+    return result;
+  }
+
+  private SampleSubsetSummary summarizeSubset(final double hTrueWeight, final int rTrueCount,
+                                              final double totalWtH) {
+    if (n_ == 0) {
+      return new SampleSubsetSummary(0.0, 0.0, 0.0, 0.0);
+    }
+
+    // if only heavy items, we have an exact answer
+    if (r_ == 0) {
+      return new SampleSubsetSummary(hTrueWeight, hTrueWeight, hTrueWeight, hTrueWeight);
+    }
+
+    final long numSampled = n_ - h_;
+    assert numSampled > 0;
+    final double effectiveSamplingRate = r_ / (double) numSampled;
+    assert effectiveSamplingRate >= 0.0;
+    assert effectiveSamplingRate <= 1.0;
+
+    final double lbTrueFraction = pseudoHypergeometricLBonP(r_, rTrueCount, effectiveSamplingRate);
+    final double estimatedTrueFraction = (1.0 * rTrueCount) / r_;
+    final double ubTrueFraction = pseudoHypergeometricUBonP(r_, rTrueCount, effectiveSamplingRate);
+    return new SampleSubsetSummary(
+            hTrueWeight + (totalWtR_ * lbTrueFraction),
+            hTrueWeight + (totalWtR_ * estimatedTrueFraction),
+            hTrueWeight + (totalWtR_ * ubTrueFraction),
+            totalWtH + totalWtR_);
+  }
+
+  // item storage, implemented by the subclasses
+
+  /**
+   * Returns the item at the given slot, boxed if needed, for the subset sum predicates.
+   *
+   * @param idx the slot of the item
+   * @return the item at the given slot
+   */
+  abstract T itemAt(int idx);
+
+  /**
+   * Swaps the items at the two given slots.
+   *
+   * @param src a slot
+   * @param dst another slot
+   */
+  abstract void swapItems(int src, int dst);
+
+  /**
+   * Moves the item at slot src to slot dst. Slot src becomes the gap, which may be cleared.
+   *
+   * @param src the slot of the item to move, which may equal dst
+   * @param dst the destination slot
+   */
+  abstract void moveItem(int src, int dst);
+
+  /**
+   * Grows the item storage to hold the given number of slots, keeping the stored items.
+   *
+   * @param newAlloc the new number of slots
+   */
+  abstract void growItems(int newAlloc);
+
+  /**
+   * Replaces the item storage with an empty one of the given number of slots.
+   *
+   * @param alloc the number of slots
+   */
+  abstract void resetItems(int alloc);
+
+  /**
+   * Creates a copy of the sketch, optionally discarding any information about marks that would
+   * indicate the class's use as a union gadget as opposed to a valid sketch.
+   *
+   * @param asSketch If true, copies as a sketch; if false, copies as a union gadget
+   * @param adjustedN Target value of n for the resulting sketch. Ignored if negative.
+   * @return A copy of the sketch.
+   */
+  abstract S copyAndSetN(boolean asSketch, long adjustedN);
+
+  /**
+   * Completes a copy of this sketch made by {@link #copyAndSetN(boolean, long)}, whose items,
+   * weights and counters must already be copies of those of this sketch.
+   *
+   * @param sketch the copy
+   * @param asSketch If true, copies as a sketch; if false, copies as a union gadget
+   * @param adjustedN Target value of n for the resulting sketch. Ignored if negative.
+   * @return the given copy
+   */
+  final S copyMarksAndSetN(final S sketch, final boolean asSketch, final long adjustedN) {
+    if (!asSketch) {
+      sketch.marks_ = marks_ == null ? null : marks_.clone();
+      sketch.numMarksInH_ = numMarksInH_;
+    }
+
+    if (adjustedN >= 0) {
+      sketch.n_ = adjustedN;
+    }
+
+    return sketch;
+  }
+
+  /**
+   * Strips the mark array from the object, making what had been a gadget indistinguishable form
+   * a sketch. Avoids an extra copy.
+   */
+  void stripMarks() {
+    assert marks_ != null;
+    numMarksInH_ = 0;
+    marks_ = null;
+  }
+
+  // package-private getters, which assume the caller knows the layout of the regions and how to
+  // handle a negative weight (whether from the gap or an R-region item)
+
+  double getWeight(final int idx) {
+    return weights_[idx];
+  }
+
+  boolean getMark(final int idx) {
+    return marks_[idx];
+  }
+
+  int getHRegionCount() {
+    return h_;
+  }
+
+  int getRRegionCount() {
+    return r_;
+  }
+
+  int getNumMarksInH() {
+    return numMarksInH_;
+  }
+
+  // Needed by result object and for unioning
+  double getTau() {
+    return r_ == 0 ? Double.NaN : (totalWtR_ / r_);
+  }
+
+  double getTotalWtR() {
+    return totalWtR_;
+  }
+
+  // package-private setter, used to resolve gadget into sketch during union
+  void forceSetK(final int k) {
+    assert k > 0;
+    k_ = k;
+  }
+
+  /**
+   * Replaces the random generator of this sketch with one created from the given seed.
+   * @param seed the seed of the random generator
+   */
+  void seedRandom(final long seed) {
+    rand_ = new SplittableRandom(seed);
+  }
+
+  // serialization, for the subclasses to add the items
+
+  /**
+   * Returns the number of slots to allocate when heapifying a sketch.
+   *
+   * @param k the maximum size of the sketch
+   * @param hCount the count of heavy items
+   * @param rCount the reservoir count of (non-heavy) items
+   * @param rf the resize factor
+   * @return the number of slots to allocate
+   */
+  static int getHeapifyAllocation(final int k, final int hCount, final int rCount,
+                                  final ResizeFactor rf) {
+    if (rCount > 0) {
+      return k + 1; // full
+    }
+
+    // Not in sampling mode, so determine size to allocate, using ceilingLog2(hCount) as minimum
+    final int ceilingLgK = Util.toLog2(Util.ceilingPowerOf2(k), "heapify");
+    final int minLgSize = Util.toLog2(Util.ceilingPowerOf2(hCount), "heapify");
+    final int initialLgSize = SamplingUtil.startingSubMultiple(ceilingLgK, rf.lg(),
+            Math.max(minLgSize, MIN_LG_ARR_ITEMS));
+
+    final int allocatedItems = SamplingUtil.getAdjustedSize(k, 1 << initialLgSize);
+    return allocatedItems == k ? allocatedItems + 1 : allocatedItems;
+  }
+
+  /**
+   * Reads the weights of the H region of a serialized sketch, marking the gap and the R region
+   * with negative weights.
+   *
+   * @param srcMem the serialized sketch
+   * @param hCount the count of heavy items
+   * @param rCount the reservoir count of (non-heavy) items
+   * @param allocatedItems the number of slots to allocate
+   * @return the weights of the sketch
+   */
+  static double[] heapifyWeights(final Memory srcMem, final int hCount, final int rCount,
+                                 final int allocatedItems) {
+    final long weightOffsetBytes = TOTAL_WEIGHT_R_DOUBLE + (rCount > 0 ? Double.BYTES : 0);
+    final double[] weights = new double[allocatedItems];
+    srcMem.getDoubleArray(weightOffsetBytes, weights, 0, hCount);
+    for (int i = 0; i < hCount; ++i) {
+      if (weights[i] <= 0.0) {
+        throw new SketchesArgumentException("Possible Corruption: "
+                + "Non-positive weight in heapify(): " + weights[i]);
+      }
+    }
+    if (rCount > 0) {
+      Arrays.fill(weights, hCount, hCount + 1 + rCount, -1.0);
+    }
+    return weights;
+  }
+
+  /**
+   * Reads the packed marks of the H region of a serialized gadget.
+   *
+   * @param srcMem the serialized gadget
+   * @param markOffsetBytes the offset of the marks
+   */
+  final void heapifyMarks(final Memory srcMem, final long markOffsetBytes) {
+    final int numMarkBytes = ArrayOfBooleansSerDe.computeBytesNeeded(h_);
+    if (srcMem.getCapacity() < (markOffsetBytes + numMarkBytes)) {
+      throw new SketchesArgumentException("Possible Corruption: Memory capacity "
+              + srcMem.getCapacity() + " is too small for the marks of " + h_ + " items");
+    }
+
+    marks_ = new boolean[currItemsAlloc_];
+    numMarksInH_ = 0;
+    for (int i = 0; i < h_; ++i) {
+      if (((srcMem.getByte(markOffsetBytes + (i >>> 3)) >>> (i & 0x7)) & 0x1) == 1) {
+        marks_[i] = true;
+        ++numMarksInH_;
+      }
+    }
+  }
+
+  /**
+   * Returns a serialized image of this sketch with the preamble, the weights of the H region
+   * and, for a gadget, the packed marks of the H region. The last numItemBytes bytes of the
+   * image are left for the caller to fill with the serialized items.
+   *
+   * @param numItemBytes the size of the serialized items, zero if the sketch is empty
+   * @return the serialized image, without the items
+   */
+  final byte[] toByteArrayWithoutItems(final int numItemBytes) {
+    final int preLongs, numMarkBytes, outBytes;
+    final boolean empty = (r_ == 0) && (h_ == 0);
+    int flags = marks_ == null ? 0 : GADGET_FLAG_MASK;
+
+    if (empty) {
+      preLongs = Family.VAROPT.getMinPreLongs();
+      numMarkBytes = 0;
+      outBytes = Family.VAROPT.getMinPreLongs() << 3; // only contains the minimum header info
+      flags |= EMPTY_FLAG_MASK;
+    } else {
+      preLongs = (r_ == 0 ? PreambleUtil.VO_WARMUP_PRELONGS : Family.VAROPT.getMaxPreLongs());
+      numMarkBytes = marks_ == null ? 0 : ArrayOfBooleansSerDe.computeBytesNeeded(h_);
+      outBytes = (preLongs << 3) + (h_ * Double.BYTES) + numMarkBytes + numItemBytes;
+    }
+    final byte[] outArr = new byte[outBytes];
+    final WritableMemory mem = WritableMemory.wrap(outArr);
+
+    // build first preLong
+    PreambleUtil.insertPreLongs(mem, preLongs);               // Byte 0
+    PreambleUtil.insertLgResizeFactor(mem, rf_.lg());
+    PreambleUtil.insertSerVer(mem, SER_VER);                  // Byte 1
+    PreambleUtil.insertFamilyID(mem, Family.VAROPT.getID());  // Byte 2
+    PreambleUtil.insertFlags(mem, flags);                     // Byte 3
+    PreambleUtil.insertK(mem, k_);                            // Bytes 4-7
+
+    if (!empty) {
+      PreambleUtil.insertN(mem, n_);                          // Bytes 8-15
+      PreambleUtil.insertHRegionItemCount(mem, h_);           // Bytes 16-19
+      PreambleUtil.insertRRegionItemCount(mem, r_);           // Bytes 20-23
+      if (r_ > 0) {
+        PreambleUtil.insertTotalRWeight(mem, totalWtR_);      // Bytes 24-31
+      }
+
+      // write the first h_ weights
+      final long offset = preLongs << 3;
+      mem.putDoubleArray(offset, weights_, 0, h_);
+
+      // write the first h_ marks as packed bits, iff we have a gadget
+      if (marks_ != null) {
+        final long markOffset = offset + ((long) h_ * Double.BYTES);
+        for (int i = 0; i < h_; ++i) {
+          if (marks_[i]) {
+            final long byteOffset = markOffset + (i >>> 3);
+            mem.putByte(byteOffset, (byte) (mem.getByte(byteOffset) | (1 << (i & 0x7))));
+          }
+        }
+      }
+    }
+
+    return outArr;
+  }
+
+  // the sampling algorithm
+
+  /**
+   * Returns the slot at which a subclass must store a new item before calling
+   * {@link #insertNewItem(double, boolean)}, growing the storage if needed.
+   *
+   * @return the end of the H region while warming up, or the gap otherwise
+   */
+  final int getNewItemSlot() {
+    if (h_ >= currItemsAlloc_) {
+      growDataArrays();
+    }
+    return h_;
+  }
+
+  /**
+   * Internal implementation of update() which requires the user to know if an item is
+   * marked as coming from the reservoir region of a sketch. The marks are used only in
+   * merging. The new item must already be stored at slot {@link #getNewItemSlot()}.
+   *
+   * @param weight a strictly positive weight associated with the item
+   * @param mark true if an item comes from a sketch's reservoir region
+   */
+  final void insertNewItem(final double weight, final boolean mark) {
+    ++n_;
+
+    if (r_ == 0) {
+      // exact mode
+      updateWarmupPhase(weight, mark);
+    } else {
+      // sketch is in estimation mode, so we can make the following check
+      assert (h_ == 0) || (peekMin() >= getTau());
+
+      // what tau would be if deletion candidates turn out to be R plus the new item
+      // note: (r_ + 1) - 1 is intentional
+      final double hypotheticalTau = (weight + totalWtR_) / ((r_ + 1) - 1);
+
+      // is new item's turn to be considered for reservoir?
+      final boolean condition1 = (h_ == 0) || (weight <= peekMin());
+
+      // is new item light enough for reservoir?
+      final boolean condition2 = weight < hypotheticalTau;
+
+      if (condition1 && condition2) {
+        updateLight(weight, mark);
+      } else if (r_ == 1) {
+        updateHeavyREq1(weight, mark);
+      } else {
+        updateHeavyGeneral(weight, mark);
+      }
+    }
+  }
+
+  /**
+   * Decreases sketch's value of k by 1, updating stored values as needed.
+   *
+   * <p>Subject to certain pre-conditions, decreasing k causes tau to increase. This fact is used by
+   * the unioning algorithm to force "marked" items out of H and into the reservoir region.</p>
+   */
+  void decreaseKBy1() {
+    if (k_ <= 1) {
+      throw new SketchesStateException("Cannot decrease k below 1 in union");
+    }
+
+    if ((h_ == 0) && (r_ == 0)) {
+      // exact mode, but no data yet; this reduction is somewhat gratuitous
+      --k_;
+    } else if ((h_ > 0) && (r_ == 0)) {
+      // exact mode, but we have some data
+      --k_;
+      if (h_ > k_) {
+        transitionFromWarmup();
+      }
+    } else if ((h_ > 0) && (r_ > 0)) {
+      // reservoir mode, but we have some exact samples.
+      // Our strategy will be to pull an item out of H (which we are allowed to do since it's
+      // still just data), reduce k, and then re-insert the item
+
+      // first, slide the R zone to the left by 1, temporarily filling the gap
+      final int oldGapIdx = h_;
+      final int oldFinalRIdx = (h_ + 1 + r_) - 1;
+
+      assert oldFinalRIdx == k_;
+      swapValues(oldFinalRIdx, oldGapIdx);
+
+      // now we pull an item out of H; any item is ok, but if we grab the rightmost and then
+      // reduce h_, the heap invariant will be preserved (and the gap will be restored), plus
+      // the push() of the item that will probably happen later will be cheap. The pulled item
+      // then sits in the restored gap, which is where insertNewItem() expects a new item.
+
+      final int pulledIdx = h_ - 1;
+      final double pulledWeight = weights_[pulledIdx];
+      final boolean pulledMark = isMarked(pulledIdx);
+
+      if (pulledMark) { --numMarksInH_; }
+      weights_[pulledIdx] = -1.0; // to make bugs easier to spot
+
+      --h_;
+      --k_;
+      --n_; // will be re-incremented with the update
+
+      insertNewItem(pulledWeight, pulledMark);
+    } else if ((h_ == 0) && (r_ > 0)) {
+      // pure reservoir mode, so can simply eject a randomly chosen sample from the reservoir
+      assert r_ >= 2;
+
+      final int rIdxToDelete = 1 + rand_.nextInt(r_); // 1 for the gap
+      final int rightmostRIdx = (1 + r_) - 1;
+      swapValues(rIdxToDelete, rightmostRIdx);
+      weights_[rightmostRIdx] = -1.0;
+
+      --k_;
+      --r_;
+    }
+  }
+
+  /* In the "light" case the new item has weight <= old_tau, so
+     would appear to the right of the R items in a hypothetical reverse-sorted
+     list. It is easy to prove that it is light enough to be part of this
+     round's downsampling */
+  private void updateLight(final double weight, final boolean mark) {
+    assert r_ >= 1;
+    assert (r_ + h_) == k_;
+
+    final int mSlot = h_; // index of the gap, which becomes the M region
+    weights_[mSlot] = weight;
+    if (marks_ != null) { marks_[mSlot] = mark; }
+    ++m_;
+
+    growCandidateSet(totalWtR_ + weight, r_ + 1);
+  }
+
+  /* In the "heavy" case the new item has weight > old_tau, so would
+     appear to the left of items in R in a hypothetical reverse-sorted list and
+     might or might not be light enough be part of this round's downsampling.
+     [After first splitting off the R=1 case] we greatly simplify the code by
+     putting the new item into the H heap whether it needs to be there or not.
+     In other words, it might go into the heap and then come right back out,
+     but that should be okay because pseudo_heavy items cannot predominate
+     in long streams unless (max wt) / (min wt) > o(exp(N)) */
+  private void updateHeavyGeneral(final double weight, final boolean mark) {
+    assert m_ == 0;
+    assert r_ >= 2;
+    assert (r_ + h_) == k_;
+
+    // put into H, although may come back out momentarily
+    push(weight, mark);
+
+    growCandidateSet(totalWtR_, r_);
+  }
+
+  /* The analysis of this case is similar to that of the general heavy case.
+     The one small technical difference is that since R < 2, we must grab an M item
+     to have a valid starting point for continue_by_growing_candidate_set () */
+  private void updateHeavyREq1(final double weight, final boolean mark) {
+    assert m_ == 0;
+    assert r_ == 1;
+    assert (r_ + h_) == k_;
+
+    push(weight, mark);  // new item into H
+    popMinToMRegion();   // pop lightest back into M
+
+    // Any set of two items is downsample-able to one item,
+    // so the two lightest items are a valid starting point for the following
+    final int mSlot = k_ - 1; // array is k+1, 1 in R, so slot before is M
+    growCandidateSet(weights_[mSlot] + totalWtR_, 2);
+  }
+
+  private void updateWarmupPhase(final double wt, final boolean mark) {
+    assert r_ == 0;
+    assert m_ == 0;
+    assert h_ <= k_;
+    assert h_ < currItemsAlloc_;
+
+    // store items as they come in, until full
+    weights_[h_] = wt;
+    if (marks_ != null) { marks_[h_] = mark; }
+    ++h_;
+    numMarksInH_ += mark ? 1 : 0;
+
+    // check if need to heapify
+    if (h_ > k_) {
+      transitionFromWarmup();
+    }
+  }
+
+  private void transitionFromWarmup() {
+    // Move 2 lightest items from H to M
+    // But the lighter really belongs in R, so update counts to reflect that
+    convertToHeap();
+    popMinToMRegion();
+    popMinToMRegion();
+    --m_;
+    ++r_;
+
+    assert h_ == (k_ - 1);
+    assert m_ == 1;
+    assert r_ == 1;
+
+    // Update total weight in R then, having grabbed the value, overwrite in
+    // weight_ array to help make bugs more obvious
+    totalWtR_ = weights_[k_]; // only one item, known location
+    weights_[k_] = -1.0;
+
+    // The two lightest items are necessarily downsample-able to one item, and are therefore a
+    // valid initial candidate set.
+    growCandidateSet(weights_[k_ - 1] + totalWtR_, 2);
+  }
+
+  /* Converts the data_ and weights_ arrays to heaps. In contrast to other parts
+     of the library, this has nothing to do with on- or off-heap storage or the
+     Memory package.
+   */
+  final void convertToHeap() {
+    if (h_ < 2) {
+      return; // nothing to do
+    }
+
+    final int lastSlot = h_ - 1;
+    final int lastNonLeaf = ((lastSlot + 1) / 2) - 1;
+
+    for (int j = lastNonLeaf; j >= 0; --j) {
+      restoreTowardsLeaves(j);
+    }
+  }
+
+  private void restoreTowardsLeaves(final int slotIn) {
+    assert h_ > 0;
+    final int lastSlot = h_ - 1;
+    assert slotIn <= lastSlot;
+
+    int slot = slotIn;
+    int child = (2 * slotIn) + 1; // might be invalid, need to check
+
+    while (child <= lastSlot) {
+      final int child2 = child + 1; // might also be invalid
+      if ((child2 <= lastSlot) && (weights_[child2] < weights_[child])) {
+        // switch to other child if it's both valid and smaller
+        child = child2;
+      }
+
+      if (weights_[slot] <= weights_[child]) {
+        // invariant holds so we're done
+        break;
+      }
+
+      // swap and continue
+      swapValues(slot, child);
+
+      slot = child;
+      child = (2 * slot) + 1; // might be invalid, checked on next loop
+    }
+  }
+
+  private void restoreTowardsRoot(final int slotIn) {
+    int slot = slotIn;
+    int p = (((slot + 1) / 2) - 1); // valid if slot >= 1
+    while ((slot > 0) && (weights_[slot] < weights_[p])) {
+      swapValues(slot, p);
+      slot = p;
+      p = (((slot + 1) / 2) - 1); // valid if slot >= 1
+    }
+  }
+
+  // the new item is already stored at slot h_
+  private void push(final double wt, final boolean mark) {
+    weights_[h_] = wt;
+    if (marks_ != null) {
+      marks_[h_] = mark;
+      numMarksInH_ += (mark ? 1 : 0);
+    }
+    ++h_;
+
+    restoreTowardsRoot(h_ - 1); // need use old h_, but want accurate h_
+  }
+
+  private double peekMin() {
+    assert h_ > 0;
+    return weights_[0];
+  }
+
+  private void popMinToMRegion() {
+    assert h_ > 0;
+    assert (h_ + m_ + r_) == (k_ + 1);
+
+    if (h_ == 1) {
+      // just update bookkeeping
+      ++m_;
+      --h_;
+    } else {
+      // main case
+      final int tgt = h_ - 1; // last slot, will swap with root
+      swapValues(0, tgt);
+      ++m_;
+      --h_;
+
+      restoreTowardsLeaves(0);
+    }
+
+    if (isMarked(h_)) {
+      --numMarksInH_;
+    }
+  }
+
+  /* When entering here we should be in a well-characterized state where the
+     new item has been placed in either h or m and we have a valid but not necessarily
+     maximal sampling plan figured out. The array is completely full at this point.
+     Everyone in h and m has an explicit weight. The candidates are right-justified
+     and are either just the r set or the r set + exactly one m item. The number
+     of cands is at least 2. We will now grow the candidate set as much as possible
+     by pulling sufficiently light items from h to m.
+   */
+  private void growCandidateSet(double wtCands, int numCands) {
+    assert (h_ + m_ + r_) == (k_ + 1);
+    assert numCands >= 2;       // essential
+    assert numCands == (m_ + r_); // essential
+    assert (m_ == 0) || (m_ == 1);
+
+    while (h_ > 0) {
+      final double nextWt = peekMin();
+      final double nextTotWt = wtCands + nextWt;
+
+      // test for strict lightness of next prospect (denominator multiplied through)
+      // ideally: (nextWt * (nextNumCands-1) < nextTotWt) but can just
+      //          use numCands directly
+      if ((nextWt * numCands) < nextTotWt) {
+        wtCands = nextTotWt;
+        ++numCands;
+        popMinToMRegion(); // adjusts h_ and m_
+      } else {
+        break;
+      }
+    }
+
+    downsampleCandidateSet(wtCands, numCands);
+  }
+
+  private int pickRandomSlotInR() {
+    assert r_ > 0;
+    final int offset = h_ + m_;
+    if (r_ == 1) {
+      return offset;
+    } else {
+      return offset + rand_.nextInt(r_);
+    }
+  }
+
+  private int chooseDeleteSlot(final double wtCand, final int numCand) {
+    assert r_ > 0;
+
+    if (m_ == 0) {
+      // this happens if we insert a really heavy item
+      return pickRandomSlotInR();
+    } else if (m_ == 1) {
+      // check if we keep the item in M or pick one from R
+      // p(keep) = (numCand - 1) * wt_M / wt_cand
+      final double wtMCand = weights_[h_]; // slot of item in M is h_
+      if ((wtCand * SamplingUtil.nextDoubleExcludeZero(rand_)) < ((numCand - 1) * wtMCand)) {
+        return pickRandomSlotInR(); // keep item in M
+      } else {
+        return h_; // index of item in M
+      }
+    } else {
+      // general case
+      final int deleteSlot = chooseWeightedDeleteSlot(wtCand, numCand);
+      final int firstRSlot = h_ + m_;
+      if (deleteSlot == firstRSlot) {
+        return pickRandomSlotInR();
+      } else {
+        return deleteSlot;
+      }
+    }
+  }
+
+  private int chooseWeightedDeleteSlot(final double wtCand, final int numCand) {
+    assert m_ >= 1;
+
+    final int offset = h_;
+    final int finalM = (offset + m_) - 1;
+    final int numToKeep = numCand - 1;
+
+    double leftSubtotal = 0.0;
+    double rightSubtotal = -1.0 * wtCand * SamplingUtil.nextDoubleExcludeZero(rand_);
+
+    for (int i = offset; i <= finalM; ++i) {
+      leftSubtotal += numToKeep * weights_[i];
+      rightSubtotal += wtCand;
+
+      if (leftSubtotal < rightSubtotal) {
+        return i;
+      }
+    }
+
+    // this slot tells caller that we need to delete out of R
+    return finalM + 1;
+  }
+
+  private void downsampleCandidateSet(final double wtCands, final int numCands) {
+    assert numCands >= 2;
+    assert (h_ + numCands) == (k_ + 1);
+
+    // need this before overwriting anything
+    final int deleteSlot = chooseDeleteSlot(wtCands, numCands);
+    final int leftmostCandSlot = h_;
+    assert deleteSlot >= leftmostCandSlot;
+    assert deleteSlot <= k_;
+
+    // overwrite weights for items from M moving into R, to make bugs more obvious
+    final int stopIdx = leftmostCandSlot + m_;
+    for (int j = leftmostCandSlot; j < stopIdx; ++j) {
+      weights_[j] = -1.0;
+    }
+
+    // The next line works even when deleteSlot == leftmostCandSlot, which becomes the gap
+    moveItem(leftmostCandSlot, deleteSlot);
+
+    m_ = 0;
+    r_ = numCands - 1;
+    totalWtR_ = wtCands;
+  }
+
+  /* swap values of data_, weights_, and marks between src and dst indices */
+  private void swapValues(final int src, final int dst) {
+    swapItems(src, dst);
+
+    final double wt = weights_[src];
+    weights_[src] = weights_[dst];
+    weights_[dst] = wt;
+
+    if (marks_ != null) {
+      final boolean mark = marks_[src];
+      marks_[src] = marks_[dst];
+      marks_[dst] = mark;
+    }
+  }
+
+  private boolean isMarked(final int idx) {
+    return marks_ != null ? marks_[idx] : false;
+  }
+
+  private int getInitialAllocation() {
+    final int ceilingLgK = Util.toLog2(Util.ceilingPowerOf2(k_), "BaseVarOptSketch");
+    final int initialLgSize =
+            SamplingUtil.startingSubMultiple(ceilingLgK, rf_.lg(), MIN_LG_ARR_ITEMS);
+
+    final int alloc = SamplingUtil.getAdjustedSize(k_, 1 << initialLgSize);
+    return alloc == k_ ? alloc + 1 : alloc;
+  }
+
+  /**
+   * Increases allocated sampling size by (adjusted) ResizeFactor and copies items from old
+   * sampling. Only happens when buffer is not full, so don't need to worry about blindly copying
+   * the array items.
+   */
+  private void growDataArrays() {
+    currItemsAlloc_ = SamplingUtil.getAdjustedSize(k_, currItemsAlloc_ << rf_.lg());
+    if (currItemsAlloc_ == k_) {
+      ++currItemsAlloc_;
+    }
+
+    growItems(currItemsAlloc_);
+    weights_ = Arrays.copyOf(weights_, currItemsAlloc_);
+    if (marks_ != null) {
+      marks_ = Arrays.copyOf(marks_, currItemsAlloc_);
+    }
+  }
+}
@@ -20,6 +20,7 @@
 package com.yahoo.sketches.sampling;
 
 import static com.yahoo.sketches.Util.LS;
+import static com.yahoo.sketches.Util.checkArrayRange;
 import static com.yahoo.sketches.sampling.PreambleUtil.EMPTY_FLAG_MASK;
 import static com.yahoo.sketches.sampling.PreambleUtil.FAMILY_BYTE;
 import static com.yahoo.sketches.sampling.PreambleUtil.SER_VER;
@@ -30,12 +31,18 @@ import static com.yahoo.sketches.sampling.PreambleUtil.extractN;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractPreLongs;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractResizeFactor;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.sampling.SamplingUtil.getGroupTally;
 import static com.yahoo.sketches.sampling.SamplingUtil.pseudoHypergeometricLBonP;
 import static com.yahoo.sketches.sampling.SamplingUtil.pseudoHypergeometricUBonP;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 import com.yahoo.memory.Memory;
@@ -80,7 +87,15 @@ public final class ReservoirItemsSketch<T> {
   private final ResizeFactor rf_;        // resize factor
   private ArrayList<T> data_;            // stored sampled items
 
-  private ReservoirItemsSketch(final int k, final ResizeFactor rf) {
+  // Algorithm L state, used only in skip sampling mode once the reservoir is full
+  private final boolean skipSampling_;   // draw skip lengths instead of a decision per item
+  private double skipThreshold_;         // the largest key in the reservoir
+  private long nextAcceptN_;             // itemsSeen_ at the next accepted item, stale if <= n
+
+  // per-sketch generator, seeded from SamplingUtil.rand so that tests can still fix the seed
+  private SplittableRandom rand_ = new SplittableRandom(SamplingUtil.rand.nextLong());
+
+  private ReservoirItemsSketch(final int k, final ResizeFactor rf, final boolean skipSampling) {
     // required due to a theorem about lightness during merging
     if (k < 2) {
       throw new SketchesArgumentException("k must be at least 2");
@@ -88,6 +103,7 @@ public final class ReservoirItemsSketch<T> {
 
     reservoirSize_ = k;
     rf_ = rf;
+    skipSampling_ = skipSampling;
 
     itemsSeen_ = 0;
 
@@ -134,6 +150,7 @@ public final class ReservoirItemsSketch<T> {
     itemsSeen_ = itemsSeen;
     rf_ = rf;
     data_ = data;
+    skipSampling_ = false;
   }
 
   /**
@@ -145,14 +162,17 @@ public final class ReservoirItemsSketch<T> {
    * @param itemsSeen      Total items seen by this sketch
    * @param rf             <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
    * @param data           Data ArrayList backing the reservoir, will <em>not</em> be copied
+   * @param skipSampling   Whether to use skip sampling once the reservoir is full
    */
   private ReservoirItemsSketch(final int k, final int currItemsAlloc, final long itemsSeen,
-                               final ResizeFactor rf, final ArrayList<T> data) {
+                               final ResizeFactor rf, final ArrayList<T> data,
+                               final boolean skipSampling) {
     this.reservoirSize_ = k;
     this.currItemsAlloc_ = currItemsAlloc;
     this.itemsSeen_ = itemsSeen;
     this.rf_ = rf;
     this.data_ = data;
+    this.skipSampling_ = skipSampling;
   }
 
   /**
@@ -166,7 +186,7 @@ public final class ReservoirItemsSketch<T> {
    * @return A ReservoirLongsSketch initialized with maximum size k and the default resize factor.
    */
   public static <T> ReservoirItemsSketch<T> newInstance(final int k) {
-    return new ReservoirItemsSketch<>(k, DEFAULT_RESIZE_FACTOR);
+    return new ReservoirItemsSketch<>(k, DEFAULT_RESIZE_FACTOR, false);
   }
 
   /**
@@ -180,7 +200,51 @@ public final class ReservoirItemsSketch<T> {
    * @return A ReservoirLongsSketch initialized with maximum size k and resize factor rf.
    */
   public static <T> ReservoirItemsSketch<T> newInstance(final int k, final ResizeFactor rf) {
-    return new ReservoirItemsSketch<>(k, rf);
+    return new ReservoirItemsSketch<>(k, rf, false);
+  }
+
+  /**
+   * Construct a mergeable sampling sketch with up to k samples, optionally using skip sampling.
+   *
+   * <p>Once the reservoir is full, a sketch in skip sampling mode does not make a random
+   * decision for every item. Instead it uses Li's Algorithm L to draw how many items to discard
+   * before the next one that enters the reservoir, so the cost of a discarded item is a single
+   * comparison. The resulting sample has the same distribution as in the default mode, but the
+   * random choices differ, so the two modes do not produce the same sample from the same
+   * seed.</p>
+   *
+   * <p>The mode is not serialized: a heapified sketch always uses the default mode.</p>
+   *
+   * @param k   Maximum size of sampling. Allocated size may be smaller until reservoir fills.
+   *            Unlike many sketches in this package, this value does <em>not</em> need to be a
+   *            power of 2.
+   * @param rf  <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
+   * @param skipSampling if true, draw skip lengths instead of making a decision per item
+   * @param <T> The type of object held in the reservoir.
+   * @return A ReservoirItemsSketch initialized with maximum size k and resize factor rf.
+   */
+  public static <T> ReservoirItemsSketch<T> newInstance(final int k, final ResizeFactor rf,
+                                                        final boolean skipSampling) {
+    return new ReservoirItemsSketch<>(k, rf, skipSampling);
+  }
+
+  /**
+   * Construct a mutable reservoir sampling sketch with a seeded random generator. Sketches
+   * created with the same seed produce identical samples if they receive the same items in the
+   * same order.
+   *
+   * @param <T> The type of object held in the sketch.
+   * @param k Maximum size of sampling. Allocated size may be smaller until sampling fills.
+   * @param rf <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
+   * @param skipSampling if true, draw skip lengths instead of making a decision per item
+   * @param seed the seed of the random generator
+   * @return A ReservoirItemsSketch initialized with maximum size k and ResizeFactor rf.
+   */
+  public static <T> ReservoirItemsSketch<T> newInstance(final int k, final ResizeFactor rf,
+      final boolean skipSampling, final long seed) {
+    final ReservoirItemsSketch<T> sketch = new ReservoirItemsSketch<>(k, rf, skipSampling);
+    sketch.seedRandom(seed);
+    return sketch;
   }
 
   /**
@@ -240,7 +304,7 @@ public final class ReservoirItemsSketch<T> {
     }
 
     if (isEmpty) {
-      return new ReservoirItemsSketch<>(k, rf);
+      return new ReservoirItemsSketch<>(k, rf, false);
     }
 
     final int preLongBytes = numPreLongs << 3;
@@ -279,6 +343,16 @@ public final class ReservoirItemsSketch<T> {
     return reservoirSize_;
   }
 
+  /**
+   * Returns true if this sketch uses skip sampling once the reservoir is full.
+   *
+   * @return true if this sketch is in skip sampling mode
+   * @see #newInstance(int, ResizeFactor, boolean)
+   */
+  public boolean isSkipSampling() {
+    return skipSampling_;
+  }
+
   /**
    * Returns the number of items processed from the input stream
    *
@@ -320,17 +394,72 @@ public final class ReservoirItemsSketch<T> {
       // we'll randomize replacement positions, so in-order should be valid for now
       data_.add(item);
       ++itemsSeen_;
+    } else if (skipSampling_) {
+      if (nextAcceptN_ <= itemsSeen_) {
+        initSkip();
+      }
+      ++itemsSeen_;
+      if (itemsSeen_ == nextAcceptN_) {
+        data_.set(rand_.nextInt(reservoirSize_), item);
+        advanceSkip();
+      }
     } else { // code for steady state where we sample randomly
       ++itemsSeen_;
       // prob(keep_item) < k / n = reservoirSize_ / itemsSeen_
       // so multiply to get: keep if rand * itemsSeen_ < reservoirSize_
-      if ((SamplingUtil.rand.nextDouble() * itemsSeen_) < reservoirSize_) {
-        final int newSlot = SamplingUtil.rand.nextInt(reservoirSize_);
+      if ((rand_.nextDouble() * itemsSeen_) < reservoirSize_) {
+        final int newSlot = rand_.nextInt(reservoirSize_);
         data_.set(newSlot, item);
       }
     }
   }
 
+  /**
+   * Presents the given range of items to the sketch, in order. This is equivalent to calling
+   * {@link #update(Object)} for every item, so null items are ignored. In skip sampling mode no
+   * random decision is made for the items discarded once the reservoir is full.
+   *
+   * @param items unit-weight items of the set being sampled from
+   * @param offset the index of the first item to present
+   * @param length the number of items to present
+   */
+  public void update(final T[] items, final int offset, final int length) {
+    checkArrayRange(items.length, offset, length);
+    if (length > (MAX_ITEMS_SEEN - itemsSeen_)) {
+      throw new SketchesStateException("Sketch has exceeded capacity for total items seen: "
+              + MAX_ITEMS_SEEN);
+    }
+
+    final int end = offset + length;
+    int i = offset;
+    while ((i < end) && (itemsSeen_ < reservoirSize_)) {
+      update(items[i++]);
+    }
+    if (i == end) {
+      return;
+    }
+
+    if (!skipSampling_) {
+      for (; i < end; ++i) {
+        update(items[i]);
+      }
+      return;
+    }
+
+    if (nextAcceptN_ <= itemsSeen_) {
+      initSkip();
+    }
+    // null items are not counted, so the items must still be scanned
+    long n = itemsSeen_;
+    for (; i < end; ++i) {
+      if ((items[i] != null) && (++n == nextAcceptN_)) {
+        data_.set(rand_.nextInt(reservoirSize_), items[i]);
+        advanceSkip();
+      }
+    }
+    itemsSeen_ = n;
+  }
+
   /**
    * Resets this sketch to the empty state, but retains the original value of k.
    */
@@ -342,6 +471,7 @@ public final class ReservoirItemsSketch<T> {
     currItemsAlloc_ = SamplingUtil.getAdjustedSize(reservoirSize_, 1 << initialLgSize);
     data_ = new ArrayList<>(currItemsAlloc_);
     itemsSeen_ = 0;
+    nextAcceptN_ = 0;
   }
 
   /**
@@ -513,6 +643,76 @@ public final class ReservoirItemsSketch<T> {
    * sketch weight.
    */
   public SampleSubsetSummary estimateSubsetSum(final Predicate<T> predicate) {
+    final int numSamples = getNumSamples();
+    int trueCount = 0;
+    for (int i = 0; i < numSamples; ++i) {
+      if (predicate.test(data_.get(i))) {
+        ++trueCount;
+      }
+    }
+
+    return summarizeSubset(trueCount);
+  }
+
+  /**
+   * Computes estimated subset sums for several predicates with a single pass over the samples.
+   * The summary at each position is the same as the one {@link #estimateSubsetSum(Predicate)}
+   * returns for the predicate at that position, but each sample is visited only once regardless
+   * of the number of predicates.
+   *
+   * @param predicates A list of predicates to use when identifying items.
+   * @return A list of summary objects, one per predicate and in the same order.
+   */
+  public List<SampleSubsetSummary> estimateSubsetSums(final List<Predicate<T>> predicates) {
+    final List<Predicate<T>> preds = new ArrayList<>(predicates); // constant-time get()
+    final int numPreds = preds.size();
+    final int[] trueCounts = new int[numPreds];
+
+    final int numSamples = getNumSamples();
+    for (int i = 0; i < numSamples; ++i) {
+      final T item = data_.get(i);
+      for (int p = 0; p < numPreds; ++p) {
+        if (preds.get(p).test(item)) {
+          ++trueCounts[p];
+        }
+      }
+    }
+
+    final List<SampleSubsetSummary> result = new ArrayList<>(numPreds);
+    for (int p = 0; p < numPreds; ++p) {
+      result.add(summarizeSubset(trueCounts[p]));
+    }
+    return result;
+  }
+
+  /**
+   * Computes estimated subset sums for every group of a partition of the items with a single
+   * pass over the samples, evaluating the grouping function exactly once per sample. The summary
+   * for each group is the same as the one {@link #estimateSubsetSum(Predicate)} returns for a
+   * predicate matching exactly the items of that group.
+   *
+   * <p>Groups with no items in the sample are absent from the result.</p>
+   *
+   * @param <G> the type of the group identifiers
+   * @param grouper A function mapping each item to its group identifier.
+   * @return A map from group identifier to the summary object for that group.
+   */
+  public <G> Map<G, SampleSubsetSummary> estimateSubsetSumsByGroup(
+          final Function<? super T, ? extends G> grouper) {
+    final Map<G, double[]> tallies = new HashMap<>();
+    final int numSamples = getNumSamples();
+    for (int i = 0; i < numSamples; ++i) {
+      ++getGroupTally(tallies, grouper.apply(data_.get(i)), 1)[0];
+    }
+
+    final Map<G, SampleSubsetSummary> result = new HashMap<>(2 * tallies.size());
+    for (final Map.Entry<G, double[]> entry : tallies.entrySet()) {
+      result.put(entry.getKey(), summarizeSubset((int) entry.getValue()[0]));
+    }
+    return result;
+  }
+
+  private SampleSubsetSummary summarizeSubset(final int trueCount) {
     if (itemsSeen_ == 0) {
       return new SampleSubsetSummary(0.0, 0.0, 0.0, 0.0);
     }
@@ -522,13 +722,6 @@ public final class ReservoirItemsSketch<T> {
     assert samplingRate >= 0.0;
     assert samplingRate <= 1.0;
 
-    int trueCount = 0;
-    for (int i = 0; i < numSamples; ++i) {
-      if (predicate.test(data_.get(i))) {
-        ++trueCount;
-      }
-    }
-
     // if in exact mode, we can return an exact answer
     if (itemsSeen_ <= reservoirSize_) {
       return new SampleSubsetSummary(trueCount, trueCount, trueCount, numSamples);
@@ -595,6 +788,7 @@ public final class ReservoirItemsSketch<T> {
    */
   void forceIncrementItemsSeen(final long inc) {
     itemsSeen_ += inc;
+    nextAcceptN_ = 0; // the skip state no longer describes this reservoir
 
     if (itemsSeen_ > MAX_ITEMS_SEEN) {
       throw new SketchesStateException("Sketch has exceeded capacity for total items seen. "
@@ -611,7 +805,7 @@ public final class ReservoirItemsSketch<T> {
   @SuppressWarnings("unchecked")
   ReservoirItemsSketch<T> copy() {
     return new ReservoirItemsSketch<>(reservoirSize_, currItemsAlloc_,
-            itemsSeen_, rf_, (ArrayList<T>) data_.clone());
+            itemsSeen_, rf_, (ArrayList<T>) data_.clone(), skipSampling_);
   }
 
   // Note: the downsampling approach may appear strange but avoids several edge cases
@@ -622,7 +816,7 @@ public final class ReservoirItemsSketch<T> {
   //   A2: That would involve allocating memory proportional to the old k. Even if only a
   //       temporary violation of maxK, we're avoiding violating it at all.
   ReservoirItemsSketch<T> downsampledCopy(final int maxK) {
-    final ReservoirItemsSketch<T> ris = new ReservoirItemsSketch<>(maxK, rf_);
+    final ReservoirItemsSketch<T> ris = new ReservoirItemsSketch<>(maxK, rf_, false);
     for (final T item : getSamples()) {
       // Pretending old implicit weights are all 1. Not true in general, but they're all
       // equal so update should work properly as long as we update itemsSeen_ at the end.
@@ -637,6 +831,22 @@ public final class ReservoirItemsSketch<T> {
     return ris;
   }
 
+  /**
+   * Starts Algorithm L from the current, full reservoir.
+   */
+  private void initSkip() {
+    skipThreshold_ = SamplingUtil.initialSkipThreshold(rand_, reservoirSize_, itemsSeen_);
+    nextAcceptN_ = itemsSeen_ + SamplingUtil.nextSkipLength(rand_, skipThreshold_) + 1;
+  }
+
+  /**
+   * Moves Algorithm L past an accepted item.
+   */
+  private void advanceSkip() {
+    skipThreshold_ = SamplingUtil.nextSkipThreshold(rand_, skipThreshold_, reservoirSize_);
+    nextAcceptN_ += SamplingUtil.nextSkipLength(rand_, skipThreshold_) + 1;
+  }
+
   /**
    * Increases allocated sampling size by (adjusted) ResizeFactor and copies items from old
    * sampling.
@@ -645,4 +855,12 @@ public final class ReservoirItemsSketch<T> {
     currItemsAlloc_ = SamplingUtil.getAdjustedSize(reservoirSize_, currItemsAlloc_ << rf_.lg());
     data_.ensureCapacity(currItemsAlloc_);
   }
+
+  /**
+   * Replaces the random generator of this sketch with one created from the given seed.
+   * @param seed the seed of the random generator
+   */
+  void seedRandom(final long seed) {
+    rand_ = new SplittableRandom(seed);
+  }
 }
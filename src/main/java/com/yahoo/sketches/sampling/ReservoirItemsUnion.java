@@ -30,6 +30,7 @@ import static com.yahoo.sketches.sampling.PreambleUtil.extractPreLongs;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractSerVer;
 
 import java.util.ArrayList;
+import java.util.SplittableRandom;
 
 import com.yahoo.memory.Memory;
 import com.yahoo.memory.WritableMemory;
@@ -63,6 +64,10 @@ import com.yahoo.sketches.SketchesArgumentException;
 public final class ReservoirItemsUnion<T> {
   private ReservoirItemsSketch<T> gadget_;
   private final int maxK_;
+  private boolean seeded_ = false;
+
+  // generator for the random choices made while merging into the gadget
+  private SplittableRandom rand_ = new SplittableRandom(SamplingUtil.rand.nextLong());
 
   /**
    * Empty constructor using ReservoirSize-encoded maxK value
@@ -84,6 +89,23 @@ public final class ReservoirItemsUnion<T> {
     return new ReservoirItemsUnion<>(maxK);
   }
 
+  /**
+   * Creates an empty Union with a maximum reservoir capacity of size k and a seeded random
+   * generator. The gadgets created or copied by the union are seeded from it as well, so unions
+   * created with the same seed produce identical samples if they receive the same input in the
+   * same order.
+   *
+   * @param <T> The type of item this sketch contains
+   * @param maxK The maximum allowed reservoir capacity for any sketches in the union
+   * @param seed the seed of the random generator
+   * @return A new ReservoirItemsUnion
+   */
+  public static <T> ReservoirItemsUnion<T> newInstance(final int maxK, final long seed) {
+    final ReservoirItemsUnion<T> union = new ReservoirItemsUnion<>(maxK);
+    union.seedRandom(seed);
+    return union;
+  }
+
   /**
    * Instantiates a Union from Memory
    *
@@ -197,7 +219,7 @@ public final class ReservoirItemsUnion<T> {
     }
 
     if (gadget_ == null) {
-      gadget_ = ReservoirItemsSketch.newInstance(maxK_);
+      gadget_ = seeded(ReservoirItemsSketch.newInstance(maxK_));
     }
     gadget_.update(datum);
   }
@@ -327,11 +349,11 @@ public final class ReservoirItemsUnion<T> {
       // incoming sketch is in exact mode with sketch's k < maxK,
       // so we can create a gadget at size maxK and keep everything
       // NOTE: assumes twoWayMergeInternal first checks if sketchIn is in exact mode
-      gadget_ = ReservoirItemsSketch.newInstance(maxK_);
+      gadget_ = seeded(ReservoirItemsSketch.newInstance(maxK_));
       twoWayMergeInternal(sketchIn, isModifiable); // isModifiable could be fixed to false here
     } else {
       // use the input sketch as gadget, copying if needed
-      gadget_ = (isModifiable ? sketchIn : sketchIn.copy());
+      gadget_ = seeded(isModifiable ? sketchIn : sketchIn.copy());
     }
   }
 
@@ -369,7 +391,7 @@ public final class ReservoirItemsUnion<T> {
     } else if (gadget_.getN() < gadget_.getK()) {
       // merge into sketchIn, so swap first
       final ReservoirItemsSketch<T> tmpSketch = gadget_;
-      gadget_ = (isModifiable ? sketchIn : sketchIn.copy());
+      gadget_ = seeded(isModifiable ? sketchIn : sketchIn.copy());
       twoWayMergeInternalStandard(tmpSketch);
     } else if (sketchIn.getImplicitSampleWeight() < (gadget_.getN()
         / ((double) (gadget_.getK() - 1)))) {
@@ -381,7 +403,7 @@ public final class ReservoirItemsUnion<T> {
       // implicit weights in gadget are light enough to merge into sketchIn
       // merge into sketchIn, so swap first
       final ReservoirItemsSketch<T> tmpSketch = gadget_;
-      gadget_ = (isModifiable ? sketchIn : sketchIn.copy());
+      gadget_ = seeded(isModifiable ? sketchIn : sketchIn.copy());
       twoWayMergeInternalWeighted(tmpSketch);
     }
   }
@@ -418,11 +440,11 @@ public final class ReservoirItemsUnion<T> {
 
       final double rescaled_one = targetTotal;
       assert (rescaled_prob < rescaled_one); // Use an exception to enforce strict lightness?
-      final double rescaled_flip = rescaled_one * SamplingUtil.rand.nextDouble();
+      final double rescaled_flip = rescaled_one * rand_.nextDouble();
       if (rescaled_flip < rescaled_prob) {
         // Intentionally NOT doing optimization to extract slot number from rescaled_flip.
         // Grabbing new random bits to ensure all slots in play
-        final int slotNo = SamplingUtil.rand.nextInt(tgtK);
+        final int slotNo = rand_.nextInt(tgtK);
         gadget_.insertValueAtPosition(source.getValueAtPosition(i), slotNo);
       } // end of inlined weight update
     } // end of loop over source samples
@@ -434,4 +456,21 @@ public final class ReservoirItemsUnion<T> {
     gadget_.forceIncrementItemsSeen(source.getN());
     assert (checkN == gadget_.getN());
   }
+
+  /**
+   * Replaces the random generator of this union with one created from the given seed.
+   * @param seed the seed of the random generator
+   */
+  void seedRandom(final long seed) {
+    rand_ = new SplittableRandom(seed);
+    seeded_ = true;
+  }
+
+  // gadgets created or copied by a seeded union draw their seed from the union's generator
+  private ReservoirItemsSketch<T> seeded(final ReservoirItemsSketch<T> sketch) {
+    if (seeded_) {
+      sketch.seedRandom(rand_.nextLong());
+    }
+    return sketch;
+  }
 }
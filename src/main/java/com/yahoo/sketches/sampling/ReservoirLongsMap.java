@@ -0,0 +1,764 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.sampling;
+
+import static com.yahoo.sketches.Util.LS;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.ResizeFactor;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+import com.yahoo.sketches.hash.MurmurHash3;
+
+/**
+ * A map from fixed-size keys, such as tenants or endpoints, to an independent reservoir sample of
+ * the <tt>long</tt>s presented with each key. This provides stratified sampling over a very large
+ * number of keys without a sketch object per key.
+ *
+ * <p>All keys share a single reservoir size <i>k</i>. The per-key state is kept in parallel
+ * primitive arrays and the samples of all keys share one <tt>long[]</tt> pool, in which the
+ * storage of a key grows with its sample up to <i>k</i> items. Keys with few items therefore only
+ * cost a few bytes beyond the key itself.</p>
+ *
+ * <p>The map has a memory budget. Whenever the memory in use exceeds it, <i>k</i> is halved and
+ * every sample larger than the new <i>k</i> is downsampled, uniformly at random, to the new size.
+ * Each sample remains a uniform random sample of the items of its key. Since <i>k</i> does not
+ * drop below 2, the budget cannot be honored if the keys alone exceed it.</p>
+ *
+ * <p>The sample of a key can be retrieved as a {@link ReservoirLongsSketch}, and maps with the
+ * same key size can be merged key by key.</p>
+ */
+public final class ReservoirLongsMap {
+
+  /**
+   * The smallest reservoir size, as required by {@link ReservoirLongsSketch}
+   */
+  private static final int MIN_K = 2;
+
+  /**
+   * Using 48 bits to capture number of items seen per key, as in ReservoirLongsSketch
+   */
+  private static final long MAX_ITEMS_SEEN = 0xFFFFFFFFFFFFL;
+
+  private static final int MIN_TABLE_SIZE = 16;
+  private static final double TABLE_LOAD_FACTOR = 0.75;
+  private static final int MIN_POOL_LONGS = 64;
+  private static final long HASH_SEED = 1234567890L;
+
+  // serialization
+  private static final int SER_VER = 1;
+  private static final int PREAMBLE_LONGS = 4;
+  private static final int EMPTY_FLAG_MASK = 4;
+  private static final int PREAMBLE_LONGS_BYTE = 0;
+  private static final int SER_VER_BYTE = 1;
+  private static final int FLAGS_BYTE = 3;
+  private static final int KEY_SIZE_INT = 4;
+  private static final int MAX_K_INT = 8;
+  private static final int K_INT = 12;
+  private static final int NUM_ENTRIES_INT = 16;
+  private static final int MAX_MEMORY_LONG = 24;
+
+  private final int keySizeBytes_;
+  private final int maxK_;
+  private final long maxMemoryBytes_;
+  private int k_;
+
+  // open addressing hash table holding entry index + 1, or 0 for an empty slot
+  private int[] table_;
+  private int numEntries_;
+
+  // per-entry state, indexed by order of insertion
+  private byte[] keys_;
+  private long[] itemsSeen_;
+  private int[] offset_;   // start of the sample of the entry in pool_
+  private int[] capacity_; // allocated longs for the sample of the entry in pool_
+
+  // storage for the samples of all entries
+  private long[] pool_;
+  private int poolUsed_;   // longs of pool_ handed out to entries, including abandoned ones
+  private int poolWasted_; // longs of pool_ abandoned by entries that moved to a larger block
+
+  // per-map generator, seeded from SamplingUtil.rand so that tests can still fix the seed
+  private SplittableRandom rand_ = new SplittableRandom(SamplingUtil.rand.nextLong());
+
+  private ReservoirLongsMap(final int keySizeBytes, final int maxK, final long maxMemoryBytes) {
+    keySizeBytes_ = keySizeBytes;
+    maxK_ = maxK;
+    maxMemoryBytes_ = maxMemoryBytes;
+    k_ = maxK;
+
+    table_ = new int[MIN_TABLE_SIZE];
+    final int entryCapacity = (int) (MIN_TABLE_SIZE * TABLE_LOAD_FACTOR);
+    keys_ = new byte[entryCapacity * keySizeBytes];
+    itemsSeen_ = new long[entryCapacity];
+    offset_ = new int[entryCapacity];
+    capacity_ = new int[entryCapacity];
+    pool_ = new long[MIN_POOL_LONGS];
+  }
+
+  /**
+   * Constructs an empty map.
+   *
+   * @param keySizeBytes the size of every key in bytes
+   * @param maxK the reservoir size of each key while the map is within its memory budget. Must be
+   *        at least 2.
+   * @param maxMemoryBytes the memory budget of the map in bytes
+   * @return an empty ReservoirLongsMap
+   */
+  public static ReservoirLongsMap newInstance(final int keySizeBytes, final int maxK,
+                                              final long maxMemoryBytes) {
+    if (keySizeBytes < 1) {
+      throw new SketchesArgumentException("keySizeBytes must be at least 1: " + keySizeBytes);
+    }
+    if (maxK < MIN_K) {
+      throw new SketchesArgumentException("maxK must be at least " + MIN_K + ": " + maxK);
+    }
+    if (maxMemoryBytes <= 0) {
+      throw new SketchesArgumentException("maxMemoryBytes must be positive: " + maxMemoryBytes);
+    }
+    return new ReservoirLongsMap(keySizeBytes, maxK, maxMemoryBytes);
+  }
+
+  /**
+   * Constructs an empty map with a seeded random generator. Maps created with the same seed
+   * produce identical samples if they receive the same items in the same order.
+   *
+   * @param keySizeBytes the size of every key in bytes
+   * @param maxK the reservoir size of each key while the map is within its memory budget. Must be
+   *        at least 2.
+   * @param maxMemoryBytes the memory budget of the map in bytes
+   * @param seed the seed of the random generator
+   * @return an empty ReservoirLongsMap
+   */
+  public static ReservoirLongsMap newInstance(final int keySizeBytes, final int maxK,
+                                              final long maxMemoryBytes, final long seed) {
+    final ReservoirLongsMap map = newInstance(keySizeBytes, maxK, maxMemoryBytes);
+    map.seedRandom(seed);
+    return map;
+  }
+
+  /**
+   * Returns a map instance from the given srcMem, which must be a Memory representation of this
+   * class as produced by {@link #toByteArray()}.
+   *
+   * @param srcMem a Memory representation of a map of this class. <a href=
+   *        "{@docRoot}/resources/dictionary.html#mem">See Memory</a>
+   * @return a map instance of this class
+   */
+  public static ReservoirLongsMap heapify(final Memory srcMem) {
+    final long memCap = srcMem.getCapacity();
+    if (memCap < (PREAMBLE_LONGS << 3)) {
+      throw new SketchesArgumentException("Possible corruption: Insufficient memory for preamble: "
+          + memCap);
+    }
+    final int preLongs = srcMem.getByte(PREAMBLE_LONGS_BYTE) & 0xFF;
+    final int serVer = srcMem.getByte(SER_VER_BYTE) & 0xFF;
+    if (preLongs != PREAMBLE_LONGS) {
+      throw new SketchesArgumentException("Possible corruption: Preamble longs must be "
+          + PREAMBLE_LONGS + ": " + preLongs);
+    }
+    if (serVer != SER_VER) {
+      throw new SketchesArgumentException("Possible corruption: Ser. Ver. must be " + SER_VER
+          + ": " + serVer);
+    }
+
+    final int keySizeBytes = srcMem.getInt(KEY_SIZE_INT);
+    final int maxK = srcMem.getInt(MAX_K_INT);
+    final int k = srcMem.getInt(K_INT);
+    final int numEntries = srcMem.getInt(NUM_ENTRIES_INT);
+    final long maxMemoryBytes = srcMem.getLong(MAX_MEMORY_LONG);
+    if ((k < MIN_K) || (k > maxK) || (numEntries < 0)) {
+      throw new SketchesArgumentException("Possible corruption: Invalid k, maxK or entry count: "
+          + k + ", " + maxK + ", " + numEntries);
+    }
+
+    final ReservoirLongsMap map = newInstance(keySizeBytes, maxK, maxMemoryBytes);
+    map.k_ = k;
+
+    final long keysOffset = PREAMBLE_LONGS << 3;
+    final long itemsSeenOffset = keysOffset + ((long) numEntries * keySizeBytes);
+    long samplesOffset = itemsSeenOffset + ((long) numEntries << 3);
+    if (memCap < samplesOffset) {
+      throw new SketchesArgumentException("Possible corruption: Insufficient memory for "
+          + numEntries + " entries: " + memCap);
+    }
+
+    final byte[] key = new byte[keySizeBytes];
+    for (int i = 0; i < numEntries; ++i) {
+      final long itemsSeen = srcMem.getLong(itemsSeenOffset + ((long) i << 3));
+      if ((itemsSeen < 1) || (itemsSeen > MAX_ITEMS_SEEN)) {
+        throw new SketchesArgumentException("Possible corruption: Invalid items seen count: "
+            + itemsSeen);
+      }
+      final int numSamples = (int) Math.min(itemsSeen, k);
+      if (memCap < (samplesOffset + ((long) numSamples << 3))) {
+        throw new SketchesArgumentException("Possible corruption: Insufficient memory for the "
+            + "samples of entry " + i + ": " + memCap);
+      }
+      final long[] samples = new long[numSamples];
+      srcMem.getLongArray(samplesOffset, samples, 0, numSamples);
+      samplesOffset += (long) numSamples << 3;
+
+      srcMem.getByteArray(keysOffset + ((long) i * keySizeBytes), key, 0, keySizeBytes);
+      final int entry = map.findOrInsertKey(key);
+      if (map.itemsSeen_[entry] != 0) {
+        throw new SketchesArgumentException("Possible corruption: Duplicate key in entry " + i);
+      }
+      map.setSamples(entry, samples, itemsSeen);
+    }
+
+    return map;
+  }
+
+  /**
+   * Returns the size of every key in bytes.
+   *
+   * @return the size of every key in bytes
+   */
+  public int getKeySizeBytes() {
+    return keySizeBytes_;
+  }
+
+  /**
+   * Returns the reservoir size each key starts with, which is used while the map is within its
+   * memory budget.
+   *
+   * @return the configured maximum reservoir size
+   */
+  public int getMaxK() {
+    return maxK_;
+  }
+
+  /**
+   * Returns the current reservoir size shared by all keys. This is at most {@link #getMaxK()} and
+   * is halved every time the memory budget is exceeded.
+   *
+   * @return the current reservoir size
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the memory budget of the map in bytes.
+   *
+   * @return the memory budget of the map in bytes
+   */
+  public long getMaxMemoryBytes() {
+    return maxMemoryBytes_;
+  }
+
+  /**
+   * Returns the number of distinct keys in the map.
+   *
+   * @return the number of distinct keys in the map
+   */
+  public int getActiveEntries() {
+    return numEntries_;
+  }
+
+  /**
+   * Returns the total bytes allocated by the map for keys, per-key state and samples.
+   *
+   * @return the total bytes allocated by the map
+   */
+  public long getMemoryUsageBytes() {
+    return ((long) table_.length * Integer.BYTES)
+        + keys_.length
+        + ((long) itemsSeen_.length * Long.BYTES)
+        + ((long) offset_.length * Integer.BYTES)
+        + ((long) capacity_.length * Integer.BYTES)
+        + ((long) pool_.length * Long.BYTES);
+  }
+
+  /**
+   * Presents an item to the reservoir of the given key, creating the reservoir if the key is new.
+   *
+   * @param key the key of the stratum the item belongs to
+   * @param item a unit-weight item of the stream of that key
+   */
+  public void update(final byte[] key, final long item) {
+    checkKey(key);
+    final int entry = findOrInsertKey(key);
+    final long itemsSeen = itemsSeen_[entry];
+    if (itemsSeen == MAX_ITEMS_SEEN) {
+      throw new SketchesStateException(
+          "Key has exceeded capacity for total items seen: " + MAX_ITEMS_SEEN);
+    }
+
+    insertItem(entry, item);
+
+    if (getMemoryUsageBytes() > maxMemoryBytes_) {
+      reduceK();
+    }
+  }
+
+  /**
+   * Returns the number of items presented with the given key.
+   *
+   * @param key the given key
+   * @return the number of items presented with the key, or 0 if the key is not in the map
+   */
+  public long getN(final byte[] key) {
+    checkKey(key);
+    final int entry = findKey(key);
+    return entry < 0 ? 0 : itemsSeen_[entry];
+  }
+
+  /**
+   * Returns a copy of the sample of the given key.
+   *
+   * @param key the given key
+   * @return a copy of the sample of the key, or null if the key is not in the map
+   */
+  public long[] getSamples(final byte[] key) {
+    checkKey(key);
+    final int entry = findKey(key);
+    return entry < 0 ? null : getEntrySamples(entry);
+  }
+
+  /**
+   * Returns the sample of the given key as a standalone reservoir sketch with the current
+   * reservoir size of the map. The sketch can be used for subset sum estimation, serialized, or
+   * merged with other reservoir sketches.
+   *
+   * @param key the given key
+   * @return a sketch holding a copy of the sample of the key, or null if the key is not in the map
+   */
+  public ReservoirLongsSketch getSketch(final byte[] key) {
+    checkKey(key);
+    final int entry = findKey(key);
+    return entry < 0 ? null : getEntrySketch(entry);
+  }
+
+  /**
+   * Merges the samples of another map into this one, key by key. Keys only present in the other
+   * map are added. If the other map has a smaller reservoir size this map is first reduced to it,
+   * so all keys keep sharing the same reservoir size.
+   *
+   * @param other the map to merge into this one. It is not modified.
+   */
+  public void merge(final ReservoirLongsMap other) {
+    if (other == null) {
+      return;
+    }
+    if (other.keySizeBytes_ != keySizeBytes_) {
+      throw new SketchesArgumentException("Key sizes differ: " + keySizeBytes_ + " vs "
+          + other.keySizeBytes_);
+    }
+    if (other.k_ < k_) {
+      setK(other.k_);
+    }
+
+    final byte[] key = new byte[keySizeBytes_];
+    final int otherNumEntries = other.numEntries_; // fixed in case other == this
+    for (int i = 0; i < otherNumEntries; ++i) {
+      System.arraycopy(other.keys_, i * keySizeBytes_, key, 0, keySizeBytes_);
+      final long[] otherSamples = other.getEntrySamples(i);
+      final long otherItemsSeen = other.itemsSeen_[i];
+      mergeEntry(findOrInsertKey(key), otherSamples, otherItemsSeen);
+    }
+
+    if (getMemoryUsageBytes() > maxMemoryBytes_) {
+      reduceK();
+    }
+  }
+
+  /**
+   * Returns a byte array representation of this map. The layout is a preamble of 4 longs
+   * followed by the keys of all entries, the item counts of all entries as longs, and finally the
+   * samples of all entries, each of length min(n, k), in the same entry order.
+   *
+   * <pre>
+   * Long || Start Byte Adr:
+   * Adr:
+   *      ||    7   |    6   |    5   |    4   |    3   |    2   |    1   |     0              |
+   *  0   ||-----------Key Size Bytes----------|  Flags | unused | SerVer |   Preamble_Longs   |
+   *
+   *      ||   15   |   14   |   13   |   12   |   11   |   10   |    9   |     8              |
+   *  1   ||-------Reservoir Size (K)----------|-----------Max Reservoir Size (Max K)----------|
+   *
+   *      ||   23   |   22   |   21   |   20   |   19   |   18   |   17   |    16              |
+   *  2   ||--------------unused---------------|---------------Number of Entries---------------|
+   *
+   *      ||   31   |   30   |   29   |   28   |   27   |   26   |   25   |    24              |
+   *  3   ||-------------------------------Max Memory Bytes------------------------------------|
+   * </pre>
+   *
+   * @return a byte array representation of this map
+   */
+  public byte[] toByteArray() {
+    long numSamples = 0;
+    for (int i = 0; i < numEntries_; ++i) {
+      numSamples += Math.min(itemsSeen_[i], k_);
+    }
+    final long keysBytes = (long) numEntries_ * keySizeBytes_;
+    final long outBytes = (PREAMBLE_LONGS << 3) + keysBytes + ((numEntries_ + numSamples) << 3);
+    if (outBytes > Integer.MAX_VALUE) {
+      throw new SketchesStateException("Map too large to serialize to a byte array: " + outBytes);
+    }
+
+    final byte[] outArr = new byte[(int) outBytes];
+    final WritableMemory mem = WritableMemory.wrap(outArr);
+    mem.putByte(PREAMBLE_LONGS_BYTE, (byte) PREAMBLE_LONGS);
+    mem.putByte(SER_VER_BYTE, (byte) SER_VER);
+    mem.putByte(FLAGS_BYTE, (byte) (numEntries_ == 0 ? EMPTY_FLAG_MASK : 0));
+    mem.putInt(KEY_SIZE_INT, keySizeBytes_);
+    mem.putInt(MAX_K_INT, maxK_);
+    mem.putInt(K_INT, k_);
+    mem.putInt(NUM_ENTRIES_INT, numEntries_);
+    mem.putLong(MAX_MEMORY_LONG, maxMemoryBytes_);
+
+    long offset = PREAMBLE_LONGS << 3;
+    mem.putByteArray(offset, keys_, 0, (int) keysBytes);
+    offset += keysBytes;
+    mem.putLongArray(offset, itemsSeen_, 0, numEntries_);
+    offset += (long) numEntries_ << 3;
+    for (int i = 0; i < numEntries_; ++i) {
+      final int entrySamples = (int) Math.min(itemsSeen_[i], k_);
+      mem.putLongArray(offset, pool_, offset_[i], entrySamples);
+      offset += (long) entrySamples << 3;
+    }
+
+    return outArr;
+  }
+
+  /**
+   * Returns a human-readable summary of the map, without keys or samples.
+   *
+   * @return a human-readable summary of the map
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    final String thisSimpleName = this.getClass().getSimpleName();
+    sb.append("### ").append(thisSimpleName).append(" SUMMARY: ").append(LS);
+    sb.append("   Key Size Bytes     : ").append(keySizeBytes_).append(LS);
+    sb.append("   Max K              : ").append(maxK_).append(LS);
+    sb.append("   Current K          : ").append(k_).append(LS);
+    sb.append("   Total keys         : ").append(numEntries_).append(LS);
+    sb.append("   Memory Bytes       : ").append(getMemoryUsageBytes()).append(LS);
+    sb.append("   Max Memory Bytes   : ").append(maxMemoryBytes_).append(LS);
+    sb.append("   Sample Pool Longs  : ").append(poolUsed_ - poolWasted_).append(LS);
+    sb.append("### END SKETCH SUMMARY").append(LS);
+    return sb.toString();
+  }
+
+  /**
+   * Forces the reservoir size of all keys down to the given value, downsampling every sample that
+   * is larger. Used when the memory budget is exceeded and when merging with a map with a smaller
+   * reservoir size.
+   *
+   * @param newK the new reservoir size, no larger than the current one
+   */
+  void setK(final int newK) {
+    assert (newK >= MIN_K) && (newK <= k_);
+    for (int i = 0; i < numEntries_; ++i) {
+      final int numSamples = (int) Math.min(itemsSeen_[i], k_);
+      if (numSamples > newK) {
+        downsampleEntry(i, numSamples, newK);
+      }
+    }
+    k_ = newK;
+
+    // release the space of the discarded samples, leaving some room for growth
+    long numSamples = 0;
+    for (int i = 0; i < numEntries_; ++i) {
+      numSamples += Math.min(itemsSeen_[i], k_);
+    }
+    compactPool((int) Math.min(Integer.MAX_VALUE - 8, numSamples + (numSamples >>> 3)), true);
+  }
+
+  // number of longs of pool_ currently in use, for testing
+  int getPoolLiveLongs() {
+    return poolUsed_ - poolWasted_;
+  }
+
+  private void reduceK() {
+    while ((getMemoryUsageBytes() > maxMemoryBytes_) && (k_ > MIN_K)) {
+      setK(Math.max(MIN_K, k_ / 2));
+    }
+  }
+
+  private void insertItem(final int entry, final long item) {
+    final long itemsSeen = itemsSeen_[entry];
+    if (itemsSeen < k_) { // initial phase, take the first k_ items
+      if (itemsSeen == capacity_[entry]) {
+        growEntry(entry);
+      }
+      pool_[offset_[entry] + (int) itemsSeen] = item;
+    } else if ((rand_.nextDouble() * (itemsSeen + 1)) < k_) {
+      pool_[offset_[entry] + rand_.nextInt(k_)] = item;
+    }
+    itemsSeen_[entry] = itemsSeen + 1;
+  }
+
+  /**
+   * Merges a uniform sample of itemsSeen items into the reservoir of an entry, following the
+   * cases of ReservoirLongsUnion but drawing from the generator of this map. An exact input is
+   * replayed item by item. Otherwise the sample with the lighter implicit item weight is merged
+   * into the other one with weighted reservoir updates.
+   */
+  private void mergeEntry(final int entry, final long[] samples, final long itemsSeen) {
+    if ((MAX_ITEMS_SEEN - itemsSeen_[entry]) < itemsSeen) {
+      throw new SketchesStateException(
+          "Key has exceeded capacity for total items seen: " + MAX_ITEMS_SEEN);
+    }
+
+    if (itemsSeen <= samples.length) { // exact input
+      for (final long item : samples) {
+        insertItem(entry, item);
+      }
+      return;
+    }
+
+    long[] srcSamples = samples;
+    if (srcSamples.length > k_) { // sample of a map with a larger k, itself reduced later
+      shuffleToFront(srcSamples, 0, srcSamples.length, k_);
+      srcSamples = Arrays.copyOf(srcSamples, k_);
+    }
+
+    if (itemsSeen_[entry] <= k_) { // exact target, replay it into a copy of the input
+      final long[] tgtSamples = getEntrySamples(entry);
+      setSamples(entry, srcSamples, itemsSeen);
+      for (final long item : tgtSamples) {
+        insertItem(entry, item);
+      }
+      return;
+    }
+
+    // both are samples: keep the one whose implicit weights are too heavy to be merged
+    long[] light = srcSamples;
+    long lightItemsSeen = itemsSeen;
+    if ((itemsSeen / (double) k_) >= (itemsSeen_[entry] / (double) (k_ - 1))) {
+      light = getEntrySamples(entry);
+      lightItemsSeen = itemsSeen_[entry];
+      setSamples(entry, srcSamples, itemsSeen);
+    }
+
+    // weighted reservoir update, p(keep item) = (k * w) / total, with total fractional meanwhile
+    final double lightWeight = lightItemsSeen / (double) k_;
+    final double rescaledProb = k_ * lightWeight;
+    double total = itemsSeen_[entry];
+    final int base = offset_[entry];
+    for (final long item : light) {
+      total += lightWeight;
+      if ((total * rand_.nextDouble()) < rescaledProb) {
+        pool_[base + rand_.nextInt(k_)] = item;
+      }
+    }
+    itemsSeen_[entry] += lightItemsSeen;
+  }
+
+  private long[] getEntrySamples(final int entry) {
+    final int numSamples = (int) Math.min(itemsSeen_[entry], k_);
+    return Arrays.copyOfRange(pool_, offset_[entry], offset_[entry] + numSamples);
+  }
+
+  private ReservoirLongsSketch getEntrySketch(final int entry) {
+    return ReservoirLongsSketch.getInstance(getEntrySamples(entry), itemsSeen_[entry],
+        ResizeFactor.X8, k_);
+  }
+
+  /**
+   * Replaces the sample and item count of an entry, moving it to a larger block if needed.
+   */
+  private void setSamples(final int entry, final long[] samples, final long itemsSeen) {
+    assert samples.length == Math.min(itemsSeen, k_);
+    if (samples.length > capacity_[entry]) {
+      allocateBlock(entry, samples.length, false);
+    }
+    System.arraycopy(samples, 0, pool_, offset_[entry], samples.length);
+    itemsSeen_[entry] = itemsSeen;
+  }
+
+  /**
+   * Selects newK of the first numSamples items of the entry uniformly at random, moving them to
+   * the front of its block by a partial Fisher-Yates shuffle.
+   */
+  private void downsampleEntry(final int entry, final int numSamples, final int newK) {
+    shuffleToFront(pool_, offset_[entry], numSamples, newK);
+  }
+
+  private void shuffleToFront(final long[] arr, final int base, final int numSamples,
+                              final int newK) {
+    for (int i = 0; i < newK; ++i) {
+      final int j = i + rand_.nextInt(numSamples - i);
+      final long tmp = arr[base + i];
+      arr[base + i] = arr[base + j];
+      arr[base + j] = tmp;
+    }
+  }
+
+  private void growEntry(final int entry) {
+    final int newCapacity = (int) Math.min(k_, Math.max(1L, 2L * capacity_[entry]));
+    allocateBlock(entry, newCapacity, true);
+  }
+
+  /**
+   * Moves an entry to a fresh block of the given capacity at the end of the pool, abandoning its
+   * previous block.
+   */
+  private void allocateBlock(final int entry, final int newCapacity, final boolean copySamples) {
+    ensurePoolSpace(newCapacity);
+    if (copySamples) {
+      final int numSamples = (int) Math.min(itemsSeen_[entry], k_);
+      System.arraycopy(pool_, offset_[entry], pool_, poolUsed_, numSamples);
+    }
+    poolWasted_ += capacity_[entry];
+    offset_[entry] = poolUsed_;
+    capacity_[entry] = newCapacity;
+    poolUsed_ += newCapacity;
+  }
+
+  private void ensurePoolSpace(final int needed) {
+    if ((poolUsed_ + (long) needed) <= pool_.length) {
+      return;
+    }
+    // compact in place if that frees enough, otherwise grow by a factor of 2
+    final long required = (poolUsed_ - poolWasted_) + (long) needed;
+    final long newLength = required <= (pool_.length >>> 1)
+        ? pool_.length : Math.max(required, 2L * pool_.length);
+    if (newLength > (Integer.MAX_VALUE - 8)) {
+      throw new SketchesStateException("Sample pool exceeds maximum array size: " + newLength);
+    }
+    compactPool((int) newLength, false);
+  }
+
+  /**
+   * Copies all live blocks, in entry order, to the front of a new pool of the given length. If
+   * trim is true, each block is reduced to the samples it holds.
+   */
+  private void compactPool(final int newLength, final boolean trim) {
+    final long[] newPool = new long[Math.max(newLength, MIN_POOL_LONGS)];
+    int pos = 0;
+    for (int i = 0; i < numEntries_; ++i) {
+      final int numSamples = (int) Math.min(itemsSeen_[i], k_);
+      System.arraycopy(pool_, offset_[i], newPool, pos, numSamples);
+      offset_[i] = pos;
+      if (trim) {
+        capacity_[i] = numSamples;
+      }
+      pos += capacity_[i];
+    }
+    assert pos <= newPool.length;
+    pool_ = newPool;
+    poolUsed_ = pos;
+    poolWasted_ = 0;
+  }
+
+  private int findKey(final byte[] key) {
+    final int mask = table_.length - 1;
+    int slot = hashKey(key) & mask;
+    while (table_[slot] != 0) {
+      final int entry = table_[slot] - 1;
+      if (keyEquals(entry, key)) {
+        return entry;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int findOrInsertKey(final byte[] key) {
+    final int mask = table_.length - 1;
+    int slot = hashKey(key) & mask;
+    while (table_[slot] != 0) {
+      final int entry = table_[slot] - 1;
+      if (keyEquals(entry, key)) {
+        return entry;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (numEntries_ == itemsSeen_.length) {
+      growEntries();
+    }
+    final int entry = numEntries_++;
+    System.arraycopy(key, 0, keys_, entry * keySizeBytes_, keySizeBytes_);
+    table_[slot] = entry + 1;
+    if (numEntries_ > (table_.length * TABLE_LOAD_FACTOR)) {
+      rebuildTable(table_.length * 2);
+    }
+    return entry;
+  }
+
+  private void growEntries() {
+    final int newCapacity = 2 * itemsSeen_.length;
+    final long keysBytes = (long) newCapacity * keySizeBytes_;
+    if (keysBytes > Integer.MAX_VALUE) {
+      throw new SketchesStateException("Key storage exceeds maximum array size: " + keysBytes);
+    }
+    keys_ = Arrays.copyOf(keys_, (int) keysBytes);
+    itemsSeen_ = Arrays.copyOf(itemsSeen_, newCapacity);
+    offset_ = Arrays.copyOf(offset_, newCapacity);
+    capacity_ = Arrays.copyOf(capacity_, newCapacity);
+  }
+
+  private void rebuildTable(final int newSize) {
+    table_ = new int[newSize];
+    final int mask = newSize - 1;
+    final byte[] key = new byte[keySizeBytes_];
+    for (int i = 0; i < numEntries_; ++i) {
+      System.arraycopy(keys_, i * keySizeBytes_, key, 0, keySizeBytes_);
+      int slot = hashKey(key) & mask;
+      while (table_[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table_[slot] = i + 1;
+    }
+  }
+
+  private boolean keyEquals(final int entry, final byte[] key) {
+    final int base = entry * keySizeBytes_;
+    for (int i = 0; i < keySizeBytes_; ++i) {
+      if (keys_[base + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hashKey(final byte[] key) {
+    return (int) (MurmurHash3.hash(key, HASH_SEED)[0] >>> 1);
+  }
+
+  private void checkKey(final byte[] key) {
+    if (key == null) {
+      throw new SketchesArgumentException("Key must not be null");
+    }
+    if (key.length != keySizeBytes_) {
+      throw new SketchesArgumentException("Key size must be " + keySizeBytes_ + " bytes: "
+          + key.length);
+    }
+  }
+
+  /**
+   * Replaces the random generator of this map with one created from the given seed.
+   * @param seed the seed of the random generator
+   */
+  void seedRandom(final long seed) {
+    rand_ = new SplittableRandom(seed);
+  }
+}
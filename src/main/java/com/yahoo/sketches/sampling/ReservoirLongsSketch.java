@@ -30,10 +30,17 @@ import static com.yahoo.sketches.sampling.PreambleUtil.extractN;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractPreLongs;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractResizeFactor;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.sampling.SamplingUtil.getGroupTally;
 import static com.yahoo.sketches.sampling.SamplingUtil.pseudoHypergeometricLBonP;
 import static com.yahoo.sketches.sampling.SamplingUtil.pseudoHypergeometricUBonP;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 import com.yahoo.memory.Memory;
@@ -75,13 +82,22 @@ public final class ReservoirLongsSketch {
   private final ResizeFactor rf_;      // resize factor
   private long[] data_;                // stored sampling items
 
+  // Algorithm L state, used only in skip sampling mode once the reservoir is full
+  private final boolean skipSampling_; // draw skip lengths instead of a decision per item
+  private double skipThreshold_;       // the largest key in the reservoir
+  private long nextAcceptN_;           // itemsSeen_ at the next accepted item, stale if <= n
+
+  // per-sketch generator, seeded from SamplingUtil.rand so that tests can still fix the seed
+  private SplittableRandom rand_ = new SplittableRandom(SamplingUtil.rand.nextLong());
+
   /**
    * The basic constructor for building an empty sketch.
    *
    * @param k Target maximum reservoir size
    * @param rf <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
+   * @param skipSampling whether to use skip sampling once the reservoir is full
    */
-  private ReservoirLongsSketch(final int k, final ResizeFactor rf) {
+  private ReservoirLongsSketch(final int k, final ResizeFactor rf, final boolean skipSampling) {
     // required due to a theorem about lightness during merging
     if (k < 2) {
       throw new SketchesArgumentException("k must be at least 2");
@@ -89,6 +105,7 @@ public final class ReservoirLongsSketch {
 
     reservoirSize_ = k;
     rf_ = rf;
+    skipSampling_ = skipSampling;
 
     itemsSeen_ = 0;
 
@@ -136,6 +153,7 @@ public final class ReservoirLongsSketch {
     itemsSeen_ = itemsSeen;
     rf_ = rf;
     data_ = data;
+    skipSampling_ = false;
   }
 
   /**
@@ -147,14 +165,17 @@ public final class ReservoirLongsSketch {
    * @param itemsSeen Total items seen by this sketch
    * @param rf <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
    * @param data Data array backing the reservoir, will <em>not</em> be copied
+   * @param skipSampling whether to use skip sampling once the reservoir is full
    */
   private ReservoirLongsSketch(final int k, final int currItemsAlloc,
-                               final long itemsSeen, final ResizeFactor rf, final long[] data) {
+                               final long itemsSeen, final ResizeFactor rf, final long[] data,
+                               final boolean skipSampling) {
     reservoirSize_ = k;
     currItemsAlloc_ = currItemsAlloc;
     itemsSeen_ = itemsSeen;
     rf_ = rf;
     data_ = data;
+    skipSampling_ = skipSampling;
   }
 
   /**
@@ -166,7 +187,7 @@ public final class ReservoirLongsSketch {
    * @return A ReservoirLongsSketch initialized with maximum size k and the default resize factor.
    */
   public static ReservoirLongsSketch newInstance(final int k) {
-    return new ReservoirLongsSketch(k, DEFAULT_RESIZE_FACTOR);
+    return new ReservoirLongsSketch(k, DEFAULT_RESIZE_FACTOR, false);
   }
 
   /**
@@ -179,7 +200,50 @@ public final class ReservoirLongsSketch {
    * @return A ReservoirLongsSketch initialized with maximum size k and ResizeFactor rf.
    */
   public static ReservoirLongsSketch newInstance(final int k, final ResizeFactor rf) {
-    return new ReservoirLongsSketch(k, rf);
+    return new ReservoirLongsSketch(k, rf, false);
+  }
+
+  /**
+   * Construct a mergeable reservoir sampling sketch with up to k samples, optionally using skip
+   * sampling.
+   *
+   * <p>Once the reservoir is full, a sketch in skip sampling mode does not make a random decision
+   * for every item. Instead it uses Li's Algorithm L to draw how many items to discard before the
+   * next one that enters the reservoir, so the cost of a discarded item is a single comparison.
+   * Together with {@link #update(long[])} whole runs of discarded items are skipped without
+   * being visited. The resulting sample has the same distribution as in the default mode, but
+   * the random choices differ, so the two modes do not produce the same sample from the same
+   * seed.</p>
+   *
+   * <p>The mode is not serialized: a heapified sketch always uses the default mode.</p>
+   *
+   * @param k Maximum size of sampling. Allocated size may be smaller until sampling fills. Unlike
+   *        many sketches in this package, this value does <em>not</em> need to be a power of 2.
+   * @param rf <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
+   * @param skipSampling if true, draw skip lengths instead of making a decision per item
+   * @return A ReservoirLongsSketch initialized with maximum size k and ResizeFactor rf.
+   */
+  public static ReservoirLongsSketch newInstance(final int k, final ResizeFactor rf,
+                                                 final boolean skipSampling) {
+    return new ReservoirLongsSketch(k, rf, skipSampling);
+  }
+
+  /**
+   * Construct a mutable reservoir sampling sketch with a seeded random generator. Sketches
+   * created with the same seed produce identical samples if they receive the same items in the
+   * same order.
+   *
+   * @param k Maximum size of sampling. Allocated size may be smaller until sampling fills.
+   * @param rf <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
+   * @param skipSampling if true, draw skip lengths instead of making a decision per item
+   * @param seed the seed of the random generator
+   * @return A ReservoirLongsSketch initialized with maximum size k and ResizeFactor rf.
+   */
+  public static ReservoirLongsSketch newInstance(final int k, final ResizeFactor rf,
+      final boolean skipSampling, final long seed) {
+    final ReservoirLongsSketch sketch = new ReservoirLongsSketch(k, rf, skipSampling);
+    sketch.seedRandom(seed);
+    return sketch;
   }
 
   /**
@@ -220,7 +284,7 @@ public final class ReservoirLongsSketch {
     }
 
     if (isEmpty) {
-      return new ReservoirLongsSketch(k, rf);
+      return new ReservoirLongsSketch(k, rf, false);
     }
 
     final int preLongBytes = numPreLongs << 3;
@@ -267,6 +331,16 @@ public final class ReservoirLongsSketch {
     return reservoirSize_;
   }
 
+  /**
+   * Returns true if this sketch uses skip sampling once the reservoir is full.
+   *
+   * @return true if this sketch is in skip sampling mode
+   * @see #newInstance(int, ResizeFactor, boolean)
+   */
+  public boolean isSkipSampling() {
+    return skipSampling_;
+  }
+
   /**
    * Returns the number of items processed from the input stream
    *
@@ -319,17 +393,69 @@ public final class ReservoirLongsSketch {
       // we'll randomize replacement positions, so in-order should be valid for now
       data_[(int) itemsSeen_] = item; // since less than reservoir size, cast is safe
       ++itemsSeen_;
+    } else if (skipSampling_) {
+      if (nextAcceptN_ <= itemsSeen_) {
+        initSkip();
+      }
+      ++itemsSeen_;
+      if (itemsSeen_ == nextAcceptN_) {
+        data_[rand_.nextInt(reservoirSize_)] = item;
+        advanceSkip();
+      }
     } else { // code for steady state where we sample randomly
       ++itemsSeen_;
       // prob(keep_item) < k / n = reservoirSize_ / itemsSeen_
       // so multiply to get: keep if rand * itemsSeen_ < reservoirSize_
-      if ((SamplingUtil.rand.nextDouble() * itemsSeen_) < reservoirSize_) {
-        final int newSlot = SamplingUtil.rand.nextInt(reservoirSize_);
+      if ((rand_.nextDouble() * itemsSeen_) < reservoirSize_) {
+        final int newSlot = rand_.nextInt(reservoirSize_);
         data_[newSlot] = item;
       }
     }
   }
 
+  /**
+   * Presents each of the given items to the sketch, in order. This is equivalent to calling
+   * {@link #update(long)} for every item, but in skip sampling mode only the items that enter
+   * the reservoir are visited once the reservoir is full.
+   *
+   * @param items unit-weight items of the set being sampled from. A null array is ignored.
+   */
+  public void update(final long[] items) {
+    if (items == null) {
+      return;
+    }
+    if (items.length > (MAX_ITEMS_SEEN - itemsSeen_)) {
+      throw new SketchesStateException(
+          "Sketch has exceeded capacity for total items seen: " + MAX_ITEMS_SEEN);
+    }
+
+    int i = 0;
+    while ((i < items.length) && (itemsSeen_ < reservoirSize_)) {
+      update(items[i++]);
+    }
+    if (i == items.length) {
+      return;
+    }
+
+    if (!skipSampling_) {
+      for (; i < items.length; ++i) {
+        update(items[i]);
+      }
+      return;
+    }
+
+    if (nextAcceptN_ <= itemsSeen_) {
+      initSkip();
+    }
+    final long baseN = itemsSeen_ - i; // items[j] arrives as item number baseN + j + 1
+    final long endN = baseN + items.length;
+    while (nextAcceptN_ <= endN) {
+      data_[rand_.nextInt(reservoirSize_)] = items[(int) (nextAcceptN_ - baseN - 1)];
+      advanceSkip();
+    }
+    itemsSeen_ = endN;
+  }
+
   /**
    * Resets this sketch to the empty state, but retains the original value of k.
    */
@@ -342,6 +468,7 @@ public final class ReservoirLongsSketch {
     currItemsAlloc_ = SamplingUtil.getAdjustedSize(reservoirSize_, 1 << initialLgSize);
     data_ = new long[currItemsAlloc_];
     itemsSeen_ = 0;
+    nextAcceptN_ = 0;
   }
 
   /**
@@ -440,6 +567,76 @@ public final class ReservoirLongsSketch {
    * sketch weight.
    */
   public SampleSubsetSummary estimateSubsetSum(final Predicate<Long> predicate) {
+    final int numSamples = getNumSamples();
+    int trueCount = 0;
+    for (int i = 0; i < numSamples; ++i) {
+      if (predicate.test(data_[i])) {
+        ++trueCount;
+      }
+    }
+
+    return summarizeSubset(trueCount);
+  }
+
+  /**
+   * Computes estimated subset sums for several predicates with a single pass over the samples.
+   * The summary at each position is the same as the one {@link #estimateSubsetSum(Predicate)}
+   * returns for the predicate at that position, but each sample is visited only once regardless
+   * of the number of predicates.
+   *
+   * @param predicates A list of predicates to use when identifying items.
+   * @return A list of summary objects, one per predicate and in the same order.
+   */
+  public List<SampleSubsetSummary> estimateSubsetSums(final List<Predicate<Long>> predicates) {
+    final List<Predicate<Long>> preds = new ArrayList<>(predicates); // constant-time get()
+    final int numPreds = preds.size();
+    final int[] trueCounts = new int[numPreds];
+
+    final int numSamples = getNumSamples();
+    for (int i = 0; i < numSamples; ++i) {
+      final Long item = data_[i];
+      for (int p = 0; p < numPreds; ++p) {
+        if (preds.get(p).test(item)) {
+          ++trueCounts[p];
+        }
+      }
+    }
+
+    final List<SampleSubsetSummary> result = new ArrayList<>(numPreds);
+    for (int p = 0; p < numPreds; ++p) {
+      result.add(summarizeSubset(trueCounts[p]));
+    }
+    return result;
+  }
+
+  /**
+   * Computes estimated subset sums for every group of a partition of the items with a single
+   * pass over the samples, evaluating the grouping function exactly once per sample. The summary
+   * for each group is the same as the one {@link #estimateSubsetSum(Predicate)} returns for a
+   * predicate matching exactly the items of that group.
+   *
+   * <p>Groups with no items in the sample are absent from the result.</p>
+   *
+   * @param <G> the type of the group identifiers
+   * @param grouper A function mapping each item to its group identifier.
+   * @return A map from group identifier to the summary object for that group.
+   */
+  public <G> Map<G, SampleSubsetSummary> estimateSubsetSumsByGroup(
+          final Function<? super Long, ? extends G> grouper) {
+    final Map<G, double[]> tallies = new HashMap<>();
+    final int numSamples = getNumSamples();
+    for (int i = 0; i < numSamples; ++i) {
+      ++getGroupTally(tallies, grouper.apply(data_[i]), 1)[0];
+    }
+
+    final Map<G, SampleSubsetSummary> result = new HashMap<>(2 * tallies.size());
+    for (final Map.Entry<G, double[]> entry : tallies.entrySet()) {
+      result.put(entry.getKey(), summarizeSubset((int) entry.getValue()[0]));
+    }
+    return result;
+  }
+
+  private SampleSubsetSummary summarizeSubset(final int trueCount) {
     if (itemsSeen_ == 0) {
       return new SampleSubsetSummary(0.0, 0.0, 0.0, 0.0);
     }
@@ -449,21 +646,14 @@ public final class ReservoirLongsSketch {
     assert samplingRate >= 0.0;
     assert samplingRate <= 1.0;
 
-    int predTrueCount = 0;
-    for (int i = 0; i < numSamples; ++i) {
-      if (predicate.test(data_[i])) {
-        ++predTrueCount;
-      }
-    }
-
     // if in exact mode, we can return an exact answer
     if (itemsSeen_ <= reservoirSize_) {
-      return new SampleSubsetSummary(predTrueCount, predTrueCount, predTrueCount, numSamples);
+      return new SampleSubsetSummary(trueCount, trueCount, trueCount, numSamples);
     }
 
-    final double lbTrueFraction = pseudoHypergeometricLBonP(numSamples, predTrueCount, samplingRate);
-    final double estimatedTrueFraction = (1.0 * predTrueCount) / numSamples;
-    final double ubTrueFraction = pseudoHypergeometricUBonP(numSamples, predTrueCount, samplingRate);
+    final double lbTrueFraction = pseudoHypergeometricLBonP(numSamples, trueCount, samplingRate);
+    final double estimatedTrueFraction = (1.0 * trueCount) / numSamples;
+    final double ubTrueFraction = pseudoHypergeometricUBonP(numSamples, trueCount, samplingRate);
     return new SampleSubsetSummary(
             itemsSeen_ * lbTrueFraction,
             itemsSeen_ * estimatedTrueFraction,
@@ -522,6 +712,7 @@ public final class ReservoirLongsSketch {
    */
   void forceIncrementItemsSeen(final long inc) {
     itemsSeen_ += inc;
+    nextAcceptN_ = 0; // the skip state no longer describes this reservoir
 
     if (itemsSeen_ > MAX_ITEMS_SEEN) {
       throw new SketchesStateException("Sketch has exceeded capacity for total items seen. "
@@ -531,7 +722,8 @@ public final class ReservoirLongsSketch {
 
   ReservoirLongsSketch copy() {
     final long[] dataCopy = Arrays.copyOf(data_, currItemsAlloc_);
-    return new ReservoirLongsSketch(reservoirSize_, currItemsAlloc_, itemsSeen_, rf_, dataCopy);
+    return new ReservoirLongsSketch(reservoirSize_, currItemsAlloc_, itemsSeen_, rf_, dataCopy,
+        skipSampling_);
   }
 
   // Note: the downsampling approach may appear strange but avoids several edge cases
@@ -542,7 +734,7 @@ public final class ReservoirLongsSketch {
   // A2: That would involve allocating memory proportional to the old k. Even if only a
   // temporary violation of maxK, we're avoiding violating it at all.
   ReservoirLongsSketch downsampledCopy(final int maxK) {
-    final ReservoirLongsSketch rls = new ReservoirLongsSketch(maxK, rf_);
+    final ReservoirLongsSketch rls = new ReservoirLongsSketch(maxK, rf_, false);
     for (final long l: getSamples()) {
       // Pretending old implicit weights are all 1. Not true in general, but they're all
       // equal so update should work properly as long as we update itemsSeen_ at the end.
@@ -557,6 +749,22 @@ public final class ReservoirLongsSketch {
     return rls;
   }
 
+  /**
+   * Starts Algorithm L from the current, full reservoir.
+   */
+  private void initSkip() {
+    skipThreshold_ = SamplingUtil.initialSkipThreshold(rand_, reservoirSize_, itemsSeen_);
+    nextAcceptN_ = itemsSeen_ + SamplingUtil.nextSkipLength(rand_, skipThreshold_) + 1;
+  }
+
+  /**
+   * Moves Algorithm L past an accepted item.
+   */
+  private void advanceSkip() {
+    skipThreshold_ = SamplingUtil.nextSkipThreshold(rand_, skipThreshold_, reservoirSize_);
+    nextAcceptN_ += SamplingUtil.nextSkipLength(rand_, skipThreshold_) + 1;
+  }
+
   /**
    * Increases allocated sampling size by (adjusted) ResizeFactor and copies items from old sampling.
    */
@@ -564,4 +772,12 @@ public final class ReservoirLongsSketch {
     currItemsAlloc_ = SamplingUtil.getAdjustedSize(reservoirSize_, currItemsAlloc_ * rf_.getValue());
     data_ = java.util.Arrays.copyOf(data_, currItemsAlloc_);
   }
+
+  /**
+   * Replaces the random generator of this sketch with one created from the given seed.
+   * @param seed the seed of the random generator
+   */
+  void seedRandom(final long seed) {
+    rand_ = new SplittableRandom(seed);
+  }
 }
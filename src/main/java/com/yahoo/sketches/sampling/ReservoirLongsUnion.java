@@ -29,6 +29,8 @@ import static com.yahoo.sketches.sampling.PreambleUtil.extractMaxK;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractPreLongs;
 import static com.yahoo.sketches.sampling.PreambleUtil.extractSerVer;
 
+import java.util.SplittableRandom;
+
 import com.yahoo.memory.Memory;
 import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.Family;
@@ -58,6 +60,10 @@ import com.yahoo.sketches.SketchesArgumentException;
 public final class ReservoirLongsUnion {
   private ReservoirLongsSketch gadget_;
   private final int maxK_;
+  private boolean seeded_ = false;
+
+  // generator for the random choices made while merging into the gadget
+  private SplittableRandom rand_ = new SplittableRandom(SamplingUtil.rand.nextLong());
 
   /**
    * Empty constructor using ReservoirSize-encoded maxK value
@@ -78,6 +84,22 @@ public final class ReservoirLongsUnion {
     return new ReservoirLongsUnion(maxK);
   }
 
+  /**
+   * Creates an empty Union with a maximum reservoir capacity of size k and a seeded random
+   * generator. The gadgets created or copied by the union are seeded from it as well, so unions
+   * created with the same seed produce identical samples if they receive the same input in the
+   * same order.
+   *
+   * @param maxK The maximum allowed reservoir capacity for any sketches in the union
+   * @param seed the seed of the random generator
+   * @return A new ReservoirLongsUnion
+   */
+  public static ReservoirLongsUnion newInstance(final int maxK, final long seed) {
+    final ReservoirLongsUnion union = new ReservoirLongsUnion(maxK);
+    union.seedRandom(seed);
+    return union;
+  }
+
   /**
    * Instantiates a Union from Memory
    *
@@ -189,7 +211,7 @@ public final class ReservoirLongsUnion {
    */
   public void update(final long datum) {
     if (gadget_ == null) {
-      gadget_ = ReservoirLongsSketch.newInstance(maxK_);
+      gadget_ = seeded(ReservoirLongsSketch.newInstance(maxK_));
     }
     gadget_.update(datum);
   }
@@ -280,11 +302,11 @@ public final class ReservoirLongsUnion {
       // incoming sketch is in exact mode with sketch's k < maxK,
       // so we can create a gadget at size maxK and keep everything
       // NOTE: assumes twoWayMergeInternal first checks if sketchIn is in exact mode
-      gadget_ = ReservoirLongsSketch.newInstance(maxK_);
+      gadget_ = seeded(ReservoirLongsSketch.newInstance(maxK_));
       twoWayMergeInternal(sketchIn, isModifiable); // isModifiable could be fixed to false here
     } else {
       // use the input sketch as gadget, copying if needed
-      gadget_ = (isModifiable ? sketchIn : sketchIn.copy());
+      gadget_ = seeded(isModifiable ? sketchIn : sketchIn.copy());
     }
   }
 
@@ -322,7 +344,7 @@ public final class ReservoirLongsUnion {
     } else if (gadget_.getN() < gadget_.getK()) {
       // merge into sketchIn, so swap first
       final ReservoirLongsSketch tmpSketch = gadget_;
-      gadget_ = (isModifiable ? sketchIn : sketchIn.copy());
+      gadget_ = seeded(isModifiable ? sketchIn : sketchIn.copy());
       twoWayMergeInternalStandard(tmpSketch);
     } else if (sketchIn.getImplicitSampleWeight() < (gadget_.getN()
         / ((double) (gadget_.getK() - 1)))) {
@@ -333,7 +355,7 @@ public final class ReservoirLongsUnion {
       // gadget_.getImplicitSampleWeight() < sketchIn.getN() / ((double) (sketchIn.getK() - 1)))
       // implicit weights in gadget are light enough to merge into sketchIn, so swap first
       final ReservoirLongsSketch tmpSketch = gadget_;
-      gadget_ = (isModifiable ? sketchIn : sketchIn.copy());
+      gadget_ = seeded(isModifiable ? sketchIn : sketchIn.copy());
       twoWayMergeInternalWeighted(tmpSketch);
     }
   }
@@ -370,11 +392,11 @@ public final class ReservoirLongsUnion {
 
       final double rescaled_one = targetTotal;
       assert (rescaled_prob < rescaled_one); // Use an exception to enforce strict lightness?
-      final double rescaled_flip = rescaled_one * SamplingUtil.rand.nextDouble();
+      final double rescaled_flip = rescaled_one * rand_.nextDouble();
       if (rescaled_flip < rescaled_prob) {
         // Intentionally NOT doing optimization to extract slot number from rescaled_flip.
         // Grabbing new random bits to ensure all slots in play
-        final int slotNo = SamplingUtil.rand.nextInt(tgtK);
+        final int slotNo = rand_.nextInt(tgtK);
         gadget_.insertValueAtPosition(source.getValueAtPosition(i), slotNo);
       } // end of inlined weight update
     } // end of loop over source samples
@@ -386,4 +408,21 @@ public final class ReservoirLongsUnion {
     gadget_.forceIncrementItemsSeen(source.getN());
     assert (checkN == gadget_.getN());
   }
+
+  /**
+   * Replaces the random generator of this union with one created from the given seed.
+   * @param seed the seed of the random generator
+   */
+  void seedRandom(final long seed) {
+    rand_ = new SplittableRandom(seed);
+    seeded_ = true;
+  }
+
+  // gadgets created or copied by a seeded union draw their seed from the union's generator
+  private ReservoirLongsSketch seeded(final ReservoirLongsSketch sketch) {
+    if (seeded_) {
+      sketch.seedRandom(rand_.nextLong());
+    }
+    return sketch;
+  }
 }
@@ -22,7 +22,9 @@ package com.yahoo.sketches.sampling;
 import static com.yahoo.sketches.BoundsOnBinomialProportions.approximateLowerBoundOnP;
 import static com.yahoo.sketches.BoundsOnBinomialProportions.approximateUpperBoundOnP;
 
+import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  * Common utility functions for the sampling family of sketches.
@@ -36,6 +38,17 @@ final class SamplingUtil {
    */
   private static final double DEFAULT_KAPPA = 2.0;
 
+  /**
+   * Largest skip returned by {@link #nextSkipLength(SplittableRandom, double)}, which matches
+   * the capacity of the reservoir sketches for total items seen.
+   */
+  private static final long MAX_SKIP_LENGTH = 0xFFFFFFFFFFFFL;
+
+  /**
+   * Source of the seeds for the random generators of the individual sketches and unions.
+   * Setting the seed makes the results deterministic if the input values are received in
+   * exactly the same order. This is only useful when performing test comparisons.
+   */
   public static final Random rand = new Random();
 
   private SamplingUtil() {}
@@ -55,20 +68,92 @@ final class SamplingUtil {
     return resizeTarget;
   }
 
-  static double nextDoubleExcludeZero() {
-    double r = rand.nextDouble();
+  static double nextDoubleExcludeZero(final SplittableRandom random) {
+    double r = random.nextDouble();
     while (r == 0.0) {
-      r = rand.nextDouble();
+      r = random.nextDouble();
     }
     return r;
   }
 
+  /**
+   * Draws the initial threshold of Li's Algorithm L for a full reservoir of size k that has seen
+   * n &ge; k items: the k-th smallest of n independent uniform keys, of which the reservoir holds
+   * the k smallest.
+   *
+   * <p>With n = k this is the maximum of k uniforms, which takes a single random number.
+   * Otherwise the order statistic is drawn with the R&eacute;nyi representation of exponential
+   * spacings, which takes k random numbers.</p>
+   *
+   * @param random the source of randomness
+   * @param k the reservoir size
+   * @param n the number of items seen, at least k
+   * @return the threshold, in the interval (0, 1]
+   */
+  static double initialSkipThreshold(final SplittableRandom random, final int k, final long n) {
+    if (n == k) {
+      return Math.exp(Math.log(nextDoubleExcludeZero(random)) / k);
+    }
+    double sum = 0.0;
+    for (int i = 0; i < k; ++i) {
+      sum -= Math.log(nextDoubleExcludeZero(random)) / (n - i);
+    }
+    return -Math.expm1(-sum);
+  }
+
+  /**
+   * Lowers the Algorithm L threshold after an item has been accepted into a reservoir of size k.
+   *
+   * @param random the source of randomness
+   * @param threshold the current threshold
+   * @param k the reservoir size
+   * @return the new threshold
+   */
+  static double nextSkipThreshold(final SplittableRandom random, final double threshold,
+                                  final int k) {
+    return threshold * Math.exp(Math.log(nextDoubleExcludeZero(random)) / k);
+  }
+
+  /**
+   * Draws the number of items to discard before the next item accepted by Algorithm L, which is
+   * geometric with success probability equal to the threshold.
+   *
+   * @param random the source of randomness
+   * @param threshold the current threshold
+   * @return the number of items to skip
+   */
+  static long nextSkipLength(final SplittableRandom random, final double threshold) {
+    final double skip =
+        Math.floor(Math.log(nextDoubleExcludeZero(random)) / Math.log1p(-threshold));
+    return (long) Math.min(skip, MAX_SKIP_LENGTH);
+  }
+
   static int startingSubMultiple(final int lgTarget, final int lgRf, final int lgMin) {
     return (lgTarget <= lgMin)
             ? lgMin : (lgRf == 0) ? lgTarget
             : (lgTarget - lgMin) % lgRf + lgMin;
   }
 
+  /**
+   * Returns the accumulator array for the given group, creating and registering a zeroed one of
+   * the given length if the group has not been seen before.
+   *
+   * @param <G> the type of the group identifiers
+   * @param tallies map of group identifiers to accumulators
+   * @param group the group identifier
+   * @param length the number of accumulators kept per group
+   * @return the accumulator array for the group
+   */
+  static <G> double[] getGroupTally(final Map<G, double[]> tallies, final G group,
+                                    final int length) {
+    double[] tally = tallies.get(group);
+    if (tally == null) {
+      tally = new double[length];
+      tallies.put(group, tally);
+    }
+    return tally;
+  }
+
   static double pseudoHypergeometricUBonP(final long n, final int k, final double samplingRate) {
     final double adjustedKappa = DEFAULT_KAPPA * Math.sqrt(1 - samplingRate);
     return approximateUpperBoundOnP(n, k, adjustedKappa);
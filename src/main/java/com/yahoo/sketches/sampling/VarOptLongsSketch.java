@@ -0,0 +1,410 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.sampling;
+
+import static com.yahoo.sketches.sampling.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.sampling.PreambleUtil.GADGET_FLAG_MASK;
+import static com.yahoo.sketches.sampling.PreambleUtil.SER_VER;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractHRegionItemCount;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractK;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractN;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractRRegionItemCount;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractResizeFactor;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.sampling.PreambleUtil.extractTotalRWeight;
+import static com.yahoo.sketches.sampling.PreambleUtil.getAndCheckPreLongs;
+
+import java.util.Arrays;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.ArrayOfBooleansSerDe;
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.ResizeFactor;
+import com.yahoo.sketches.SketchesArgumentException;
+
+/**
+ * This sketch provides a variance optimal sample over an input stream of weighted <tt>long</tt>
+ * items. It runs the same algorithm as {@link VarOptItemsSketch}, whose weight, heap and region
+ * handling it shares, but keeps the items in a primitive array, so updates do not allocate.
+ *
+ * <p>The serialized form is identical to that of a <tt>VarOptItemsSketch&lt;Long&gt;</tt>
+ * serialized with {@link com.yahoo.sketches.ArrayOfLongsSerDe ArrayOfLongsSerDe}, so either
+ * class can heapify the images of the other.</p>
+ *
+ * <p>Using this sketch with uniformly constant item weights (e.g. 1.0) will produce a standard
+ * reservoir sample over the steam.</p>
+ */
+public final class VarOptLongsSketch extends BaseVarOptSketch<Long, VarOptLongsSketch> {
+  private long[] data_;                  // stored sampled items
+
+  private VarOptLongsSketch(final int k, final ResizeFactor rf) {
+    super(k, rf);
+    data_ = new long[currItemsAlloc_];
+  }
+
+  private VarOptLongsSketch(final long[] data,
+                            final double[] weights,
+                            final int k,
+                            final long n,
+                            final ResizeFactor rf,
+                            final int hCount,
+                            final int rCount,
+                            final double totalWtR) {
+    super(weights, k, n, rf, hCount, rCount, totalWtR);
+    assert data.length == weights.length;
+    data_ = data;
+  }
+
+  /**
+   * Construct a varopt sampling sketch with up to k samples using the default resize factor (8).
+   *
+   * @param k   Maximum size of sampling. Allocated size may be smaller until sketch fills.
+   *            Unlike many sketches in this package, this value does <em>not</em> need to be a
+   *            power of 2.
+   * @return A VarOptLongsSketch initialized with maximum size k and the default resize factor.
+   */
+  public static VarOptLongsSketch newInstance(final int k) {
+    return new VarOptLongsSketch(k, DEFAULT_RESIZE_FACTOR);
+  }
+
+  /**
+   * Construct a varopt sampling sketch with up to k samples using the specified resize factor.
+   *
+   * @param k   Maximum size of sampling. Allocated size may be smaller until sketch fills.
+   *            Unlike many sketches in this package, this value does <em>not</em> need to be a
+   *            power of 2.
+   * @param rf  <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
+   * @return A VarOptLongsSketch initialized with maximum size k and resize factor rf.
+   */
+  public static VarOptLongsSketch newInstance(final int k, final ResizeFactor rf) {
+    return new VarOptLongsSketch(k, rf);
+  }
+
+  /**
+   * Construct a varopt sampling sketch with a seeded random generator. Sketches created with the
+   * same seed produce identical samples if they receive the same items in the same order.
+   *
+   * @param k   Maximum size of sampling. Allocated size may be smaller until sketch fills.
+   * @param rf  <a href="{@docRoot}/resources/dictionary.html#resizeFactor">See Resize Factor</a>
+   * @param seed the seed of the random generator
+   * @return A VarOptLongsSketch initialized with maximum size k and resize factor rf.
+   */
+  public static VarOptLongsSketch newInstance(final int k, final ResizeFactor rf, final long seed) {
+    final VarOptLongsSketch sketch = new VarOptLongsSketch(k, rf);
+    sketch.seedRandom(seed);
+    return sketch;
+  }
+
+  /**
+   * Construct a varopt sketch for use as a unioning gadget, meaning the array of marked elements
+   * is also initialized.
+   *
+   * @param k Maximum size of sampling.
+   * @return A VarOptLongsSketch initialized with maximum size k and a valid array of marks.
+   */
+  static VarOptLongsSketch newInstanceAsGadget(final int k) {
+    final VarOptLongsSketch sketch = new VarOptLongsSketch(k, DEFAULT_RESIZE_FACTOR);
+    sketch.marks_ = new boolean[sketch.currItemsAlloc_];
+    return sketch;
+  }
+
+  /**
+   * Construct a varopt sketch as the output of a union's getResult() method. Because this method
+   * is package-private, we do not perform checks on the input values.
+   *
+   * @param data an array of items, of length k + 1, with the gap at index hCount
+   * @param weights an array of weights, of the same length
+   * @param k Maximum size of sampling.
+   * @param n The current count of items seen by the sketch
+   * @param hCount the count of heavy items
+   * @param rCount the reservoir count of (non-heavy) items
+   * @param totalWtR the sum of the reservoir weights.
+   * @return A VarOptLongsSketch built from the given values
+   */
+  static VarOptLongsSketch newInstanceFromUnionResult(final long[] data,
+                                                      final double[] weights,
+                                                      final int k,
+                                                      final long n,
+                                                      final int hCount,
+                                                      final int rCount,
+                                                      final double totalWtR) {
+    final VarOptLongsSketch sketch = new VarOptLongsSketch(data, weights, k, n,
+            DEFAULT_RESIZE_FACTOR, hCount, rCount, totalWtR);
+    sketch.convertToHeap();
+    return sketch;
+  }
+
+  /**
+   * Returns a sketch instance of this class from the given srcMem, which must be a Memory
+   * representation of this sketch class or of a <tt>VarOptItemsSketch&lt;Long&gt;</tt>
+   * serialized with {@link com.yahoo.sketches.ArrayOfLongsSerDe ArrayOfLongsSerDe}.
+   *
+   * @param srcMem a Memory representation of a sketch of this class.
+   *               <a href="{@docRoot}/resources/dictionary.html#mem">See Memory</a>
+   * @return a sketch instance of this class
+   */
+  public static VarOptLongsSketch heapify(final Memory srcMem) {
+    final int numPreLongs = getAndCheckPreLongs(srcMem);
+    final ResizeFactor rf = ResizeFactor.getRF(extractResizeFactor(srcMem));
+    final int serVer = extractSerVer(srcMem);
+    final int familyId = extractFamilyID(srcMem);
+    final int flags = extractFlags(srcMem);
+    final boolean isEmpty = (flags & EMPTY_FLAG_MASK) != 0;
+    final boolean isGadget = (flags & GADGET_FLAG_MASK) != 0;
+
+    // Check values
+    if ((numPreLongs != Family.VAROPT.getMinPreLongs())
+            && (numPreLongs != Family.VAROPT.getMaxPreLongs())
+            && (numPreLongs != PreambleUtil.VO_WARMUP_PRELONGS)) {
+      throw new SketchesArgumentException(
+              "Possible corruption: Must have " + Family.VAROPT.getMinPreLongs()
+                      + ", " + PreambleUtil.VO_WARMUP_PRELONGS + ", or "
+                      + Family.VAROPT.getMaxPreLongs() + " preLongs. Found: " + numPreLongs);
+    }
+    if (serVer != SER_VER) {
+      throw new SketchesArgumentException(
+              "Possible Corruption: Ser Ver must be " + SER_VER + ": " + serVer);
+    }
+    final int reqFamilyId = Family.VAROPT.getID();
+    if (familyId != reqFamilyId) {
+      throw new SketchesArgumentException(
+              "Possible Corruption: FamilyID must be " + reqFamilyId + ": " + familyId);
+    }
+
+    final int k = extractK(srcMem);
+    if (k < 1) {
+      throw new SketchesArgumentException("Possible Corruption: k must be at least 1: " + k);
+    }
+
+    if (isEmpty) {
+      assert numPreLongs == Family.VAROPT.getMinPreLongs();
+      return new VarOptLongsSketch(k, rf);
+    }
+
+    final long n = extractN(srcMem);
+    if (n < 0) {
+      throw new SketchesArgumentException("Possible Corruption: n cannot be negative: " + n);
+    }
+
+    // get rest of preamble
+    final int hCount = extractHRegionItemCount(srcMem);
+    final int rCount = extractRRegionItemCount(srcMem);
+
+    if (hCount < 0) {
+      throw new SketchesArgumentException("Possible Corruption: H region count cannot be "
+              + "negative: " + hCount);
+    }
+    if (rCount < 0) {
+      throw new SketchesArgumentException("Possible Corruption: R region count cannot be "
+              + "negative: " + rCount);
+    }
+
+    double totalRWeight = 0.0;
+    if (numPreLongs == Family.VAROPT.getMaxPreLongs()) {
+      if (rCount > 0) {
+        totalRWeight = extractTotalRWeight(srcMem);
+      } else {
+        throw new SketchesArgumentException(
+                "Possible Corruption: "
+                        + Family.VAROPT.getMaxPreLongs() + " preLongs but no items in R region");
+      }
+    }
+
+    final int preLongBytes = numPreLongs << 3;
+    final long markBytes = isGadget ? ArrayOfBooleansSerDe.computeBytesNeeded(hCount) : 0;
+    final long itemOffsetBytes = preLongBytes + ((long) hCount * Double.BYTES) + markBytes;
+    final long requiredBytes = itemOffsetBytes + ((long) (hCount + rCount) * Long.BYTES);
+    if (srcMem.getCapacity() < requiredBytes) {
+      throw new SketchesArgumentException("Possible Corruption: Memory capacity "
+              + srcMem.getCapacity() + " is less than the " + requiredBytes + " bytes required");
+    }
+
+    final int allocatedItems = getHeapifyAllocation(k, hCount, rCount, rf);
+    final double[] weights = heapifyWeights(srcMem, hCount, rCount, allocatedItems);
+
+    // Load the items, leaving the gap at index hCount
+    final long[] data = new long[allocatedItems];
+    srcMem.getLongArray(itemOffsetBytes, data, 0, hCount);
+    if (rCount > 0) {
+      srcMem.getLongArray(itemOffsetBytes + ((long) hCount * Long.BYTES), data, hCount + 1,
+              rCount);
+    }
+
+    final VarOptLongsSketch sketch =
+            new VarOptLongsSketch(data, weights, k, n, rf, hCount, rCount, totalRWeight);
+
+    // marks, if we have a gadget
+    if (isGadget) {
+      sketch.heapifyMarks(srcMem, preLongBytes + ((long) hCount * Double.BYTES));
+    }
+
+    return sketch;
+  }
+
+  /**
+   * Returns a copy of the items in the sketch, or null if empty. The items of the H region come
+   * first, followed by those of the R region. The returned array length may be smaller than the
+   * sketch capacity.
+   *
+   * @return A copy of the sample items
+   */
+  public long[] getSamples() {
+    if ((h_ + r_) == 0) {
+      return null;
+    }
+    final long[] samples = new long[getNumSamples()];
+    System.arraycopy(data_, 0, samples, 0, h_);
+    if (r_ > 0) {
+      System.arraycopy(data_, h_ + 1, samples, h_, r_);
+    }
+    return samples;
+  }
+
+  /**
+   * Returns a copy of the adjusted weights of the items in the sketch, or null if empty, in the
+   * same order as {@link #getSamples()}. The items of the R region all share the weight
+   * <i>tau</i>, which is their total weight divided by their count.
+   *
+   * @return A copy of the sample weights
+   */
+  public double[] getWeights() {
+    if ((h_ + r_) == 0) {
+      return null;
+    }
+    final double[] weights = new double[getNumSamples()];
+    System.arraycopy(weights_, 0, weights, 0, h_);
+    if (r_ > 0) {
+      Arrays.fill(weights, h_, h_ + r_, totalWtR_ / r_);
+    }
+    return weights;
+  }
+
+  /**
+   * Randomly decide whether or not to include an item in the sample set.
+   *
+   * @param item an item of the set being sampled from
+   * @param weight a strictly positive weight associated with the item
+   */
+  public void update(final long item, final double weight) {
+    update(item, weight, false);
+  }
+
+  /**
+   * Returns a human readable string of the preamble of a byte array image of a VarOptLongsSketch.
+   * @param byteArr the given byte array
+   * @return a human readable string of the preamble of a byte array image of a VarOptLongsSketch.
+   */
+  public static String toString(final byte[] byteArr) {
+    return PreambleUtil.preambleToString(byteArr);
+  }
+
+  /**
+   * Returns a human readable string of the preamble of a Memory image of a VarOptLongsSketch.
+   * @param mem the given Memory
+   * @return a human readable string of the preamble of a Memory image of a VarOptLongsSketch.
+   */
+  public static String toString(final Memory mem) {
+    return PreambleUtil.preambleToString(mem);
+  }
+
+  /**
+   * Returns a byte array representation of this sketch.
+   *
+   * @return a byte array representation of this sketch
+   */
+  public byte[] toByteArray() {
+    final int numItemBytes = getNumSamples() * Long.BYTES;
+    final byte[] outArr = toByteArrayWithoutItems(numItemBytes);
+
+    // write the sample items at the end, skipping the gap
+    if (numItemBytes > 0) {
+      final WritableMemory mem = WritableMemory.wrap(outArr);
+      final long offset = outArr.length - numItemBytes;
+      mem.putLongArray(offset, data_, 0, h_);
+      if (r_ > 0) {
+        mem.putLongArray(offset + ((long) h_ * Long.BYTES), data_, h_ + 1, r_);
+      }
+    }
+
+    return outArr;
+  }
+
+  @Override
+  VarOptLongsSketch copyAndSetN(final boolean asSketch, final long adjustedN) {
+    final VarOptLongsSketch sketch = new VarOptLongsSketch(data_.clone(), weights_.clone(), k_,
+            n_, rf_, h_, r_, totalWtR_);
+    return copyMarksAndSetN(sketch, asSketch, adjustedN);
+  }
+
+  // package-private getter, which assumes the caller knows the layout of the regions
+  long getItem(final int idx) {
+    return data_[idx];
+  }
+
+  /**
+   * Internal implementation of update() which requires the user to know if an item is
+   * marked as coming from the reservoir region of a sketch. The marks are used only in
+   * merging.
+   *
+   * @param item an item of the set being sampled from
+   * @param weight a strictly positive weight associated with the item
+   * @param mark true if an item comes from a sketch's reservoir region
+   */
+  void update(final long item, final double weight, final boolean mark) {
+    if (weight <= 0.0) {
+      throw new SketchesArgumentException("Item weights must be strictly positive: "
+              + weight + ", for item " + item);
+    }
+
+    final int slot = getNewItemSlot(); // may grow data_, so not inlined in the array access
+    data_[slot] = item;
+    insertNewItem(weight, mark);
+  }
+
+  @Override
+  Long itemAt(final int idx) {
+    return data_[idx];
+  }
+
+  @Override
+  void swapItems(final int src, final int dst) {
+    final long item = data_[src];
+    data_[src] = data_[dst];
+    data_[dst] = item;
+  }
+
+  @Override
+  void moveItem(final int src, final int dst) {
+    data_[dst] = data_[src];
+  }
+
+  @Override
+  void growItems(final int newAlloc) {
+    data_ = Arrays.copyOf(data_, newAlloc);
+  }
+
+  @Override
+  void resetItems(final int alloc) {
+    data_ = new long[alloc];
+  }
+}
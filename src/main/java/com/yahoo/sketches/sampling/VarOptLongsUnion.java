@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.sampling;
+
+import static com.yahoo.sketches.sampling.PreambleUtil.extractMaxK;
+import static com.yahoo.sketches.sampling.VarOptLongsSketch.newInstanceFromUnionResult;
+
+import com.yahoo.memory.Memory;
+
+/**
+ * Provides a unioning operation over {@link VarOptLongsSketch varopt sketches of longs}. This
+ * union allows the sample size k to float, possibly increasing or decreasing as warranted by the
+ * available data.
+ *
+ * <p>The union shares its resolution of the gadget and its bookkeeping of the outer tau with
+ * {@link VarOptItemsUnion}, and has the same serialized form as a
+ * <tt>VarOptItemsUnion&lt;Long&gt;</tt> serialized with
+ * {@link com.yahoo.sketches.ArrayOfLongsSerDe ArrayOfLongsSerDe}.</p>
+ */
+public final class VarOptLongsUnion extends BaseVarOptUnion<VarOptLongsSketch> {
+  /**
+   * Empty constructor
+   *
+   * @param maxK Maximum allowed reservoir capacity for this union
+   */
+  private VarOptLongsUnion(final int maxK) {
+    super(maxK, VarOptLongsSketch.newInstanceAsGadget(maxK));
+  }
+
+  /**
+   * Creates an empty Union with a maximum capacity of size k.
+   *
+   * @param maxK The maximum allowed capacity of the unioned result
+   * @return A new VarOptLongsUnion
+   */
+  public static VarOptLongsUnion newInstance(final int maxK) {
+    return new VarOptLongsUnion(maxK);
+  }
+
+  /**
+   * Creates an empty Union with a maximum capacity of size k and a seeded random generator.
+   * Unions created with the same seed produce identical samples if they receive the same input
+   * in the same order.
+   *
+   * @param maxK The maximum allowed capacity of the unioned result
+   * @param seed the seed of the random generator
+   * @return A new VarOptLongsUnion
+   */
+  public static VarOptLongsUnion newInstance(final int maxK, final long seed) {
+    final VarOptLongsUnion union = new VarOptLongsUnion(maxK);
+    union.gadget_.seedRandom(seed);
+    return union;
+  }
+
+  /**
+   * Instantiates a Union from Memory
+   *
+   * @param srcMem Memory object containing a serialized union
+   * @return A VarOptLongsUnion created from the provided Memory
+   */
+  public static VarOptLongsUnion heapify(final Memory srcMem) {
+    checkPreamble(srcMem);
+
+    final VarOptLongsUnion vlu = new VarOptLongsUnion(extractMaxK(srcMem));
+    final Memory sketchMem = vlu.heapifyCounters(srcMem);
+    if (sketchMem != null) {
+      vlu.gadget_ = VarOptLongsSketch.heapify(sketchMem);
+    }
+
+    return vlu;
+  }
+
+  /**
+   * Union the given sketch.
+   *
+   *<p>This method can be repeatedly called.</p>
+   *
+   * @param sketchIn The sketch to be merged
+   */
+  public void update(final VarOptLongsSketch sketchIn) {
+    if (sketchIn != null) {
+      mergeInto(sketchIn);
+    }
+  }
+
+  /**
+   * Union the given Memory image of the sketch.
+   *
+   *<p>This method can be repeatedly called.</p>
+   *
+   * @param mem Memory image of sketch to be merged
+   */
+  public void update(final Memory mem) {
+    if (mem != null) {
+      mergeInto(VarOptLongsSketch.heapify(mem));
+    }
+  }
+
+  /**
+   * Union a reservoir sketch. The reservoir sample is treated as if all items were added with a
+   * weight of 1.0.
+   *
+   * @param reservoirIn The reservoir sketch to be merged
+   */
+  public void update(final ReservoirLongsSketch reservoirIn) {
+    if (reservoirIn != null) {
+      mergeReservoirInto(reservoirIn);
+    }
+  }
+
+  /**
+   * Returns a byte array representation of this union
+   *
+   * @return a byte array representation of this union
+   */
+  public byte[] toByteArray() {
+    final boolean empty = gadget_.getNumSamples() == 0;
+    return toByteArray(empty ? null : gadget_.toByteArray());
+  }
+
+  private void mergeInto(final VarOptLongsSketch sketch) {
+    final long sketchN = sketch.getN();
+    if (sketchN == 0) {
+      return;
+    }
+
+    n_ += sketchN;
+
+    // insert H region items
+    final int h = sketch.getHRegionCount();
+    for (int i = 0; i < h; ++i) {
+      gadget_.update(sketch.getItem(i), sketch.getWeight(i), false);
+    }
+
+    // insert R region items, which follow the gap, correcting the weight of the last one for
+    // any numerical discrepancies
+    final int r = sketch.getRRegionCount();
+    if (r > 0) {
+      final double rWeight = sketch.getTau();
+      double cumWeight = 0.0;
+      for (int i = h + 1; i < (h + r); ++i) {
+        gadget_.update(sketch.getItem(i), rWeight, true);
+        cumWeight += rWeight;
+      }
+      gadget_.update(sketch.getItem(h + r), sketch.getTotalWtR() - cumWeight, true);
+
+      // resolve tau
+      resolveOuterTau(sketch.getTau(), sketch.getTotalWtR(), r);
+    }
+  }
+
+  /**
+   * Used to merge a reservoir sample into varopt, assuming the reservoir was built with items
+   * of weight 1.0. Logic is very similar to mergeInto() for a sketch with no heavy items.
+   * @param reservoir Reservoir sketch to merge into this union
+   */
+  private void mergeReservoirInto(final ReservoirLongsSketch reservoir) {
+    final long reservoirN = reservoir.getN();
+    if (reservoirN == 0) {
+      return;
+    }
+
+    n_ += reservoirN;
+
+    final int reservoirK = reservoir.getK();
+    if (reservoir.getN() <= reservoirK) {
+      // exact mode, so just insert and be done
+      final int numSamples = reservoir.getNumSamples();
+      for (int i = 0; i < numSamples; ++i) {
+        gadget_.update(reservoir.getValueAtPosition(i), 1.0, false);
+      }
+    } else {
+      // sampling mode. We'll replicate a weight-correcting iterator
+      final double reservoirTau = reservoir.getImplicitSampleWeight();
+
+      double cumWeight = 0.0;
+      for (int i = 0; i < (reservoirK - 1); ++i) {
+        gadget_.update(reservoir.getValueAtPosition(i), reservoirTau, true);
+        cumWeight += reservoirTau;
+      }
+      // correct for any numerical discrepancies with the last item
+      gadget_.update(reservoir.getValueAtPosition(reservoirK - 1), reservoir.getN() - cumWeight,
+              true);
+
+      // resolve tau
+      resolveOuterTau(reservoirTau, reservoirN, reservoirK);
+    }
+  }
+
+  @Override
+  VarOptLongsSketch markMovingGadgetCoercer() {
+    final int resultK = gadget_.getHRegionCount() + gadget_.getRRegionCount();
+
+    int resultH = 0;
+    int resultR = 0;
+    int nextRPos = resultK; // = (resultK+1)-1, to fill R region from back to front
+
+    final long[] data = new long[resultK + 1];
+    final double[] weights = new double[resultK + 1];
+
+    // insert R region items, ignoring weights; unreachable when called from the pseudo-exact
+    // case, in which there are no items natively in R
+    final int gadgetH = gadget_.getHRegionCount();
+    final int gadgetR = gadget_.getRRegionCount();
+    for (int i = gadgetH + 1; i <= (gadgetH + gadgetR); ++i) {
+      data[nextRPos] = gadget_.getItem(i);
+      weights[nextRPos] = -1.0;
+      ++resultR;
+      --nextRPos;
+    }
+    double transferredWeight = 0;
+
+    // insert H region items
+    for (int i = 0; i < gadgetH; ++i) {
+      if (gadget_.getMark(i)) {
+        data[nextRPos] = gadget_.getItem(i);
+        weights[nextRPos] = -1.0;
+        transferredWeight += gadget_.getWeight(i);
+        ++resultR;
+        --nextRPos;
+      } else {
+        data[resultH] = gadget_.getItem(i);
+        weights[resultH] = gadget_.getWeight(i);
+        ++resultH;
+      }
+    }
+
+    assert (resultH + resultR) == resultK;
+    assert Math.abs(transferredWeight - outerTauNumer) < 1e-10;
+
+    final double resultRWeight = gadget_.getTotalWtR() + transferredWeight;
+    final long resultN = n_;
+
+    // explicitly set the weight for the gap
+    weights[resultH] = -1.0;
+
+    // create sketch with the new values
+    return newInstanceFromUnionResult(data, weights, resultK, resultN, resultH, resultR,
+            resultRWeight);
+  }
+}
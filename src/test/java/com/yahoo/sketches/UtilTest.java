@@ -25,6 +25,7 @@ import static com.yahoo.sketches.Util.bytesToString;
 import static com.yahoo.sketches.Util.ceilingPowerOf2;
 import static com.yahoo.sketches.Util.ceilingPowerOfBdouble;
 import static com.yahoo.sketches.Util.characterPad;
+import static com.yahoo.sketches.Util.checkArrayRange;
 import static com.yahoo.sketches.Util.checkIfMultipleOf8AndGT0;
 import static com.yahoo.sketches.Util.checkIfPowerOf2;
 import static com.yahoo.sketches.Util.checkProbability;
@@ -131,6 +132,18 @@ public class UtilTest {
     Assert.assertEquals(floorPowerOfBdouble(2.0, (1 << 30) + 1.0), (double)(1L << 30));
   }
 
+  @Test
+  public void checkArrayRangeOk() {
+    checkArrayRange(10, 0, 10);
+    checkArrayRange(10, 10, 0);
+    checkArrayRange(10, 3, 4);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkArrayRangeTooLong() {
+    checkArrayRange(10, 3, 8);
+  }
+
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void checkIfMultipleOf8AndGTzero() {
     checkIfMultipleOf8AndGT0(8, "test");
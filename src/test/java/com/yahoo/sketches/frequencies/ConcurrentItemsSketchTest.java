@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.frequencies;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.sketches.frequencies.ItemsSketch.Row;
+
+public class ConcurrentItemsSketchTest {
+
+  @Test
+  public void concurrentUpdates() throws InterruptedException {
+    final int maxMapSize = 64;
+    final int numThreads = 4;
+    final int n = 50000;
+    final ConcurrentItemsSketch<String> sketch = new ConcurrentItemsSketch<>(maxMapSize, 8, true);
+    final Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < n; i++) {
+            sketch.update(((i % 4) == 0) ? "heavy" : "tail" + (i % 5000));
+          }
+          sketch.update(null);
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    final long streamLength = (long) numThreads * n;
+    assertEquals(sketch.getStreamLength(), streamLength);
+    assertTrue(sketch.getMaximumError()
+        <= ItemsSketch.getAprioriError(maxMapSize, streamLength));
+    assertTrue(sketch.getLowerBound("heavy") <= (streamLength / 4));
+    assertTrue(sketch.getUpperBound("heavy") >= (streamLength / 4));
+    assertTrue(sketch.getEstimate("heavy") > 0);
+
+    final Row<String>[] rows = sketch.getFrequentItems(ErrorType.NO_FALSE_POSITIVES);
+    assertEquals(rows[0].getItem(), "heavy");
+    final ItemsSketch<String> result = sketch.getResult();
+    assertEquals(result.getStreamLength(), streamLength);
+    assertTrue(result.getUpperBound("heavy") >= (streamLength / 4));
+    assertTrue(sketch.toString().contains("Shards"));
+  }
+
+  @Test
+  public void shardsSplitMaxMapSize() {
+    final int maxMapSize = 64;
+    final int numShards = 4;
+    final ConcurrentItemsSketch<String> split = new ConcurrentItemsSketch<>(maxMapSize, numShards);
+    final ConcurrentItemsSketch<String> full =
+        new ConcurrentItemsSketch<>(maxMapSize, numShards, true);
+    long streamLength = 0;
+    for (int i = 1; i <= 100; i++) {
+      split.update("item" + i, i);
+      full.update("item" + i, i);
+      streamLength += i;
+    }
+    // 100 counters fit in 4 shards of 64, not in 4 shards of 16
+    assertEquals(full.getNumActiveItems(), 100);
+    assertEquals(full.getMaximumError(), 0);
+    assertTrue(split.getMaximumError() > 0);
+    assertTrue(split.getMaximumError()
+        <= ItemsSketch.getAprioriError(maxMapSize / numShards, streamLength));
+    for (int i = 1; i <= 100; i++) {
+      assertTrue(split.getLowerBound("item" + i) <= i);
+      assertTrue(split.getUpperBound("item" + i) >= i);
+    }
+  }
+
+}
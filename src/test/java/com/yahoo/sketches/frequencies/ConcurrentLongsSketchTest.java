@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.frequencies;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.frequencies.LongsSketch.Row;
+
+public class ConcurrentLongsSketchTest {
+
+  @Test
+  public void exactWhenBelowCapacity() {
+    final ConcurrentLongsSketch sketch = new ConcurrentLongsSketch(64, 4, true);
+    assertTrue(sketch.isEmpty());
+    for (long i = 1; i <= 100; i++) {
+      sketch.update(i, i);
+    }
+    assertEquals(sketch.getNumShards(), 4);
+    assertEquals(sketch.getNumActiveItems(), 100);
+    assertEquals(sketch.getStreamLength(), 5050);
+    assertEquals(sketch.getMaximumError(), 0);
+    for (long i = 1; i <= 100; i++) {
+      assertEquals(sketch.getEstimate(i), i);
+      assertEquals(sketch.getLowerBound(i), i);
+      assertEquals(sketch.getUpperBound(i), i);
+    }
+    final Row[] rows = sketch.getFrequentItems(91, ErrorType.NO_FALSE_POSITIVES);
+    assertEquals(rows.length, 10);
+    for (int i = 0; i < rows.length; i++) {
+      assertEquals(rows[i].getItem(), 100 - i);
+    }
+
+    final LongsSketch result = sketch.getResult();
+    assertEquals(result.getStreamLength(), 5050);
+    // the merged map of maxMapSize cannot hold all 100 counters
+    assertTrue(result.getMaximumError() > 0);
+    assertTrue(result.getLowerBound(77) <= 77);
+    assertTrue(result.getUpperBound(77) >= 77);
+
+    sketch.reset();
+    assertTrue(sketch.isEmpty());
+    assertEquals(sketch.getStreamLength(), 0);
+  }
+
+  @Test
+  public void concurrentUpdatesWithinAprioriError() throws InterruptedException {
+    final int maxMapSize = 128;
+    final int numThreads = 4;
+    final int n = 200000;
+    final ConcurrentLongsSketch sketch = new ConcurrentLongsSketch(maxMapSize, numThreads, true);
+    final Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int seed = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < n; i++) {
+            // every tenth update goes to one of 5 heavy hitters, the rest to a long tail
+            final long item = ((i % 10) == 0) ? (i / 10) % 5 : 1000 + (((long) i * 31) + seed) % 100000;
+            sketch.update(item);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    final long streamLength = (long) numThreads * n;
+    assertEquals(sketch.getStreamLength(), streamLength);
+    final double aprioriError = LongsSketch.getAprioriError(maxMapSize, streamLength);
+    assertTrue(sketch.getMaximumError() <= aprioriError);
+    final long trueHeavy = streamLength / 50;
+    for (long item = 0; item < 5; item++) {
+      assertTrue(sketch.getLowerBound(item) <= trueHeavy);
+      assertTrue(sketch.getUpperBound(item) >= trueHeavy);
+    }
+    final Row[] rows = sketch.getFrequentItems(streamLength / 100, ErrorType.NO_FALSE_NEGATIVES);
+    assertEquals(rows.length, 5);
+    final LongsSketch result = sketch.getResult();
+    assertEquals(result.getStreamLength(), streamLength);
+    assertTrue(result.getUpperBound(3) >= trueHeavy);
+  }
+
+  @Test
+  public void shardsSplitMaxMapSize() {
+    final int maxMapSize = 64;
+    final int numShards = 4;
+    final ConcurrentLongsSketch split = new ConcurrentLongsSketch(maxMapSize, numShards);
+    final ConcurrentLongsSketch full = new ConcurrentLongsSketch(maxMapSize, numShards, true);
+    long streamLength = 0;
+    for (long i = 1; i <= 100; i++) {
+      split.update(i, i);
+      full.update(i, i);
+      streamLength += i;
+    }
+    // 100 counters fit in 4 shards of 64, not in 4 shards of 16
+    assertEquals(full.getNumActiveItems(), 100);
+    assertEquals(full.getMaximumError(), 0);
+    assertTrue(split.getNumActiveItems() < 100);
+    assertTrue(split.getMaximumError() > 0);
+    assertTrue(split.getMaximumError()
+        <= LongsSketch.getAprioriError(maxMapSize / numShards, streamLength));
+    for (long i = 1; i <= 100; i++) {
+      assertTrue(split.getLowerBound(i) <= i);
+      assertTrue(split.getUpperBound(i) >= i);
+    }
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void maxMapSizeNotPowerOf2() {
+    new ConcurrentLongsSketch(100, 4);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void numShardsNotPowerOf2() {
+    new ConcurrentLongsSketch(64, 3);
+  }
+
+}
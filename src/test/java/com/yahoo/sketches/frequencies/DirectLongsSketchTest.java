@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.frequencies;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableDirectHandle;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesReadOnlyException;
+import com.yahoo.sketches.frequencies.LongsSketch.Row;
+
+public class DirectLongsSketchTest {
+
+  @Test
+  public void empty() {
+    final WritableMemory wmem =
+        WritableMemory.allocate((int) DirectLongsSketch.getUpdatableStorageBytes(8));
+    final DirectLongsSketch sketch = DirectLongsSketch.newInstance(64, wmem);
+    assertTrue(sketch.isEmpty());
+    assertFalse(sketch.isReadOnly());
+    assertEquals(sketch.getStreamLength(), 0);
+    assertEquals(sketch.getEstimate(1), 0);
+    assertEquals(sketch.getFrequentItems(ErrorType.NO_FALSE_POSITIVES).length, 0);
+    assertEquals(sketch.getMaximumMapCapacity(), 48);
+    assertEquals(sketch.getCurrentMapCapacity(), 6);
+    assertEquals(sketch.toByteArray(), new LongsSketch(64).toByteArray());
+    assertTrue(LongsSketch.getInstance(wmem).isEmpty());
+    assertNotNull(sketch.toString());
+    assertNotNull(LongsSketch.toString(wmem));
+  }
+
+  @Test
+  public void matchesHeapSketchWithGrowthAndPurges() {
+    final Random rand = new Random(1);
+    final LongsSketch heap = new LongsSketch(256);
+    try (WritableDirectHandle handle =
+        WritableMemory.allocateDirect(DirectLongsSketch.getUpdatableStorageBytes(8))) {
+      final WritableMemory wmem = handle.get();
+      final DirectLongsSketch sketch = DirectLongsSketch.newInstance(256, wmem);
+      for (int i = 0; i < 100000; i++) {
+        final long item = (long) (1000 * Math.pow(rand.nextDouble(), 3));
+        final long count = 1 + rand.nextInt(3);
+        heap.update(item, count);
+        sketch.update(item, count);
+      }
+      assertFalse(sketch.isSameResource(wmem)); // the sketch has moved to larger memory
+      assertEquals(sketch.getMemory().getCapacity(), DirectLongsSketch.getUpdatableStorageBytes(256));
+      assertTrue(sketch.getMaximumError() > 0);
+      assertEquals(sketch.getStreamLength(), heap.getStreamLength());
+      assertEquals(sketch.getMaximumError(), heap.getMaximumError());
+      assertEquals(sketch.getNumActiveItems(), heap.getNumActiveItems());
+      assertEquals(sketch.getStorageBytes(), heap.getStorageBytes());
+      for (long item = 0; item < 1000; item++) {
+        assertEquals(sketch.getEstimate(item), heap.getEstimate(item));
+        assertEquals(sketch.getUpperBound(item), heap.getUpperBound(item));
+        assertEquals(sketch.getLowerBound(item), heap.getLowerBound(item));
+      }
+      assertEquals(sketch.toByteArray(), heap.toByteArray());
+      assertRowsEqual(sketch.getFrequentItems(ErrorType.NO_FALSE_NEGATIVES),
+          heap.getFrequentItems(ErrorType.NO_FALSE_NEGATIVES));
+      assertRowsEqual(sketch.getFrequentItems(100, ErrorType.NO_FALSE_POSITIVES),
+          heap.getFrequentItems(100, ErrorType.NO_FALSE_POSITIVES));
+
+      // the updatable image is readable by the heap sketch
+      assertEquals(LongsSketch.getInstance(sketch.getMemory()).toByteArray(), heap.toByteArray());
+    }
+  }
+
+  @Test
+  public void growsInPlaceWhenMemoryIsLargeEnough() {
+    final WritableMemory wmem =
+        WritableMemory.allocate((int) DirectLongsSketch.getUpdatableStorageBytes(64));
+    final DirectLongsSketch sketch = DirectLongsSketch.newInstance(64, wmem);
+    final LongsSketch heap = new LongsSketch(64);
+    for (long i = 0; i < 1000; i++) {
+      sketch.update(i % 100);
+      heap.update(i % 100);
+    }
+    assertTrue(sketch.isSameResource(wmem));
+    assertEquals(sketch.toByteArray(), heap.toByteArray());
+  }
+
+  @Test
+  public void readOnlyWrapAndWritableWrap() {
+    final WritableMemory wmem =
+        WritableMemory.allocate((int) DirectLongsSketch.getUpdatableStorageBytes(32));
+    final DirectLongsSketch sketch = DirectLongsSketch.newInstance(32, wmem);
+    for (long i = 0; i < 20; i++) {
+      sketch.update(i, i + 1);
+    }
+    final DirectLongsSketch readOnly = DirectLongsSketch.wrap((Memory) wmem);
+    assertTrue(readOnly.isReadOnly());
+    assertEquals(readOnly.getEstimate(19), 20);
+    assertEquals(readOnly.getStreamLength(), sketch.getStreamLength());
+    assertEquals(readOnly.toByteArray(), sketch.toByteArray());
+
+    final DirectLongsSketch writable = DirectLongsSketch.writableWrap(wmem);
+    writable.update(19, 5);
+    assertEquals(sketch.getEstimate(19), 25);
+    assertEquals(readOnly.getEstimate(19), 25);
+
+    writable.reset();
+    assertTrue(sketch.isEmpty());
+    assertEquals(sketch.getStreamLength(), 0);
+  }
+
+  @Test(expectedExceptions = SketchesReadOnlyException.class)
+  public void updateReadOnly() {
+    final WritableMemory wmem =
+        WritableMemory.allocate((int) DirectLongsSketch.getUpdatableStorageBytes(8));
+    DirectLongsSketch.newInstance(8, wmem);
+    DirectLongsSketch.wrap((Memory) wmem).update(1);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void wrapCompactImage() {
+    final LongsSketch heap = new LongsSketch(8);
+    heap.update(1);
+    DirectLongsSketch.wrap(Memory.wrap(heap.toByteArray()));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void memoryTooSmall() {
+    DirectLongsSketch.newInstance(64, WritableMemory.allocate(100));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void negativeCount() {
+    final WritableMemory wmem =
+        WritableMemory.allocate((int) DirectLongsSketch.getUpdatableStorageBytes(8));
+    DirectLongsSketch.newInstance(8, wmem).update(1, -1);
+  }
+
+  @Test
+  public void merge() {
+    final LongsSketch heap1 = new LongsSketch(128);
+    final LongsSketch heap2 = new LongsSketch(64);
+    final DirectLongsSketch sketch1 = DirectLongsSketch.newInstance(128,
+        WritableMemory.allocate((int) DirectLongsSketch.getUpdatableStorageBytes(8)));
+    final DirectLongsSketch sketch2 = DirectLongsSketch.newInstance(64,
+        WritableMemory.allocate((int) DirectLongsSketch.getUpdatableStorageBytes(8)));
+    for (long i = 0; i < 5000; i++) {
+      heap1.update(i % 300, 1 + (i % 7));
+      sketch1.update(i % 300, 1 + (i % 7));
+      heap2.update(i % 50);
+      sketch2.update(i % 50);
+    }
+    sketch1.merge(sketch2);
+    heap1.merge(heap2);
+    assertEquals(sketch1.toByteArray(), heap1.toByteArray());
+
+    sketch1.merge(heap2);
+    heap1.merge(heap2);
+    assertEquals(sketch1.toByteArray(), heap1.toByteArray());
+    assertEquals(sketch1.getStreamLength(), heap1.getStreamLength());
+  }
+
+  private static void assertRowsEqual(final Row[] rows1, final Row[] rows2) {
+    assertEquals(rows1.length, rows2.length);
+    for (int i = 0; i < rows1.length; i++) {
+      assertEquals(rows1[i].getItem(), rows2[i].getItem());
+      assertEquals(rows1[i].getEstimate(), rows2[i].getEstimate());
+      assertEquals(rows1[i].getUpperBound(), rows2[i].getUpperBound());
+      assertEquals(rows1[i].getLowerBound(), rows2[i].getLowerBound());
+    }
+  }
+
+}
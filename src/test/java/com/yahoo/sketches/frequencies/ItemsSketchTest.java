@@ -420,4 +420,30 @@ public class ItemsSketchTest {
   static void println(String s) {
     //System.out.println(s); //disable here
   }
+
+  @Test
+  public void checkIncrementalPurge() {
+    final ItemsSketch<String> regular = new ItemsSketch<>(128);
+    final ItemsSketch<String> incremental = new ItemsSketch<>(128, true);
+    boolean sawPurging = false;
+    for (int i = 0; i < 50000; i++) {
+      final String item = Long.toString((long) (1000 * Math.pow(((i * 0.618034) % 1.0), 3)));
+      regular.update(item);
+      incremental.update(item);
+      if (incremental.getHashMap().isPurging()) {
+        sawPurging = true;
+        assertEquals(incremental.getEstimate(item), regular.getEstimate(item));
+      }
+    }
+    assertTrue(sawPurging);
+    assertEquals(incremental.getMaximumError(), regular.getMaximumError());
+    for (int item = 0; item < 1000; item++) {
+      assertEquals(incremental.getLowerBound(Integer.toString(item)),
+          regular.getLowerBound(Integer.toString(item)));
+    }
+    assertEquals(incremental.getNumActiveItems(), regular.getNumActiveItems());
+    final ItemsSketch<String> merged = new ItemsSketch<String>(128).merge(incremental);
+    assertEquals(merged.getStreamLength(), regular.getStreamLength());
+  }
+
 }
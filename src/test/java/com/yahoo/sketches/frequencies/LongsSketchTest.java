@@ -459,6 +459,122 @@ public class LongsSketchTest {
     assertTrue(fle.isEmpty());
   }
 
+  @Test
+  public void checkBulkUpdate() {
+    final long[] items = new long[40000];
+    for (int i = 0; i < items.length; i++) {
+      items[i] = (i % 7 == 0) ? i % 3 : 100 + (i % 20);
+    }
+    final LongsSketch bulk = new LongsSketch(64);
+    final LongsSketch single = new LongsSketch(64);
+    bulk.update(items, 10, items.length - 20);
+    for (int i = 10; i < (items.length - 10); i++) {
+      single.update(items[i]);
+    }
+    // only 23 distinct items, so both are exact
+    assertEquals(bulk.getStreamLength(), single.getStreamLength());
+    assertEquals(bulk.getMaximumError(), 0);
+    assertEquals(bulk.getNumActiveItems(), 23);
+    for (long item = 0; item < 120; item++) {
+      assertEquals(bulk.getEstimate(item), single.getEstimate(item));
+    }
+    bulk.update(items, 0, 0);
+    assertEquals(bulk.getStreamLength(), single.getStreamLength());
+  }
+
+  @Test
+  public void checkBulkUpdateWithPurges() {
+    final int n = 100000;
+    final long[] items = new long[n];
+    final long[] trueCounts = new long[5000];
+    for (int i = 0; i < n; i++) {
+      items[i] = (long) (5000 * Math.pow(((i * 0.618034) % 1.0), 4));
+      trueCounts[(int) items[i]]++;
+    }
+    final LongsSketch sketch = new LongsSketch(128);
+    sketch.update(items, 0, n);
+    assertEquals(sketch.getStreamLength(), n);
+    assertTrue(sketch.getMaximumError() > 0);
+    assertTrue(sketch.getMaximumError() <= LongsSketch.getAprioriError(128, n));
+    for (int item = 0; item < trueCounts.length; item++) {
+      assertTrue(sketch.getLowerBound(item) <= trueCounts[item]);
+      assertTrue(sketch.getUpperBound(item) >= trueCounts[item]);
+    }
+  }
+
+  @Test
+  public void checkWeightedBulkUpdate() {
+    final LongsSketch sketch = new LongsSketch(8);
+    sketch.update(new long[] {5, 6, 5, 7, 5}, new long[] {1, 2, 3, 0, 4});
+    assertEquals(sketch.getStreamLength(), 10);
+    assertEquals(sketch.getEstimate(5), 8);
+    assertEquals(sketch.getEstimate(6), 2);
+    assertEquals(sketch.getEstimate(7), 0);
+    try {
+      sketch.update(new long[] {1, 2}, new long[] {1, -1});
+      fail();
+    } catch (SketchesArgumentException e) {
+      assertEquals(sketch.getStreamLength(), 10); //nothing was applied
+    }
+    try {
+      sketch.update(new long[] {1, 2}, new long[] {1});
+      fail();
+    } catch (SketchesArgumentException e) {
+      //expected
+    }
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkBulkUpdateBadRange() {
+    new LongsSketch(8).update(new long[4], 2, 3);
+  }
+
+  @Test
+  public void checkIncrementalPurge() {
+    // with at most 1024 counters the median is computed from all of them in both modes
+    final LongsSketch regular = new LongsSketch(256);
+    final LongsSketch incremental = new LongsSketch(256, true);
+    boolean sawPurging = false;
+    for (int i = 0; i < 100000; i++) {
+      final long item = (long) (3000 * Math.pow(((i * 0.618034) % 1.0), 3));
+      regular.update(item, 1 + (i % 3));
+      incremental.update(item, 1 + (i % 3));
+      if (incremental.getHashMap().isPurging()) {
+        sawPurging = true;
+        // point queries during the purge see the pending offset
+        assertEquals(incremental.getEstimate(item), regular.getEstimate(item));
+        assertEquals(incremental.getLowerBound(item + 1), regular.getLowerBound(item + 1));
+      }
+    }
+    assertTrue(sawPurging);
+    assertEquals(incremental.getStreamLength(), regular.getStreamLength());
+    assertEquals(incremental.getMaximumError(), regular.getMaximumError());
+    for (long item = 0; item < 3000; item++) {
+      assertEquals(incremental.getUpperBound(item), regular.getUpperBound(item));
+    }
+    assertEquals(incremental.getNumActiveItems(), regular.getNumActiveItems());
+    assertFalse(incremental.getHashMap().isPurging());
+    assertEquals(incremental.getFrequentItems(ErrorType.NO_FALSE_POSITIVES).length,
+        regular.getFrequentItems(ErrorType.NO_FALSE_POSITIVES).length);
+    final LongsSketch copy = LongsSketch.getInstance(Memory.wrap(incremental.toByteArray()));
+    assertEquals(copy.getEstimate(0), regular.getEstimate(0));
+  }
+
+  @Test
+  public void checkMergePurgedEmpty() {
+    LongsSketch fls1 = new LongsSketch(8);
+    for (long i = 0; i < 7; i++) {
+      fls1.update(i); //the purge removes all 7 counters of equal value
+    }
+    assertTrue(fls1.isEmpty());
+    assertEquals(fls1.getStreamLength(), 7);
+    assertEquals(fls1.getMaximumError(), 1);
+    LongsSketch fls2 = new LongsSketch(8);
+    fls2.merge(fls1);
+    assertEquals(fls2.getStreamLength(), 7);
+    assertEquals(fls2.getMaximumError(), 1);
+  }
+
   @Test
   public void checkSortItems() {
     int numSketches = 1;
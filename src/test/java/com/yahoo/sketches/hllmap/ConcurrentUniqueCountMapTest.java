@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.hllmap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.Util;
+
+public class ConcurrentUniqueCountMapTest {
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkNumShardsNotPowerOf2() {
+    new ConcurrentUniqueCountMap(1000, 4, 6);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkKeySizeTooSmall() {
+    new ConcurrentUniqueCountMap(1000, 2, 4);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkWrongSizeKey() {
+    new ConcurrentUniqueCountMap(1000, 4, 4).update(new byte[] {0}, null);
+  }
+
+  @Test
+  public void checkNullKey() {
+    final ConcurrentUniqueCountMap map = new ConcurrentUniqueCountMap(1000, 4, 4);
+    assertTrue(Double.isNaN(map.update(null, null)));
+    assertTrue(Double.isNaN(map.getEstimate(null)));
+    assertTrue(Double.isNaN(map.getUpperBound(null)));
+    assertTrue(Double.isNaN(map.getLowerBound(null)));
+  }
+
+  @Test
+  public void checkMatchesSingleMap() {
+    // every key goes through the same promotions in its shard as in a single map
+    final int numKeys = 600;
+    final ConcurrentUniqueCountMap map = new ConcurrentUniqueCountMap(1000, 4, 8);
+    final UniqueCountMap single = new UniqueCountMap(1000, 4);
+    for (int k = 0; k < numKeys; k++) {
+      final byte[] key = Util.intToBytes(k, new byte[4]);
+      for (int i = 0; i <= k; i++) {
+        final byte[] id = Util.intToBytes(i, new byte[4]);
+        assertEquals(map.update(key, id), single.update(key, id));
+      }
+    }
+    assertEquals(map.getActiveEntries(), numKeys);
+    int shardEntries = 0;
+    for (int s = 0; s < map.getNumShards(); s++) {
+      final int entries = map.getShard(s).getActiveEntries();
+      assertTrue(entries > 0);
+      shardEntries += entries;
+    }
+    assertEquals(shardEntries, numKeys);
+
+    for (int k = 0; k < numKeys; k++) {
+      final byte[] key = Util.intToBytes(k, new byte[4]);
+      assertEquals(map.getEstimate(key), single.getEstimate(key));
+      assertEquals(map.getUpperBound(key), single.getUpperBound(key));
+      assertEquals(map.getLowerBound(key), single.getLowerBound(key));
+    }
+    assertTrue(map.getKeyMemoryUsageBytes() > 0);
+    assertTrue(map.getMemoryUsageBytes() > map.getKeyMemoryUsageBytes());
+    assertTrue(map.getAverageSketchMemoryPerKey() > 0);
+    assertNotNull(map.toString());
+  }
+
+  @Test
+  public void checkConcurrentUpdates() throws Exception {
+    final int numThreads = 8;
+    final int numKeys = 500;
+    final ConcurrentUniqueCountMap map = new ConcurrentUniqueCountMap(numKeys, 4, 16);
+    final UniqueCountMap[] perThread = new UniqueCountMap[numThreads];
+
+    // the identifiers of every key are spread over the threads, as behind a load balancer
+    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; t++) {
+        final int thread = t;
+        perThread[t] = new UniqueCountMap(numKeys, 4);
+        futures.add(executor.submit(() -> {
+          for (int k = 0; k < numKeys; k++) {
+            final byte[] key = Util.intToBytes(k, new byte[4]);
+            for (int i = thread; i < trueCount(k); i += numThreads) {
+              final byte[] id = Util.intToBytes(i, new byte[4]);
+              map.update(key, id);
+              perThread[thread].update(key, id);
+            }
+          }
+        }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(map.getActiveEntries(), numKeys);
+    for (int k = 0; k < numKeys; k++) {
+      final byte[] key = Util.intToBytes(k, new byte[4]);
+      final double estimate = map.getEstimate(key);
+      assertEquals(estimate, trueCount(k), 0.1 * trueCount(k));
+      assertTrue(map.getLowerBound(key) <= estimate);
+      assertTrue(map.getUpperBound(key) >= estimate);
+    }
+
+    // one shared map holds each key once, unlike one map per thread
+    long perThreadMemory = 0;
+    for (final UniqueCountMap threadMap : perThread) {
+      perThreadMemory += threadMap.getMemoryUsageBytes();
+    }
+    assertTrue(map.getMemoryUsageBytes() < perThreadMemory);
+  }
+
+  @Test
+  public void checkLongKeys() throws Exception {
+    final int numThreads = 4;
+    final int numKeys = 200;
+    final ConcurrentUniqueCountMap map = new ConcurrentUniqueCountMap(numKeys, 8, 8);
+    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; t++) {
+        final int thread = t;
+        futures.add(executor.submit(() -> {
+          for (long k = 0; k < numKeys; k++) {
+            for (int i = thread; i < trueCount((int) k); i += numThreads) {
+              map.update(k, i);
+              map.getEstimate(k);
+            }
+          }
+        }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(map.getActiveEntries(), numKeys);
+    for (long k = 0; k < numKeys; k++) {
+      final double estimate = map.getEstimate(k);
+      assertEquals(estimate, trueCount((int) k), 0.1 * trueCount((int) k));
+      // a long key is found through its little-endian bytes, so it is in the same shard
+      assertEquals(map.getEstimate(Util.longToBytes(k, new byte[8])), estimate);
+    }
+    assertEquals(map.getEstimate(-1L), 0.0);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkLongKeyWrongKeySize() {
+    new ConcurrentUniqueCountMap(1000, 4, 4).update(1L, 1L);
+  }
+
+  private static int trueCount(final int key) {
+    return ((key % 16) + 1) * 256;
+  }
+
+}
@@ -22,6 +22,8 @@ package com.yahoo.sketches.hllmap;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.SketchesArgumentException;
 import com.yahoo.sketches.Util;
 
 public class HllMapTest {
@@ -116,6 +118,38 @@ public class HllMapTest {
     //println(map.toString());
   }
 
+  @Test
+  public void heapMemoryBoundsHllMapSize() {
+    HllMap map = HllMap.getInstance(8, 1024);
+    long maxKeys = (long) (Map.MAX_HEAP_MEMORY_BYTES / map.getEntrySizeBytes());
+    Assert.assertTrue(Map.MAX_HEAP_MEMORY_BYTES > (7L * Integer.MAX_VALUE));
+    Assert.assertTrue(maxKeys > 20_000_000L);
+    try {
+      Map.DEFAULT_MEM_REQ_SVR.request(Map.MAX_HEAP_MEMORY_BYTES + 1);
+      Assert.fail();
+    } catch (SketchesArgumentException e) {
+      //expected
+    }
+    WritableMemory mem = Map.DEFAULT_MEM_REQ_SVR.request(13);
+    Assert.assertEquals(mem.getCapacity(), 16);
+  }
+
+  @Test
+  public void keyEqualsAllLengths() {
+    for (int len = 1; len <= 20; len++) {
+      byte[] key = new byte[len];
+      for (int i = 0; i < len; i++) { key[i] = (byte) (0X80 + (i * 7)); }
+      WritableMemory mem = WritableMemory.allocate(len + 3);
+      mem.putByteArray(3, key, 0, len);
+      Assert.assertTrue(Map.keyEquals(mem, 3, key));
+      for (int i = 0; i < len; i++) {
+        mem.putByte(3 + i, (byte) (key[i] ^ 1));
+        Assert.assertFalse(Map.keyEquals(mem, 3, key));
+        mem.putByte(3 + i, key[i]);
+      }
+    }
+  }
+
   @Test
   public void printlnTest() {
     println("PRINTING: "+this.getClass().getName());
@@ -22,10 +22,22 @@ package com.yahoo.sketches.hllmap;
 import static com.yahoo.sketches.hash.MurmurHash3.hash;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.yahoo.memory.MapHandle;
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableDirectHandle;
+import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesReadOnlyException;
 import com.yahoo.sketches.Util;
 
 public class UniqueCountMapTest {
@@ -182,6 +194,436 @@ public class UniqueCountMapTest {
   }
 
 
+  @Test
+  public void serializeEmpty() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    byte[] bytes = map.toByteArray();
+    Assert.assertEquals(bytes.length, map.getSerializedSizeBytes());
+    UniqueCountMap map2 = UniqueCountMap.heapify(Memory.wrap(bytes));
+    Assert.assertEquals(map2.getActiveEntries(), 0);
+    Assert.assertEquals(map2.getActiveMaps(), 1);
+    Assert.assertEquals(map2.toByteArray(), bytes);
+  }
+
+  @Test
+  public void serializeAllLevels() {
+    final int numKeys = 600;
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, numKeys, 0); // key i gets i distinct values, which reaches the HLL level
+    Assert.assertEquals(map.getActiveMaps(), 10);
+
+    byte[] bytes = map.toByteArray();
+    Assert.assertEquals(bytes.length, map.getSerializedSizeBytes());
+    UniqueCountMap map2 = UniqueCountMap.heapify(Memory.wrap(bytes));
+    Assert.assertEquals(map2.toByteArray(), bytes);
+    Assert.assertEquals(map2.getActiveEntries(), numKeys);
+    Assert.assertEquals(map2.getMemoryUsageBytes(), map.getMemoryUsageBytes());
+    checkSameEstimates(map2, map, numKeys);
+
+    // both copies evolve identically, including promotions, deletes and resizes
+    updateKeys(map, numKeys, 10000);
+    updateKeys(map2, numKeys, 10000);
+    checkSameEstimates(map2, map, numKeys);
+    Assert.assertEquals(map2.toByteArray(), map.toByteArray());
+
+    // writing into a larger region
+    WritableMemory mem = WritableMemory.allocate((int) map.getSerializedSizeBytes() + 64);
+    map.writeTo(mem);
+    checkSameEstimates(UniqueCountMap.heapify(mem), map, numKeys);
+  }
+
+  @Test
+  public void wrapAllLevels() throws IOException {
+    final int numKeys = 600;
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, numKeys, 0);
+    byte[] bytes = map.toByteArray();
+
+    File file = File.createTempFile("UniqueCountMap", ".bin");
+    file.deleteOnExit();
+    Files.write(file.toPath(), bytes);
+    try (MapHandle handle = Memory.map(file)) {
+      UniqueCountMap wrapped = UniqueCountMap.wrap(handle.get());
+      Assert.assertEquals(wrapped.getActiveMaps(), 10);
+      Assert.assertEquals(wrapped.getActiveEntries(), numKeys);
+      Assert.assertEquals(wrapped.getMemoryUsageBytes(), map.getMemoryUsageBytes());
+      Assert.assertEquals(wrapped.toByteArray(), bytes);
+      checkSameEstimates(wrapped, map, numKeys);
+      Assert.assertEquals(wrapped.topKeys(5), map.topKeys(5));
+      Assert.assertEquals(wrapped.keysAbove(100).length, map.keysAbove(100).length);
+
+      // a wrapped map can be merged into another map
+      UniqueCountMap merged = new UniqueCountMap(INIT_ENTRIES, 4);
+      merged.merge(wrapped);
+      UniqueCountMap expected = new UniqueCountMap(INIT_ENTRIES, 4);
+      expected.merge(map);
+      Assert.assertEquals(merged.toByteArray(), expected.toByteArray());
+
+      try {
+        wrapped.update(Util.intToBytes(1, new byte[4]), Util.intToBytes(1, new byte[4]));
+        Assert.fail();
+      } catch (SketchesReadOnlyException e) {
+        //expected
+      }
+      try {
+        wrapped.merge(expected);
+        Assert.fail();
+      } catch (SketchesReadOnlyException e) {
+        //expected
+      }
+      wrapped.close();
+    }
+  }
+
+  @Test(expectedExceptions = SketchesReadOnlyException.class)
+  public void wrapLongKeyUpdate() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 8);
+    map.update(1L, 2L);
+    UniqueCountMap wrapped = UniqueCountMap.wrap(Memory.wrap(map.toByteArray()));
+    Assert.assertEquals(wrapped.getEstimate(1L), 1.0);
+    wrapped.update(1L, 3L);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void wrapTruncated() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, 100, 0);
+    byte[] bytes = map.toByteArray();
+    UniqueCountMap.wrap(Memory.wrap(Arrays.copyOf(bytes, bytes.length - 8)));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void serializeTruncated() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, 50, 0);
+    byte[] bytes = map.toByteArray();
+    UniqueCountMap.heapify(Memory.wrap(Arrays.copyOf(bytes, bytes.length - 8)));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void serializeWrongSerVer() {
+    byte[] bytes = new UniqueCountMap(INIT_ENTRIES, 4).toByteArray();
+    bytes[1] = 2;
+    UniqueCountMap.heapify(Memory.wrap(bytes));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void writeToTooSmall() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    map.writeTo(WritableMemory.allocate((int) map.getSerializedSizeBytes() - 8));
+  }
+
+  // presents key i, for i in 1..numKeys, with i distinct values starting at the given offset
+  @Test
+  public void offHeapAllLevels() {
+    final int numKeys = 600;
+    DirectMemoryServer server = new DirectMemoryServer();
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4, server);
+    UniqueCountMap heapMap = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, numKeys, 0);
+    updateKeys(heapMap, numKeys, 0);
+    Assert.assertEquals(map.getActiveMaps(), 10);
+    checkSameEstimates(map, heapMap, numKeys);
+    Assert.assertEquals(map.toByteArray(), heapMap.toByteArray());
+    Assert.assertEquals(map.getMemoryUsageBytes(), heapMap.getMemoryUsageBytes());
+
+    // resizing returned the old tables, so only the current table of each level is live
+    Assert.assertTrue(server.requests > 10);
+    Assert.assertEquals(server.handles.size(), 10);
+    for (WritableMemory mem : server.handles.keySet()) {
+      Assert.assertTrue(mem.isDirect());
+    }
+
+    // off-heap copy of an image
+    UniqueCountMap map2 = UniqueCountMap.heapify(Memory.wrap(heapMap.toByteArray()), server);
+    Assert.assertEquals(server.handles.size(), 20);
+    updateKeys(map2, numKeys, 10000);
+    updateKeys(heapMap, numKeys, 10000);
+    checkSameEstimates(map2, heapMap, numKeys);
+
+    map.close();
+    map2.close();
+    Assert.assertTrue(server.handles.isEmpty());
+  }
+
+  @Test
+  public void offHeapHeapifyCorruptReleasesMemory() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, 20, 0);
+    WritableMemory mem = WritableMemory.wrap(map.toByteArray());
+    // invalid coupons per entry in the section of level 1, which follows the base map
+    mem.putInt(16 + map.getBaseMap().getSerializedSizeBytes() + Map.MAX_COUPONS_INT, 4);
+    DirectMemoryServer server = new DirectMemoryServer();
+    try {
+      UniqueCountMap.heapify(mem, server);
+      Assert.fail();
+    } catch (SketchesArgumentException e) {
+      // expected
+    }
+    Assert.assertTrue(server.requests > 0); // the base map was read
+    Assert.assertTrue(server.handles.isEmpty());
+  }
+
+  @Test
+  public void mergeSameMapIsNoOp() {
+    final int numKeys = 600;
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, numKeys, 0);
+    UniqueCountMap copy = UniqueCountMap.heapify(Memory.wrap(map.toByteArray()));
+    // every coupon is a duplicate and no register changes
+    map.merge(copy);
+    map.merge(map);
+    map.merge(null);
+    checkSameEstimates(map, copy, numKeys);
+    Assert.assertEquals(map.getActiveEntries(), numKeys);
+  }
+
+  @Test
+  public void mergeWithoutRegisterChangeKeepsHipEstimate() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    UniqueCountMap subset = new UniqueCountMap(INIT_ENTRIES, 4);
+    byte[] key = Util.intToBytes(1, new byte[4]);
+    byte[] id = new byte[8];
+    for (int j = 0; j < 5000; j++) {
+      id = Util.longToBytes(j, id);
+      map.update(key, id);
+      if (j < 2000) { subset.update(key, id); } // also reaches the HLL map
+    }
+    final double hipEstimate = map.getEstimate(key);
+
+    // no register of the key is raised, so its HIP estimate is kept
+    map.merge(subset);
+    Assert.assertEquals(map.getEstimate(key), hipEstimate);
+
+    // merging into an empty map raises registers and switches to the register estimate,
+    // merging that back raises none
+    UniqueCountMap merged = new UniqueCountMap(INIT_ENTRIES, 4);
+    merged.merge(map);
+    Assert.assertEquals(merged.getEstimate(key), 5000, 500);
+    map.merge(merged);
+    Assert.assertEquals(map.getEstimate(key), hipEstimate);
+  }
+
+  @Test
+  public void mergeOverlapping() {
+    final int numKeys = 600;
+    UniqueCountMap map1 = new UniqueCountMap(INIT_ENTRIES, 4);
+    UniqueCountMap map2 = new UniqueCountMap(INIT_ENTRIES, 4);
+    UniqueCountMap union = new UniqueCountMap(INIT_ENTRIES, 4);
+    byte[] key = new byte[4];
+    byte[] id = new byte[8];
+    // key i has ids [0, i) in map1 and [i / 2, i / 2 + i) in map2, keys beyond numKeys only in map2
+    for (int i = 1; i <= (numKeys + 100); i++) {
+      key = Util.intToBytes(i, key);
+      for (int j = 0; j < ((3 * i) / 2); j++) {
+        id = Util.longToBytes(((long) i << 32) | j, id);
+        final boolean inMap1 = (j < i) && (i <= numKeys);
+        final boolean inMap2 = j >= (i / 2);
+        if (inMap1) { map1.update(key, id); }
+        if (inMap2) { map2.update(key, id); }
+        if (inMap1 || inMap2) { union.update(key, id); }
+      }
+    }
+    map1.merge(map2);
+    Assert.assertEquals(map1.getActiveEntries(), numKeys + 100);
+    for (int i = 1; i <= (numKeys + 100); i++) {
+      key = Util.intToBytes(i, key);
+      final int trueCount = ((3 * i) / 2) - ((i <= numKeys) ? 0 : i / 2);
+      final double estimate = map1.getEstimate(key);
+      Assert.assertEquals(estimate, trueCount, Math.max(1, 0.1 * trueCount), "key " + i);
+      Assert.assertEquals(estimate, union.getEstimate(key), Math.max(1, 0.1 * trueCount));
+      Assert.assertTrue(map1.getLowerBound(key) <= estimate);
+      Assert.assertTrue(map1.getUpperBound(key) >= estimate);
+    }
+
+    // the merged map keeps counting
+    key = Util.intToBytes(1, key);
+    id = Util.longToBytes(-1L, id);
+    Assert.assertEquals(map1.update(key, id), 2.0);
+  }
+
+  @Test
+  public void mergeIntoEmptyOffHeap() {
+    final int numKeys = 600;
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, numKeys, 0);
+    DirectMemoryServer server = new DirectMemoryServer();
+    UniqueCountMap merged = new UniqueCountMap(INIT_ENTRIES, 4, server);
+    merged.merge(map);
+    Assert.assertEquals(merged.getActiveEntries(), numKeys);
+    byte[] key = new byte[4];
+    for (int i = 1; i <= numKeys; i++) {
+      key = Util.intToBytes(i, key);
+      Assert.assertEquals(merged.getEstimate(key), map.getEstimate(key), Math.max(1, 0.1 * i));
+    }
+    merged.close();
+    Assert.assertTrue(server.handles.isEmpty());
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void mergeKeySizeMismatch() {
+    new UniqueCountMap(INIT_ENTRIES, 4).merge(new UniqueCountMap(INIT_ENTRIES, 8));
+  }
+
+  @Test
+  public void topKeysAndKeysAbove() {
+    final int numKeys = 2000;
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, numKeys, 0);
+    double[] estimates = new double[numKeys];
+    byte[] key = new byte[4];
+    for (int i = 1; i <= numKeys; i++) {
+      estimates[i - 1] = map.getEstimate(Util.intToBytes(i, key));
+    }
+    Arrays.sort(estimates);
+
+    for (int n : new int[] {1, 10, 500, numKeys, numKeys + 1}) {
+      UniqueCountMap.Row[] rows = map.topKeys(n);
+      Assert.assertEquals(rows.length, Math.min(n, numKeys));
+      for (int i = 0; i < rows.length; i++) {
+        Assert.assertEquals(rows[i].getEstimate(), estimates[numKeys - 1 - i]);
+        checkRow(map, rows[i]);
+      }
+    }
+
+    for (double threshold : new double[] {-1, 0, 1, 8, 100, 1500, 1e6}) {
+      UniqueCountMap.Row[] rows = map.keysAbove(threshold);
+      int count = 0;
+      for (double estimate : estimates) {
+        if (estimate > threshold) { count++; }
+      }
+      Assert.assertEquals(rows.length, count);
+      for (int i = 0; i < rows.length; i++) {
+        Assert.assertEquals(rows[i].getEstimate(), estimates[numKeys - 1 - i]);
+        checkRow(map, rows[i]);
+      }
+    }
+    Assert.assertNotNull(UniqueCountMap.Row.getRowHeader());
+  }
+
+  @Test
+  public void topKeysOfUnpromotedKeys() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, 3, 0);
+    // key 2 and key 3 are in the first traverse map, key 1 stays in the base map
+    UniqueCountMap.Row[] rows = map.topKeys(2);
+    Assert.assertEquals(rows.length, 2);
+    Assert.assertEquals(rows[0].getKey(), Util.intToBytes(3, new byte[4]));
+    Assert.assertEquals(rows[0].getEstimate(), 3.0);
+    Assert.assertEquals(rows[1].getKey(), Util.intToBytes(2, new byte[4]));
+    Assert.assertEquals(rows[1].getEstimate(), 2.0);
+    Assert.assertEquals(map.topKeys(3)[2].getEstimate(), 1.0);
+    Assert.assertEquals(map.keysAbove(1).length, 2);
+    Assert.assertEquals(new UniqueCountMap(INIT_ENTRIES, 4).topKeys(5).length, 0);
+  }
+
+  @Test
+  public void maxEntryEstimatesBoundAllEntries() {
+    UniqueCountMap map = new UniqueCountMap(INIT_ENTRIES, 4);
+    updateKeys(map, 1000, 0);
+    updateKeys(map, 1000, 1000); // duplicates of the same keys
+    for (int level = 0; level < 10; level++) {
+      Map levelMap = map.getMap(level);
+      if (levelMap == null) { continue; }
+      for (int i = 0; i < levelMap.getTableEntries(); i++) {
+        if (levelMap.isActive(i)) {
+          Assert.assertTrue(levelMap.getEntryEstimate(i) <= levelMap.getMaxEntryEstimate());
+        }
+      }
+    }
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void topKeysInvalidN() {
+    new UniqueCountMap(INIT_ENTRIES, 4).topKeys(0);
+  }
+
+  private static void checkRow(UniqueCountMap map, UniqueCountMap.Row row) {
+    Assert.assertEquals(row.getEstimate(), map.getEstimate(row.getKey()));
+    Assert.assertEquals(row.getUpperBound(), map.getUpperBound(row.getKey()));
+    Assert.assertEquals(row.getLowerBound(), map.getLowerBound(row.getKey()));
+    Assert.assertNotNull(row.toString());
+  }
+
+  @Test
+  public void longKeysMatchByteKeys() {
+    final int numKeys = 1500;
+    UniqueCountMap longMap = new UniqueCountMap(INIT_ENTRIES, 8);
+    UniqueCountMap bytesMap = new UniqueCountMap(INIT_ENTRIES, 8);
+    byte[] key = new byte[8];
+    byte[] id = new byte[8];
+    for (int i = 1; i <= numKeys; i++) {
+      final long longKey = ((long) i << 40) ^ -i;
+      key = Util.longToBytes(longKey, key);
+      for (int j = 0; j < i; j++) {
+        final long longId = ((long) i << 32) | j;
+        Assert.assertEquals(longMap.update(longKey, longId),
+            bytesMap.update(key, Util.longToBytes(longId, id)));
+      }
+    }
+    // same keys in the same slots of the same maps
+    Assert.assertEquals(longMap.toByteArray(), bytesMap.toByteArray());
+    for (int i = 1; i <= numKeys; i++) {
+      final long longKey = ((long) i << 40) ^ -i;
+      key = Util.longToBytes(longKey, key);
+      Assert.assertEquals(longMap.getEstimate(longKey), bytesMap.getEstimate(key));
+      Assert.assertEquals(longMap.getEstimate(key), bytesMap.getEstimate(key));
+    }
+    Assert.assertEquals(longMap.getEstimate(0L), 0.0);
+
+    // both kinds of updates count the same identifiers once
+    final long longKey = (1L << 40) ^ -1;
+    Assert.assertEquals(bytesMap.update(longKey, 1L << 32), 1.0);
+    Assert.assertEquals(bytesMap.update(longKey, 7L), 2.0);
+    Assert.assertEquals(bytesMap.update(Util.longToBytes(longKey, key), Util.longToBytes(7L, id)),
+        2.0);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void longKeyWrongKeySize() {
+    new UniqueCountMap(INIT_ENTRIES, 4).update(1L, 1L);
+  }
+
+  // allocates off-heap memory and tracks the memory that has not been returned
+  private static class DirectMemoryServer implements MemoryRequestServer {
+    final IdentityHashMap<WritableMemory, WritableDirectHandle> handles = new IdentityHashMap<>();
+    int requests = 0;
+
+    @Override
+    public WritableMemory request(long capacityBytes) {
+      WritableDirectHandle handle = WritableMemory.allocateDirect(capacityBytes, this);
+      handles.put(handle.get(), handle);
+      requests++;
+      return handle.get();
+    }
+
+    @Override
+    public void requestClose(WritableMemory memToClose, WritableMemory newMemory) {
+      handles.remove(memToClose).close();
+    }
+  }
+
+  static void updateKeys(UniqueCountMap map, int numKeys, int valueOffset) {
+    byte[] key = new byte[4];
+    byte[] id = new byte[8];
+    for (int i = 1; i <= numKeys; i++) {
+      key = Util.intToBytes(i, key);
+      for (int j = 0; j < i; j++) {
+        id = Util.longToBytes(((long) i << 32) | (valueOffset + j), id);
+        map.update(key, id);
+      }
+    }
+  }
+
+  static void checkSameEstimates(UniqueCountMap actual, UniqueCountMap expected, int numKeys) {
+    byte[] key = new byte[4];
+    for (int i = 1; i <= numKeys; i++) {
+      key = Util.intToBytes(i, key);
+      Assert.assertEquals(actual.getEstimate(key), expected.getEstimate(key));
+      Assert.assertEquals(actual.getUpperBound(key), expected.getUpperBound(key));
+      Assert.assertEquals(actual.getLowerBound(key), expected.getLowerBound(key));
+    }
+  }
 
   @Test
   public void printlnTest() {
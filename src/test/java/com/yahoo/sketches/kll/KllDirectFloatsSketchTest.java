@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.kll;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableDirectHandle;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesReadOnlyException;
+
+public class KllDirectFloatsSketchTest {
+
+  private static final double PMF_EPS_FOR_K_200 = 0.0165;
+
+  @Test
+  public void empty() {
+    final WritableMemory wmem =
+        WritableMemory.allocate(KllDirectFloatsSketch.getUpdatableStorageBytes(200));
+    final KllDirectFloatsSketch sketch = KllDirectFloatsSketch.newInstance(200, wmem);
+    sketch.update(Float.NaN); // this must not change anything
+    assertTrue(sketch.isEmpty());
+    assertFalse(sketch.isReadOnly());
+    assertEquals(sketch.getN(), 0);
+    assertEquals(sketch.getNumRetained(), 0);
+    assertTrue(Double.isNaN(sketch.getRank(0)));
+    assertTrue(Float.isNaN(sketch.getMinValue()));
+    assertTrue(Float.isNaN(sketch.getMaxValue()));
+    assertTrue(Float.isNaN(sketch.getQuantile(0.5)));
+    assertNull(sketch.getQuantiles(new double[] {0}));
+    assertNull(sketch.getPMF(new float[] {0}));
+    assertNotNull(sketch.toString());
+    assertTrue(KllFloatsSketch.heapify(wmem).isEmpty());
+  }
+
+  @Test
+  public void manyItemsGrowingDirectMemory() {
+    final int n = 100000;
+    final int initBytes = KllDirectFloatsSketch.getUpdatableStorageBytes(200);
+    try (WritableDirectHandle handle = WritableMemory.allocateDirect(initBytes)) {
+      final WritableMemory wmem = handle.get();
+      final KllDirectFloatsSketch sketch = KllDirectFloatsSketch.newInstance(200, wmem);
+      for (int i = 0; i < n; i++) {
+        sketch.update(i);
+      }
+      assertEquals(sketch.getN(), n);
+      assertTrue(sketch.isEstimationMode());
+      assertFalse(sketch.isSameResource(wmem)); // the sketch has moved to larger memory
+      assertEquals(sketch.getMinValue(), 0f);
+      assertEquals(sketch.getMaxValue(), n - 1f);
+      assertEquals(sketch.getQuantile(0.5), n / 2, n * PMF_EPS_FOR_K_200);
+      assertEquals(sketch.getRank(n / 4), 0.25, PMF_EPS_FOR_K_200);
+      final double[] cdf = sketch.getCDF(new float[] {n / 2});
+      assertEquals(cdf[0], 0.5, PMF_EPS_FOR_K_200);
+      assertEquals(cdf[1], 1.0);
+
+      // the image must agree with a heapified copy
+      final KllFloatsSketch heap = KllFloatsSketch.heapify(sketch.getMemory());
+      assertEquals(heap.getN(), n);
+      assertEquals(heap.getNumRetained(), sketch.getNumRetained());
+      assertEquals(heap.getQuantile(0.5), sketch.getQuantile(0.5));
+      assertEquals(heap.getRank(n / 3), sketch.getRank(n / 3));
+      assertEquals(heap.toByteArray(), sketch.toByteArray());
+
+      long totalWeight = 0;
+      final KllFloatsSketchIterator it = sketch.iterator();
+      while (it.next()) {
+        totalWeight += it.getWeight();
+      }
+      assertEquals(totalWeight, n);
+    }
+  }
+
+  @Test
+  public void continueUpdatingHeapSketch() {
+    final KllFloatsSketch heap = new KllFloatsSketch();
+    for (int i = 0; i < 1000; i++) {
+      heap.update(i);
+    }
+    final WritableMemory wmem = WritableMemory.wrap(heap.toUpdatableByteArray());
+    final KllDirectFloatsSketch sketch = KllDirectFloatsSketch.writableWrap(wmem);
+    assertEquals(sketch.getN(), 1000);
+    assertEquals(sketch.getQuantile(0.5), heap.getQuantile(0.5));
+    for (int i = 1000; i < 2000; i++) {
+      sketch.update(i);
+    }
+    assertEquals(sketch.getN(), 2000);
+    assertEquals(sketch.getMaxValue(), 1999f);
+    assertEquals(sketch.getQuantile(0.5), 1000, 2000 * PMF_EPS_FOR_K_200);
+  }
+
+  @Test
+  public void wrapCompactReadOnly() {
+    final KllFloatsSketch heap = new KllFloatsSketch();
+    final KllDirectFloatsSketch empty = KllDirectFloatsSketch.wrap(Memory.wrap(heap.toByteArray()));
+    assertTrue(empty.isEmpty());
+    assertTrue(empty.isReadOnly());
+
+    heap.update(1);
+    final KllDirectFloatsSketch single = KllDirectFloatsSketch.wrap(Memory.wrap(heap.toByteArray()));
+    assertEquals(single.getN(), 1);
+    assertEquals(single.getMinValue(), 1f);
+    assertEquals(single.getMaxValue(), 1f);
+    assertEquals(single.getQuantile(0.5), 1f);
+
+    for (int i = 2; i <= 10000; i++) {
+      heap.update(i);
+    }
+    final byte[] bytes = heap.toByteArray();
+    final KllDirectFloatsSketch sketch = KllDirectFloatsSketch.wrap(Memory.wrap(bytes));
+    assertEquals(sketch.getN(), heap.getN());
+    assertEquals(sketch.getNumRetained(), heap.getNumRetained());
+    assertEquals(sketch.getMinValue(), heap.getMinValue());
+    assertEquals(sketch.getMaxValue(), heap.getMaxValue());
+    assertEquals(sketch.getQuantiles(10), heap.getQuantiles(10));
+    assertEquals(sketch.getRank(5000), heap.getRank(5000));
+    assertEquals(sketch.getRanks(new float[] {5000, 100}), heap.getRanks(new float[] {5000, 100}));
+    assertEquals(sketch.getPMF(new float[] {100, 5000}), heap.getPMF(new float[] {100, 5000}));
+    assertEquals(sketch.getNormalizedRankError(false), heap.getNormalizedRankError(false));
+    assertEquals(sketch.toByteArray(), bytes);
+  }
+
+  @Test(expectedExceptions = SketchesReadOnlyException.class)
+  public void updateReadOnly() {
+    final KllFloatsSketch heap = new KllFloatsSketch();
+    heap.update(1);
+    KllDirectFloatsSketch.wrap(Memory.wrap(heap.toUpdatableByteArray())).update(2);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void writableWrapCompact() {
+    final KllFloatsSketch heap = new KllFloatsSketch();
+    heap.update(1);
+    KllDirectFloatsSketch.writableWrap(WritableMemory.wrap(heap.toByteArray()));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void memoryTooSmall() {
+    KllDirectFloatsSketch.newInstance(200, WritableMemory.allocate(100));
+  }
+
+  @Test
+  public void merge() {
+    final int n = 10000;
+    final KllDirectFloatsSketch sketch1 = KllDirectFloatsSketch.newInstance(200,
+        WritableMemory.allocate(KllDirectFloatsSketch.getUpdatableStorageBytes(200)));
+    final KllDirectFloatsSketch sketch2 = KllDirectFloatsSketch.newInstance(200,
+        WritableMemory.allocate(KllDirectFloatsSketch.getMaxUpdatableStorageBytes(200, n)));
+    for (int i = 0; i < n; i++) {
+      sketch1.update(i);
+      sketch2.update((2 * n) - i - 1);
+    }
+    sketch1.merge(sketch2);
+    assertEquals(sketch1.getN(), 2 * n);
+    assertEquals(sketch1.getMinValue(), 0f);
+    assertEquals(sketch1.getMaxValue(), (2 * n) - 1f);
+    assertEquals(sketch1.getQuantile(0.5), n, n * PMF_EPS_FOR_K_200);
+
+    // continue updating after merge
+    for (int i = 0; i < n; i++) {
+      sketch1.update(i);
+    }
+    assertEquals(sketch1.getN(), 3 * n);
+    assertEquals(sketch1.getRank(n), 2.0 / 3, PMF_EPS_FOR_K_200);
+  }
+
+}
@@ -151,6 +151,92 @@ public class KllFloatsSketchTest {
     assertEquals(ranks[n], 1.0, NUMERIC_NOISE_TOLERANCE);
   }
 
+  @Test
+  public void getRanksMatchesScanOfLevels() {
+    final KllFloatsSketch sketch = new KllFloatsSketch();
+    final int n = 100000;
+    for (int i = 0; i < n; i++) {
+      sketch.update(i);
+    }
+    final float[] values = {n, -1, 0, n / 2, 17, n - 1, n / 3};
+    final double[] ranks = sketch.getRanks(values);
+    assertEquals(ranks.length, values.length);
+    for (int i = 0; i < values.length; i++) {
+      final double scanned = KllHelper.getRank(sketch.getItems(), sketch.getLevels(),
+          sketch.getNumLevels(), false, n, values[i]);
+      assertEquals(ranks[i], scanned, 0.0);
+      assertEquals(ranks[i], sketch.getRank(values[i]), 0.0);
+    }
+    assertNull(new KllFloatsSketch().getRanks(values));
+  }
+
+  @Test
+  public void sortedViewIsInvalidatedOnUpdateAndMerge() {
+    final KllFloatsSketch sketch = new KllFloatsSketch();
+    for (int i = 0; i < 10; i++) {
+      sketch.update(i);
+    }
+    assertEquals(sketch.getRank(5), 0.5);
+    assertEquals(sketch.getQuantile(0.95), 9f);
+    for (int i = 10; i < 20; i++) {
+      sketch.update(i);
+    }
+    assertEquals(sketch.getRank(5), 0.25);
+    assertEquals(sketch.getQuantile(0.95), 19f);
+    final KllFloatsSketch other = new KllFloatsSketch();
+    for (int i = 0; i < 20; i++) {
+      other.update(100 + i);
+    }
+    sketch.merge(other);
+    assertEquals(sketch.getRank(20), 0.5);
+    assertEquals(sketch.getCDF(new float[] {20})[0], 0.5);
+    assertEquals(sketch.getQuantile(0.95), 118f);
+  }
+
+  @Test
+  public void bulkUpdate() {
+    final int n = 100000;
+    final float[] values = new float[n + 2];
+    for (int i = 0; i < n; i++) {
+      values[i + 1] = i;
+    }
+    values[0] = -5; // outside of the range that is used
+    values[n / 2] = Float.NaN; // ignored
+    values[n + 1] = 1e9f; // outside of the range that is used
+    final KllFloatsSketch sketch = new KllFloatsSketch();
+    sketch.update(-1);
+    sketch.update(values, 1, 1000);
+    sketch.update(values, 1001, n - 1000);
+    assertEquals(sketch.getN(), n);
+    assertEquals(sketch.getMinValue(), -1f);
+    assertEquals(sketch.getMaxValue(), n - 1f);
+    assertEquals(KllHelper.sumTheSampleWeights(sketch.getNumLevels(), sketch.getLevels()), n);
+    assertEquals(sketch.getQuantile(0.5), n / 2, n * PMF_EPS_FOR_K_256);
+    assertEquals(sketch.getRank(n / 4), 0.25, PMF_EPS_FOR_K_256);
+
+    final KllFloatsSketch single = new KllFloatsSketch();
+    for (int i = 1; i <= n; i++) {
+      single.update(values[i]);
+    }
+    single.update(-1);
+    assertEquals(sketch.getNumLevels(), single.getNumLevels());
+    assertEquals(sketch.getNumRetained(), single.getNumRetained());
+  }
+
+  @Test
+  public void bulkUpdateOnlyNaNs() {
+    final KllFloatsSketch sketch = new KllFloatsSketch();
+    sketch.update(new float[] {Float.NaN, Float.NaN}, 0, 2);
+    sketch.update(new float[0], 0, 0);
+    assertTrue(sketch.isEmpty());
+    assertTrue(Float.isNaN(sketch.getMinValue()));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void bulkUpdateOutOfRange() {
+    new KllFloatsSketch().update(new float[10], 5, 6);
+  }
+
   @Test
   public void floorLog2() {
     assertEquals(KllHelper.floorOfLog2OfFraction(0, 1), 0);
@@ -425,4 +511,67 @@ public class KllFloatsSketchTest {
     assertEquals(quantiles1[2], 3f);
   }
 
+  @Test
+  public void sameSeedGivesSameSketch() {
+    final KllFloatsSketch sketch1 = new KllFloatsSketch(200, 12345L);
+    final KllFloatsSketch sketch2 = new KllFloatsSketch(200, 12345L);
+    for (int i = 0; i < 100000; i++) {
+      sketch1.update(i);
+      sketch2.update(i);
+    }
+    assertEquals(sketch1.toByteArray(), sketch2.toByteArray());
+  }
+
+  @Test
+  public void weightedUpdate() {
+    final KllFloatsSketch sketch = new KllFloatsSketch();
+    sketch.update(1, 3);
+    sketch.update(2, 5);
+    sketch.update(Float.NaN, 7); // this must not change anything
+    assertEquals(sketch.getN(), 8);
+    assertEquals(sketch.getNumRetained(), 4);
+    assertEquals(sketch.getMinValue(), 1f);
+    assertEquals(sketch.getMaxValue(), 2f);
+    assertEquals(sketch.getRank(2), 3.0 / 8);
+    assertEquals(sketch.getRank(3), 1.0);
+  }
+
+  @Test
+  public void weightedUpdateMatchesRepeatedUpdates() {
+    final int n = 1000;
+    final KllFloatsSketch weighted = new KllFloatsSketch();
+    long totalWeight = 0;
+    for (int i = 0; i < n; i++) {
+      weighted.update(i, i + 1);
+      totalWeight += i + 1;
+    }
+    weighted.update(n, 1L << 40);
+    assertEquals(weighted.getN(), totalWeight + (1L << 40));
+    assertEquals(weighted.getMinValue(), 0f);
+    assertEquals(weighted.getMaxValue(), (float) n);
+    // the last value holds almost all of the weight
+    assertEquals(weighted.getQuantile(0.5), (float) n);
+    assertEquals(weighted.getRank(n), (double) totalWeight / weighted.getN(), PMF_EPS_FOR_K_128);
+
+    long iteratedWeight = 0;
+    final KllFloatsSketchIterator it = weighted.iterator();
+    while (it.next()) {
+      iteratedWeight += it.getWeight();
+    }
+    assertEquals(iteratedWeight, weighted.getN());
+
+    // value i has rank i * (i + 1) / 2 among the first n values
+    final KllFloatsSketch small = new KllFloatsSketch();
+    for (int i = 0; i < n; i++) {
+      small.update(i, i + 1);
+    }
+    final double expectedRank = ((n / 2.0) * ((n / 2.0) + 1)) / 2 / totalWeight;
+    assertEquals(small.getRank(n / 2), expectedRank, PMF_EPS_FOR_K_128);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void weightedUpdateZeroWeight() {
+    new KllFloatsSketch().update(1, 0);
+  }
+
 }
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.sketches.ArrayOfStringsSerDe;
+
+public class BytesQuantilesSketchTest {
+
+  @Test
+  public void empty() {
+    final BytesQuantilesSketch sketch = BytesQuantilesSketch.getInstance();
+    sketch.update((String) null);
+    sketch.update((byte[]) null);
+    assertTrue(sketch.isEmpty());
+    assertTrue(Double.isNaN(sketch.getRank("a")));
+    assertNull(sketch.getQuantiles(3));
+    assertTrue(sketch.toString().length() > 0);
+    assertTrue(BytesQuantilesSketch.heapify(Memory.wrap(sketch.toByteArray())).isEmpty());
+  }
+
+  @Test
+  public void unsignedLexicographicOrder() {
+    assertTrue(BytesQuantilesSketch.compare(new byte[] {1}, new byte[] {(byte) 0x80}) < 0);
+    assertTrue(BytesQuantilesSketch.compare(new byte[] {1}, new byte[] {1, 0}) < 0);
+    assertEquals(BytesQuantilesSketch.compare(new byte[] {1, 2}, new byte[] {1, 2}), 0);
+    assertTrue(BytesQuantilesSketch.compare(new byte[] {2}, new byte[] {1, 9}) > 0);
+  }
+
+  @Test
+  public void estimationModeAccuracy() {
+    final int n = 20000;
+    final BytesQuantilesSketch sketch = BytesQuantilesSketch.getInstance(128);
+    for (int i = 0; i < n; i++) {
+      sketch.update(String.format("%06d", i));
+    }
+    assertTrue(sketch.isEstimationMode());
+    assertEquals(sketch.getN(), n);
+    assertEquals(toString(sketch.getMinValue()), "000000");
+    assertEquals(toString(sketch.getMaxValue()), String.format("%06d", n - 1));
+    final double eps = sketch.getNormalizedRankError(false);
+    final int median = Integer.parseInt(toString(sketch.getQuantile(0.5)));
+    assertEquals(median, n / 2, eps * n);
+    assertEquals(sketch.getRank(String.format("%06d", n / 4)), 0.25, eps);
+    final double[] cdf = sketch.getCDF(new byte[][] {bytes(String.format("%06d", n / 2))});
+    assertEquals(cdf[0], 0.5, eps);
+    assertEquals(cdf[1], 1.0);
+  }
+
+  @Test
+  public void compatibleWithItemsSketch() {
+    final ArrayOfStringsSerDe serDe = new ArrayOfStringsSerDe();
+    final BytesQuantilesSketch sketch = BytesQuantilesSketch.getInstance(32);
+    final ItemsSketch<String> items = ItemsSketch.getInstance(32, Comparator.naturalOrder());
+    for (int i = 0; i < 3000; i++) {
+      final String s = Integer.toString(i * 31);
+      sketch.update(s);
+      items.update(s);
+    }
+
+    final byte[] bytes = sketch.toByteArray();
+    final BytesQuantilesSketch copy = BytesQuantilesSketch.heapify(Memory.wrap(bytes));
+    assertEquals(copy.toByteArray(), bytes);
+
+    final ItemsSketch<String> fromBytes =
+        ItemsSketch.getInstance(Memory.wrap(bytes), Comparator.naturalOrder(), serDe);
+    assertEquals(fromBytes.getN(), sketch.getN());
+    for (int i = 0; i <= 10; i++) {
+      assertEquals(fromBytes.getQuantile(i / 10.0), toString(sketch.getQuantile(i / 10.0)));
+    }
+
+    final BytesQuantilesSketch fromItems =
+        BytesQuantilesSketch.heapify(Memory.wrap(items.toByteArray(serDe)));
+    assertEquals(fromItems.getN(), items.getN());
+    for (int i = 0; i <= 10; i++) {
+      assertEquals(toString(fromItems.getQuantile(i / 10.0)), items.getQuantile(i / 10.0));
+    }
+  }
+
+  @Test
+  public void utf8EncodingMatchesGetBytes() {
+    final String[] strings = {"", "abc", "été", "€100", "😀!",
+        "lone \ud83d", "\ude00 lone", "\ud83d\ud83d", "￿"};
+    for (final String s : strings) {
+      final BytesQuantilesSketch fromString = BytesQuantilesSketch.getInstance();
+      fromString.update(s);
+      assertEquals(fromString.getMinValue(), bytes(s), s);
+      final BytesQuantilesSketch fromBytes = BytesQuantilesSketch.getInstance();
+      fromBytes.update(bytes(s));
+      assertEquals(fromString.toByteArray(), fromBytes.toByteArray(), s);
+    }
+  }
+
+  @Test
+  public void discardedItemBytesAreReclaimed() {
+    final int k = 64;
+    final BytesQuantilesSketch sketch = BytesQuantilesSketch.getInstance(k, 1L);
+    final BytesQuantilesSketch copy = BytesQuantilesSketch.getInstance(k, 1L);
+    for (int i = 0; i < 200000; i++) {
+      final String s = Integer.toString(i * 7919);
+      sketch.update(s);
+      copy.update(bytes(s));
+      assertTrue(sketch.discardedBytes_ <= sketch.itemsBytes_);
+    }
+    // the retained items are at most 8 bytes each, plus at most as much again discarded
+    assertTrue(sketch.itemsBytes_ <= (2 * 8 * sketch.getRetainedItems()));
+    assertTrue(sketch.items_.length < (4 * 8 * sketch.getRetainedItems()));
+    assertEquals(sketch.toByteArray(), copy.toByteArray());
+    final byte[] bytes = sketch.toByteArray(true);
+    final BytesQuantilesSketch heapified = BytesQuantilesSketch.heapify(Memory.wrap(bytes));
+    assertEquals(heapified.toByteArray(true), bytes);
+    assertEquals(heapified.discardedBytes_, 0);
+  }
+
+  @Test
+  public void union() {
+    final int n = 5000;
+    final BytesQuantilesSketch sketch1 = BytesQuantilesSketch.getInstance(128);
+    final BytesQuantilesSketch sketch2 = BytesQuantilesSketch.getInstance(64);
+    for (int i = 0; i < n; i++) {
+      sketch1.update(String.format("%05d", i));
+      sketch2.update(String.format("%05d", (2 * n) - i - 1));
+    }
+    final BytesQuantilesUnion union = BytesQuantilesUnion.getInstance(128);
+    union.update(sketch1);
+    union.update(Memory.wrap(sketch2.toByteArray()));
+    union.update((String) null);
+    assertEquals(union.getEffectiveK(), 64);
+
+    final BytesQuantilesSketch result = union.getResult();
+    assertEquals(result.getN(), 2 * n);
+    assertEquals(toString(result.getMinValue()), "00000");
+    assertEquals(toString(result.getMaxValue()), String.format("%05d", (2 * n) - 1));
+    final int median = Integer.parseInt(toString(result.getQuantile(0.5)));
+    assertEquals(median, n, 2 * n * result.getNormalizedRankError(false));
+  }
+
+  @Test
+  public void minAndMaxAreNotShared() {
+    final BytesQuantilesSketch sketch = BytesQuantilesSketch.getInstance(16);
+    for (int i = 0; i < 100; i++) {
+      sketch.update(String.format("%03d", i));
+    }
+    sketch.getMinValue()[0] = 'x';
+    sketch.getMaxValue()[0] = 'x';
+    sketch.getQuantile(0.0)[0] = 'x';
+    sketch.getQuantiles(new double[] {0.0, 1.0})[1][0] = 'x';
+    assertEquals(toString(sketch.getMinValue()), "000");
+    assertEquals(toString(sketch.getMaxValue()), "099");
+
+    final BytesQuantilesSketch copy = BytesQuantilesSketch.copy(sketch);
+    final BytesQuantilesUnion union = BytesQuantilesUnion.getInstance(16);
+    union.update(sketch);
+    final BytesQuantilesSketch merged = BytesQuantilesSketch.getInstance(16);
+    BytesQuantilesSketch.mergeInto(sketch, merged);
+    assertTrue(copy.minValue_ != sketch.minValue_);
+    assertTrue(copy.maxValue_ != sketch.maxValue_);
+    assertTrue(merged.minValue_ != sketch.minValue_);
+    assertTrue(merged.maxValue_ != sketch.maxValue_);
+    assertEquals(toString(union.getResult().getMinValue()), "000");
+    assertEquals(toString(copy.getMaxValue()), "099");
+  }
+
+  private static byte[] bytes(final String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String toString(final byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
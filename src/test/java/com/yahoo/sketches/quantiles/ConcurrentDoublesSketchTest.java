@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class ConcurrentDoublesSketchTest {
+
+  @Test
+  public void singleThreadSameAsUpdateSketch() {
+    final int n = 100000;
+    DoublesSketch.rand.setSeed(1);
+    final UpdateDoublesSketch plain = DoublesSketch.builder().setK(64).build();
+    for (int i = 0; i < n; i++) {
+      plain.update((i * 7919) % n);
+    }
+    DoublesSketch.rand.setSeed(1);
+    final ConcurrentDoublesSketch sketch = DoublesSketch.builder().setK(64).buildShared();
+    for (int i = 0; i < n; i++) {
+      sketch.update((i * 7919) % n);
+    }
+    sketch.update(Double.NaN);
+    assertEquals(sketch.getK(), 64);
+    assertEquals(sketch.getN(), n); // includes the local buffer
+    sketch.flush();
+    assertEquals(sketch.getN(), n);
+    assertEquals(sketch.getSnapshot().toByteArray(), plain.compact().toByteArray());
+    assertEquals(sketch.getResult().toByteArray(), plain.toByteArray());
+    assertTrue(sketch.toString().length() > 0);
+  }
+
+  @Test
+  public void manyThreads() throws InterruptedException {
+    final int numThreads = 4;
+    final int perThread = 50000;
+    final ConcurrentDoublesSketch sketch = DoublesSketch.builder().buildShared();
+    assertTrue(sketch.getSnapshot().isEmpty());
+    final Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            sketch.update((i * numThreads) + offset);
+          }
+          sketch.flush();
+        }
+      };
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    final int n = numThreads * perThread;
+    final CompactDoublesSketch snapshot = sketch.getSnapshot();
+    assertEquals(snapshot.getN(), n);
+    assertEquals(snapshot.getMinValue(), 0.0);
+    assertEquals(snapshot.getMaxValue(), n - 1.0);
+    final double eps = snapshot.getNormalizedRankError(false);
+    assertEquals(snapshot.getQuantile(0.5), n / 2.0, n * eps);
+    assertEquals(snapshot.getRank(n / 4.0), 0.25, eps);
+  }
+
+  @Test
+  public void queriesDoNotDrainLiveBuffers() {
+    final int k = 128;
+    final ConcurrentDoublesSketch sketch = DoublesSketch.builder().setK(k).buildShared();
+    for (int i = 0; i < ((2 * k) + 10); i++) {
+      sketch.update(i);
+    }
+    assertEquals(sketch.getN(), (2 * k) + 10);
+    assertEquals(sketch.getSnapshot().getN(), 2 * k); // only the propagated buffer
+    assertEquals(sketch.getResult().getN(), 2 * k);
+    for (int i = 0; i < 5; i++) {
+      sketch.update(i);
+    }
+    assertEquals(sketch.getN(), (2 * k) + 15); // the buffer kept its items
+    sketch.flush();
+    assertEquals(sketch.getSnapshot().getN(), (2 * k) + 15);
+    assertEquals(sketch.getN(), (2 * k) + 15);
+  }
+
+  @Test
+  public void updatingThreadEndsBeforeQuery() throws InterruptedException {
+    final int n = 1000; // less than 2k, so everything stays in the thread's buffer
+    final ConcurrentDoublesSketch sketch = DoublesSketch.builder().setK(1024).buildShared();
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 1; i <= n; i++) {
+          sketch.update(i);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals(sketch.getN(), n);
+    final UpdateDoublesSketch result = sketch.getResult();
+    assertEquals(result.getN(), n);
+    assertEquals(result.getMinValue(), 1.0);
+    assertEquals(result.getMaxValue(), (double) n);
+    assertEquals(sketch.getSnapshot().getQuantile(0.5), n / 2.0, 1.0);
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Comparator;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableDirectHandle;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.ArrayOfDoublesSerDe;
+import com.yahoo.sketches.ArrayOfFixedWidthBytesSerDe;
+import com.yahoo.sketches.ArrayOfLongsSerDe;
+import com.yahoo.sketches.SketchesArgumentException;
+
+public class DirectItemsSketchTest {
+
+  private static final ArrayOfLongsSerDe LONGS_SERDE = new ArrayOfLongsSerDe();
+
+  @Test
+  public void empty() {
+    final WritableMemory wmem =
+        WritableMemory.allocate((int) DirectItemsSketch.getUpdatableStorageBytes(128, 0, 8));
+    final DirectItemsSketch<Long> sketch = DirectItemsSketch.newInstance(128, LONGS_SERDE, wmem);
+    sketch.update(null);
+    assertTrue(sketch.isEmpty());
+    assertFalse(sketch.isEstimationMode());
+    assertEquals(sketch.getN(), 0);
+    assertEquals(sketch.getRetainedItems(), 0);
+    assertNull(sketch.getMinValue());
+    assertNull(sketch.getMaxValue());
+    assertNull(sketch.getQuantile(0.5));
+    assertNull(sketch.getQuantiles(2));
+    assertNull(sketch.getPMF(new Long[] {0L}));
+    assertTrue(Double.isNaN(sketch.getRank(0L)));
+    assertTrue(sketch.toString().length() > 0);
+    final ItemsSketch<Long> heap = ItemsSketch.getInstance(Memory.wrap(sketch.toByteArray()),
+        Comparator.naturalOrder(), LONGS_SERDE);
+    assertTrue(heap.isEmpty());
+  }
+
+  @Test
+  public void sameAsHeapSketch() {
+    final int k = 64;
+    final int n = 20000;
+    ItemsSketch.rand.setSeed(1);
+    final ItemsSketch<Long> heap = ItemsSketch.getInstance(k, Comparator.naturalOrder());
+    for (long i = 0; i < n; i++) {
+      heap.update((i * 7919) % n);
+    }
+    ItemsSketch.rand.setSeed(1);
+    final WritableMemory wmem = WritableMemory.allocate(
+        (int) DirectItemsSketch.getUpdatableStorageBytes(k, n, Long.BYTES));
+    final DirectItemsSketch<Long> sketch = DirectItemsSketch.newInstance(k, LONGS_SERDE, wmem);
+    for (long i = 0; i < n; i++) {
+      sketch.update((i * 7919) % n);
+    }
+    assertTrue(sketch.isSameResource(wmem));
+    assertEquals(sketch.getN(), n);
+    assertEquals(sketch.getRetainedItems(), heap.getRetainedItems());
+    assertEquals(sketch.getMinValue(), heap.getMinValue());
+    assertEquals(sketch.getMaxValue(), heap.getMaxValue());
+    assertEquals(sketch.getQuantiles(11), heap.getQuantiles(11));
+    assertEquals(sketch.getQuantileUpperBound(0.5), heap.getQuantileUpperBound(0.5));
+    assertEquals(sketch.getRank(5000L), heap.getRank(5000L));
+    assertEquals(sketch.getPMF(new Long[] {100L, 5000L}), heap.getPMF(new Long[] {100L, 5000L}));
+    assertEquals(sketch.getCDF(new Long[] {7000L}), heap.getCDF(new Long[] {7000L}));
+    assertEquals(sketch.toByteArray(true), heap.toByteArray(true, LONGS_SERDE));
+
+    // the image can be wrapped again and updated further
+    final DirectItemsSketch<Long> wrapped = DirectItemsSketch.writableWrap(wmem, LONGS_SERDE);
+    wrapped.update(-1L);
+    assertEquals(wrapped.getN(), n + 1);
+    assertEquals(wrapped.getMinValue(), Long.valueOf(-1));
+    wrapped.reset();
+    assertTrue(wrapped.isEmpty());
+    assertTrue(sketch.isEmpty());
+  }
+
+  @Test
+  public void growingHeapMemory() {
+    final int n = 10000;
+    final WritableMemory wmem =
+        WritableMemory.allocate((int) DirectItemsSketch.getUpdatableStorageBytes(16, 0, 8));
+    final DirectItemsSketch<Long> sketch = DirectItemsSketch.newInstance(16, LONGS_SERDE, wmem);
+    for (long i = 0; i < n; i++) {
+      sketch.update(i);
+    }
+    assertFalse(sketch.isSameResource(wmem));
+    assertEquals(sketch.getN(), n);
+    final double eps = sketch.getNormalizedRankError(false);
+    assertEquals(sketch.getRank(n / 2L), 0.5, eps);
+    assertEquals(sketch.getRank(n / 4L), 0.25, eps);
+  }
+
+  @Test
+  public void growingDirectMemory() {
+    final int n = 100000;
+    final int initBytes = (int) DirectItemsSketch.getUpdatableStorageBytes(128, 0, Double.BYTES);
+    try (WritableDirectHandle handle = WritableMemory.allocateDirect(initBytes)) {
+      final WritableMemory wmem = handle.get();
+      final DirectItemsSketch<Double> sketch =
+          DirectItemsSketch.newInstance(128, new ArrayOfDoublesSerDe(), wmem);
+      for (int i = 0; i < n; i++) {
+        sketch.update((double) i);
+      }
+      assertFalse(sketch.isSameResource(wmem)); // the sketch has moved to larger memory
+      assertTrue(sketch.isEstimationMode());
+      assertEquals(sketch.getMinValue(), 0.0);
+      assertEquals(sketch.getMaxValue(), n - 1.0);
+      final double eps = sketch.getNormalizedRankError(false);
+      assertEquals(sketch.getQuantile(0.5), n / 2.0, n * eps);
+      assertEquals(sketch.getRank(n / 4.0), 0.25, eps);
+      assertTrue(sketch.getMemory().getCapacity()
+          <= DirectItemsSketch.getUpdatableStorageBytes(128, n, Double.BYTES));
+    }
+  }
+
+  @Test
+  public void fixedWidthBytes() {
+    final ArrayOfFixedWidthBytesSerDe serDe = new ArrayOfFixedWidthBytesSerDe(4);
+    final WritableMemory wmem = WritableMemory.allocate(
+        (int) DirectItemsSketch.getUpdatableStorageBytes(32, 1000, 4));
+    final DirectItemsSketch<byte[]> sketch = DirectItemsSketch.newInstance(32, serDe, wmem);
+    final ItemsSketch<byte[]> heap =
+        ItemsSketch.getInstance(32, ArrayOfFixedWidthBytesSerDe.COMPARATOR);
+    for (int i = 0; i < 1000; i++) {
+      final byte[] key = {(byte) (i >> 8), (byte) i, (byte) 0x80, 0};
+      sketch.update(key);
+      heap.update(key);
+    }
+    assertEquals(sketch.getMinValue(), new byte[] {0, 0, (byte) 0x80, 0});
+    assertEquals(sketch.getMaxValue(), new byte[] {3, (byte) 0xE7, (byte) 0x80, 0});
+    final ItemsSketch<byte[]> fromDirect = ItemsSketch.getInstance(
+        Memory.wrap(sketch.toByteArray()), ArrayOfFixedWidthBytesSerDe.COMPARATOR, serDe);
+    assertEquals(fromDirect.getN(), 1000);
+    assertEquals(fromDirect.getRank(new byte[] {1, (byte) 0xF4, 0, 0}), 0.5,
+        fromDirect.getNormalizedRankError(false));
+    assertEquals(sketch.getRank(new byte[] {1, (byte) 0xF4, 0, 0}),
+        heap.getRank(new byte[] {1, (byte) 0xF4, 0, 0}), 2 * heap.getNormalizedRankError(false));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void memoryTooSmall() {
+    DirectItemsSketch.newInstance(128, LONGS_SERDE, WritableMemory.allocate(32));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void wrapCompactImage() {
+    final ItemsSketch<Long> heap = ItemsSketch.getInstance(Comparator.naturalOrder());
+    heap.update(1L);
+    DirectItemsSketch.writableWrap(WritableMemory.wrap(heap.toByteArray(LONGS_SERDE)),
+        LONGS_SERDE);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void unorderedSplitPoints() {
+    final DirectItemsSketch<Long> sketch = DirectItemsSketch.newInstance(128, LONGS_SERDE,
+        WritableMemory.allocate((int) DirectItemsSketch.getUpdatableStorageBytes(128, 0, 8)));
+    sketch.update(1L);
+    sketch.getCDF(new Long[] {2L, 1L});
+  }
+
+}
@@ -32,6 +32,7 @@ import java.nio.ByteOrder;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.yahoo.memory.WritableDirectHandle;
 import com.yahoo.memory.WritableMemory;
 import com.yahoo.sketches.SketchesArgumentException;
 
@@ -336,6 +337,36 @@ public class DirectUpdateDoublesSketchTest {
     }
   }
 
+  @Test
+  public void bulkUpdateMatchesSingleUpdates() {
+    int k = 16;
+    int n = 10000;
+    double[] values = new double[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = i % 2 == 0 ? i : -i;
+    }
+    values[n / 3] = Double.NaN;
+
+    DoublesSketch.rand.setSeed(1);
+    UpdateDoublesSketch single = buildDQS(k, n);
+    for (double value : values) {
+      single.update(value);
+    }
+    DoublesSketch.rand.setSeed(1);
+    int initBytes = DoublesSketch.getUpdatableStorageBytes(k, 0);
+    try (WritableDirectHandle handle = WritableMemory.allocateDirect(initBytes)) {
+      UpdateDoublesSketch bulk = DoublesSketch.builder().setK(k).build(handle.get());
+      bulk.update(values, 0, 7);
+      bulk.update(values, 7, n - 7); // the memory must grow
+      assertTrue(bulk.isDirect());
+      assertFalse(bulk.isSameResource(handle.get()));
+      assertEquals(bulk.getN(), n - 1);
+      assertEquals(bulk.getMinValue(), single.getMinValue());
+      assertEquals(bulk.getMaxValue(), single.getMaxValue());
+      assertEquals(bulk.toByteArray(), single.toByteArray());
+    }
+  }
+
   static UpdateDoublesSketch buildAndLoadDQS(int k, int n) {
     return buildAndLoadDQS(k, n, 0);
   }
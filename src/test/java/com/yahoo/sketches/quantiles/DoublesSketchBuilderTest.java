@@ -58,4 +58,16 @@ public class DoublesSketchBuilderTest {
     //System.out.println(s); //disable here
   }
 
+  @Test
+  public void sameSeedGivesSameSketch() {
+    final DoublesSketchBuilder bldr = DoublesSketch.builder().setK(64).setSeed(12345L);
+    final UpdateDoublesSketch sketch1 = bldr.build();
+    final UpdateDoublesSketch sketch2 = bldr.build();
+    for (int i = 0; i < 100000; i++) {
+      sketch1.update(i);
+      sketch2.update(i);
+    }
+    assertEquals(sketch1.toByteArray(), sketch2.toByteArray());
+  }
+
 }
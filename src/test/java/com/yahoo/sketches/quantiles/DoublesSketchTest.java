@@ -153,6 +153,65 @@ public class DoublesSketchTest {
     }
   }
 
+  @Test
+  public void getRanksHeapAndDirectCompact() {
+    UpdateDoublesSketch sketch = DoublesSketch.builder().setK(128).build();
+    for (int i = 0; i < 10000; i++) {
+      sketch.update(i);
+    }
+    double[] values = {5000, -1, 100, 9999, 10000, 2500.5};
+    double[] ranks = sketch.getRanks(values);
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(ranks[i], sketch.getRank(values[i]));
+    }
+    assertEquals(ranks[1], 0.0);
+    assertEquals(ranks[4], 1.0);
+    assertEquals(ranks[0], 0.5, 0.02);
+
+    WritableMemory mem = WritableMemory.wrap(new byte[sketch.getCompactStorageBytes()]);
+    DoublesSketch compact = sketch.compact(mem);
+    assertTrue(compact.isDirect());
+    assertEquals(compact.getRanks(values), ranks);
+    assertEquals(compact.getQuantiles(10), sketch.getQuantiles(10));
+    assertEquals(compact.getCDF(new double[] {100, 5000}), sketch.getCDF(new double[] {100, 5000}));
+
+    assertNull(DoublesSketch.builder().build().getRanks(values));
+  }
+
+  @Test
+  public void cachedAuxiliaryIsInvalidated() {
+    UpdateDoublesSketch sketch = DoublesSketch.builder().setK(16).build();
+    for (int i = 0; i < 1000; i++) {
+      sketch.update(i);
+    }
+    assertEquals(sketch.getRank(1000), 1.0);
+    sketch.update(2000);
+    assertEquals(sketch.getRank(1000), 1000.0 / 1001);
+
+    sketch.reset();
+    sketch.update(1);
+    assertEquals(sketch.getRank(1), 0.0);
+    assertEquals(sketch.getQuantile(0.5), 1.0);
+
+    // a union merges into its gadget in place
+    UpdateDoublesSketch other = DoublesSketch.builder().setK(16).build();
+    for (int i = 0; i < 1000; i++) {
+      other.update(-i);
+    }
+    DoublesMergeImpl.mergeInto(other, sketch);
+    assertEquals(sketch.getN(), 1001);
+    assertEquals(sketch.getRank(1), 1000.0 / 1001, 0.05);
+
+    // direct sketch sharing its memory with another wrapper
+    WritableMemory mem = WritableMemory.wrap(new byte[10000]);
+    UpdateDoublesSketch direct1 = DoublesSketch.builder().setK(16).build(mem);
+    direct1.update(1);
+    UpdateDoublesSketch direct2 = UpdateDoublesSketch.wrap(mem);
+    assertEquals(direct2.getRank(2), 1.0);
+    direct1.update(3);
+    assertEquals(direct2.getRank(2), 0.5);
+  }
+
   @Test
   public void printlnTest() {
     println("PRINTING: " + this.getClass().getName());
@@ -717,6 +717,32 @@ public class DoublesUnionImplTest {
     Assert.assertTrue(union2.isEmpty());
   }
 
+  @Test
+  public void updateFromMemoryMatchesUpdateFromSketch() {
+    final int[] ks = {256, 128, 64};
+    final UpdateDoublesSketch[] sketches = new UpdateDoublesSketch[ks.length];
+    for (int i = 0; i < ks.length; i++) {
+      sketches[i] = DoublesSketch.builder().setK(ks[i]).build();
+      for (int j = 0; j < 10000; j++) {
+        sketches[i].update((i * 10000) + j);
+      }
+    }
+    for (final boolean compact : new boolean[] {true, false}) {
+      DoublesSketch.rand.setSeed(1);
+      final DoublesUnion heapUnion = DoublesUnion.builder().setMaxK(128).build();
+      for (final UpdateDoublesSketch sketch : sketches) {
+        heapUnion.update(DoublesSketch.heapify(Memory.wrap(sketch.toByteArray(compact))));
+      }
+      DoublesSketch.rand.setSeed(1);
+      final DoublesUnion memUnion = DoublesUnion.builder().setMaxK(128).build();
+      for (final UpdateDoublesSketch sketch : sketches) {
+        memUnion.update(Memory.wrap(sketch.toByteArray(compact)));
+      }
+      assertEquals(memUnion.getResult().getN(), 30000);
+      assertEquals(memUnion.getResult().toByteArray(), heapUnion.getResult().toByteArray());
+    }
+  }
+
   @Test
   public void printlnTest() {
     println("PRINTING: " + this.getClass().getName());
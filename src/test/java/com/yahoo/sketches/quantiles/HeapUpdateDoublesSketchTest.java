@@ -1100,6 +1100,42 @@ public class HeapUpdateDoublesSketchTest {
     return b1 && b2;
   }
 
+  @Test
+  public void bulkUpdateMatchesSingleUpdates() {
+    int k = 16;
+    int n = 10000;
+    double[] values = new double[n + 2];
+    for (int i = 0; i < n; i++) {
+      values[i + 1] = n - i;
+    }
+    values[0] = Double.NaN;
+    values[(n / 2) + 1] = Double.NaN;
+    values[n + 1] = Double.NaN;
+
+    DoublesSketch.rand.setSeed(1);
+    UpdateDoublesSketch single = DoublesSketch.builder().setK(k).build();
+    for (double value : values) {
+      single.update(value);
+    }
+    DoublesSketch.rand.setSeed(1);
+    UpdateDoublesSketch bulk = DoublesSketch.builder().setK(k).build();
+    bulk.update(values, 0, 10); // partial base buffer first
+    bulk.update(values, 10, 2000); // several full base buffers
+    bulk.update(values, 2010, values.length - 2010);
+    assertEquals(bulk.getN(), n - 1);
+    assertEquals(bulk.getMinValue(), 1.0);
+    assertEquals(bulk.getMaxValue(), (double) n);
+    assertEquals(bulk.toByteArray(), single.toByteArray());
+
+    bulk.update(new double[] {Double.NaN}, 0, 1);
+    assertEquals(bulk.getN(), n - 1);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void bulkUpdateOutOfRange() {
+    DoublesSketch.builder().build().update(new double[10], 5, 6);
+  }
+
   static UpdateDoublesSketch buildAndLoadQS(int k, int n) {
     return buildAndLoadQS(k, n, 0);
   }
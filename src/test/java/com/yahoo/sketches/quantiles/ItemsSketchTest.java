@@ -556,4 +556,23 @@ public class ItemsSketchTest {
     //System.out.println(s); //disable here
   }
 
+  @Test
+  public void sameSeedGivesSameSketch() {
+    final ItemsSketch<Long> sketch1 =
+        ItemsSketch.getInstance(64, Comparator.naturalOrder(), 12345L);
+    final ItemsSketch<Long> sketch2 =
+        ItemsSketch.getInstance(64, Comparator.naturalOrder(), 12345L);
+    final LongsQuantilesSketch sketch3 = LongsQuantilesSketch.getInstance(64, 12345L);
+    final LongsQuantilesSketch sketch4 = LongsQuantilesSketch.getInstance(64, 12345L);
+    for (long i = 0; i < 100000; i++) {
+      sketch1.update(i);
+      sketch2.update(i);
+      sketch3.update(i);
+      sketch4.update(i);
+    }
+    final ArrayOfLongsSerDe serDe = new ArrayOfLongsSerDe();
+    assertEquals(sketch1.toByteArray(serDe), sketch2.toByteArray(serDe));
+    assertEquals(sketch3.toByteArray(), sketch4.toByteArray());
+  }
+
 }
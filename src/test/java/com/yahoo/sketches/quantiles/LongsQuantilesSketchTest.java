@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Comparator;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.sketches.ArrayOfLongsSerDe;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+
+public class LongsQuantilesSketchTest {
+
+  @Test
+  public void empty() {
+    final LongsQuantilesSketch sketch = LongsQuantilesSketch.getInstance();
+    assertTrue(sketch.isEmpty());
+    assertFalse(sketch.isEstimationMode());
+    assertEquals(sketch.getN(), 0);
+    assertEquals(sketch.getRetainedItems(), 0);
+    assertTrue(Double.isNaN(sketch.getRank(0)));
+    assertNull(sketch.getQuantiles(new double[] {0.5}));
+    assertNull(sketch.getQuantiles(3));
+    assertNull(sketch.getRanks(new long[] {0}));
+    assertNull(sketch.getPMF(new long[] {0}));
+    assertNull(sketch.getCDF(new long[] {0}));
+    assertTrue(sketch.toString().length() > 0);
+    assertTrue(LongsQuantilesSketch.heapify(Memory.wrap(sketch.toByteArray())).isEmpty());
+  }
+
+  @Test(expectedExceptions = SketchesStateException.class)
+  public void emptyQuantile() {
+    LongsQuantilesSketch.getInstance().getQuantile(0.5);
+  }
+
+  @Test(expectedExceptions = SketchesStateException.class)
+  public void emptyMinValue() {
+    LongsQuantilesSketch.getInstance().getMinValue();
+  }
+
+  @Test
+  public void exactMode() {
+    final LongsQuantilesSketch sketch = LongsQuantilesSketch.getInstance(16);
+    for (int i = 1; i <= 20; i++) {
+      sketch.update(i);
+    }
+    assertFalse(sketch.isEstimationMode());
+    assertEquals(sketch.getMinValue(), 1);
+    assertEquals(sketch.getMaxValue(), 20);
+    assertEquals(sketch.getQuantile(0), 1);
+    assertEquals(sketch.getQuantile(1), 20);
+    assertEquals(sketch.getQuantile(0.5), 11);
+    assertEquals(sketch.getRank(11), 0.5);
+    assertEquals(sketch.getRanks(new long[] {1, 21}), new double[] {0, 1});
+    assertEquals(sketch.getPMF(new long[] {6, 16}), new double[] {0.25, 0.5, 0.25});
+    assertEquals(sketch.getCDF(new long[] {6, 16}), new double[] {0.25, 0.75, 1});
+    assertEquals(sketch.getQuantiles(3), new long[] {1, 11, 20});
+  }
+
+  @Test
+  public void estimationModeAccuracy() {
+    final int n = 100000;
+    final LongsQuantilesSketch sketch = LongsQuantilesSketch.getInstance(128);
+    for (int i = 0; i < n; i++) {
+      sketch.update(n - i - 1);
+    }
+    assertTrue(sketch.isEstimationMode());
+    assertEquals(sketch.getN(), n);
+    assertEquals(sketch.getRetainedItems(), Util.computeRetainedItems(128, n));
+    final double eps = sketch.getNormalizedRankError(false);
+    for (int i = 1; i < 10; i++) {
+      final double fraction = i / 10.0;
+      assertEquals(sketch.getQuantile(fraction), fraction * n, eps * n);
+      assertEquals(sketch.getRank((long) (fraction * n)), fraction, eps);
+      assertTrue(sketch.getQuantileLowerBound(fraction) <= sketch.getQuantile(fraction));
+      assertTrue(sketch.getQuantileUpperBound(fraction) >= sketch.getQuantile(fraction));
+    }
+    final double[] pmf = sketch.getPMF(new long[] {n / 4, n / 2});
+    assertEquals(pmf[0], 0.25, sketch.getNormalizedRankError(true));
+    assertEquals(pmf[1], 0.25, sketch.getNormalizedRankError(true));
+    assertEquals(pmf[0] + pmf[1] + pmf[2], 1.0, 1e-10);
+
+    // the sorted view must be rebuilt after an update
+    final double rank = sketch.getRank(n);
+    assertEquals(rank, 1.0);
+    sketch.update(n + 1);
+    assertTrue(sketch.getRank(n) < 1.0);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void unorderedSplitPoints() {
+    final LongsQuantilesSketch sketch = LongsQuantilesSketch.getInstance();
+    sketch.update(1);
+    sketch.getPMF(new long[] {2, 1});
+  }
+
+  @Test
+  public void serializeDeserialize() {
+    final LongsQuantilesSketch sketch = LongsQuantilesSketch.getInstance(32);
+    for (int i = 0; i < 1000; i++) {
+      sketch.update(i * 7L);
+    }
+    final byte[] bytes = sketch.toByteArray();
+    final LongsQuantilesSketch copy = LongsQuantilesSketch.heapify(Memory.wrap(bytes));
+    assertEquals(copy.getK(), 32);
+    assertEquals(copy.getN(), sketch.getN());
+    assertEquals(copy.getMinValue(), sketch.getMinValue());
+    assertEquals(copy.getMaxValue(), sketch.getMaxValue());
+    assertEquals(copy.getQuantiles(11), sketch.getQuantiles(11));
+    assertEquals(copy.toByteArray(), bytes);
+  }
+
+  @Test
+  public void compatibleWithItemsSketch() {
+    final ArrayOfLongsSerDe serDe = new ArrayOfLongsSerDe();
+    final LongsQuantilesSketch sketch = LongsQuantilesSketch.getInstance(64);
+    final ItemsSketch<Long> items = ItemsSketch.getInstance(64, Comparator.naturalOrder());
+    for (long i = 0; i < 5000; i++) {
+      sketch.update(i);
+      items.update(i);
+    }
+
+    final ItemsSketch<Long> fromLongs =
+        ItemsSketch.getInstance(Memory.wrap(sketch.toByteArray(true)), Comparator.naturalOrder(),
+            serDe);
+    assertEquals(fromLongs.getN(), sketch.getN());
+    assertEquals(fromLongs.getRetainedItems(), sketch.getRetainedItems());
+    for (int i = 0; i <= 10; i++) {
+      assertEquals((long) fromLongs.getQuantile(i / 10.0), sketch.getQuantile(i / 10.0));
+    }
+
+    final LongsQuantilesSketch fromItems =
+        LongsQuantilesSketch.heapify(Memory.wrap(items.toByteArray(serDe)));
+    assertEquals(fromItems.getN(), items.getN());
+    for (int i = 0; i <= 10; i++) {
+      assertEquals(fromItems.getQuantile(i / 10.0), (long) items.getQuantile(i / 10.0));
+    }
+  }
+
+  @Test
+  public void union() {
+    final int n = 10000;
+    final LongsQuantilesSketch sketch1 = LongsQuantilesSketch.getInstance(256);
+    final LongsQuantilesSketch sketch2 = LongsQuantilesSketch.getInstance(128);
+    for (int i = 0; i < n; i++) {
+      sketch1.update(i);
+      sketch2.update((2 * n) - i - 1);
+    }
+    final LongsQuantilesUnion union = LongsQuantilesUnion.getInstance(256);
+    assertTrue(union.isEmpty());
+    union.update(sketch1);
+    assertEquals(union.getEffectiveK(), 256);
+    union.update(Memory.wrap(sketch2.toByteArray()));
+    assertEquals(union.getEffectiveK(), 128);
+    union.update(-1);
+    union.update(LongsQuantilesSketch.getInstance());
+
+    final LongsQuantilesSketch result = union.getResult();
+    assertEquals(result.getN(), (2 * n) + 1);
+    assertEquals(result.getMinValue(), -1);
+    assertEquals(result.getMaxValue(), (2 * n) - 1);
+    assertEquals(result.getQuantile(0.5), n, n * 2 * result.getNormalizedRankError(false));
+    assertEquals(sketch1.getN(), n); // inputs are not modified
+    assertEquals(sketch2.getN(), n);
+
+    final LongsQuantilesUnion union2 =
+        LongsQuantilesUnion.getInstance(Memory.wrap(union.toByteArray()));
+    assertEquals(union2.getResult().getN(), result.getN());
+    assertEquals(union.getResultAndReset().getN(), result.getN());
+    assertTrue(union.isEmpty());
+    assertNull(union.getResultAndReset());
+    assertTrue(union.toString().length() > 0);
+  }
+
+  @Test
+  public void downSample() {
+    final LongsQuantilesSketch sketch = LongsQuantilesSketch.getInstance(256);
+    for (int i = 0; i < 10000; i++) {
+      sketch.update(i);
+    }
+    final LongsQuantilesSketch small = sketch.downSample(64);
+    assertEquals(small.getK(), 64);
+    assertEquals(small.getN(), sketch.getN());
+    assertEquals(small.getMinValue(), 0);
+    assertEquals(small.getMaxValue(), 9999);
+    assertEquals(small.getQuantile(0.5), 5000, 10000 * small.getNormalizedRankError(false));
+  }
+
+}
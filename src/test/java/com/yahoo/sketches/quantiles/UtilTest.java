@@ -83,46 +83,13 @@ public class UtilTest {
     assertEquals(result, 64);
   }
 
-  // a couple of basic unit tests for the histogram construction helper functions.
+  // a couple of basic unit tests for the histogram construction of the sorted view.
   @Test
-  public void testQuadraticTimeIncrementHistogramCounters () {
-    final double[] samples = {0.1, 0.2, 0.3, 0.4, 0.5};
-    final DoublesArrayAccessor accessor = DoublesArrayAccessor.wrap(samples);
-    {
-      final double[] splitPoints = {0.25, 0.4};
-      final double[] counters = {0, 0, 0};
-      final long[] answers = {200, 100, 200};
-      DoublesPmfCdfImpl.bilinearTimeIncrementHistogramCounters(accessor, 100, splitPoints, counters);
-      for (int j = 0; j < counters.length; j++) {
-        assertEquals(counters[j], answers[j], 0.00001);
-        // System.out.printf ("counter[%d] = %d%n", j, counters[j]);
-      }
-      // System.out.printf ("%n");
-    }
-
-    {
-      final double[] splitPoints = {0.01, 0.02};
-      final double[] counters = {0, 0, 0};
-      final long[] answers = {0, 0, 500};
-      DoublesPmfCdfImpl.bilinearTimeIncrementHistogramCounters(accessor, 100, splitPoints, counters);
-      for (int j = 0; j < counters.length; j++) {
-        assertEquals(counters[j], answers[j], 0.00001);
-        // System.out.printf ("counter[%d] = %d%n", j, counters[j]);
-      }
-      // System.out.printf ("%n");
-    }
-
-    {
-      final double[] splitPoints = {0.8, 0.9};
-      final double[] counters = {0, 0, 0};
-      final long[] answers = {500, 0, 0};
-      DoublesPmfCdfImpl.bilinearTimeIncrementHistogramCounters(accessor, 100, splitPoints, counters);
-      for (int j = 0; j < counters.length; j++) {
-        assertEquals(counters[j], answers[j], 0.00001);
-        // System.out.printf ("counter[%d] = %d%n", j, counters[j]);
-      }
-      // System.out.printf ("%n");
-    }
+  public void testAuxiliaryPmf() {
+    final DoublesAuxiliary aux = buildAuxiliary(0.1, 0.2, 0.3, 0.4, 0.5);
+    checkPmf(aux, new double[] {0.25, 0.4}, new long[] {2, 1, 2});
+    checkPmf(aux, new double[] {0.01, 0.02}, new long[] {0, 0, 5});
+    checkPmf(aux, new double[] {0.8, 0.9}, new long[] {5, 0, 0});
   }
 
   @Test(expectedExceptions = SketchesArgumentException.class)
@@ -131,43 +98,25 @@ public class UtilTest {
   }
 
   @Test
-  public void testLinearTimeIncrementHistogramCounters () {
-    final double[] samples = {0.1, 0.2, 0.3, 0.4, 0.5};
-    final DoublesArrayAccessor accessor = DoublesArrayAccessor.wrap(samples);
-    {
-      final double[] splitPoints = {0.25, 0.4};
-      final double[] counters = {0, 0, 0};
-      final long[] answers = {200, 100, 200};
-      DoublesPmfCdfImpl.linearTimeIncrementHistogramCounters(accessor, 100, splitPoints, counters);
-      for (int j = 0; j < counters.length; j++) {
-        assertEquals(counters[j], answers[j], 0.00001);
-        // System.out.printf ("counter[%d] = %d%n", j, counters[j]);
-      }
-      // System.out.printf ("%n");
-    }
+  public void testAuxiliaryCdf() {
+    final DoublesAuxiliary aux = buildAuxiliary(0.5, 0.4, 0.3, 0.2, 0.1);
+    final double[] cdf = aux.getPmfOrCdf(new double[] {0.25, 0.4}, true);
+    assertEquals(cdf[0], 0.4, 0.00001);
+    assertEquals(cdf[1], 0.6, 0.00001);
+    assertEquals(cdf[2], 1.0, 0.00001);
+  }
 
-    {
-      final double[] splitPoints = {0.01, 0.02};
-      final double[] counters = {0, 0, 0};
-      final long[] answers = {0, 0, 500};
-      DoublesPmfCdfImpl.linearTimeIncrementHistogramCounters(accessor, 100, splitPoints, counters);
-      for (int j = 0; j < counters.length; j++) {
-        assertEquals(counters[j], answers[j], 0.00001);
-        // System.out.printf ("counter[%d] = %d%n", j, counters[j]);
-      }
-      // System.out.printf ("%n");
-    }
+  private static DoublesAuxiliary buildAuxiliary(final double... values) {
+    final UpdateDoublesSketch sketch = DoublesSketch.builder().setK(128).build();
+    for (final double v : values) { sketch.update(v); }
+    return new DoublesAuxiliary(sketch);
+  }
 
-    {
-      final double[] splitPoints = {0.8, 0.9};
-      final double[] counters = {0, 0, 0};
-      final long[] answers = {500, 0, 0};
-      DoublesPmfCdfImpl.linearTimeIncrementHistogramCounters(accessor, 100, splitPoints, counters);
-      for (int j = 0; j < counters.length; j++) {
-        assertEquals(counters[j], answers[j], 0.00001);
-        // System.out.printf ("counter[%d] = %d%n", j, counters[j]);
-      }
-      // System.out.printf ("%n");
+  private static void checkPmf(final DoublesAuxiliary aux, final double[] splitPoints,
+      final long[] answers) {
+    final double[] pmf = aux.getPmfOrCdf(splitPoints, false);
+    for (int j = 0; j < pmf.length; j++) {
+      assertEquals(pmf[j], (double) answers[j] / aux.auxN_, 0.00001);
     }
   }
 
@@ -24,6 +24,7 @@ import static com.yahoo.sketches.sampling.PreambleUtil.PREAMBLE_LONGS_BYTE;
 import static com.yahoo.sketches.sampling.PreambleUtil.RESERVOIR_SIZE_INT;
 import static com.yahoo.sketches.sampling.PreambleUtil.RESERVOIR_SIZE_SHORT;
 import static com.yahoo.sketches.sampling.PreambleUtil.SER_VER_BYTE;
+import static com.yahoo.sketches.sampling.VarOptItemsSketchTest.checkSummariesEqual;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
@@ -32,6 +33,9 @@ import static org.testng.Assert.fail;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
 import org.testng.annotations.Test;
 
@@ -608,6 +612,97 @@ public class ReservoirItemsSketchTest {
     assertEquals(ss.getTotalSketchWeight(), itemCount);
   }
 
+  @Test
+  public void checkEstimateSubsetSums() {
+    final int k = 10;
+    final ReservoirItemsSketch<String> sketch = ReservoirItemsSketch.newInstance(k);
+    for (int i = 0; i < (20 * k); ++i) {
+      sketch.update(Integer.toString(i));
+    }
+
+    final List<Predicate<String>> predicates = new ArrayList<>();
+    predicates.add(item -> item.startsWith("1"));
+    predicates.add(item -> item.length() < 3);
+
+    final List<SampleSubsetSummary> summaries = sketch.estimateSubsetSums(predicates);
+    for (int p = 0; p < predicates.size(); ++p) {
+      checkSummariesEqual(summaries.get(p), sketch.estimateSubsetSum(predicates.get(p)));
+    }
+
+    final Map<Integer, SampleSubsetSummary> groups
+            = sketch.estimateSubsetSumsByGroup(String::length);
+    for (final Map.Entry<Integer, SampleSubsetSummary> entry : groups.entrySet()) {
+      final int length = entry.getKey();
+      checkSummariesEqual(entry.getValue(),
+              sketch.estimateSubsetSum(item -> item.length() == length));
+    }
+  }
+
+  @Test
+  public void checkBulkUpdateMatchesSingleUpdates() {
+    final Long[] items = new Long[50000];
+    for (int i = 0; i < items.length; ++i) {
+      items[i] = (i % 7 == 3) ? null : (long) i;
+    }
+
+    for (final boolean skipSampling : new boolean[] {false, true}) {
+      final long seed = 8675309L;
+      SamplingUtil.rand.setSeed(seed);
+      final ReservoirItemsSketch<Long> single =
+          ReservoirItemsSketch.newInstance(100, ResizeFactor.X2, skipSampling);
+      for (final Long item : items) {
+        single.update(item);
+      }
+
+      SamplingUtil.rand.setSeed(seed);
+      final ReservoirItemsSketch<Long> bulk =
+          ReservoirItemsSketch.newInstance(100, ResizeFactor.X2, skipSampling);
+      assertEquals(bulk.isSkipSampling(), skipSampling);
+      bulk.update(items, 0, 77);
+      bulk.update(items, 77, 0);
+      bulk.update(items, 77, 1000 - 77);
+      bulk.update(items, 1000, items.length - 1000);
+
+      assertEquals(bulk.getN(), single.getN());
+      validateReservoirEquality(bulk, single);
+    }
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkBulkUpdateBadRange() {
+    final ReservoirItemsSketch<Long> ris = ReservoirItemsSketch.newInstance(10);
+    ris.update(new Long[5], 3, 3);
+  }
+
+  @Test
+  public void checkSkipSamplingIsUniform() {
+    final int k = 10;
+    final int n = 100;
+    final int numTrials = 20000;
+    final int[] counts = new int[n];
+
+    for (int t = 0; t < numTrials; ++t) {
+      final ReservoirItemsSketch<Integer> ris =
+          ReservoirItemsSketch.newInstance(k, ResizeFactor.X8, true);
+      for (int i = 0; i < n; ++i) {
+        ris.update(i);
+        if ((i == (n / 2)) && ((t & 1) == 1)) {
+          ris.forceIncrementItemsSeen(0); // restarts the skip state mid-stream
+        }
+      }
+      assertEquals(ris.getN(), n);
+      for (final Integer item : ris.getRawSamplesAsList()) {
+        ++counts[item];
+      }
+    }
+
+    // each item is expected in k/n of the samples, with a standard deviation of about 42
+    final double expected = (numTrials * (double) k) / n;
+    for (int i = 0; i < n; ++i) {
+      assertTrue(Math.abs(counts[i] - expected) < 300, "item " + i + ": " + counts[i]);
+    }
+  }
+
   private static WritableMemory getBasicSerializedLongsRIS() {
     final int k = 10;
     final int n = 20;
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.sampling;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.sketches.SketchesArgumentException;
+
+public class ReservoirLongsMapTest {
+  private static final int KEY_SIZE = 4;
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkInvalidKeySize() {
+    ReservoirLongsMap.newInstance(0, 10, 1 << 20);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkInvalidK() {
+    ReservoirLongsMap.newInstance(KEY_SIZE, 1, 1 << 20);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkInvalidMemory() {
+    ReservoirLongsMap.newInstance(KEY_SIZE, 10, 0);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkWrongKeyLength() {
+    ReservoirLongsMap.newInstance(KEY_SIZE, 10, 1 << 20).update(new byte[KEY_SIZE + 1], 1L);
+  }
+
+  @Test
+  public void checkExactMode() {
+    final int k = 32;
+    final ReservoirLongsMap map = ReservoirLongsMap.newInstance(KEY_SIZE, k, 1L << 30);
+    final int numKeys = 1000;
+    for (int i = 0; i < 20; ++i) {
+      for (int key = 0; key < numKeys; ++key) {
+        if (i < (key % 20)) {
+          map.update(key(key), item(key, i));
+        }
+      }
+    }
+
+    assertEquals(map.getActiveEntries(), numKeys - (numKeys / 20)); // keys with no items
+    assertEquals(map.getK(), k);
+    for (int key = 0; key < numKeys; ++key) {
+      final int n = key % 20;
+      assertEquals(map.getN(key(key)), n);
+      if (n == 0) {
+        assertNull(map.getSamples(key(key)));
+        assertNull(map.getSketch(key(key)));
+        continue;
+      }
+      final long[] samples = map.getSamples(key(key));
+      assertEquals(samples.length, n);
+      for (int i = 0; i < n; ++i) {
+        assertEquals(samples[i], item(key, i));
+      }
+    }
+
+    // storage grows with the samples, not with k
+    assertTrue(map.getPoolLiveLongs() < (2 * numKeys * 10));
+    assertNotNull(map.toString());
+  }
+
+  @Test
+  public void checkSamplingMode() {
+    final int k = 200;
+    final int n = 20000;
+    final ReservoirLongsMap map = ReservoirLongsMap.newInstance(KEY_SIZE, k, 1L << 30);
+    for (int i = 0; i < n; ++i) {
+      for (int key = 0; key < 3; ++key) {
+        map.update(key(key), item(key, i));
+      }
+    }
+
+    for (int key = 0; key < 3; ++key) {
+      assertEquals(map.getN(key(key)), n);
+      final long[] samples = map.getSamples(key(key));
+      assertEquals(samples.length, k);
+      checkUniformSample(samples, key, n);
+
+      final ReservoirLongsSketch sketch = map.getSketch(key(key));
+      assertEquals(sketch.getK(), k);
+      assertEquals(sketch.getN(), n);
+      assertEquals(sketch.estimateSubsetSum(item -> true).getEstimate(), n, 1e-6);
+    }
+  }
+
+  @Test
+  public void checkBudgetReducesK() {
+    final int maxK = 256;
+    final long budget = 1L << 20;
+    final ReservoirLongsMap map = ReservoirLongsMap.newInstance(KEY_SIZE, maxK, budget);
+
+    final int numKeys = 2000;
+    final int n = 1000;
+    for (int i = 0; i < n; ++i) {
+      for (int key = 0; key < numKeys; ++key) {
+        map.update(key(key), item(key, i));
+      }
+      assertTrue(map.getMemoryUsageBytes() <= budget);
+    }
+
+    final int k = map.getK();
+    assertTrue(k < maxK);
+    assertTrue(k >= 2);
+    for (int key = 0; key < numKeys; ++key) {
+      assertEquals(map.getN(key(key)), n);
+      final long[] samples = map.getSamples(key(key));
+      assertEquals(samples.length, k);
+      for (final long s : samples) {
+        assertEquals(s >>> 32, key);
+        assertTrue((s & 0xFFFFFFFFL) < n);
+      }
+    }
+
+    // pooled samples stay uniform after repeated downsampling
+    final long[] allSamples = new long[numKeys * k];
+    for (int key = 0; key < numKeys; ++key) {
+      System.arraycopy(map.getSamples(key(key)), 0, allSamples, key * k, k);
+    }
+    double sum = 0.0;
+    for (final long s : allSamples) {
+      sum += s & 0xFFFFFFFFL;
+    }
+    final double mean = sum / allSamples.length;
+    final double stdErr = n / Math.sqrt(12.0 * allSamples.length);
+    assertEquals(mean, (n - 1) / 2.0, 5 * stdErr);
+  }
+
+  @Test
+  public void checkSerialization() {
+    final ReservoirLongsMap map = ReservoirLongsMap.newInstance(KEY_SIZE, 16, 1L << 30);
+    final byte[] emptyBytes = map.toByteArray();
+    assertEquals(ReservoirLongsMap.heapify(Memory.wrap(emptyBytes)).getActiveEntries(), 0);
+
+    for (int i = 0; i < 100; ++i) {
+      for (int key = 0; key < 50; ++key) {
+        if (i <= key) {
+          map.update(key(key), item(key, i));
+        }
+      }
+    }
+    final byte[] bytes = map.toByteArray();
+    final ReservoirLongsMap rebuilt = ReservoirLongsMap.heapify(Memory.wrap(bytes));
+    assertEquals(rebuilt.toByteArray(), bytes);
+    assertEquals(rebuilt.getK(), map.getK());
+    assertEquals(rebuilt.getMaxK(), map.getMaxK());
+    assertEquals(rebuilt.getMaxMemoryBytes(), map.getMaxMemoryBytes());
+    assertEquals(rebuilt.getKeySizeBytes(), KEY_SIZE);
+    for (int key = 0; key < 50; ++key) {
+      assertEquals(rebuilt.getN(key(key)), map.getN(key(key)));
+      assertEquals(rebuilt.getSamples(key(key)), map.getSamples(key(key)));
+    }
+
+    // still usable after heapify
+    rebuilt.update(key(1000), 1L);
+    assertEquals(rebuilt.getN(key(1000)), 1);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkTruncatedMemory() {
+    final ReservoirLongsMap map = ReservoirLongsMap.newInstance(KEY_SIZE, 16, 1L << 30);
+    for (int key = 0; key < 10; ++key) {
+      map.update(key(key), key);
+    }
+    final byte[] bytes = map.toByteArray();
+    ReservoirLongsMap.heapify(Memory.wrap(Arrays.copyOf(bytes, bytes.length - 8)));
+  }
+
+  @Test
+  public void checkMerge() {
+    final int n = 5000;
+    final ReservoirLongsMap map1 = ReservoirLongsMap.newInstance(KEY_SIZE, 100, 1L << 30);
+    final ReservoirLongsMap map2 = ReservoirLongsMap.newInstance(KEY_SIZE, 100, 1L << 30);
+    for (int i = 0; i < n; ++i) {
+      map1.update(key(0), item(0, i));      // only in map1, sampling
+      map2.update(key(1), item(1, i));      // only in map2, sampling
+      map1.update(key(2), item(2, i));      // in both, sampling
+      map2.update(key(2), item(2, n + i));
+    }
+    for (int i = 0; i < 10; ++i) {
+      map1.update(key(3), item(3, i));      // in both, exact
+      map2.update(key(3), item(3, 10 + i));
+    }
+
+    map1.merge(map2);
+    assertEquals(map1.getActiveEntries(), 4);
+    assertEquals(map1.getK(), 100);
+    assertEquals(map1.getN(key(0)), n);
+    assertEquals(map1.getN(key(1)), n);
+    assertEquals(map1.getN(key(2)), 2 * n);
+    assertEquals(map1.getN(key(3)), 20);
+    checkUniformSample(map1.getSamples(key(1)), 1, n);
+    checkUniformSample(map1.getSamples(key(2)), 2, 2 * n);
+
+    final long[] exact = map1.getSamples(key(3));
+    Arrays.sort(exact);
+    for (int i = 0; i < 20; ++i) {
+      assertEquals(exact[i], item(3, i));
+    }
+
+    // merging a map with a smaller k reduces every key to that k
+    final ReservoirLongsMap small = ReservoirLongsMap.newInstance(KEY_SIZE, 10, 1L << 30);
+    small.update(key(4), 4L);
+    map1.merge(small);
+    assertEquals(map1.getK(), 10);
+    assertEquals(map1.getSamples(key(0)).length, 10);
+    assertEquals(map1.getSamples(key(3)).length, 10);
+    assertEquals(map1.getN(key(4)), 1);
+  }
+
+  @Test
+  public void checkMergeUsesMapRandom() {
+    final int n = 3000;
+    final ReservoirLongsMap target1 = ReservoirLongsMap.newInstance(KEY_SIZE, 50, 1L << 30);
+    final ReservoirLongsMap target2 = ReservoirLongsMap.newInstance(KEY_SIZE, 50, 1L << 30);
+    final ReservoirLongsMap other = ReservoirLongsMap.newInstance(KEY_SIZE, 200, 1L << 30);
+    target1.seedRandom(7L);
+    target2.seedRandom(7L);
+    for (int i = 0; i < n; ++i) {
+      target1.update(key(0), item(0, i));
+      target2.update(key(0), item(0, i));
+      target1.update(key(1), item(1, i % 20));
+      target2.update(key(1), item(1, i % 20));
+      other.update(key(0), item(0, n + i));
+      other.update(key(1), item(1, n + i));
+      other.update(key(2), item(2, i % 120)); // exact in other, sampling once merged
+    }
+
+    // same map seed, different global generator state
+    target1.merge(other);
+    SamplingUtil.rand.nextLong();
+    target2.merge(other);
+    assertEquals(target1.toByteArray(), target2.toByteArray());
+
+    assertEquals(target1.getK(), 50);
+    assertEquals(target1.getN(key(0)), 2 * n);
+    assertEquals(target1.getN(key(1)), 2 * n);
+    assertEquals(target1.getN(key(2)), n);
+    checkUniformSample(target1.getSamples(key(0)), 0, 2 * n);
+    assertEquals(target1.getSamples(key(2)).length, 50);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkMergeKeySizeMismatch() {
+    ReservoirLongsMap.newInstance(KEY_SIZE, 10, 1L << 30)
+        .merge(ReservoirLongsMap.newInstance(KEY_SIZE + 4, 10, 1L << 30));
+  }
+
+  // checks the sample holds distinct items of the key with a plausible mean
+  private static void checkUniformSample(final long[] samples, final int key, final int n) {
+    final long[] sorted = samples.clone();
+    Arrays.sort(sorted);
+    double sum = 0.0;
+    for (int i = 0; i < sorted.length; ++i) {
+      assertEquals(sorted[i] >>> 32, key);
+      assertTrue((i == 0) || (sorted[i] != sorted[i - 1]));
+      sum += sorted[i] & 0xFFFFFFFFL;
+    }
+    final double mean = sum / sorted.length;
+    final double stdErr = n / Math.sqrt(12.0 * sorted.length);
+    assertEquals(mean, (n - 1) / 2.0, 5 * stdErr);
+  }
+
+  private static byte[] key(final int key) {
+    return new byte[] {(byte) key, (byte) (key >>> 8), (byte) (key >>> 16), (byte) (key >>> 24)};
+  }
+
+  private static long item(final int key, final int i) {
+    return ((long) key << 32) | i;
+  }
+}
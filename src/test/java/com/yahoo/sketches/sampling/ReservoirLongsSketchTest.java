@@ -24,11 +24,17 @@ import static com.yahoo.sketches.sampling.PreambleUtil.PREAMBLE_LONGS_BYTE;
 import static com.yahoo.sketches.sampling.PreambleUtil.RESERVOIR_SIZE_INT;
 import static com.yahoo.sketches.sampling.PreambleUtil.RESERVOIR_SIZE_SHORT;
 import static com.yahoo.sketches.sampling.PreambleUtil.SER_VER_BYTE;
+import static com.yahoo.sketches.sampling.VarOptItemsSketchTest.checkSummariesEqual;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
 import org.testng.annotations.Test;
 
 import com.yahoo.memory.Memory;
@@ -461,6 +467,115 @@ public class ReservoirLongsSketchTest {
     assertEquals(ss.getTotalSketchWeight(), itemCount);
   }
 
+  @Test
+  public void checkEstimateSubsetSums() {
+    final int k = 10;
+    final ReservoirLongsSketch sketch = ReservoirLongsSketch.newInstance(k);
+
+    final List<Predicate<Long>> predicates = new ArrayList<>();
+    predicates.add(item -> true);
+    predicates.add(item -> false);
+    predicates.add(item -> (item % 2) == 0);
+    predicates.add(item -> (item % 5) == 0);
+
+    // empty, exact, then sampling mode
+    final int[] numItems = {0, k - 1, 20 * k};
+    for (final int n : numItems) {
+      for (long i = 0; i < n; ++i) {
+        sketch.update(i);
+      }
+
+      final List<SampleSubsetSummary> summaries = sketch.estimateSubsetSums(predicates);
+      assertEquals(summaries.size(), predicates.size());
+      for (int p = 0; p < predicates.size(); ++p) {
+        checkSummariesEqual(summaries.get(p), sketch.estimateSubsetSum(predicates.get(p)));
+      }
+
+      final Map<Long, SampleSubsetSummary> groups
+              = sketch.estimateSubsetSumsByGroup(item -> item % 4);
+      for (final Map.Entry<Long, SampleSubsetSummary> entry : groups.entrySet()) {
+        final long group = entry.getKey();
+        checkSummariesEqual(entry.getValue(), sketch.estimateSubsetSum(item -> (item % 4) == group));
+      }
+      assertTrue(groups.size() <= 4);
+    }
+  }
+
+  @Test
+  public void checkBulkUpdateMatchesSingleUpdates() {
+    for (final boolean skipSampling : new boolean[] {false, true}) {
+      final long seed = 8675309L;
+      SamplingUtil.rand.setSeed(seed);
+      final ReservoirLongsSketch single =
+          ReservoirLongsSketch.newInstance(100, ResizeFactor.X2, skipSampling);
+      for (long i = 0; i < 100000; ++i) {
+        single.update(i);
+      }
+
+      SamplingUtil.rand.setSeed(seed);
+      final ReservoirLongsSketch bulk =
+          ReservoirLongsSketch.newInstance(100, ResizeFactor.X2, skipSampling);
+      assertEquals(bulk.isSkipSampling(), skipSampling);
+      long next = 0;
+      int batchSize = 1;
+      while (next < 100000) {
+        final long[] batch = new long[(int) Math.min(batchSize, 100000 - next)];
+        for (int j = 0; j < batch.length; ++j) {
+          batch[j] = next++;
+        }
+        bulk.update(batch);
+        batchSize = (batchSize * 3) + 1;
+      }
+      bulk.update((long[]) null);
+      bulk.update(new long[0]);
+
+      assertEquals(bulk.getN(), single.getN());
+      validateReservoirEquality(bulk, single);
+    }
+  }
+
+  @Test
+  public void checkSkipSamplingIsUniform() {
+    final int k = 10;
+    final int n = 100;
+    final int numTrials = 20000;
+    final int[] counts = new int[n];
+    final long[] secondHalf = new long[n / 2];
+    for (int i = 0; i < secondHalf.length; ++i) {
+      secondHalf[i] = (n / 2) + i;
+    }
+
+    for (int t = 0; t < numTrials; ++t) {
+      final ReservoirLongsSketch rls =
+          ReservoirLongsSketch.newInstance(k, ResizeFactor.X8, true);
+      for (long i = 0; i < (n / 2); ++i) {
+        rls.update(i);
+      }
+      if ((t & 1) == 1) {
+        rls.forceIncrementItemsSeen(0); // restarts the skip state mid-stream
+      }
+      rls.update(secondHalf);
+      assertEquals(rls.getN(), n);
+      for (final long item : rls.getSamples()) {
+        ++counts[(int) item];
+      }
+    }
+
+    // each item is expected in k/n of the samples, with a standard deviation of about 42
+    final double expected = (numTrials * (double) k) / n;
+    for (int i = 0; i < n; ++i) {
+      assertTrue(Math.abs(counts[i] - expected) < 300, "item " + i + ": " + counts[i]);
+    }
+  }
+
+  @Test(expectedExceptions = SketchesStateException.class)
+  public void checkBulkUpdateBeyondCapacity() {
+    final ReservoirLongsSketch rls = ReservoirLongsSketch.newInstance(4, ResizeFactor.X2, true);
+    rls.update(new long[] {1, 2, 3, 4, 5});
+    rls.forceIncrementItemsSeen(0xFFFFFFFFFFFFL - 10);
+    rls.update(new long[6]);
+  }
+
   private static WritableMemory getBasicSerializedRLS() {
     final int k = 10;
     final int n = 20;
@@ -532,4 +647,27 @@ public class ReservoirLongsSketchTest {
   private static void println(final String msg) {
     //System.out.println(msg);
   }
+
+  @Test
+  public void sameSeedGivesSameSample() {
+    for (final boolean skipSampling : new boolean[] {false, true}) {
+      final ReservoirLongsSketch rls1 =
+          ReservoirLongsSketch.newInstance(32, ResizeFactor.X8, skipSampling, 12345L);
+      final ReservoirLongsSketch rls2 =
+          ReservoirLongsSketch.newInstance(32, ResizeFactor.X8, skipSampling, 12345L);
+      for (long i = 0; i < 10000; i++) {
+        rls1.update(i);
+        rls2.update(i);
+      }
+      assertEquals(rls1.getSamples(), rls2.getSamples());
+    }
+
+    final ReservoirLongsUnion rlu1 = ReservoirLongsUnion.newInstance(32, 6789L);
+    final ReservoirLongsUnion rlu2 = ReservoirLongsUnion.newInstance(32, 6789L);
+    for (long i = 0; i < 10000; i++) {
+      rlu1.update(i);
+      rlu2.update(i);
+    }
+    assertEquals(rlu1.toByteArray(), rlu2.toByteArray());
+  }
 }
@@ -28,6 +28,11 @@ import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
 import org.testng.annotations.Test;
 
 import com.yahoo.memory.Memory;
@@ -609,6 +614,58 @@ public class VarOptItemsSketchTest {
     assertTrue(ss.getEstimate() < totalWeight); // exact mode, so know it must be strictly less
   }
 
+  @Test
+  public void checkEstimateSubsetSums() {
+    final int k = 10;
+    final VarOptItemsSketch<Long> sketch = VarOptItemsSketch.newInstance(k);
+
+    final List<Predicate<Long>> predicates = new ArrayList<>();
+    predicates.add(item -> true);
+    predicates.add(item -> false);
+    predicates.add(item -> item < 0);
+    predicates.add(item -> (item % 3) == 0);
+
+    // empty, exact, sampling, then sampling with heavy items
+    for (int phase = 0; phase < 4; ++phase) {
+      if (phase == 1 || phase == 2) {
+        for (long i = 1; i <= (phase == 1 ? k - 1 : 10 * k); ++i) {
+          sketch.update(i, 1.0 * i);
+        }
+      } else if (phase == 3) {
+        sketch.update(-1L, 1e6);
+        sketch.update(-2L, 2e6);
+      }
+
+      final List<SampleSubsetSummary> summaries = sketch.estimateSubsetSums(predicates);
+      assertEquals(summaries.size(), predicates.size());
+      for (int p = 0; p < predicates.size(); ++p) {
+        checkSummariesEqual(summaries.get(p), sketch.estimateSubsetSum(predicates.get(p)));
+      }
+
+      final Map<Long, SampleSubsetSummary> groups
+              = sketch.estimateSubsetSumsByGroup(item -> Math.floorMod(item, 3L));
+      double groupEstimate = 0.0;
+      for (final Map.Entry<Long, SampleSubsetSummary> entry : groups.entrySet()) {
+        final long group = entry.getKey();
+        checkSummariesEqual(entry.getValue(),
+                sketch.estimateSubsetSum(item -> Math.floorMod(item, 3L) == group));
+        groupEstimate += entry.getValue().getEstimate();
+      }
+      final double totalEstimate = sketch.estimateSubsetSum(item -> true).getEstimate();
+      assertEquals(groupEstimate, totalEstimate, EPS * Math.max(1.0, totalEstimate));
+    }
+
+    assertTrue(sketch.estimateSubsetSums(new ArrayList<>()).isEmpty());
+  }
+
+  static void checkSummariesEqual(final SampleSubsetSummary actual,
+                                  final SampleSubsetSummary expected) {
+    assertEquals(actual.getLowerBound(), expected.getLowerBound());
+    assertEquals(actual.getEstimate(), expected.getEstimate());
+    assertEquals(actual.getUpperBound(), expected.getUpperBound());
+    assertEquals(actual.getTotalSketchWeight(), expected.getTotalSketchWeight());
+  }
+
 
   /* Returns a sketch of size k that has been presented with n items. Use n = k+1 to obtain a
      sketch that has just reached the sampling phase, so that the next update() is handled by
@@ -147,6 +147,25 @@ public class VarOptItemsUnionTest {
     assertEquals(result.getN(), 0);
   }
 
+  @Test
+  public void getResultLeavesGadgetUnchanged() {
+    final int k = 10;
+    final VarOptItemsSketch<Long> sk1 = getUnweightedLongsVIS(k / 2, 1000); // tau = 200
+    final VarOptItemsSketch<Long> sk2 = getUnweightedLongsVIS(k, k);         // exact, weights of 1
+
+    final VarOptItemsUnion<Long> union = VarOptItemsUnion.newInstance(k);
+    union.update(sk1);
+    union.update(sk2);
+
+    // marked items in the gadget's H region, so getResult() shrinks a copy of the gadget
+    assertTrue(union.gadget_.getNumMarksInH() > 0);
+    final ArrayOfLongsSerDe serDe = new ArrayOfLongsSerDe();
+    final byte[] before = union.toByteArray(serDe);
+    final VarOptItemsSketch<Long> result = union.getResult();
+    assertTrue(result.getK() < k);
+    assertEquals(union.toByteArray(serDe), before);
+  }
+
   @Test
   public void unionIdenticalSamplingSketches() {
     final int k = 20;
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.sampling;
+
+import static com.yahoo.sketches.sampling.VarOptItemsSketchTest.EPS;
+import static com.yahoo.sketches.sampling.VarOptItemsSketchTest.checkSummariesEqual;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.sketches.ArrayOfLongsSerDe;
+import com.yahoo.sketches.ResizeFactor;
+import com.yahoo.sketches.SketchesArgumentException;
+
+public class VarOptLongsSketchTest {
+  private static final ArrayOfLongsSerDe SERDE = new ArrayOfLongsSerDe();
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkInvalidK() {
+    VarOptLongsSketch.newInstance(0);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkInvalidWeight() {
+    VarOptLongsSketch.newInstance(5).update(1L, -1.0);
+  }
+
+  @Test
+  public void checkEmptySketch() {
+    final VarOptLongsSketch sketch = VarOptLongsSketch.newInstance(5, ResizeFactor.X2);
+    assertEquals(sketch.getN(), 0);
+    assertEquals(sketch.getNumSamples(), 0);
+    assertNull(sketch.getSamples());
+    assertNull(sketch.getWeights());
+    assertEquals(sketch.estimateSubsetSum(item -> true).getTotalSketchWeight(), 0.0);
+
+    final byte[] bytes = sketch.toByteArray();
+    assertEquals(bytes.length, 8);
+    assertEquals(bytes, VarOptItemsSketch.<Long>newInstance(5, ResizeFactor.X2).toByteArray(SERDE));
+    assertEquals(VarOptLongsSketch.heapify(Memory.wrap(bytes)).getK(), 5);
+    assertNotNull(VarOptLongsSketch.toString(bytes));
+    assertNotNull(sketch.toString());
+  }
+
+  @Test
+  public void checkMatchesItemsSketch() {
+    final int[] ks = {1, 2, 10, 256};
+    for (final int k : ks) {
+      final int[] ns = {k / 2, k, k + 1, 3 * k, 50 * k};
+      for (final int n : ns) {
+        final long seed = (31L * k) + n;
+        SamplingUtil.rand.setSeed(seed);
+        final VarOptItemsSketch<Long> items = VarOptItemsSketch.newInstance(k);
+        SamplingUtil.rand.setSeed(seed);
+        final VarOptLongsSketch longs = VarOptLongsSketch.newInstance(k);
+
+        final Random rand = new Random(seed);
+        for (long i = 0; i < n; ++i) {
+          final double w = Math.exp(3 * rand.nextGaussian());
+          items.update(i, w);
+          longs.update(i, w);
+        }
+
+        final byte[] itemsBytes = items.toByteArray(SERDE, Long.class);
+        final byte[] longsBytes = longs.toByteArray();
+        assertEquals(longsBytes, itemsBytes, "k=" + k + ", n=" + n);
+        assertEquals(longs.getN(), items.getN());
+        assertEquals(longs.getNumSamples(), items.getNumSamples());
+
+        if (n > 0) {
+          final VarOptItemsSamples<Long> samples = items.getSketchSamples();
+          final long[] longSamples = longs.getSamples();
+          final double[] longWeights = longs.getWeights();
+          assertEquals(longSamples.length, samples.getNumSamples());
+          for (int i = 0; i < longSamples.length; ++i) {
+            assertEquals(longSamples[i], (long) samples.items(i));
+            assertEquals(longWeights[i], samples.weights(i));
+          }
+
+          final SampleSubsetSummary ss1 = items.estimateSubsetSum(item -> (item % 3) == 0);
+          final SampleSubsetSummary ss2 = longs.estimateSubsetSum(item -> (item % 3) == 0);
+          assertEquals(ss2.getEstimate(), ss1.getEstimate());
+          assertEquals(ss2.getLowerBound(), ss1.getLowerBound());
+          assertEquals(ss2.getUpperBound(), ss1.getUpperBound());
+          assertEquals(ss2.getTotalSketchWeight(), ss1.getTotalSketchWeight());
+
+          final Map<Long, SampleSubsetSummary> groups1
+                  = items.estimateSubsetSumsByGroup(item -> item % 7);
+          final Map<Long, SampleSubsetSummary> groups2
+                  = longs.estimateSubsetSumsByGroup(item -> item % 7);
+          assertEquals(groups2.keySet(), groups1.keySet());
+          for (final Map.Entry<Long, SampleSubsetSummary> entry : groups2.entrySet()) {
+            checkSummariesEqual(entry.getValue(), groups1.get(entry.getKey()));
+          }
+        }
+
+        // each class reads the images of the other
+        assertEquals(VarOptLongsSketch.heapify(Memory.wrap(itemsBytes)).toByteArray(), itemsBytes);
+        if (k > 1) { // heapifying VarOptItemsSketch requires k >= 2
+          assertEquals(VarOptItemsSketch.heapify(Memory.wrap(longsBytes), SERDE)
+                  .toByteArray(SERDE, Long.class), longsBytes);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void checkCumulativeWeight() {
+    final int k = 256;
+    final int n = 10 * k;
+    final VarOptLongsSketch sketch = VarOptLongsSketch.newInstance(k);
+
+    double inputSum = 0.0;
+    for (long i = 0; i < n; ++i) {
+      final double w = Math.exp(5 * SamplingUtil.rand.nextGaussian());
+      inputSum += w;
+      sketch.update(i, w);
+    }
+
+    double outputSum = 0.0;
+    for (final double w : sketch.getWeights()) {
+      outputSum += w;
+    }
+    assertTrue(Math.abs((outputSum / inputSum) - 1.0) < EPS);
+    assertEquals(sketch.getNumSamples(), k);
+  }
+
+  @Test
+  public void checkHeavyItemsStayExact() {
+    final int k = 10;
+    final VarOptLongsSketch sketch = VarOptLongsSketch.newInstance(k);
+    for (long i = 0; i < 1000; ++i) {
+      sketch.update(i, 1.0);
+    }
+    sketch.update(-1L, 1e6);
+    sketch.update(-2L, 2e6);
+
+    final SampleSubsetSummary ss = sketch.estimateSubsetSum(item -> item < 0);
+    assertEquals(ss.getEstimate(), 3e6);
+    assertEquals(ss.getTotalSketchWeight(), 3e6 + 1000, EPS);
+    assertEquals(sketch.getHRegionCount(), 2);
+  }
+
+  @Test
+  public void checkReset() {
+    final VarOptLongsSketch sketch = VarOptLongsSketch.newInstance(20);
+    for (long i = 0; i < 100; ++i) {
+      sketch.update(i, 1.0 + i);
+    }
+    sketch.reset();
+    assertEquals(sketch.getN(), 0);
+    assertEquals(sketch.getNumSamples(), 0);
+    for (long i = 0; i < 10; ++i) {
+      sketch.update(i, 2.0);
+    }
+    assertEquals(sketch.getSamples().length, 10);
+    assertEquals(sketch.estimateSubsetSum(item -> true).getEstimate(), 20.0);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkTruncatedMemory() {
+    final VarOptLongsSketch sketch = VarOptLongsSketch.newInstance(20);
+    for (long i = 0; i < 100; ++i) {
+      sketch.update(i, 1.0);
+    }
+    final byte[] bytes = sketch.toByteArray();
+    VarOptLongsSketch.heapify(Memory.wrap(bytes).region(0, bytes.length - 8));
+  }
+
+  @Test
+  public void sameSeedGivesSameSample() {
+    final VarOptLongsSketch vs1 = VarOptLongsSketch.newInstance(32, ResizeFactor.X8, 12345L);
+    final VarOptLongsSketch vs2 = VarOptLongsSketch.newInstance(32, ResizeFactor.X8, 12345L);
+    for (long i = 1; i <= 10000; i++) {
+      vs1.update(i, i);
+      vs2.update(i, i);
+    }
+    assertEquals(vs1.toByteArray(), vs2.toByteArray());
+
+    final VarOptLongsUnion vu1 = VarOptLongsUnion.newInstance(16, 6789L);
+    final VarOptLongsUnion vu2 = VarOptLongsUnion.newInstance(16, 6789L);
+    vu1.update(vs1);
+    vu2.update(vs2);
+    assertEquals(vu1.getResult().toByteArray(), vu2.getResult().toByteArray());
+  }
+}
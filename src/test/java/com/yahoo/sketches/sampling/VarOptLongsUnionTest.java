@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.yahoo.sketches.sampling;
+
+import static com.yahoo.sketches.sampling.VarOptItemsSketchTest.EPS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.sketches.ArrayOfLongsSerDe;
+
+public class VarOptLongsUnionTest {
+  private static final ArrayOfLongsSerDe SERDE = new ArrayOfLongsSerDe();
+
+  @Test
+  public void unionEmpty() {
+    final VarOptLongsUnion union = VarOptLongsUnion.newInstance(10);
+    union.update((VarOptLongsSketch) null);
+    union.update(VarOptLongsSketch.newInstance(5));
+    assertEquals(union.getResult().getN(), 0);
+    assertEquals(union.getResult().getK(), 10);
+
+    final byte[] bytes = union.toByteArray();
+    assertEquals(bytes, VarOptItemsUnion.<Long>newInstance(10).toByteArray(SERDE));
+    assertEquals(VarOptLongsUnion.heapify(Memory.wrap(bytes)).toByteArray(), bytes);
+    assertNotNull(union.toString());
+  }
+
+  @Test
+  public void unionHeavySamplingSketch() {
+    final int n1 = 20;
+    final int k1 = 10;
+    final int n2 = 6;
+    final int k2 = 5;
+    final VarOptLongsSketch sk1 = VarOptLongsSketch.newInstance(k1);
+    final VarOptLongsSketch sk2 = VarOptLongsSketch.newInstance(k2);
+
+    for (long i = 1; i <= n1; ++i) {
+      sk1.update(i, i);
+    }
+
+    for (long i = 1; i < n2; ++i) { // we'll add a very heavy one later
+      sk2.update(-i, i + 1000.0);
+    }
+    sk2.update(-n2, 1000000.0);
+
+    final VarOptLongsUnion union = VarOptLongsUnion.newInstance(k1);
+    union.update(sk1);
+    union.update(sk2);
+
+    final byte[] unionBytes = union.toByteArray();
+    final VarOptLongsSketch result = union.getResult();
+    assertEquals(result.getN(), n1 + n2);
+    assertEquals(result.getK(), k2); // heavy enough it'll pull back to k2
+    assertEquals(result.getHRegionCount(), 1);
+    assertEquals(result.getRRegionCount(), k2 - 1);
+
+    // resolving the result does not modify the union
+    assertEquals(union.toByteArray(), unionBytes);
+
+    union.reset();
+    assertEquals(union.getOuterTau(), 0.0);
+    assertEquals(union.getResult().getN(), 0);
+  }
+
+  @Test
+  public void checkMatchesItemsUnion() {
+    final int[] unionKs = {8, 20, 200};
+    for (final int maxK : unionKs) {
+      final long seed = 1234L + maxK;
+
+      SamplingUtil.rand.setSeed(seed);
+      final VarOptItemsUnion<Long> itemsUnion = VarOptItemsUnion.newInstance(maxK);
+      for (int s = 0; s < 6; ++s) {
+        itemsUnion.update(buildItemsSketch(s));
+      }
+      final ReservoirItemsSketch<Long> ris = ReservoirItemsSketch.newInstance(15);
+      for (long i = 0; i < 300; ++i) {
+        ris.update(i);
+      }
+      itemsUnion.update(ris);
+      final byte[] itemsUnionBytes = itemsUnion.toByteArray(SERDE, Long.class);
+
+      SamplingUtil.rand.setSeed(seed);
+      final VarOptLongsUnion longsUnion = VarOptLongsUnion.newInstance(maxK);
+      for (int s = 0; s < 6; ++s) {
+        longsUnion.update(buildLongsSketch(s));
+      }
+      final ReservoirLongsSketch rls = ReservoirLongsSketch.newInstance(15);
+      for (long i = 0; i < 300; ++i) {
+        rls.update(i);
+      }
+      longsUnion.update(rls);
+
+      assertEquals(longsUnion.toByteArray(), itemsUnionBytes, "maxK=" + maxK);
+      assertEquals(longsUnion.getOuterTau(), itemsUnion.getOuterTau());
+
+      // resolving the result copies the gadget, which draws a new seed
+      SamplingUtil.rand.setSeed(seed);
+      final VarOptLongsSketch longsResult = longsUnion.getResult();
+      SamplingUtil.rand.setSeed(seed);
+      final VarOptItemsSketch<Long> itemsResult = itemsUnion.getResult();
+      assertEquals(longsResult.toByteArray(), itemsResult.toByteArray(SERDE, Long.class));
+
+      // serialized unions are interchangeable
+      final VarOptLongsUnion rebuilt = VarOptLongsUnion.heapify(Memory.wrap(itemsUnionBytes));
+      assertEquals(rebuilt.toByteArray(), itemsUnionBytes);
+      final double expectedWeight = longsResult.estimateSubsetSum(item -> true).getEstimate();
+      assertEquals(rebuilt.getResult().estimateSubsetSum(item -> true).getEstimate(),
+              expectedWeight, EPS * expectedWeight);
+    }
+  }
+
+  @Test
+  public void unionMemoryImage() {
+    final VarOptLongsSketch sketch = buildLongsSketch(3);
+    final VarOptLongsUnion union1 = VarOptLongsUnion.newInstance(50);
+    union1.update(sketch);
+    final VarOptLongsUnion union2 = VarOptLongsUnion.newInstance(50);
+    union2.update(Memory.wrap(sketch.toByteArray()));
+    assertEquals(union2.toByteArray(), union1.toByteArray());
+  }
+
+  // a mix of exact, sampling and heavy-tailed sketches, built in the same order for both types
+  private static VarOptItemsSketch<Long> buildItemsSketch(final int s) {
+    final VarOptItemsSketch<Long> sketch = VarOptItemsSketch.newInstance(5 + (7 * s));
+    for (long i = 0; i < (s * 40L); ++i) {
+      sketch.update((100L * s) + i, weight(s, i));
+    }
+    return sketch;
+  }
+
+  private static VarOptLongsSketch buildLongsSketch(final int s) {
+    final VarOptLongsSketch sketch = VarOptLongsSketch.newInstance(5 + (7 * s));
+    for (long i = 0; i < (s * 40L); ++i) {
+      sketch.update((100L * s) + i, weight(s, i));
+    }
+    return sketch;
+  }
+
+  private static double weight(final int s, final long i) {
+    return (s % 2) == 0 ? 1.0 : 1.0 + ((i * i) % 97);
+  }
+}